@@ -60,11 +60,10 @@ import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bonej.geometry.FitEllipsoid;
+import org.bonej.geometry.SymmetricEigen3;
 import org.bonej.util.Multithreader;
 import org.scijava.vecmath.Point3f;
 
-import Jama.EigenvalueDecomposition;
-import Jama.Matrix;
 import customnode.CustomTriangleMesh;
 import ij.IJ;
 import ij.ImagePlus;
@@ -82,6 +81,9 @@ import sc.fiji.skeletonize3D.Skeletonize3D_;
  */
 public class ParticleAnalysis {
 
+	/** Number of batches of particles per thread in largest-first scheduling */
+	private static final int BATCHES_PER_THREAD = 8;
+
 	/** list of particle sizes */
 	private long[] particleSizes;
 
@@ -389,9 +391,9 @@ public class ParticleAnalysis {
 	 * @param imp ImagePlus, used for calibration
 	 * @param particleLabels label image array
 	 * @param centroids list of particle centroids
-	 * @return list of EigenvalueDecompositions
+	 * @return Eigenvalue decompositions of the particles' inertia tensors
 	 */
-	static EigenvalueDecomposition[] getEigens(final ImagePlus imp, final int[][] particleLabels,
+	static SymmetricEigen3 getEigens(final ImagePlus imp, final int[][] particleLabels,
 			final double[][] centroids) {
 		final Calibration cal = imp.getCalibration();
 		final double vW = cal.pixelWidth;
@@ -404,14 +406,15 @@ public class ParticleAnalysis {
 		final int h = imp.getHeight();
 		final int d = imp.getImageStackSize();
 		final int nParticles = centroids.length;
+		final int tensorSize = SymmetricEigen3.TENSOR_SIZE;
 
 		final AtomicInteger ai = new AtomicInteger(0);
 		final Thread[] threads = Multithreader.newThreads();
-		final List<double[][]> listOfTensors = Collections.synchronizedList(new ArrayList<>());
+		final List<double[]> listOfTensors = Collections.synchronizedList(new ArrayList<>());
 		
 		for (int thread = 0; thread < threads.length; thread++) {
 
-			final double[][] threadTensors = new double[nParticles][6];
+			final double[] threadTensors = new double[nParticles * tensorSize];
 
 			threads[thread] = new Thread(() -> {
 				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
@@ -427,12 +430,13 @@ public class ParticleAnalysis {
 							final double dx = xVw - centroids[p][0];
 							final double dy = yVh - centroids[p][1];
 							final double dz = zVd - centroids[p][2];
-							threadTensors[p][0] += dy * dy + dz * dz + voxVhVd; // Ixx
-							threadTensors[p][1] += dx * dx + dz * dz + voxVwVd; // Iyy
-							threadTensors[p][2] += dy * dy + dx * dx + voxVhVw; // Izz
-							threadTensors[p][3] += dx * dy; // Ixy
-							threadTensors[p][4] += dx * dz; // Ixz
-							threadTensors[p][5] += dy * dz; // Iyz
+							final int t = p * tensorSize;
+							threadTensors[t] += dy * dy + dz * dz + voxVhVd; // Ixx
+							threadTensors[t + 1] += dx * dx + dz * dz + voxVwVd; // Iyy
+							threadTensors[t + 2] += dy * dy + dx * dx + voxVhVw; // Izz
+							threadTensors[t + 3] -= dx * dy; // Ixy
+							threadTensors[t + 4] -= dx * dz; // Ixz
+							threadTensors[t + 5] -= dy * dz; // Iyz
 						}
 					}
 				}
@@ -441,37 +445,14 @@ public class ParticleAnalysis {
 		}
 		Multithreader.startAndJoin(threads);
 		
-		final double[][] momentTensors = new double[nParticles][6];
-		Iterator<double[][]> iter = listOfTensors.iterator();
-		while (iter.hasNext()) {
-			final double[][] threadTensors = iter.next();
-			for (int p = 1; p < nParticles; p++) {
-				momentTensors[p][0] += threadTensors[p][0];
-				momentTensors[p][1] += threadTensors[p][1];
-				momentTensors[p][2] += threadTensors[p][2];
-				momentTensors[p][3] += threadTensors[p][3];
-				momentTensors[p][4] += threadTensors[p][4];
-				momentTensors[p][5] += threadTensors[p][5];
+		final double[] momentTensors = new double[nParticles * tensorSize];
+		for (final double[] threadTensors : listOfTensors) {
+			for (int i = tensorSize; i < momentTensors.length; i++) {
+				momentTensors[i] += threadTensors[i];
 			}
 		}
 		
-		final EigenvalueDecomposition[] eigens = new EigenvalueDecomposition[nParticles];
-		for (int p = 1; p < nParticles; p++) {
-			final double[][] inertiaTensor = new double[3][3];
-			inertiaTensor[0][0] = momentTensors[p][0];
-			inertiaTensor[1][1] = momentTensors[p][1];
-			inertiaTensor[2][2] = momentTensors[p][2];
-			inertiaTensor[0][1] = -momentTensors[p][3];
-			inertiaTensor[0][2] = -momentTensors[p][4];
-			inertiaTensor[1][0] = -momentTensors[p][3];
-			inertiaTensor[1][2] = -momentTensors[p][5];
-			inertiaTensor[2][0] = -momentTensors[p][4];
-			inertiaTensor[2][1] = -momentTensors[p][5];
-			final Matrix inertiaTensorMatrix = new Matrix(inertiaTensor);
-			final EigenvalueDecomposition E = new EigenvalueDecomposition(inertiaTensorMatrix);
-			eigens[p] = E;
-		}
-		return eigens;
+		return SymmetricEigen3.decompose(momentTensors);
 	}
 
 	/**
@@ -591,14 +572,17 @@ public class ParticleAnalysis {
 	 * 
 	 * @param imp input image, needed for calibration
 	 * @param particleLabels label image
-	 * @param tensors array of rotation matrices, one per particle
+	 * @param eigens eigenvalue decompositions of the particles, whose
+	 * eigenvectors define the directions
 	 * @param nParticles number of particles
 	 * @return array of box dimensions, each containing the centre x, y, z
 	 * coordinates and box width, height and depth.
 	 */
 	static double[][] getAxisAlignedBoundingBoxes(final ImagePlus imp, final int[][] particleLabels,
-		final Matrix[] tensors, final int nParticles){
+		final SymmetricEigen3 eigens, final int nParticles){
 		
+		// rotation matrices, 9 elements per particle in row-major order
+		final double[] tensors = eigens.getEigenvectors();
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
 		final int d = imp.getImageStackSize();
@@ -622,7 +606,6 @@ public class ParticleAnalysis {
 				threadLimits[p][5] = -Double.MAX_VALUE; // 2 max
 			}
 			threads[thread] = new Thread(() -> {
-				double[][] v = new double[3][3];
 				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
 					final double zd = z * vD;
 					final int[] slice = particleLabels[z];
@@ -634,17 +617,17 @@ public class ParticleAnalysis {
 							
 							final int p = slice[index + x];
 							if (p == 0) continue;
-							v = tensors[p].getArray();
+							final int v = p * 9;
 							
-							final double xwv00 = xw * v[0][0];
-							final double xwv01 = xw * v[0][1];
-							final double xwv02 = xw * v[0][2];
-							final double yhv10 = yh * v[1][0];
-							final double yhv11 = yh * v[1][1];
-							final double yhv12 = yh * v[1][2];
-							final double zdv20 = zd * v[2][0];
-							final double zdv21 = zd * v[2][1];
-							final double zdv22 = zd * v[2][2];
+							final double xwv00 = xw * tensors[v];
+							final double xwv01 = xw * tensors[v + 1];
+							final double xwv02 = xw * tensors[v + 2];
+							final double yhv10 = yh * tensors[v + 3];
+							final double yhv11 = yh * tensors[v + 4];
+							final double yhv12 = yh * tensors[v + 5];
+							final double zdv20 = zd * tensors[v + 6];
+							final double zdv21 = zd * tensors[v + 7];
+							final double zdv22 = zd * tensors[v + 8];
 							
 							final double l0 = xwv00 + yhv10 + zdv20;
 							final double l1 = xwv01 + yhv11 + zdv21;
@@ -695,20 +678,21 @@ public class ParticleAnalysis {
 			final double c1 = (limits[p][2] + limits[p][3]) / 2; //medium axis 1st column
 			final double c2 = (limits[p][4] + limits[p][5]) / 2; //short axis 2nd column
 			
-			//rotate back to original coordinate frame by multiplying by the inverse
-			final double[][] vi = tensors[p].inverse().getArray();
+			//rotate back to original coordinate frame by multiplying by the inverse,
+			//which is the transpose because the eigenvectors are orthonormal
+			final int v = p * 9;
 			
-			final double c2vi20 = c2 * vi[2][0];
-			final double c2vi21 = c2 * vi[2][1];
-			final double c2vi22 = c2 * vi[2][2];
+			final double c2vi20 = c2 * tensors[v + 2];
+			final double c2vi21 = c2 * tensors[v + 5];
+			final double c2vi22 = c2 * tensors[v + 8];
 			
-			final double c1vi10 = c1 * vi[1][0];
-			final double c1vi11 = c1 * vi[1][1];
-			final double c1vi12 = c1 * vi[1][2];
+			final double c1vi10 = c1 * tensors[v + 1];
+			final double c1vi11 = c1 * tensors[v + 4];
+			final double c1vi12 = c1 * tensors[v + 7];
 			
-			final double c0vi00 = c0 * vi[0][0];
-			final double c0vi01 = c0 * vi[0][1];
-			final double c0vi02 = c0 * vi[0][2];
+			final double c0vi00 = c0 * tensors[v];
+			final double c0vi01 = c0 * tensors[v + 3];
+			final double c0vi02 = c0 * tensors[v + 6];
 			
 			final double cx = c2vi20 + c1vi10 + c0vi00;
 			final double cy = c2vi21 + c1vi11 + c0vi01;
@@ -727,46 +711,20 @@ public class ParticleAnalysis {
 		return alignedBoxes;
 	}
 	
-	/**
-	 * Overloaded method that accepts the EVD of each particle and unwraps its Matrixes
-	 * for convenience.
-	 * 
-	 * @param imp ImagePlus
-	 * @param particleLabels 
-	 * @param eigens array of 3 × 3 rotation matrices (inertia tensors)
-	 * @param nParticles 
-	 * @return dimensions of the axis aligned bounding box, aligned to the eigenvectors
-	 * of the supplied eigenvalue decomposition.
-	 */
-	static double[][] getAxisAlignedBoundingBoxes(final ImagePlus imp, final int[][] particleLabels,
-		final EigenvalueDecomposition[] eigens, final int nParticles){
-		
-		final Matrix[] tensors = new Matrix[nParticles];
-		
-		for (int i = 1; i < nParticles; i++) {
-			tensors[i] = eigens[i].getV();
-		}
-		
-		return getAxisAlignedBoundingBoxes(imp, particleLabels, tensors, nParticles);
-	}
-	
 	/**
 	 * Get the Euler characteristic of each particle
 	 *
-	 * @param imp an image.
-	 * @param particleLabels particles of the image.
-	 * @param limits limits of the particles.
+	 * @param crops binary images of the particles.
 	 * @param nParticles number of particles in the image
 	 * @return euler characteristic of each image.
 	 */
-	static double[][] getEulerCharacter(final ImagePlus imp,
-		final int[][] particleLabels, final int[][] limits, final int nParticles)
+	static double[][] getEulerCharacter(final ParticleCrops crops,
+		final int nParticles)
 	{
 		final Connectivity con = new Connectivity();
 		final double[][] eulerCharacters = new double[nParticles][3];
 		for (int p = 1; p < nParticles; p++) {
-			final ImagePlus particleImp = getBinaryParticle(p, imp, particleLabels,
-				limits, 1);
+			final ImagePlus particleImp = crops.getBinaryParticle(p, 1);
 			final double euler = con.getSumEuler(particleImp);
 			final double cavities = getNCavities(particleImp);
 			// Calculate number of holes and cavities using
@@ -787,32 +745,34 @@ public class ParticleAnalysis {
 	 * Calls {@link AnalyzeSkeleton_#run()} with no arguments.
 	 * </p>
 	 *  
-	 * @param imp            Input image
-	 * @param particleLabels particle label array
+	 * @param crops          binary images of the particles
 	 * @param limits         xyz limits of each particle
 	 * @param nParticles     number of particles
 	 * @return array of {@link SkeletonResult} result objects. Use methods therein
 	 *         to get specific results out. Each result is a list of trees, but
 	 *         there should be only one tree per particle so its result is at [0].
 	 */
-	static SkeletonResult[] getBranchLength(final ImagePlus imp,
-			final int[][] particleLabels, final int[][] limits, final int nParticles)
+	static SkeletonResult[] getBranchLength(final ParticleCrops crops,
+			final int[][] limits, final int nParticles)
 	{
 		final SkeletonResult[] skeletonResults = new SkeletonResult[nParticles];
 		final Thread[] threads = Multithreader.newThreads();
-		final AtomicInteger ai = new AtomicInteger(1);
+		final int[][] batches = getBatchesLargestFirst(getBoxVolumes(limits,
+			nParticles), 1, threads.length);
+		final AtomicInteger ai = new AtomicInteger(0);
 		for (int thread = 0; thread < threads.length; thread++) {
 			threads[thread] = new Thread(() -> {
 				final Skeletonize3D_ skeletoniser = new Skeletonize3D_();
 				final AnalyzeSkeleton_ analyzeSkeleton_ = new AnalyzeSkeleton_();
-				for (int i = ai.getAndIncrement(); i < nParticles; i = ai.getAndIncrement()) {
-					final ImagePlus particleImp = getBinaryParticle(i, imp, particleLabels,
-							limits, 1);
-					skeletoniser.setup("", particleImp);
-					skeletoniser.run(null);
-					analyzeSkeleton_.setup("", particleImp);
-					final SkeletonResult skeletonResult = analyzeSkeleton_.run();
-					skeletonResults[i] = skeletonResult;
+				for (int b = ai.getAndIncrement(); b < batches.length; b = ai.getAndIncrement()) {
+					for (final int i : batches[b]) {
+						final ImagePlus particleImp = crops.getBinaryParticle(i, 1);
+						skeletoniser.setup("", particleImp);
+						skeletoniser.run(null);
+						analyzeSkeleton_.setup("", particleImp);
+						final SkeletonResult skeletonResult = analyzeSkeleton_.run();
+						skeletonResults[i] = skeletonResult;
+					}
 				}
 			});
 		}
@@ -846,38 +806,113 @@ public class ParticleAnalysis {
 	 */
 	static ImagePlus getBinaryParticle(final int p, final ImagePlus imp, final int[][] particleLabels,
 			final int[][] limits, final int padding) {
+		return new ParticleCrops(imp, particleLabels, limits, 1).getBinaryParticle(p, padding);
+	}
 
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		final int xMin = Math.max(0, limits[p][0] - padding);
-		final int xMax = Math.min(w - 1, limits[p][1] + padding);
-		final int yMin = Math.max(0, limits[p][2] - padding);
-		final int yMax = Math.min(h - 1, limits[p][3] + padding);
-		final int zMin = Math.max(0, limits[p][4] - padding);
-		final int zMax = Math.min(d - 1, limits[p][5] + padding);
-		final int stackWidth = xMax - xMin + 1;
-		final int stackHeight = yMax - yMin + 1;
-		final int stackSize = stackWidth * stackHeight;
-		final ImageStack stack = new ImageStack(stackWidth, stackHeight);
-		for (int z = zMin; z <= zMax; z++) {
-			final byte[] slice = new byte[stackSize];
-			int i = 0;
-			for (int y = yMin; y <= yMax; y++) {
-				final int sourceIndex = y * w;
-				for (int x = xMin; x <= xMax; x++) {
-					if (particleLabels[z][sourceIndex + x] == p) {
-						slice[i] = (byte) 0xFF;
-					}
-					i++;
-				}
+	/**
+	 * Estimate the cost of per-particle work by the volume of each particle's
+	 * bounding box
+	 * 
+	 * @param limits bounding box limits for each particle
+	 * @param nParticles number of particles
+	 * @return bounding box volumes in voxels
+	 */
+	static double[] getBoxVolumes(final int[][] limits, final int nParticles) {
+		final double[] volumes = new double[nParticles];
+		for (int p = 1; p < nParticles; p++) {
+			final double width = Math.max(0, limits[p][1] - limits[p][0] + 1);
+			final double height = Math.max(0, limits[p][3] - limits[p][2] + 1);
+			final double depth = Math.max(0, limits[p][5] - limits[p][4] + 1);
+			volumes[p] = width * height * depth;
+		}
+		return volumes;
+	}
+
+	/**
+	 * Group particles into batches of work, largest first.
+	 * <p>
+	 * Particles are sorted by decreasing cost, so that the most expensive ones
+	 * start first, and don't leave the other threads idle at the end of the
+	 * run. Cheap particles are grouped into batches of roughly equal cost, so
+	 * that threads don't contend for an index after every tiny particle.
+	 * </p>
+	 * 
+	 * @param costs estimated cost of each particle, e.g. its size. Negative
+	 *          and NaN costs count as zero.
+	 * @param first index of the first particle to schedule
+	 * @param nThreads number of threads sharing the batches
+	 * @return batches of particle indices, to be processed in order
+	 */
+	static int[][] getBatchesLargestFirst(final double[] costs, final int first,
+		final int nThreads)
+	{
+		final int nParticles = Math.max(0, costs.length - first);
+		final int[] order = sortLargestFirst(costs, first, nParticles);
+		double totalCost = 0;
+		for (int i = first; i < costs.length; i++) {
+			totalCost += cost(costs, i);
+		}
+
+		// aim for several batches per thread of what's left, so that the batches
+		// get smaller towards the end of the run and the load stays balanced
+		final int nBatches = nThreads * BATCHES_PER_THREAD;
+		final int maxBatchSize = Math.max(1, nParticles / nBatches);
+		final List<int[]> batches = new ArrayList<>();
+		double remainingCost = totalCost;
+		int start = 0;
+		while (start < nParticles) {
+			final double batchCost = remainingCost / nBatches;
+			int end = start;
+			double cost = 0;
+			do {
+				cost += cost(costs, order[end]);
+				end++;
 			}
-			stack.addSlice(imp.getStack().getSliceLabel(z + 1), slice);
+			while (end < nParticles && end - start < maxBatchSize &&
+				cost + cost(costs, order[end]) <= batchCost);
+			remainingCost -= cost;
+			batches.add(Arrays.copyOfRange(order, start, end));
+			start = end;
 		}
-		final ImagePlus binaryImp = new ImagePlus("Particle_" + p, stack);
-		final Calibration cal = imp.getCalibration();
-		binaryImp.setCalibration(cal);
-		return binaryImp;
+		return batches.toArray(new int[0][]);
+	}
+
+	/** @return cost of the particle, or zero if it's negative or NaN */
+	private static double cost(final double[] costs, final int p) {
+		return costs[p] > 0 ? costs[p] : 0;
+	}
+
+	/**
+	 * Sorts particle indices by decreasing cost, and by increasing index when
+	 * the costs are equal.
+	 * <p>
+	 * Each index is packed with its cost into a long, so that the sort runs on a
+	 * primitive array without boxing. The high 32 bits hold the cost as a float
+	 * in reverse order, and the low bits the index. The bits of a non-negative
+	 * float sort in the same order as its value, and the precision of a float
+	 * is enough for scheduling.
+	 * </p>
+	 *
+	 * @param costs estimated cost of each particle
+	 * @param first index of the first particle to sort
+	 * @param nParticles number of particles to sort
+	 * @return indices from first to first + nParticles - 1, largest cost first
+	 */
+	private static int[] sortLargestFirst(final double[] costs, final int first,
+		final int nParticles)
+	{
+		final long[] keys = new long[nParticles];
+		for (int i = 0; i < nParticles; i++) {
+			final float cost = (float) cost(costs, first + i);
+			final long reversed = Integer.MAX_VALUE - Float.floatToIntBits(cost);
+			keys[i] = reversed << 32 | (first + i);
+		}
+		Arrays.sort(keys);
+		final int[] order = new int[nParticles];
+		for (int i = 0; i < nParticles; i++) {
+			order[i] = (int) keys[i];
+		}
+		return order;
 	}
 
 	// ----------- SURFACE MESH OPERATIONS ------------------------//
@@ -886,45 +921,48 @@ public class ParticleAnalysis {
 	 * Create a list of surface meshes, each wrapping a particle
 	 * 
 	 * @param imp Input image, needed for calibration
-	 * @param particleLabels label array
+	 * @param crops binary images of the particles
 	 * @param limits bounding box limits for each particle
 	 * @param resampling user-set resampling level
 	 * @param nParticles number of particles
 	 * @return list of surface meshes, one per particle
 	 */
-	static List<List<Point3f>> getSurfacePoints(final ImagePlus imp, final int[][] particleLabels,
+	static List<List<Point3f>> getSurfacePoints(final ImagePlus imp, final ParticleCrops crops,
 			final int[][] limits, final int resampling, final int nParticles) {
 		final Calibration cal = imp.getCalibration();
 		final List<List<Point3f>> surfacePoints = Collections.synchronizedList(new ArrayList<>(nParticles));
 		for (int p = 0; p < nParticles; p++) {
 			surfacePoints.add(null);
 		}
-		final AtomicInteger ai = new AtomicInteger(1);
+		final AtomicInteger ai = new AtomicInteger(0);
 		final Thread[] threads = Multithreader.newThreads();
+		final int[][] batches = getBatchesLargestFirst(getBoxVolumes(limits,
+			nParticles), 1, threads.length);
 		final boolean[] channels = { true, false, false };
 
 		for (int thread = 0; thread < threads.length; thread++) {
 			threads[thread] = new Thread(() -> {
-				for (int p = ai.getAndIncrement(); p < nParticles; p = ai.getAndIncrement()) {
-
-					final ImagePlus binaryImp = getBinaryParticle(p, imp, particleLabels, limits, resampling);
-					// noinspection TypeMayBeWeakened
-					final MCTriangulator mct = new MCTriangulator();
-					@SuppressWarnings("unchecked")
-					final List<Point3f> points = mct.getTriangles(binaryImp, 128, channels, resampling);
-
-					final double xOffset = (limits[p][0] - 1) * cal.pixelWidth;
-					final double yOffset = (limits[p][2] - 1) * cal.pixelHeight;
-					final double zOffset = (limits[p][4] - 1) * cal.pixelDepth;
-					for (final Point3f point : points) {
-						point.x += xOffset;
-						point.y += yOffset;
-						point.z += zOffset;
-					}
-					if (points.isEmpty()) {
-						IJ.log("Particle " + p + " resulted in 0 surface points");
-					} else {
-						surfacePoints.set(p, points);
+				for (int b = ai.getAndIncrement(); b < batches.length; b = ai.getAndIncrement()) {
+					for (final int p : batches[b]) {
+						final ImagePlus binaryImp = crops.getBinaryParticle(p, resampling);
+						// noinspection TypeMayBeWeakened
+						final MCTriangulator mct = new MCTriangulator();
+						@SuppressWarnings("unchecked")
+						final List<Point3f> points = mct.getTriangles(binaryImp, 128, channels, resampling);
+
+						final double xOffset = (limits[p][0] - 1) * cal.pixelWidth;
+						final double yOffset = (limits[p][2] - 1) * cal.pixelHeight;
+						final double zOffset = (limits[p][4] - 1) * cal.pixelDepth;
+						for (final Point3f point : points) {
+							point.x += xOffset;
+							point.y += yOffset;
+							point.z += zOffset;
+						}
+						if (points.isEmpty()) {
+							IJ.log("Particle " + p + " resulted in 0 surface points");
+						} else {
+							surfacePoints.set(p, points);
+						}
 					}
 				}
 			});
@@ -995,48 +1033,58 @@ public class ParticleAnalysis {
 		final int nSurfaces = surfacePoints.size();
 		//distance, xa, ya, za, xb, yb, zb
 		final double[][] ferets = new double[nSurfaces][7];
+		// the search compares all point pairs
+		final double[] costs = new double[nSurfaces];
+		for (int i = 0; i < nSurfaces; i++) {
+			final List<Point3f> surface = surfacePoints.get(i);
+			final double nPoints = surface == null ? 0 : surface.size();
+			costs[i] = nPoints * nPoints;
+		}
+		final int[][] batches = getBatchesLargestFirst(costs, 0, threads.length);
 		AtomicInteger ai = new AtomicInteger(0);
 		for (int thread = 0; thread < threads.length; thread++) {
 			threads[thread] = new Thread(() -> {
-				for (int i = ai.getAndIncrement(); i < nSurfaces; i = ai.getAndIncrement()) {
-					final List<Point3f> surface = surfacePoints.get(i);
+				for (int batch = ai.getAndIncrement(); batch < batches.length; batch = ai.getAndIncrement()) {
+					for (final int i : batches[batch]) {
+						final List<Point3f> surface = surfacePoints.get(i);
 					
 					
-					if (surface == null) {
-						Arrays.fill(ferets[i], Double.NaN);
-						continue;
-					}
+						if (surface == null) {
+							Arrays.fill(ferets[i], Double.NaN);
+							continue;
+						}
 					
-					final int nPoints = surface.size();
+						final int nPoints = surface.size();
 					
-					//4 triangles * 3 points for the minimal tetrahedron
-					if (nPoints < 12) {
-						Arrays.fill(ferets[i], Double.NaN);
-					}
+						//4 triangles * 3 points for the minimal tetrahedron
+						if (nPoints < 12) {
+							Arrays.fill(ferets[i], Double.NaN);
+						}
 					
-					// check all the point pairs in this surface
-					Point3f feretA = new Point3f();
-					Point3f feretB = new Point3f();
-					double feret = 0;
-					for (int p = 0; p < nPoints; p++) {
-						Point3f a = surface.get(p);
-						for (int q = p + 1; q < nPoints; q++) {
-							Point3f b = surface.get(q);
-							final double distance = a.distance(b);
-							if (distance > feret) {
-								feret = distance;
-								feretA = a;
-								feretB = b;
+						// check all the point pairs in this surface
+						Point3f feretA = new Point3f();
+						Point3f feretB = new Point3f();
+						double feret = 0;
+						for (int p = 0; p < nPoints; p++) {
+							Point3f a = surface.get(p);
+							for (int q = p + 1; q < nPoints; q++) {
+								Point3f b = surface.get(q);
+								final double distance = a.distance(b);
+								if (distance > feret) {
+									feret = distance;
+									feretA = a;
+									feretB = b;
+								}
 							}
 						}
+						ferets[i][0] = feret;
+						ferets[i][1] = feretA.x;
+						ferets[i][2] = feretA.y;
+						ferets[i][3] = feretA.z;
+						ferets[i][4] = feretB.x;
+						ferets[i][5] = feretB.y;
+						ferets[i][6] = feretB.z;
 					}
-					ferets[i][0] = feret;
-					ferets[i][1] = feretA.x;
-					ferets[i][2] = feretA.y;
-					ferets[i][3] = feretA.z;
-					ferets[i][4] = feretB.x;
-					ferets[i][5] = feretB.y;
-					ferets[i][6] = feretB.z;
 				}
 			});
 		}
@@ -1060,20 +1108,15 @@ public class ParticleAnalysis {
 			if (surface == null)
 				return null;
 
-			final Iterator<Point3f> pointIter = surface.iterator();
-			final double[][] coOrdinates = new double[surface.size()][3];
-			int i = 0;
-			while (pointIter.hasNext()) {
-				final Point3f point = pointIter.next();
-				coOrdinates[i][0] = point.x;
-				coOrdinates[i][1] = point.y;
-				coOrdinates[i][2] = point.z;
-				i++;
+			// accumulate the fit point by point instead of copying the surface
+			final FitEllipsoid.ScatterMatrix scatter = new FitEllipsoid.ScatterMatrix();
+			for (final Point3f point : surface) {
+				scatter.add(point.x, point.y, point.z);
 			}
 
 			Object[] ellipsoid = null;
 			try {
-				ellipsoid = FitEllipsoid.yuryPetrov(coOrdinates);
+				ellipsoid = FitEllipsoid.yuryPetrov(scatter);
 			} catch (final IllegalArgumentException re) {
 				IJ.log("Could not fit ellipsoid to particle: "+re.getMessage());
 			} catch (final Exception e) {
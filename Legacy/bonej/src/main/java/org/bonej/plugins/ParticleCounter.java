@@ -58,12 +58,12 @@ import java.awt.TextField;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.bonej.geometry.SymmetricEigen3;
 import org.bonej.menuWrappers.ThicknessHelper;
 import org.bonej.util.DialogModifier;
 import org.bonej.util.ImageCheck;
 import org.scijava.vecmath.Point3f;
 
-import Jama.EigenvalueDecomposition;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -253,7 +253,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		final double[][] centroids = (double[][]) boxes[0];
 		final int[][] limits = (int[][]) boxes[1];
 
-		EigenvalueDecomposition[] eigens = new EigenvalueDecomposition[nParticles];
+		SymmetricEigen3 eigens = null;
 		if (doMoments || doAxesImage || colourMode == ParticleDisplay.ORIENTATION || doAlignedBoxes || doAlignedBoxesImage) {
 			eigens = ParticleAnalysis.getEigens(imp, particleLabels, centroids);
 		}
@@ -264,11 +264,16 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		}
 		
 		// set up resources for analysis
+		// particle images are shared by meshing, Euler characteristic and skeletons
+		final boolean doSurfacePoints = doSurfaceArea || doSurfaceVolume ||
+			doSurfaceImage || doEllipsoids || doFeret || doEllipsoidStack;
+		final int cropConsumers = (doSurfacePoints ? 1 : 0) + (doEulerCharacters
+			? 1 : 0) + (doSkeletons ? 1 : 0);
+		final ParticleCrops crops = new ParticleCrops(imp, particleLabels, limits,
+			cropConsumers);
 		List<List<Point3f>> surfacePoints = new ArrayList<>();
-		if (doSurfaceArea || doSurfaceVolume || doSurfaceImage || doEllipsoids ||
-			doFeret || doEllipsoidStack)
-		{
-			surfacePoints = ParticleAnalysis.getSurfacePoints(imp, particleLabels, limits, resampling, nParticles);
+		if (doSurfacePoints) {
+			surfacePoints = ParticleAnalysis.getSurfacePoints(imp, crops, limits, resampling, nParticles);
 		}
 		// calculate dimensions
 		double[] surfaceAreas = new double[nParticles];
@@ -285,7 +290,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		}
 		double[][] eulerCharacters = new double[nParticles][3];
 		if (doEulerCharacters) {
-			eulerCharacters = ParticleAnalysis.getEulerCharacter(imp, particleLabels, limits, nParticles);
+			eulerCharacters = ParticleAnalysis.getEulerCharacter(crops, nParticles);
 		}
 		double[][] thick = new double[nParticles][2];
 		if (doThickness) {
@@ -309,7 +314,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		}
 		SkeletonResult[] skeletonResults = null;
 		if (doSkeletons) {
-			skeletonResults = ParticleAnalysis.getBranchLength(imp, particleLabels, limits, nParticles);
+			skeletonResults = ParticleAnalysis.getBranchLength(crops, limits, nParticles);
 		}
 
 		// Show numerical results
@@ -347,20 +352,19 @@ public class ParticleCounter implements PlugIn, DialogListener {
 					rt.addValue("Encl. Vol. (" + units + "³)", surfaceVolumes[i]);
 				}
 				if (doMoments) {
-					final EigenvalueDecomposition E = eigens[i];
-					rt.addValue("I1", E.getD().get(2, 2));
-					rt.addValue("I2", E.getD().get(1, 1));
-					rt.addValue("I3", E.getD().get(0, 0));
-					rt.addValue("vX", E.getV().get(0, 0));
-					rt.addValue("vY", E.getV().get(1, 0));
-					rt.addValue("vZ", E.getV().get(2, 0));
+					rt.addValue("I1", eigens.getEigenvalue(i, 2));
+					rt.addValue("I2", eigens.getEigenvalue(i, 1));
+					rt.addValue("I3", eigens.getEigenvalue(i, 0));
+					rt.addValue("vX", eigens.getEigenvector(i, 0, 0));
+					rt.addValue("vY", eigens.getEigenvector(i, 1, 0));
+					rt.addValue("vZ", eigens.getEigenvector(i, 2, 0));
 					if (doVerboseUnitVectors) {
-						rt.addValue("vX1", E.getV().get(0, 1));
-						rt.addValue("vY1", E.getV().get(1, 1));
-						rt.addValue("vZ1", E.getV().get(2, 1));
-						rt.addValue("vX2", E.getV().get(0, 2));
-						rt.addValue("vY2", E.getV().get(1, 2));
-						rt.addValue("vZ2", E.getV().get(2, 2));
+						rt.addValue("vX1", eigens.getEigenvector(i, 0, 1));
+						rt.addValue("vY1", eigens.getEigenvector(i, 1, 1));
+						rt.addValue("vZ1", eigens.getEigenvector(i, 2, 1));
+						rt.addValue("vX2", eigens.getEigenvector(i, 0, 2));
+						rt.addValue("vY2", eigens.getEigenvector(i, 1, 2));
+						rt.addValue("vZ2", eigens.getEigenvector(i, 2, 2));
 					}
 				}
 				if (doSkeletons) {
@@ -0,0 +1,217 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.bonej.plugins;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Extracts binary images of single particles from a label image, and caches
+ * them so that the label array is scanned only once per particle, no matter
+ * how many analyses need the particle.
+ * <p>
+ * Each particle is stored as a bit-packed mask of its bounding box. The
+ * analyses make full passes over the particles one after another, so a cache
+ * that holds only some of the masks would drop each of them before the next
+ * pass needs it. Thus the masks are cached only if all of them fit into the
+ * memory budget, and only if more than one analysis reads them.
+ * </p>
+ */
+final class ParticleCrops {
+
+	/** Default share of the maximum heap size the cached masks may take */
+	private static final int DEFAULT_BUDGET_DIVISOR = 8;
+	private final ImagePlus imp;
+	private final int[][] particleLabels;
+	private final int[][] limits;
+	/** Cached masks by particle number, or null if caching is off */
+	private final AtomicReferenceArray<Mask> masks;
+
+	/**
+	 * Creates a cache with a budget of an eighth of the maximum heap size.
+	 *
+	 * @param imp the image the particles are from
+	 * @param particleLabels particle label array
+	 * @param limits bounding box limits of each particle
+	 * @param consumers number of analyses that will read every particle
+	 */
+	ParticleCrops(final ImagePlus imp, final int[][] particleLabels,
+		final int[][] limits, final int consumers)
+	{
+		this(imp, particleLabels, limits, consumers, Runtime.getRuntime()
+			.maxMemory() / DEFAULT_BUDGET_DIVISOR);
+	}
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param imp the image the particles are from
+	 * @param particleLabels particle label array
+	 * @param limits bounding box limits of each particle
+	 * @param consumers number of analyses that will read every particle
+	 * @param budget maximum number of bytes the cached masks may take
+	 */
+	ParticleCrops(final ImagePlus imp, final int[][] particleLabels,
+		final int[][] limits, final int consumers, final long budget)
+	{
+		this.imp = imp;
+		this.particleLabels = particleLabels;
+		this.limits = limits;
+		final boolean cache = consumers > 1 && getMasksBytes(limits) <= budget;
+		masks = cache ? new AtomicReferenceArray<>(limits.length) : null;
+	}
+
+	/**
+	 * Tells whether the masks of the particles are kept between calls.
+	 *
+	 * @return true if there is more than one consumer and the masks fit into
+	 *         the budget.
+	 */
+	boolean isCaching() {
+		return masks != null;
+	}
+
+	/**
+	 * Create a binary image of a single particle
+	 *
+	 * @param p particle number
+	 * @param padding number of background voxels around the particle. The
+	 *          padding is clipped to the bounds of the original image
+	 * @return a new 8-bit image, where the particle is 255 and everything else
+	 *         0, with the same calibration as the original image
+	 */
+	ImagePlus getBinaryParticle(final int p, final int padding) {
+		final Mask mask = getMask(p);
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		final int xMin = Math.max(0, limits[p][0] - padding);
+		final int xMax = Math.min(w - 1, limits[p][1] + padding);
+		final int yMin = Math.max(0, limits[p][2] - padding);
+		final int yMax = Math.min(h - 1, limits[p][3] + padding);
+		final int zMin = Math.max(0, limits[p][4] - padding);
+		final int zMax = Math.min(d - 1, limits[p][5] + padding);
+		final int stackWidth = xMax - xMin + 1;
+		final int stackHeight = yMax - yMin + 1;
+		final ImageStack stack = new ImageStack(stackWidth, stackHeight);
+		for (int z = zMin; z <= zMax; z++) {
+			final byte[] slice = new byte[stackWidth * stackHeight];
+			final int maskZ = z - mask.zMin;
+			if (maskZ >= 0 && maskZ < mask.depth) {
+				for (int y = 0; y < mask.height; y++) {
+					final int i = (y + mask.yMin - yMin) * stackWidth + mask.xMin - xMin;
+					long bit = ((long) maskZ * mask.height + y) * mask.width;
+					for (int x = 0; x < mask.width; x++, bit++) {
+						if ((mask.bits[(int) (bit >>> 6)] & (1L << bit)) != 0) {
+							slice[i + x] = (byte) 0xFF;
+						}
+					}
+				}
+			}
+			stack.addSlice(imp.getStack().getSliceLabel(z + 1), slice);
+		}
+		final ImagePlus binaryImp = new ImagePlus("Particle_" + p, stack);
+		binaryImp.setCalibration(imp.getCalibration());
+		return binaryImp;
+	}
+
+	private Mask getMask(final int p) {
+		if (masks == null) {
+			return new Mask(p);
+		}
+		final Mask cached = masks.get(p);
+		if (cached != null) {
+			return cached;
+		}
+		// Each particle is read by one thread at a time, so the mask is rarely
+		// created twice, and then both copies are equal
+		final Mask mask = new Mask(p);
+		masks.set(p, mask);
+		return mask;
+	}
+
+	/**
+	 * Calculates the memory the masks of all particles take.
+	 *
+	 * @param limits bounding box limits of each particle
+	 * @return size of the masks in bytes
+	 */
+	static long getMasksBytes(final int[][] limits) {
+		long bytes = 0;
+		for (int p = 1; p < limits.length; p++) {
+			bytes += 8L * getMaskWords(limits[p]);
+		}
+		return bytes;
+	}
+
+	private static int getMaskWords(final int[] limits) {
+		final long width = Math.max(0, limits[1] - limits[0] + 1);
+		final long height = Math.max(0, limits[3] - limits[2] + 1);
+		final long depth = Math.max(0, limits[5] - limits[4] + 1);
+		return (int) ((width * height * depth + 63) >>> 6);
+	}
+
+	/** The voxels of a particle in its bounding box, one bit per voxel */
+	private final class Mask {
+
+		private final int xMin;
+		private final int yMin;
+		private final int zMin;
+		private final int width;
+		private final int height;
+		private final int depth;
+		private final long[] bits;
+
+		private Mask(final int p) {
+			xMin = limits[p][0];
+			yMin = limits[p][2];
+			zMin = limits[p][4];
+			width = Math.max(0, limits[p][1] - xMin + 1);
+			height = Math.max(0, limits[p][3] - yMin + 1);
+			depth = Math.max(0, limits[p][5] - zMin + 1);
+			bits = new long[getMaskWords(limits[p])];
+			final int w = imp.getWidth();
+			long bit = 0;
+			for (int z = zMin; z < zMin + depth; z++) {
+				final int[] slice = particleLabels[z];
+				for (int y = yMin; y < yMin + height; y++) {
+					final int index = y * w;
+					for (int x = xMin; x < xMin + width; x++, bit++) {
+						if (slice[index + x] == p) {
+							bits[(int) (bit >>> 6)] |= 1L << bit;
+						}
+					}
+				}
+			}
+		}
+	}
+}
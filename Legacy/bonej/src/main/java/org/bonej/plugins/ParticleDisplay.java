@@ -55,21 +55,24 @@ import java.awt.Color;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bonej.geometry.Ellipsoid;
 import org.bonej.geometry.FitEllipsoid;
+import org.bonej.geometry.SymmetricEigen3;
+import org.bonej.util.Multithreader;
 import org.scijava.vecmath.Color3f;
 import org.scijava.vecmath.Point3f;
 
-import Jama.EigenvalueDecomposition;
-import Jama.Matrix;
 import customnode.CustomLineMesh;
 import customnode.CustomPointMesh;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.VirtualStack;
 import ij.measure.Calibration;
-import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
 import ij3d.Image3DUniverse;
 
 /**
@@ -96,24 +99,35 @@ public class ParticleDisplay {
 	 * @param particleLabels the particles in the image.
 	 * @param values         list of values whose array indices correspond to
 	 *                       particlelabels
-	 * @return ImagePlus with particle labels substituted with some value
+	 * @return ImagePlus with particle labels substituted with some value, as a
+	 *         virtual stack if a 32-bit copy of the image would not fit in
+	 *         memory
+	 * @see #isVirtualDisplay(ImagePlus)
 	 */
 	static ImagePlus displayParticleValues(final ImagePlus imp, final int[][] particleLabels, final double[] values) {
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		final int wh = w * h;
-		final float[][] pL = new float[d][wh];
+		return displayParticleValues(imp, particleLabels, values, isVirtualDisplay(imp));
+	}
+
+	/**
+	 * Create an image showing some particle measurement
+	 *
+	 * @param imp            an image.
+	 * @param particleLabels the particles in the image.
+	 * @param values         list of values whose array indices correspond to
+	 *                       particlelabels
+	 * @param virtual        if true, slices are computed when they're shown
+	 *                       instead of all at once, which saves memory
+	 * @return ImagePlus with particle labels substituted with some value
+	 */
+	static ImagePlus displayParticleValues(final ImagePlus imp, final int[][] particleLabels, final double[] values,
+			final boolean virtual) {
 		values[0] = 0; // don't colour the background
-		final ImageStack stack = new ImageStack(w, h);
-		for (int z = 0; z < d; z++) {
-			for (int i = 0; i < wh; i++) {
-				final int p = particleLabels[z][i];
-				pL[z][i] = (float) values[p];
-			}
-			stack.addSlice(imp.getImageStack().getSliceLabel(z + 1), pL[z]);
+		final float[] lut = new float[values.length];
+		for (int p = 0; p < values.length; p++) {
+			lut[p] = (float) values[p];
 		}
 		final double max = Arrays.stream(values).max().orElse(0.0);
+		final ImageStack stack = getParticleValueStack(imp, particleLabels, lut, max, virtual);
 		final ImagePlus impOut = new ImagePlus(imp.getShortTitle() + "_" + "volume", stack);
 		impOut.setCalibration(imp.getCalibration());
 		impOut.getProcessor().setMinAndMax(0, max);
@@ -126,23 +140,32 @@ public class ParticleDisplay {
 	 * @param particleLabels particles labelled in the original image.
 	 * @param imp            original image, used for image dimensions, calibration
 	 *                       and titles
-	 * @return an image of the particles.
+	 * @return an image of the particles, as a virtual stack if a 32-bit copy of
+	 *         the image would not fit in memory
+	 * @see #isVirtualDisplay(ImagePlus)
 	 */
 	static ImagePlus displayParticleLabels(final int[][] particleLabels, final ImagePlus imp) {
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		final int wh = w * h;
-		final ImageStack stack = new ImageStack(w, h);
-		double max = 0;
-		for (int z = 0; z < d; z++) {
-			final float[] slicePixels = new float[wh];
-			for (int i = 0; i < wh; i++) {
-				slicePixels[i] = particleLabels[z][i];
-				max = Math.max(max, slicePixels[i]);
-			}
-			stack.addSlice(imp.getImageStack().getSliceLabel(z + 1), slicePixels);
+		return displayParticleLabels(particleLabels, imp, isVirtualDisplay(imp));
+	}
+
+	/**
+	 * Display the particle labels as an ImagePlus
+	 *
+	 * @param particleLabels particles labelled in the original image.
+	 * @param imp            original image, used for image dimensions, calibration
+	 *                       and titles
+	 * @param virtual        if true, slices are computed when they're shown
+	 *                       instead of all at once, which saves memory
+	 * @return an image of the particles.
+	 */
+	static ImagePlus displayParticleLabels(final int[][] particleLabels, final ImagePlus imp,
+			final boolean virtual) {
+		final int max = getMaxLabel(particleLabels);
+		final float[] lut = new float[max + 1];
+		for (int p = 0; p <= max; p++) {
+			lut[p] = p;
 		}
+		final ImageStack stack = getParticleValueStack(imp, particleLabels, lut, max, virtual);
 		final ImagePlus impParticles = new ImagePlus(imp.getShortTitle() + "_parts", stack);
 		impParticles.setCalibration(imp.getCalibration());
 		impParticles.getProcessor().setMinAndMax(0, max);
@@ -154,6 +177,11 @@ public class ParticleDisplay {
 
 	/**
 	 * Draw ellipsoids in a stack
+	 * <p>
+	 * Slices are drawn in parallel. For each row of voxels that crosses an
+	 * ellipsoid, the ellipsoid equation is solved for the span of x that lies
+	 * inside, and the span is filled in one go.
+	 * </p>
 	 * 
 	 * @param imp ImagePlus, needed for calibration
 	 * @param ellipsoids list of ellipsoids
@@ -169,49 +197,93 @@ public class ParticleDisplay {
 		final double pH = cal.pixelHeight;
 		final double pD = cal.pixelDepth;
 
-		// set up a work array
-		final ByteProcessor[] bps = new ByteProcessor[d];
-		for (int z = 0; z < d; z++) {
-			bps[z] = new ByteProcessor(w, h);
-		}
-
+		IJ.showStatus("Drawing ellipsoid stack...");
+		// centre, tensor H and pixel bounding box of each valid ellipsoid
 		final int n = ellipsoids.length;
+		final double[][] centres = new double[n][];
+		final double[][][] tensors = new double[n][][];
+		final int[][] boxes = new int[n][];
+		final int[] sliceCounts = new int[d];
 		for (int i = 0; i < n; i++) {
-			IJ.showStatus("Drawing ellipsoid stack...");
-			IJ.showProgress(i, n);
 			Ellipsoid ellipsoid;
 			try {
 				ellipsoid = new Ellipsoid((Object[]) ellipsoids[i]);
 			} catch (Exception e) {
 				continue;
 			}
+			centres[i] = ellipsoid.getCentre();
+			tensors[i] = ellipsoid.getTensor();
 
 			// ellipsoid is in calibrated real-world units
 			final double[] box = ellipsoid.getAxisAlignedBoundingBox();
 
 			// decalibrate to pixels
-			final int xMin = clamp((int) Math.floor(box[0] / pW), 0, w - 1);
-			final int xMax = clamp((int) Math.floor(box[1] / pW), 0, w - 1);
-			final int yMin = clamp((int) Math.floor(box[2] / pH), 0, h - 1);
-			final int yMax = clamp((int) Math.floor(box[3] / pH), 0, h - 1);
-			final int zMin = clamp((int) Math.floor(box[4] / pD), 0, d - 1);
-			final int zMax = clamp((int) Math.floor(box[5] / pD), 0, d - 1);
-
-			// set the ellipsoid-contained pixels to foreground
-			for (int z = zMin; z <= zMax; z++) {
-				for (int y = yMin; y <= yMax; y++) {
-					for (int x = xMin; x <= xMax; x++) {
-						if (ellipsoid.contains(x * pW, y * pH, z * pD)) {
-							bps[z].set(x, y, 255);
+			boxes[i] = new int[] {
+				clamp((int) Math.floor(box[2] / pH), 0, h - 1),
+				clamp((int) Math.floor(box[3] / pH), 0, h - 1),
+				clamp((int) Math.floor(box[4] / pD), 0, d - 1),
+				clamp((int) Math.floor(box[5] / pD), 0, d - 1) };
+			for (int z = boxes[i][2]; z <= boxes[i][3]; z++) {
+				sliceCounts[z]++;
+			}
+		}
+
+		// index the ellipsoids by slice so that each thread owns whole slices
+		final int[][] sliceEllipsoids = new int[d][];
+		for (int z = 0; z < d; z++) {
+			sliceEllipsoids[z] = new int[sliceCounts[z]];
+			sliceCounts[z] = 0;
+		}
+		for (int i = 0; i < n; i++) {
+			if (boxes[i] == null) {
+				continue;
+			}
+			for (int z = boxes[i][2]; z <= boxes[i][3]; z++) {
+				sliceEllipsoids[z][sliceCounts[z]++] = i;
+			}
+		}
+
+		final byte[][] slices = new byte[d][w * h];
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
+					IJ.showProgress(z, d);
+					final byte[] pixels = slices[z];
+					for (final int i : sliceEllipsoids[z]) {
+						final double[] c = centres[i];
+						final double[][] t = tensors[i];
+						final double vz = z * pD - c[2];
+						// (X-X0)^T H (X-X0) <= 1 as a quadratic of vx in each row
+						final double a = t[0][0];
+						for (int y = boxes[i][0]; y <= boxes[i][1]; y++) {
+							final double vy = y * pH - c[1];
+							final double b = 2 * (t[0][1] * vy + t[0][2] * vz);
+							final double cc = t[1][1] * vy * vy + 2 * t[1][2] * vy * vz +
+								t[2][2] * vz * vz - 1;
+							final double discriminant = b * b - 4 * a * cc;
+							if (discriminant < 0) {
+								continue;
+							}
+							final double root = Math.sqrt(discriminant);
+							final double xStart = c[0] + (-b - root) / (2 * a);
+							final double xEnd = c[0] + (-b + root) / (2 * a);
+							final int xMin = Math.max(0, (int) Math.ceil(xStart / pW));
+							final int xMax = Math.min(w - 1, (int) Math.floor(xEnd / pW));
+							if (xMin <= xMax) {
+								Arrays.fill(pixels, y * w + xMin, y * w + xMax + 1, (byte) 255);
+							}
 						}
 					}
 				}
-			}
+			});
 		}
+		Multithreader.startAndJoin(threads);
 
 		ImageStack stack = new ImageStack(w, h);
-		for (ByteProcessor bp : bps)
-			stack.addSlice(bp);
+		for (final byte[] pixels : slices)
+			stack.addSlice(null, pixels);
 
 		final ImagePlus impOut = new ImagePlus(imp.getShortTitle() + "_Ellipsoids", stack);
 		impOut.setCalibration(cal);
@@ -334,27 +406,25 @@ public class ParticleDisplay {
 	 * @param centroids list of centroids
 	 * @param particleSizes list of particle sizes
 	 */
-	static void displayPrincipalAxes(final Image3DUniverse univ, final EigenvalueDecomposition[] eigens,
+	static void displayPrincipalAxes(final Image3DUniverse univ, final SymmetricEigen3 eigens,
 			final double[][] centroids, long[] particleSizes) {
-		final int nEigens = eigens.length;
+		final int nEigens = eigens.size();
 
 		for (int p = 1; p < nEigens; p++) {
 			IJ.showStatus("Rendering principal axes...");
 			IJ.showProgress(p, nEigens);
 
 			final long size = particleSizes[p];
-			final Matrix eVec = eigens[p].getV();
-			final Matrix eVal = eigens[p].getD();
 			double[] lengths = new double[3];
 			for (int i = 0; i < 3; i++) {
-				lengths[i] = 2 * Math.sqrt(eVal.get(2 - i, 2 - i) / size);
+				lengths[i] = 2 * Math.sqrt(eigens.getEigenvalue(p, 2 - i) / size);
 			}
-			displayAxes(univ, centroids[p], eVec.getArray(), lengths, 0.0f, "Principal Axes " + p);
+			displayAxes(univ, centroids[p], eigens.getV(p), lengths, 0.0f, "Principal Axes " + p);
 		}
 	}
 	
 	static void displayAlignedBoundingBoxes(double[][] alignedBoxes,
-		final EigenvalueDecomposition[] eigens, Image3DUniverse univ)
+		final SymmetricEigen3 eigens, Image3DUniverse univ)
 	{
 		final int nBoxes = alignedBoxes.length;
 		
@@ -370,7 +440,7 @@ public class ParticleDisplay {
 			final double l2 = box[5] / 2;
 			
 			//get the unit vectors
-			final double[][] eVec = eigens[p].getV().getArray();
+			final double[][] eVec = eigens.getV(p);
 			final double eV0x = eVec[0][0];
 			final double eV0y = eVec[1][0];
 			final double eV0z = eVec[2][0];
@@ -580,7 +650,7 @@ public class ParticleDisplay {
 	 */
 	static void displayParticleSurfaces(final Image3DUniverse univ, final List<List<Point3f>> surfacePoints,
 			final int colourMode, final double[] volumes, final double splitValue,
-			final EigenvalueDecomposition[] eigens) {
+			final SymmetricEigen3 eigens) {
 		final int nSurfaces = surfacePoints.size();
 		for (int p = 1; p < nSurfaces; p++) {
 			IJ.showStatus("Rendering surfaces...");
@@ -633,7 +703,7 @@ public class ParticleDisplay {
 	 * @return RGB (Color3f) colour of the particle
 	 */
 	private static Color3f getColour(int p, int nSurfaces, int colourMode, double[] volumes, 
-			EigenvalueDecomposition[] eigens, double splitValue) {
+			SymmetricEigen3 eigens, double splitValue) {
 		Color3f colour = new Color3f(0, 0, 0);
 		if (colourMode == GRADIENT) {
 			final float red = 1.0f - p / (float) nSurfaces;
@@ -649,7 +719,7 @@ public class ParticleDisplay {
 				colour = new Color3f(1.0f, 1.0f, 0.0f);
 			}
 		} else if (colourMode == ORIENTATION) {
-			colour = ParticleDisplay.colourFromEigenVector(eigens[p]);
+			colour = ParticleDisplay.colourFromEigenVector(eigens, p);
 		}
 		return colour;
 	}
@@ -664,14 +734,13 @@ public class ParticleDisplay {
 	 * Colour is mapped to the axis-angle representation of the tensor so hue varies
 	 * as a function of second axis rotation around the first.
 	 * 
-	 * @param eigen Eigenvalue decomposition of the particle
+	 * @param eigens Eigenvalue decompositions of the particles
+	 * @param p particle number
 	 * @return Colour scaling in red for axis and green for angle
 	 */
-	static Color3f colourFromEigenVector(EigenvalueDecomposition eigen) {
-		final Matrix rotation = eigen.getV();
-
+	static Color3f colourFromEigenVector(SymmetricEigen3 eigens, int p) {
 		// deflection of long axis from image z axis, 0 - pi radians
-		final double angle = Math.acos(-Math.abs(rotation.get(2, 0)));
+		final double angle = Math.acos(-Math.abs(eigens.getEigenvector(p, 2, 0)));
 
 		final float hue = (float) (angle / Math.PI);
 		final float saturation = 1.0f;
@@ -701,6 +770,146 @@ public class ParticleDisplay {
 		return true;
 	}
 
+	/**
+	 * Checks if a particle display of the image should be a virtual stack
+	 *
+	 * @param imp an image
+	 * @return true if a 32-bit copy of the image would take more than half of
+	 *         the free heap
+	 */
+	static boolean isVirtualDisplay(final ImagePlus imp) {
+		final Runtime runtime = Runtime.getRuntime();
+		final long freeMemory = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		final long bytes = (long) imp.getWidth() * imp.getHeight() * imp.getImageStackSize() * Float.BYTES;
+		return isVirtualDisplay(bytes, freeMemory);
+	}
+
+	/**
+	 * Checks if a stack should be virtual
+	 *
+	 * @param bytes size of the stack in bytes
+	 * @param freeMemory free heap in bytes
+	 * @return true if the stack would take more than half of the free memory
+	 */
+	static boolean isVirtualDisplay(final long bytes, final long freeMemory) {
+		return bytes > freeMemory / 2;
+	}
+
+	/**
+	 * Find the largest particle label
+	 *
+	 * @param particleLabels particle label array
+	 * @return the maximum label, 0 if there are no particles
+	 */
+	private static int getMaxLabel(final int[][] particleLabels) {
+		final int d = particleLabels.length;
+		final int[] maxima = new int[d];
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
+					int max = 0;
+					for (final int p : particleLabels[z]) {
+						max = Math.max(max, p);
+					}
+					maxima[z] = max;
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		return Arrays.stream(maxima).max().orElse(0);
+	}
+
+	/**
+	 * Create a stack where each particle label is replaced by its value from a
+	 * look-up table
+	 *
+	 * @param imp original image, used for dimensions and slice labels
+	 * @param particleLabels particle label array
+	 * @param lut value of each particle label
+	 * @param max maximum of the values, for display range
+	 * @param virtual if true, return a virtual stack that maps slices on demand,
+	 *          otherwise map all slices in parallel
+	 * @return a 32-bit stack of the particle values
+	 */
+	private static ImageStack getParticleValueStack(final ImagePlus imp, final int[][] particleLabels,
+			final float[] lut, final double max, final boolean virtual) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		final String[] sliceLabels = new String[d];
+		for (int z = 0; z < d; z++) {
+			sliceLabels[z] = imp.getImageStack().getSliceLabel(z + 1);
+		}
+		if (virtual) {
+			return new ParticleValueStack(w, h, particleLabels, lut, max, sliceLabels);
+		}
+		final float[][] slices = new float[d][];
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
+					slices[z] = mapSlice(particleLabels[z], lut);
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		final ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			stack.addSlice(sliceLabels[z], slices[z]);
+		}
+		return stack;
+	}
+
+	private static float[] mapSlice(final int[] labels, final float[] lut) {
+		final float[] pixels = new float[labels.length];
+		for (int i = 0; i < labels.length; i++) {
+			pixels[i] = lut[labels[i]];
+		}
+		return pixels;
+	}
+
+	/**
+	 * A virtual stack of particle values, which maps a slice of particle labels
+	 * through a look-up table each time the slice is requested
+	 */
+	private static final class ParticleValueStack extends VirtualStack {
+
+		private final int[][] particleLabels;
+		private final float[] lut;
+		private final double max;
+		private final String[] sliceLabels;
+
+		private ParticleValueStack(final int width, final int height, final int[][] particleLabels,
+				final float[] lut, final double max, final String[] sliceLabels) {
+			super(width, height, null, null);
+			this.particleLabels = particleLabels;
+			this.lut = lut;
+			this.max = max;
+			this.sliceLabels = sliceLabels;
+		}
+
+		@Override
+		public ImageProcessor getProcessor(final int n) {
+			final float[] pixels = mapSlice(particleLabels[n - 1], lut);
+			final FloatProcessor processor = new FloatProcessor(getWidth(), getHeight(), pixels);
+			processor.setMinAndMax(0, max);
+			return processor;
+		}
+
+		@Override
+		public int getSize() {
+			return particleLabels.length;
+		}
+
+		@Override
+		public String getSliceLabel(final int n) {
+			return sliceLabels[n - 1];
+		}
+	}
+
 	/**
 	 * Limit value to within minimum and maxium values
 	 * 
@@ -0,0 +1,141 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ParticleAnalysisTest {
+
+	@Test
+	public void testBatchesCoverEveryParticleOnce() {
+		final Random random = new Random(0xBA7C);
+		for (final int nParticles : new int[] { 0, 1, 2, 7, 100, 5000 }) {
+			for (final int nThreads : new int[] { 1, 3, 16 }) {
+				final double[] costs = randomCosts(random, nParticles);
+
+				final int[][] batches = ParticleAnalysis.getBatchesLargestFirst(costs,
+					1, nThreads);
+
+				final int[] seen = new int[Math.max(1, nParticles)];
+				for (final int[] batch : batches) {
+					assertTrue("Batches should not be empty", batch.length > 0);
+					for (final int p : batch) {
+						assertTrue("Index out of range: " + p, p >= 1 && p < nParticles);
+						seen[p]++;
+					}
+				}
+				for (int p = 1; p < nParticles; p++) {
+					assertEquals("Particle " + p + " of " + nParticles + " with " +
+						nThreads + " threads", 1, seen[p]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testBatchesAreLargestFirst() {
+		final Random random = new Random(0xF125);
+		final double[] costs = randomCosts(random, 2000);
+
+		final int[][] batches = ParticleAnalysis.getBatchesLargestFirst(costs, 1,
+			4);
+
+		int previous = -1;
+		for (final int[] batch : batches) {
+			for (final int p : batch) {
+				if (previous >= 0) {
+					assertTrue("Particle " + p + " is more costly than " + previous,
+						costs[p] <= costs[previous]);
+					if (costs[p] == costs[previous]) {
+						assertTrue("Equal costs should be in index order", p > previous);
+					}
+				}
+				previous = p;
+			}
+		}
+	}
+
+	@Test
+	public void testLargestParticlesHaveTheirOwnBatch() {
+		final double[] costs = new double[101];
+		for (int p = 1; p < costs.length; p++) {
+			costs[p] = 1;
+		}
+		costs[50] = 1000;
+		costs[7] = 500;
+
+		final int[][] batches = ParticleAnalysis.getBatchesLargestFirst(costs, 1,
+			2);
+
+		assertEquals(1, batches[0].length);
+		assertEquals(50, batches[0][0]);
+		assertEquals(1, batches[1].length);
+		assertEquals(7, batches[1][0]);
+	}
+
+	@Test
+	public void testNegativeAndNaNCostsAreLast() {
+		final double[] costs = { 0, -5, 3, Double.NaN, 1 };
+
+		final int[][] batches = ParticleAnalysis.getBatchesLargestFirst(costs, 1,
+			1);
+
+		final int[] order = new int[4];
+		int i = 0;
+		for (final int[] batch : batches) {
+			for (final int p : batch) {
+				order[i++] = p;
+			}
+		}
+		assertEquals(4, i);
+		assertEquals(2, order[0]);
+		assertEquals(4, order[1]);
+		// Both count as zero, so they keep their index order
+		assertEquals(1, order[2]);
+		assertEquals(3, order[3]);
+	}
+
+	/**
+	 * Creates box volume like costs, with many ties and some empty particles.
+	 */
+	private static double[] randomCosts(final Random random, final int n) {
+		final double[] costs = new double[n];
+		for (int p = 1; p < n; p++) {
+			final int side = random.nextInt(12);
+			costs[p] = side * side * (random.nextInt(3) + 1.0);
+		}
+		return costs;
+	}
+}
@@ -0,0 +1,199 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+public class ParticleCropsTest {
+
+	private static final int WIDTH = 23;
+	private static final int HEIGHT = 17;
+	private static final int DEPTH = 11;
+	private static final int N_PARTICLES = 7;
+
+	/**
+	 * Checks that unpacking the bit masks gives the same crops as reading the
+	 * labels directly, with and without the cache, and with padding clipped by
+	 * the stack edges.
+	 */
+	@Test
+	public void testBinaryParticleMatchesLabels() {
+		final int[][] labels = randomLabels(new Random(0xC409));
+		final int[][] limits = getLimits(labels);
+		final ImagePlus imp = image();
+		final ParticleCrops cached = new ParticleCrops(imp, labels, limits, 2);
+		final ParticleCrops uncached = new ParticleCrops(imp, labels, limits, 1);
+		assertTrue(cached.isCaching());
+
+		for (int pass = 0; pass < 2; pass++) {
+			for (int p = 1; p < N_PARTICLES; p++) {
+				if (limits[p][1] < 0) {
+					// Other particles covered all of it
+					continue;
+				}
+				for (final int padding : new int[] { 0, 1, 4 }) {
+					assertCropEquals(labels, limits, p, padding, cached
+						.getBinaryParticle(p, padding));
+					assertCropEquals(labels, limits, p, padding, uncached
+						.getBinaryParticle(p, padding));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSingleConsumerDoesNotCache() {
+		final int[][] labels = randomLabels(new Random(0x1));
+		final ParticleCrops crops = new ParticleCrops(image(), labels, getLimits(
+			labels), 1, Long.MAX_VALUE);
+
+		assertFalse(crops.isCaching());
+	}
+
+	/**
+	 * Checks that nothing is cached if the masks don't all fit, because each
+	 * pass would evict the masks before the next pass needs them.
+	 */
+	@Test
+	public void testMasksThatDoNotFitAreNotCached() {
+		final int[][] labels = randomLabels(new Random(0x2));
+		final int[][] limits = getLimits(labels);
+		final long bytes = ParticleCrops.getMasksBytes(limits);
+
+		assertFalse(new ParticleCrops(image(), labels, limits, 3, bytes - 1)
+			.isCaching());
+		assertTrue(new ParticleCrops(image(), labels, limits, 3, bytes)
+			.isCaching());
+	}
+
+	@Test
+	public void testGetMasksBytes() {
+		// 64 voxels fit into one long, 125 need two. Particle 0 is the background
+		final int[][] limits = { { 0, 99, 0, 99, 0, 99 }, { 0, 3, 0, 3, 0, 3 }, {
+			2, 6, 2, 6, 2, 6 } };
+
+		assertEquals(8 + 16, ParticleCrops.getMasksBytes(limits));
+	}
+
+	private static void assertCropEquals(final int[][] labels,
+		final int[][] limits, final int p, final int padding,
+		final ImagePlus crop)
+	{
+		final int xMin = Math.max(0, limits[p][0] - padding);
+		final int xMax = Math.min(WIDTH - 1, limits[p][1] + padding);
+		final int yMin = Math.max(0, limits[p][2] - padding);
+		final int yMax = Math.min(HEIGHT - 1, limits[p][3] + padding);
+		final int zMin = Math.max(0, limits[p][4] - padding);
+		final int zMax = Math.min(DEPTH - 1, limits[p][5] + padding);
+		final int w = xMax - xMin + 1;
+		final int h = yMax - yMin + 1;
+		assertEquals(w, crop.getWidth());
+		assertEquals(h, crop.getHeight());
+		assertEquals(zMax - zMin + 1, crop.getImageStackSize());
+		for (int z = zMin; z <= zMax; z++) {
+			final byte[] expected = new byte[w * h];
+			for (int y = yMin; y <= yMax; y++) {
+				for (int x = xMin; x <= xMax; x++) {
+					if (labels[z][y * WIDTH + x] == p) {
+						expected[(y - yMin) * w + x - xMin] = (byte) 0xFF;
+					}
+				}
+			}
+			assertArrayEquals("Particle " + p + " padding " + padding + " z " + z,
+				expected, (byte[]) crop.getStack().getPixels(z - zMin + 1));
+		}
+	}
+
+	private static int[][] getLimits(final int[][] labels) {
+		final int[][] limits = new int[N_PARTICLES][];
+		for (int p = 0; p < N_PARTICLES; p++) {
+			limits[p] = new int[] { Integer.MAX_VALUE, -1, Integer.MAX_VALUE, -1,
+				Integer.MAX_VALUE, -1 };
+		}
+		for (int z = 0; z < DEPTH; z++) {
+			for (int y = 0; y < HEIGHT; y++) {
+				for (int x = 0; x < WIDTH; x++) {
+					final int[] limit = limits[labels[z][y * WIDTH + x]];
+					limit[0] = Math.min(limit[0], x);
+					limit[1] = Math.max(limit[1], x);
+					limit[2] = Math.min(limit[2], y);
+					limit[3] = Math.max(limit[3], y);
+					limit[4] = Math.min(limit[4], z);
+					limit[5] = Math.max(limit[5], z);
+				}
+			}
+		}
+		return limits;
+	}
+
+	private static ImagePlus image() {
+		final ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+		for (int z = 0; z < DEPTH; z++) {
+			stack.addSlice("" + z, new byte[WIDTH * HEIGHT]);
+		}
+		return new ImagePlus("", stack);
+	}
+
+	/**
+	 * Creates a label array, where each particle is a random box with random
+	 * holes, so that the bounding boxes overlap and have odd sizes.
+	 */
+	private static int[][] randomLabels(final Random random) {
+		final int[][] labels = new int[DEPTH][WIDTH * HEIGHT];
+		for (int p = 1; p < N_PARTICLES; p++) {
+			final int x0 = random.nextInt(WIDTH);
+			final int y0 = random.nextInt(HEIGHT);
+			final int z0 = random.nextInt(DEPTH);
+			final int x1 = Math.min(WIDTH - 1, x0 + random.nextInt(12));
+			final int y1 = Math.min(HEIGHT - 1, y0 + random.nextInt(12));
+			final int z1 = Math.min(DEPTH - 1, z0 + random.nextInt(8));
+			for (int z = z0; z <= z1; z++) {
+				for (int y = y0; y <= y1; y++) {
+					for (int x = x0; x <= x1; x++) {
+						if (random.nextInt(4) != 0) {
+							labels[z][y * WIDTH + x] = p;
+						}
+					}
+				}
+			}
+		}
+		return labels;
+	}
+}
@@ -0,0 +1,236 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.bonej.geometry.Ellipsoid;
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+
+public class ParticleDisplayTest {
+
+	@Test
+	public void testIsVirtualDisplay() {
+		assertFalse(ParticleDisplay.isVirtualDisplay(100, 1000));
+		assertFalse(ParticleDisplay.isVirtualDisplay(500, 1000));
+		assertTrue(ParticleDisplay.isVirtualDisplay(501, 1000));
+		assertTrue(ParticleDisplay.isVirtualDisplay(1, 0));
+	}
+
+	@Test
+	public void testIsVirtualDisplaySmallImage() {
+		assertFalse(ParticleDisplay.isVirtualDisplay(image(16, 16, 16)));
+	}
+
+	/**
+	 * Check that the virtual particle value stack shows the same slices as the
+	 * one mapped up front.
+	 */
+	@Test
+	public void testVirtualValuesMatchEager() {
+		final ImagePlus imp = image(13, 11, 7);
+		final int[][] labels = labels(13, 11, 7);
+		final double[] values = new double[5];
+		for (int p = 0; p < values.length; p++) {
+			values[p] = 1.5 * p + 0.25;
+		}
+
+		final ImagePlus eager = ParticleDisplay.displayParticleValues(imp, labels, values.clone(), false);
+		final ImagePlus virtual = ParticleDisplay.displayParticleValues(imp, labels, values.clone(), true);
+
+		assertFalse(eager.getStack().isVirtual());
+		assertTrue(virtual.getStack().isVirtual());
+		assertStacksEqual(eager.getStack(), virtual.getStack());
+		assertEquals(0.0, virtual.getStack().getProcessor(1).getf(0), 0.0);
+		assertEquals(eager.getDisplayRangeMax(), virtual.getDisplayRangeMax(), 0.0);
+	}
+
+	/**
+	 * Check that the virtual particle label stack shows the same slices as the
+	 * one mapped up front.
+	 */
+	@Test
+	public void testVirtualLabelsMatchEager() {
+		final ImagePlus imp = image(13, 11, 7);
+		final int[][] labels = labels(13, 11, 7);
+
+		final ImagePlus eager = ParticleDisplay.displayParticleLabels(labels, imp, false);
+		final ImagePlus virtual = ParticleDisplay.displayParticleLabels(labels, imp, true);
+
+		assertFalse(eager.getStack().isVirtual());
+		assertTrue(virtual.getStack().isVirtual());
+		assertStacksEqual(eager.getStack(), virtual.getStack());
+		assertEquals(4.0, virtual.getDisplayRangeMax(), 0.0);
+	}
+
+	/**
+	 * Check that the scanline drawing of the ellipsoid stack gives the same
+	 * voxels as {@link Ellipsoid#contains(double, double, double)}, for rotated
+	 * ellipsoids anywhere in the stack, also partly outside it, and with
+	 * anisotropic voxels.
+	 */
+	@Test
+	public void testEllipsoidStackMatchesContains() {
+		final int w = 37;
+		final int h = 29;
+		final int d = 23;
+		final ImagePlus imp = image(w, h, d);
+		final Calibration cal = new Calibration();
+		cal.pixelWidth = 0.7;
+		cal.pixelHeight = 1.1;
+		cal.pixelDepth = 1.3;
+		imp.setCalibration(cal);
+		final Random random = new Random(0xE111);
+		final Object[] ellipsoids = new Object[25];
+		for (int i = 0; i < ellipsoids.length - 1; i++) {
+			// Centres go up to a quarter of the stack past each edge
+			final double[] centre = { (random.nextDouble() * 1.5 - 0.25) * w *
+				cal.pixelWidth, (random.nextDouble() * 1.5 - 0.25) * h *
+					cal.pixelHeight, (random.nextDouble() * 1.5 - 0.25) * d *
+						cal.pixelDepth };
+			final double[] radii = { 1 + 9 * random.nextDouble(), 1 + 6 * random
+				.nextDouble(), 0.5 + 4 * random.nextDouble() };
+			ellipsoids[i] = new Object[] { centre, radii, randomRotation(random) };
+		}
+		// Invalid ellipsoids are skipped
+		ellipsoids[ellipsoids.length - 1] = new Object[] { new double[3],
+			new double[] { 1, Double.NaN, 1 }, randomRotation(random) };
+		final Ellipsoid[] valid = new Ellipsoid[ellipsoids.length - 1];
+		for (int i = 0; i < valid.length; i++) {
+			valid[i] = new Ellipsoid((Object[]) ellipsoids[i]);
+		}
+
+		final ImagePlus result = ParticleDisplay.displayParticleEllipsoids(imp,
+			ellipsoids);
+
+		assertEquals(d, result.getStackSize());
+		int foreground = 0;
+		for (int z = 0; z < d; z++) {
+			final byte[] pixels = (byte[]) result.getStack().getPixels(z + 1);
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					final double px = x * cal.pixelWidth;
+					final double py = y * cal.pixelHeight;
+					final double pz = z * cal.pixelDepth;
+					boolean inside = false;
+					boolean onSurface = false;
+					for (final Ellipsoid e : valid) {
+						inside |= e.contains(px, py, pz);
+						onSurface |= Math.abs(quadraticForm(e, px, py, pz) - 1) < 1e-9;
+					}
+					final boolean drawn = pixels[y * w + x] != 0;
+					if (drawn) {
+						foreground++;
+					}
+					// Rounding may differ for voxels right on a surface
+					if (!onSurface) {
+						assertEquals("Voxel (" + x + ", " + y + ", " + z + ")", inside,
+							drawn);
+					}
+				}
+			}
+		}
+		assertTrue("Sanity check failed: nothing drawn", foreground > 0);
+	}
+
+	/** @return (X - X0)^T H (X - X0) of the point X */
+	private static double quadraticForm(final Ellipsoid ellipsoid,
+		final double x, final double y, final double z)
+	{
+		final double[] c = ellipsoid.getCentre();
+		final double[] v = { x - c[0], y - c[1], z - c[2] };
+		final double[][] t = ellipsoid.getTensor();
+		double sum = 0;
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				sum += v[i] * t[i][j] * v[j];
+			}
+		}
+		return sum;
+	}
+
+	/** @return a rotation matrix from a random unit quaternion */
+	private static double[][] randomRotation(final Random random) {
+		final double[] q = { random.nextGaussian(), random.nextGaussian(), random
+			.nextGaussian(), random.nextGaussian() };
+		final double norm = Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] +
+			q[3] * q[3]);
+		final double a = q[0] / norm;
+		final double b = q[1] / norm;
+		final double c = q[2] / norm;
+		final double e = q[3] / norm;
+		return new double[][] { { 1 - 2 * (c * c + e * e), 2 * (b * c - a * e), 2 *
+			(b * e + a * c) }, { 2 * (b * c + a * e), 1 - 2 * (b * b + e * e), 2 *
+				(c * e - a * b) }, { 2 * (b * e - a * c), 2 * (c * e + a * b), 1 - 2 *
+					(b * b + c * c) } };
+	}
+
+	private static void assertStacksEqual(final ImageStack expected, final ImageStack actual) {
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		assertEquals(expected.getSize(), actual.getSize());
+		for (int n = 1; n <= expected.getSize(); n++) {
+			assertEquals(expected.getSliceLabel(n), actual.getSliceLabel(n));
+			assertArrayEquals((float[]) expected.getPixels(n), (float[]) actual.getProcessor(n).getPixels(), 0.0f);
+		}
+	}
+
+	/**
+	 * @return a labelled stack where label 0 is background and labels 1 to 4
+	 *         cycle through the rest of the voxels
+	 */
+	private static int[][] labels(final int width, final int height, final int depth) {
+		final int[][] labels = new int[depth][width * height];
+		for (int z = 0; z < depth; z++) {
+			for (int i = 0; i < width * height; i++) {
+				labels[z][i] = i == 0 ? 0 : (i + z) % 4 + 1;
+			}
+		}
+		return labels;
+	}
+
+	private static ImagePlus image(final int width, final int height, final int depth) {
+		final ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++) {
+			stack.addSlice("slice " + z, new ByteProcessor(width, height));
+		}
+		return new ImagePlus("test", stack);
+	}
+}
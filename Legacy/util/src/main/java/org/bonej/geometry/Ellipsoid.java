@@ -280,6 +280,20 @@ public class Ellipsoid {
 		return ev.clone();
 	}
 
+	/**
+	 * Return a copy of the ellipsoid's 3x3 matrix H, so that a point X lies in
+	 * the ellipsoid if (X-X0)^T H (X-X0) &le; 1, where X0 is the centroid.
+	 *
+	 * @return a 3x3 symmetric matrix
+	 */
+	public double[][] getTensor() {
+		final double[][] h = new double[3][];
+		for (int i = 0; i < 3; i++) {
+			h[i] = eh[i].clone();
+		}
+		return h;
+	}
+
 	/**
 	 * Set rotation to the supplied rotation matrix. Does no error checking.
 	 *
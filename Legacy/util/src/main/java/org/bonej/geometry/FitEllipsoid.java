@@ -202,34 +202,38 @@ public final class FitEllipsoid {
 	 * one of the other quadrics).
 	 */
 	public static Object[] yuryPetrov(final double[][] points) {
+		final ScatterMatrix scatter = new ScatterMatrix();
+		for (final double[] point : points) {
+			scatter.add(point[0], point[1], point[2]);
+		}
+		return yuryPetrov(scatter);
+	}
 
-		final int nPoints = points.length;
-		if (nPoints < 9) {
+	/**
+	 * Ellipsoid fitting method by Yury Petrov from accumulated points.
+	 * <p>
+	 * Gives the same fit as {@link #yuryPetrov(double[][])}, but the points
+	 * don't have to be held in memory.
+	 * </p>
+	 *
+	 * @param scatter the normal equations of the points to fit.
+	 * @return Object[] array containing the centre, radii, eigenvectors of the
+	 *         axes, the 9 variables of the ellipsoid equation and the EVD
+	 * @throws IllegalArgumentException if number of coordinates is less than 9 or
+	 * if ellipsoid matrix is not positive definite (i.e. the fitted function is
+	 * one of the other quadrics).
+	 * @see #yuryPetrov(double[][])
+	 */
+	public static Object[] yuryPetrov(final ScatterMatrix scatter) {
+		if (scatter.getCount() < 9) {
 			throw new IllegalArgumentException(
 				"Too few points; need at least 9 to calculate a unique ellipsoid");
 		}
 
-		final double[][] d = new double[nPoints][9];
-		for (int i = 0; i < nPoints; i++) {
-			final double x = points[i][0];
-			final double y = points[i][1];
-			final double z = points[i][2];
-			d[i][0] = x * x;
-			d[i][1] = y * y;
-			d[i][2] = z * z;
-			d[i][3] = 2 * x * y;
-			d[i][4] = 2 * x * z;
-			d[i][5] = 2 * y * z;
-			d[i][6] = 2 * x;
-			d[i][7] = 2 * y;
-			d[i][8] = 2 * z;
-		}
-
 		// do the fitting
-		final Matrix D = new Matrix(d);
-		final Matrix ones = new Matrix(nPoints, 1, 1.0);
-		final Matrix V = ((D.transpose().times(D)).inverse()).times(D.transpose()
-			.times(ones));
+		final Matrix DtD = new Matrix(scatter.getDtD());
+		final Matrix DtOnes = new Matrix(scatter.getDtOnes(), 9);
+		final Matrix V = DtD.inverse().times(DtOnes);
 
 		// the fitted equation
 		final double[] v = V.getColumnPackedCopy();
@@ -319,4 +323,73 @@ public final class FitEllipsoid {
 		final double[][] eigenValues = E.getD().getArrayCopy();
 		return new Object[] { centre, eigenValues, eigenVectors, E };
 	}
+
+	/**
+	 * Accumulates the normal equations of the least squares ellipsoid fit one
+	 * point at a time.
+	 * <p>
+	 * Instead of the n × 9 design matrix D of
+	 * {@link FitEllipsoid#yuryPetrov(double[][])}, only the 9 × 9 matrix
+	 * D<sup>T</sup>D and the vector D<sup>T</sup>1 are stored, so memory use
+	 * doesn't depend on the number of points.
+	 * </p>
+	 */
+	public static final class ScatterMatrix {
+
+		private final double[][] dtd = new double[9][9];
+		private final double[] dtOnes = new double[9];
+		private final double[] row = new double[9];
+		private long count;
+
+		/**
+		 * Adds a point to the fit.
+		 *
+		 * @param x x-coordinate of the point.
+		 * @param y y-coordinate of the point.
+		 * @param z z-coordinate of the point.
+		 */
+		public void add(final double x, final double y, final double z) {
+			row[0] = x * x;
+			row[1] = y * y;
+			row[2] = z * z;
+			row[3] = 2 * x * y;
+			row[4] = 2 * x * z;
+			row[5] = 2 * y * z;
+			row[6] = 2 * x;
+			row[7] = 2 * y;
+			row[8] = 2 * z;
+			for (int i = 0; i < 9; i++) {
+				final double ri = row[i];
+				for (int j = i; j < 9; j++) {
+					dtd[i][j] += ri * row[j];
+				}
+				dtOnes[i] += ri;
+			}
+			count++;
+		}
+
+		/**
+		 * Returns the number of points added.
+		 *
+		 * @return number of points.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		private double[][] getDtD() {
+			final double[][] copy = new double[9][9];
+			for (int i = 0; i < 9; i++) {
+				for (int j = i; j < 9; j++) {
+					copy[i][j] = dtd[i][j];
+					copy[j][i] = dtd[i][j];
+				}
+			}
+			return copy;
+		}
+
+		private double[] getDtOnes() {
+			return dtOnes.clone();
+		}
+	}
 }
@@ -0,0 +1,293 @@
+/*-
+ * #%L
+ * Utility classes for BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/*
+BSD 2-Clause License
+Copyright (c) 2018, Michael Doube, Richard Domander, Alessandro Felder
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.geometry;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bonej.util.Multithreader;
+
+/**
+ * Eigenvalue decompositions of a batch of symmetric 3 × 3 matrices.
+ * <p>
+ * The matrices are diagonalised with cyclic Jacobi rotations, and the results
+ * are stored in flat primitive arrays, so that decomposing a large number of
+ * small tensors, e.g. the inertia tensors of particles, doesn't create an
+ * object per tensor.
+ * </p>
+ * <p>
+ * The results follow the conventions of {@link Jama.EigenvalueDecomposition}:
+ * the eigenvalues are in ascending order, and column i of the eigenvector
+ * matrix V is the unit eigenvector of eigenvalue i.
+ * </p>
+ */
+public final class SymmetricEigen3 {
+
+	/** Number of unique elements in a symmetric 3 × 3 matrix */
+	public static final int TENSOR_SIZE = 6;
+	/** Jacobi iteration converges in a few sweeps, this is just a safeguard */
+	private static final int MAX_SWEEPS = 32;
+	/** Number of matrices a thread decomposes at a time */
+	private static final int BATCH_SIZE = 1024;
+	private final double[] eigenvalues;
+	private final double[] eigenvectors;
+
+	private SymmetricEigen3(final double[] eigenvalues,
+		final double[] eigenvectors)
+	{
+		this.eigenvalues = eigenvalues;
+		this.eigenvectors = eigenvectors;
+	}
+
+	/**
+	 * Decomposes the symmetric matrices in parallel.
+	 *
+	 * @param tensors the unique elements of the matrices, {@link #TENSOR_SIZE}
+	 *          per matrix in the order m00, m11, m22, m01, m02, m12.
+	 * @return the eigenvalue decompositions of the matrices.
+	 * @throws IllegalArgumentException if the length of the array is not a
+	 *           multiple of {@link #TENSOR_SIZE}.
+	 */
+	public static SymmetricEigen3 decompose(final double[] tensors) {
+		if (tensors.length % TENSOR_SIZE != 0) {
+			throw new IllegalArgumentException(
+				"Array length is not a multiple of tensor size");
+		}
+		final int n = tensors.length / TENSOR_SIZE;
+		final double[] eigenvalues = new double[3 * n];
+		final double[] eigenvectors = new double[9 * n];
+		final int nBatches = (n + BATCH_SIZE - 1) / BATCH_SIZE;
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				final double[] a = new double[9];
+				for (int b = ai.getAndIncrement(); b < nBatches; b = ai
+					.getAndIncrement())
+				{
+					final int end = Math.min((b + 1) * BATCH_SIZE, n);
+					for (int t = b * BATCH_SIZE; t < end; t++) {
+						decompose(tensors, t, eigenvalues, eigenvectors, a);
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		return new SymmetricEigen3(eigenvalues, eigenvectors);
+	}
+
+	/**
+	 * Returns the number of decomposed matrices.
+	 *
+	 * @return number of matrices.
+	 */
+	public int size() {
+		return eigenvalues.length / 3;
+	}
+
+	/**
+	 * Returns an eigenvalue of a matrix.
+	 *
+	 * @param t index of the matrix.
+	 * @param i index of the eigenvalue, 0 is the smallest.
+	 * @return the eigenvalue, i.e. element (i, i) of the matrix D.
+	 */
+	public double getEigenvalue(final int t, final int i) {
+		return eigenvalues[3 * t + i];
+	}
+
+	/**
+	 * Returns an element of the eigenvector matrix of a matrix.
+	 *
+	 * @param t index of the matrix.
+	 * @param row row of the element, i.e. the component of the vector.
+	 * @param column column of the element, i.e. the index of the eigenvector.
+	 * @return element (row, column) of the matrix V.
+	 */
+	public double getEigenvector(final int t, final int row, final int column) {
+		return eigenvectors[9 * t + 3 * row + column];
+	}
+
+	/**
+	 * Returns the eigenvector matrix of a matrix.
+	 *
+	 * @param t index of the matrix.
+	 * @return a new 3 × 3 array with the eigenvectors in its columns.
+	 */
+	public double[][] getV(final int t) {
+		final double[][] v = new double[3][3];
+		for (int row = 0; row < 3; row++) {
+			System.arraycopy(eigenvectors, 9 * t + 3 * row, v[row], 0, 3);
+		}
+		return v;
+	}
+
+	/**
+	 * Returns the eigenvectors of all the matrices.
+	 *
+	 * @return matrices V in row-major order, 9 elements per matrix. The array is
+	 *         not copied.
+	 */
+	public double[] getEigenvectors() {
+		return eigenvectors;
+	}
+
+	/**
+	 * Decomposes a single matrix.
+	 *
+	 * @param tensors the unique elements of the matrices.
+	 * @param t index of the matrix to decompose.
+	 * @param eigenvalues output array for eigenvalues, 3 per matrix.
+	 * @param eigenvectors output array for the matrices V, 9 per matrix.
+	 * @param a work array of 9 elements.
+	 */
+	static void decompose(final double[] tensors, final int t,
+		final double[] eigenvalues, final double[] eigenvectors, final double[] a)
+	{
+		final int m = TENSOR_SIZE * t;
+		a[0] = tensors[m];
+		a[4] = tensors[m + 1];
+		a[8] = tensors[m + 2];
+		a[1] = a[3] = tensors[m + 3];
+		a[2] = a[6] = tensors[m + 4];
+		a[5] = a[7] = tensors[m + 5];
+		final int e = 9 * t;
+		for (int i = 0; i < 9; i++) {
+			eigenvectors[e + i] = i % 4 == 0 ? 1.0 : 0.0;
+		}
+		double norm = 0.0;
+		for (int i = 0; i < 9; i++) {
+			norm += Math.abs(a[i]);
+		}
+		final double tolerance = Math.ulp(norm);
+		for (int sweep = 0; sweep < MAX_SWEEPS; sweep++) {
+			final boolean rotated = rotate(a, eigenvectors, e, 0, 1, tolerance) |
+				rotate(a, eigenvectors, e, 0, 2, tolerance) | rotate(a, eigenvectors,
+					e, 1, 2, tolerance);
+			if (!rotated) {
+				break;
+			}
+		}
+		sort(a, eigenvalues, 3 * t, eigenvectors, e);
+	}
+
+	/**
+	 * Applies a Jacobi rotation that zeroes element (p, q) of the matrix.
+	 *
+	 * @return false if the element was already negligible.
+	 */
+	private static boolean rotate(final double[] a, final double[] v,
+		final int e, final int p, final int q, final double tolerance)
+	{
+		final double apq = a[3 * p + q];
+		final double app = a[4 * p];
+		final double aqq = a[4 * q];
+		if (Math.abs(apq) <= tolerance) {
+			a[3 * p + q] = a[3 * q + p] = 0.0;
+			return false;
+		}
+		final double theta = (aqq - app) / (2.0 * apq);
+		final double tan = (theta < 0.0 ? -1.0 : 1.0) / (Math.abs(theta) + Math
+			.sqrt(theta * theta + 1.0));
+		final double cos = 1.0 / Math.sqrt(tan * tan + 1.0);
+		final double sin = tan * cos;
+		for (int k = 0; k < 3; k++) {
+			final double akp = a[3 * k + p];
+			final double akq = a[3 * k + q];
+			a[3 * k + p] = cos * akp - sin * akq;
+			a[3 * k + q] = sin * akp + cos * akq;
+		}
+		for (int k = 0; k < 3; k++) {
+			final double apk = a[3 * p + k];
+			final double aqk = a[3 * q + k];
+			a[3 * p + k] = cos * apk - sin * aqk;
+			a[3 * q + k] = sin * apk + cos * aqk;
+		}
+		for (int k = 0; k < 3; k++) {
+			final double vkp = v[e + 3 * k + p];
+			final double vkq = v[e + 3 * k + q];
+			v[e + 3 * k + p] = cos * vkp - sin * vkq;
+			v[e + 3 * k + q] = sin * vkp + cos * vkq;
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the diagonal to the eigenvalues in ascending order, and permutes
+	 * the columns of V to match.
+	 */
+	private static void sort(final double[] a, final double[] eigenvalues,
+		final int d, final double[] v, final int e)
+	{
+		eigenvalues[d] = a[0];
+		eigenvalues[d + 1] = a[4];
+		eigenvalues[d + 2] = a[8];
+		for (int i = 0; i < 2; i++) {
+			int min = i;
+			for (int j = i + 1; j < 3; j++) {
+				if (eigenvalues[d + j] < eigenvalues[d + min]) {
+					min = j;
+				}
+			}
+			if (min == i) {
+				continue;
+			}
+			final double value = eigenvalues[d + i];
+			eigenvalues[d + i] = eigenvalues[d + min];
+			eigenvalues[d + min] = value;
+			for (int k = 0; k < 3; k++) {
+				final double tmp = v[e + 3 * k + i];
+				v[e + 3 * k + i] = v[e + 3 * k + min];
+				v[e + 3 * k + min] = tmp;
+			}
+		}
+	}
+}
@@ -203,6 +203,37 @@ public class EllipsoidTest {
 		}
 	}
 
+	@Test
+	public void testGetTensorMatchesContains() {
+		final double[] c = rotated.getCentre();
+		final double[][] h = rotated.getTensor();
+		for (int i = -20; i <= 20; i++) {
+			for (int j = -20; j <= 20; j++) {
+				final double[] v = { 0.9 * i, 0.7 * j, 0.5 * (i - j) };
+				double dot = 0;
+				for (int r = 0; r < 3; r++) {
+					for (int s = 0; s < 3; s++) {
+						dot += v[r] * h[r][s] * v[s];
+					}
+				}
+				if (Math.abs(dot - 1) > 1e-9) {
+					assertEquals(dot <= 1, rotated.contains(c[0] + v[0], c[1] + v[1],
+						c[2] + v[2]));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testGetTensorIsCopy() {
+		final double[][] h = unitSphere.getTensor();
+		h[0][0] = 100;
+		h[1] = new double[3];
+
+		assertEquals(1, unitSphere.getTensor()[0][0], 1e-12);
+		assertEquals(1, unitSphere.getTensor()[1][1], 1e-12);
+	}
+
 	@Test
 	public void testGetCentre() {
 		assertArrayEquals(new double[] { 0, 0, 0 }, unitSphere.getCentre(), 1E-9);
@@ -34,6 +34,8 @@ import static org.junit.Assert.assertEquals;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import Jama.Matrix;
+
 public class FitEllipsoidTest {
 
 	final static double a = 1.5;
@@ -58,6 +60,57 @@ public class FitEllipsoidTest {
 		assertArrayEquals(radii, (double[]) result[1], 1e-2);
 	}
 	
+	@Test
+	public void testYuryPetrovScatterMatrix() {
+		final double[][] points = FitEllipsoid.testEllipsoid(a, b, c, r, x, y, z, 0.01, 1000, true);
+		final FitEllipsoid.ScatterMatrix scatter = new FitEllipsoid.ScatterMatrix();
+		for (final double[] point : points) {
+			scatter.add(point[0], point[1], point[2]);
+		}
+		final double[] expected = designMatrixFit(points);
+
+		final Object[] result = FitEllipsoid.yuryPetrov(scatter);
+
+		assertEquals(points.length, scatter.getCount());
+		final double[] v = (double[]) result[3];
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], v[i], Math.abs(expected[i]) * 1e-6);
+		}
+		assertArrayEquals(new double[] { x, y, z }, (double[]) result[0], 1e-2);
+		assertArrayEquals(new double[] { c, b, a }, (double[]) result[1], 1e-2);
+	}
+
+	/**
+	 * Solves the ellipsoid equation like yuryPetrov did before the scatter
+	 * matrix, i.e. from the full n × 9 design matrix D.
+	 *
+	 * @return the 9 variables of the ellipsoid equation.
+	 */
+	private static double[] designMatrixFit(final double[][] points) {
+		final double[][] d = new double[points.length][9];
+		for (int i = 0; i < points.length; i++) {
+			final double x = points[i][0];
+			final double y = points[i][1];
+			final double z = points[i][2];
+			d[i] = new double[] { x * x, y * y, z * z, 2 * x * y, 2 * x * z, 2 * y *
+				z, 2 * x, 2 * y, 2 * z };
+		}
+		final Matrix D = new Matrix(d);
+		final Matrix ones = new Matrix(points.length, 1, 1.0);
+		return D.transpose().times(D).inverse().times(D.transpose().times(ones))
+			.getColumnPackedCopy();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testYuryPetrovScatterMatrixTooFewPoints() {
+		final FitEllipsoid.ScatterMatrix scatter = new FitEllipsoid.ScatterMatrix();
+		for (int i = 0; i < 8; i++) {
+			scatter.add(i, i * i, -i);
+		}
+
+		FitEllipsoid.yuryPetrov(scatter);
+	}
+
 	@Test(expected = IllegalArgumentException.class)
 	public void testYuryPetrovCylinder() {
 		//generate points on a cylinder with d = h, centred on 0, 0, 0.
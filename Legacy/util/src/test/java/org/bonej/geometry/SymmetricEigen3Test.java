@@ -0,0 +1,100 @@
+/*
+ * #%L
+ * Utility classes for BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.geometry;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+
+public class SymmetricEigen3Test {
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDecomposeThrowsIAEIfBadLength() {
+		SymmetricEigen3.decompose(new double[5]);
+	}
+
+	@Test
+	public void testDecomposeDiagonal() {
+		final double[] tensors = { 3, 1, 2, 0, 0, 0 };
+
+		final SymmetricEigen3 eigens = SymmetricEigen3.decompose(tensors);
+
+		assertEquals(1, eigens.size());
+		assertEquals(1, eigens.getEigenvalue(0, 0), 1e-12);
+		assertEquals(2, eigens.getEigenvalue(0, 1), 1e-12);
+		assertEquals(3, eigens.getEigenvalue(0, 2), 1e-12);
+		assertEquals(1, Math.abs(eigens.getEigenvector(0, 1, 0)), 1e-12);
+		assertEquals(1, Math.abs(eigens.getEigenvector(0, 2, 1)), 1e-12);
+		assertEquals(1, Math.abs(eigens.getEigenvector(0, 0, 2)), 1e-12);
+	}
+
+	@Test
+	public void testDecomposeMatchesJama() {
+		final Random random = new Random(0xC0FFEE);
+		final int n = 5000;
+		final double[] tensors = new double[n * SymmetricEigen3.TENSOR_SIZE];
+		for (int i = 0; i < tensors.length; i++) {
+			tensors[i] = random.nextGaussian();
+		}
+
+		final SymmetricEigen3 eigens = SymmetricEigen3.decompose(tensors);
+
+		for (int t = 0; t < n; t++) {
+			final double[][] a = toMatrix(tensors, t);
+			final EigenvalueDecomposition expected = new EigenvalueDecomposition(
+				new Matrix(a));
+			final double[][] v = eigens.getV(t);
+			for (int i = 0; i < 3; i++) {
+				final double value = eigens.getEigenvalue(t, i);
+				assertEquals(expected.getD().get(i, i), value, 1e-10);
+				// A v = lambda v, and v is a unit vector
+				double length = 0;
+				for (int row = 0; row < 3; row++) {
+					final double av = a[row][0] * v[0][i] + a[row][1] * v[1][i] +
+						a[row][2] * v[2][i];
+					assertEquals(value * v[row][i], av, 1e-10);
+					length += v[row][i] * v[row][i];
+				}
+				assertEquals(1, length, 1e-12);
+			}
+		}
+	}
+
+	private static double[][] toMatrix(final double[] tensors, final int t) {
+		final int m = t * SymmetricEigen3.TENSOR_SIZE;
+		return new double[][] { { tensors[m], tensors[m + 3], tensors[m + 4] }, {
+			tensors[m + 3], tensors[m + 1], tensors[m + 5] }, { tensors[m + 4],
+				tensors[m + 5], tensors[m + 2] } };
+	}
+}
@@ -0,0 +1,519 @@
+/*-
+ * #%L
+ * Ops created for BoneJ2
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.ops.connectivity;
+
+import java.util.stream.IntStream;
+
+import net.imagej.ImgPlus;
+import net.imagej.ops.Op;
+import net.imagej.ops.special.function.AbstractUnaryFunctionOp;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import org.scijava.plugin.Plugin;
+
+/**
+ * Calculates the Euler characteristic of the foreground of a binary stack,
+ * and the correction for its edges, in one parallel sweep.
+ * <p>
+ * The Euler characteristic &#967; is summed from the octants of the voxel
+ * vertices with the 26-connected look up table of Toriwaki &amp; Yonekura
+ * (2002). The edge correction &#916;&#967; is counted from the voxels on the
+ * faces, edges and corners of the stack as in Odgaard &amp; Gundersen (1993),
+ * so that &#967; - &#916;&#967; is the contribution of the stack to the Euler
+ * characteristic of the structure it was cut from. These are the same values
+ * as the ones calculated by the EulerCharacteristic26NFloating and
+ * EulerCorrection ops, and BoneJ1 Connectivity.
+ * </p>
+ * <p>
+ * The sweep is parallel over the slices. Each slice adds the octants between
+ * it and the previous slice, and the parts of the stack boundary it touches.
+ * Non-zero elements are foreground. Array and planar images of bytes are swept
+ * directly from their storage, other images are first copied into slices.
+ * </p>
+ */
+@Plugin(name = "eulerConnectivity", type = Op.class)
+public class EulerConnectivity<T extends RealType<T>> extends
+	AbstractUnaryFunctionOp<RandomAccessibleInterval<T>, EulerConnectivity.Result>
+{
+
+	private static final int[] EULER_LUT = fillEulerLUT();
+	/**
+	 * The change in the Euler characteristic of each octant, indexed by the
+	 * codes of its columns. See {@link #sumOctants(int)}.
+	 */
+	private static final int[] OCTANT_DELTAS = fillOctantDeltas();
+
+	@Override
+	public boolean conforms() {
+		return in().numDimensions() == 3 && in().dimension(0) * in().dimension(
+			1) <= Integer.MAX_VALUE;
+	}
+
+	@Override
+	public Result calculate(final RandomAccessibleInterval<T> interval) {
+		final int width = (int) interval.dimension(0);
+		final int height = (int) interval.dimension(1);
+		final int depth = (int) interval.dimension(2);
+		final int sliceSize = width * height;
+		final int[] offsets = new int[depth];
+		RandomAccessibleInterval<?> img = interval;
+		while (img instanceof ImgPlus) {
+			img = ((ImgPlus<?>) img).getImg();
+		}
+		if (img instanceof PlanarImg && ((PlanarImg<?, ?>) img)
+			.numSlices() == depth)
+		{
+			final PlanarImg<?, ?> planarImg = (PlanarImg<?, ?>) img;
+			final byte[][] planes = new byte[depth][];
+			for (int z = 0; z < depth; z++) {
+				final Object plane = planarImg.getPlane(z);
+				if (!(plane instanceof ByteArray)) {
+					return sweep(copySlices(interval), offsets, width, height);
+				}
+				planes[z] = ((ByteArray) plane).getCurrentStorageArray();
+			}
+			return sweep(planes, offsets, width, height);
+		}
+		if (img instanceof ArrayImg && (long) sliceSize *
+			depth <= Integer.MAX_VALUE)
+		{
+			final Object access = ((ArrayImg<?, ?>) img).update(null);
+			if (access instanceof ByteArray) {
+				final byte[][] planes = new byte[depth][];
+				for (int z = 0; z < depth; z++) {
+					planes[z] = ((ByteArray) access).getCurrentStorageArray();
+					offsets[z] = z * sliceSize;
+				}
+				return sweep(planes, offsets, width, height);
+			}
+		}
+		return sweep(copySlices(interval), offsets, width, height);
+	}
+
+	/**
+	 * Calculates the Euler characteristic and the edge correction of a stack.
+	 *
+	 * @param pixels the slices of a binary stack. Non-zero elements are
+	 *          foreground.
+	 * @param width width of the slices.
+	 * @param height height of the slices.
+	 * @return the Euler characteristic and edge correction.
+	 * @throws IllegalArgumentException if the slices don't match the
+	 *           dimensions.
+	 */
+	public static Result sweep(final byte[][] pixels, final int width,
+		final int height)
+	{
+		for (final byte[] plane : pixels) {
+			if (plane.length != width * height) {
+				throw new IllegalArgumentException(
+					"Slices don't match the dimensions");
+			}
+		}
+		return sweep(pixels, new int[pixels.length], width, height);
+	}
+
+	/**
+	 * Calculates the Euler characteristic and the edge correction of a stack.
+	 *
+	 * @param planes the arrays of each slice. The same array can hold more than
+	 *          one slice.
+	 * @param offsets index of the first element of each slice in its array.
+	 */
+	static Result sweep(final byte[][] planes, final int[] offsets,
+		final int width, final int height)
+	{
+		final Sweep sweep = new Sweep(planes, offsets, width, height);
+		final long[][] sums = IntStream.rangeClosed(0, planes.length).parallel()
+			.mapToObj(sweep::sweepSlice).toArray(long[][]::new);
+		final long[] totals = new long[Counts.values().length];
+		for (final long[] slice : sums) {
+			for (int i = 0; i < totals.length; i++) {
+				totals[i] += slice[i];
+			}
+		}
+		return new Result(totals);
+	}
+
+	// region -- Helper methods --
+
+	/** Copies the elements into slices, foreground as 1 and background as 0 */
+	private static <T extends RealType<T>> byte[][] copySlices(
+		final RandomAccessibleInterval<T> interval)
+	{
+		final int sliceSize = (int) (interval.dimension(0) * interval.dimension(
+			1));
+		final byte[][] slices = new byte[(int) interval.dimension(2)][sliceSize];
+		final Cursor<T> cursor = Views.flatIterable(interval).cursor();
+		for (final byte[] slice : slices) {
+			for (int i = 0; i < sliceSize; i++) {
+				if (cursor.next().getRealDouble() != 0.0) {
+					slice[i] = 1;
+				}
+			}
+		}
+		return slices;
+	}
+
+	/**
+	 * Returns the change in the Euler characteristic from the octant of a voxel
+	 * vertex.
+	 * <p>
+	 * The octant is rotated so that its first foreground voxel is in the corner
+	 * of the look up table.
+	 * </p>
+	 */
+	private static int deltaEuler(final boolean o1, final boolean o2,
+		final boolean o3, final boolean o4, final boolean o5, final boolean o6,
+		final boolean o7, final boolean o8)
+	{
+		int n = 1;
+		if (o8) {
+			if (o1) n |= 128;
+			if (o2) n |= 64;
+			if (o3) n |= 32;
+			if (o4) n |= 16;
+			if (o5) n |= 8;
+			if (o6) n |= 4;
+			if (o7) n |= 2;
+		}
+		else if (o7) {
+			if (o2) n |= 128;
+			if (o4) n |= 64;
+			if (o1) n |= 32;
+			if (o3) n |= 16;
+			if (o6) n |= 8;
+			if (o5) n |= 2;
+		}
+		else if (o6) {
+			if (o3) n |= 128;
+			if (o1) n |= 64;
+			if (o4) n |= 32;
+			if (o2) n |= 16;
+			if (o5) n |= 4;
+		}
+		else if (o5) {
+			if (o4) n |= 128;
+			if (o3) n |= 64;
+			if (o2) n |= 32;
+			if (o1) n |= 16;
+		}
+		else if (o4) {
+			if (o1) n |= 8;
+			if (o3) n |= 4;
+			if (o2) n |= 2;
+		}
+		else if (o3) {
+			if (o2) n |= 8;
+			if (o1) n |= 4;
+		}
+		else if (o2) {
+			if (o1) n |= 2;
+		}
+		else {
+			return 1;
+		}
+		return EULER_LUT[n];
+	}
+
+	/**
+	 * Fills the changes of the octants indexed by column codes. The low four
+	 * bits are the voxels o3, o4, o7 and o8 of the new column, and the high
+	 * four the voxels o1, o2, o5 and o6 of the previous one.
+	 */
+	private static int[] fillOctantDeltas() {
+		final int[] deltas = new int[256];
+		for (int code = 1; code < deltas.length; code++) {
+			deltas[code] = deltaEuler((code & 16) != 0, (code & 32) != 0,
+				(code & 1) != 0, (code & 2) != 0, (code & 64) != 0, (code & 128) != 0,
+				(code & 4) != 0, (code & 8) != 0);
+		}
+		return deltas;
+	}
+
+	/**
+	 * Fills the look up table of the Euler characteristic changes of octants.
+	 * <p>
+	 * Only odd indices are needed, because the octants always contain a
+	 * foreground voxel. Derived from Toriwaki &amp; Yonekura (2002) Table 2 for
+	 * 26-connected images.
+	 * </p>
+	 */
+	private static int[] fillEulerLUT() {
+		final int[] values = { 1, 0, 0, -1, -2, -1, -1, 0, 0, -1, -1, -2, -3, -2,
+			-2, -1, -2, -1, -3, -2, -1, -2, 0, -1, -1, 0, -2, -1, 0, -1, 1, 0, -2,
+			-3, -1, -2, -1, 0, -2, -1, -1, -2, 0, -1, 0, 1, -1, 0, -1, 0, 0, 1, 4, 3,
+			3, 2, -2, -1, -1, 0, 3, 2, 2, 1, -6, -3, -3, 0, -3, -2, -2, -1, -3, 0, 0,
+			3, 0, 1, 1, 2, -3, -2, 0, 1, 0, -1, 1, 0, -2, -1, 1, 2, 1, 0, 2, 1, -3,
+			0, -2, 1, 0, 1, -1, 0, -2, 1, -1, 2, 1, 2, 0, 1, 0, 1, 1, 2, 3, 2, 2, 1,
+			-1, 0, 0, 1, 2, 1, 1, 0 };
+		final int[] lut = new int[256];
+		for (int i = 0; i < values.length; i++) {
+			lut[2 * i + 1] = values[i];
+		}
+		return lut;
+	}
+
+	// endregion
+
+	/** Sums the octants and counts the boundary of a stack slice by slice */
+	private static final class Sweep {
+
+		private final byte[][] planes;
+		private final int[] offsets;
+		private final int width;
+		private final int height;
+		private final int depth;
+
+		private Sweep(final byte[][] planes, final int[] offsets, final int width,
+			final int height)
+		{
+			this.planes = planes;
+			this.offsets = offsets;
+			this.width = width;
+			this.height = height;
+			depth = planes.length;
+		}
+
+		/**
+		 * Sums the octants between slices z - 1 and z, and counts the stack
+		 * boundary elements of slice z.
+		 */
+		private long[] sweepSlice(final int z) {
+			final long[] sums = new long[Counts.values().length];
+			sums[Counts.EULER.ordinal()] = sumOctants(z);
+			if (z < depth) {
+				countBoundary(z, sums);
+			}
+			return sums;
+		}
+
+		/**
+		 * Sums the octants between slices z - 1 and z.
+		 * <p>
+		 * The octants slide along each row, so that only the four voxels of the new
+		 * column are read. They're packed into a 4-bit code, and the codes of the
+		 * previous and new column index the change of the octant.
+		 * </p>
+		 */
+		private long sumOctants(final int z) {
+			long sum = 0;
+			for (int y = 0; y <= height; y++) {
+				final int row1 = rowStart(y - 1, z - 1);
+				final int row2 = rowStart(y, z - 1);
+				final int row3 = rowStart(y - 1, z);
+				final int row4 = rowStart(y, z);
+				int previous = 0;
+				for (int x = 0; x <= width; x++) {
+					final int column = (isSet(z - 1, row1, x) ? 1 : 0) | (isSet(z - 1,
+						row2, x) ? 2 : 0) | (isSet(z, row3, x) ? 4 : 0) | (isSet(z, row4, x)
+							? 8 : 0);
+					sum += OCTANT_DELTAS[previous << 4 | column];
+					previous = column;
+				}
+			}
+			return sum;
+		}
+
+		/**
+		 * Returns the index of the first element of row y in slice z, or -1 if the
+		 * row is outside the stack.
+		 */
+		private int rowStart(final int y, final int z) {
+			if (y < 0 || y >= height || z < 0 || z >= depth) {
+				return -1;
+			}
+			return offsets[z] + y * width;
+		}
+
+		private boolean isSet(final int z, final int rowStart, final int x) {
+			return rowStart >= 0 && x < width && planes[z][rowStart + x] != 0;
+		}
+
+		/**
+		 * Counts the parts of the edge correction that come from slice z. See
+		 * {@link Result#getEdgeCorrection()} for the meaning of the counts.
+		 */
+		private void countBoundary(final int z, final long[] sums) {
+			final boolean zEnd = isEnd(z, depth);
+			final boolean zInner = z > 0 && z < depth - 1;
+			for (int y = 0; y <= height; y++) {
+				final boolean yEnd = y < height && isEnd(y, height);
+				final boolean yInner = y > 0 && y < height - 1;
+				for (int x = 0; x <= width; x++) {
+					final boolean xEnd = x < width && isEnd(x, width);
+					if (!zEnd && !yEnd && !xEnd) {
+						// Only the ends of the row touch the boundary
+						if (x > 0 && x < width - 1) {
+							x = width - 2;
+						}
+						continue;
+					}
+					final boolean xInner = x > 0 && x < width - 1;
+					final boolean p = isForeground(x, y, z);
+					final boolean pX = isForeground(x - 1, y, z);
+					final boolean pY = isForeground(x, y - 1, z);
+					final boolean pXY = isForeground(x - 1, y - 1, z);
+					final boolean pZ = z > 0 && isForeground(x, y, z - 1);
+					final boolean pYZ = z > 0 && isForeground(x, y - 1, z - 1);
+					final boolean pXZ = z > 0 && isForeground(x - 1, y, z - 1);
+					if (zEnd) {
+						if (p && ((xEnd && yEnd) || (yEnd && xInner) || (xEnd &&
+							yInner)))
+						{
+							add(sums, xEnd && yEnd ? Counts.STACK_VERTICES
+								: Counts.STACK_EDGES);
+						}
+						if (p && xInner && yInner) {
+							add(sums, Counts.STACK_FACES);
+						}
+						if (p || pY || pXY || pX) {
+							add(sums, Counts.FACE_VERTICES);
+						}
+						sums[Counts.FACE_EDGES.ordinal()] += p ? 2 : (pY ? 1 : 0) + (pX ? 1
+							: 0);
+						if (yEnd && x > 0 && x < width && (p || pX)) {
+							add(sums, Counts.EDGE_VERTICES);
+						}
+						if (xEnd && y > 0 && y < height && (p || pY)) {
+							add(sums, Counts.EDGE_VERTICES);
+						}
+					}
+					if (xEnd && yEnd && zInner && p) {
+						add(sums, Counts.STACK_EDGES);
+					}
+					if (p && zInner && ((yEnd && xInner) || (xEnd && yInner))) {
+						add(sums, Counts.STACK_FACES);
+					}
+					if (z > 0) {
+						if (xEnd && y <= height && (p || pY || pYZ || pZ)) {
+							add(sums, Counts.FACE_VERTICES);
+						}
+						if (yEnd && x > 0 && x < width && (p || pZ || pXZ || pX)) {
+							add(sums, Counts.FACE_VERTICES);
+						}
+						if (yEnd && x < width && (p || pZ)) {
+							add(sums, Counts.FACE_EDGES);
+						}
+						if (xEnd && y < height && (p || pZ)) {
+							add(sums, Counts.FACE_EDGES);
+						}
+						if (xEnd && yEnd && (p || pZ)) {
+							add(sums, Counts.EDGE_VERTICES);
+						}
+					}
+					if (yEnd && (p || pX)) {
+						add(sums, Counts.FACE_EDGES);
+					}
+					if (xEnd && y > 0 && y < height && (p || pY)) {
+						add(sums, Counts.FACE_EDGES);
+					}
+				}
+			}
+		}
+
+		private static void add(final long[] sums, final Counts count) {
+			sums[count.ordinal()]++;
+		}
+
+		private static boolean isEnd(final int i, final int size) {
+			return i == 0 || i == size - 1;
+		}
+
+		private boolean isForeground(final int x, final int y, final int z) {
+			return x >= 0 && x < width && y >= 0 && y < height && z >= 0 &&
+				z < depth && planes[z][offsets[z] + x + y * width] != 0;
+		}
+	}
+
+	/** The counts summed in the sweep */
+	private enum Counts {
+			/** Sum of the octant changes, i.e. 8 &#967; */
+			EULER,
+			/** Foreground voxels on the corners of the stack (f) */
+			STACK_VERTICES,
+			/** Foreground voxels on the edges of the stack, not corners */
+			STACK_EDGES,
+			/** Foreground voxels on the faces of the stack, not edges */
+			STACK_FACES,
+			/** Voxel vertices on the faces of the stack (a) */
+			FACE_VERTICES,
+			/** Voxel edges on the faces of the stack (b) */
+			FACE_EDGES,
+			/** Voxel vertices on the edges of the stack, not corners */
+			EDGE_VERTICES
+	}
+
+	/** The Euler characteristic and edge correction of a stack */
+	public static final class Result {
+
+		private final double eulerCharacteristic;
+		private final double edgeCorrection;
+
+		private Result(final long[] counts) {
+			eulerCharacteristic = counts[Counts.EULER.ordinal()] / 8.0;
+			final long f = counts[Counts.STACK_VERTICES.ordinal()];
+			final long e = counts[Counts.STACK_EDGES.ordinal()] + 3 * f;
+			final long c = counts[Counts.STACK_FACES.ordinal()] + 2 * e - 3 * f;
+			final long d = counts[Counts.EDGE_VERTICES.ordinal()] + f;
+			final long a = counts[Counts.FACE_VERTICES.ordinal()];
+			final long b = counts[Counts.FACE_EDGES.ordinal()];
+			final double chiZero = f;
+			final double chiOne = (double) d - e;
+			final double chiTwo = (double) a - b + c;
+			edgeCorrection = chiTwo / 2 + chiOne / 4 + chiZero / 8;
+		}
+
+		/** Returns the Euler characteristic &#967; of the foreground */
+		public double getEulerCharacteristic() {
+			return eulerCharacteristic;
+		}
+
+		/**
+		 * Returns the edge correction &#916;&#967;, which is subtracted from
+		 * &#967; to get the contribution of the stack to the Euler characteristic
+		 * of the structure it was cut from.
+		 * <p>
+		 * It's calculated from the numbers of: (a) voxel vertices on stack faces,
+		 * (b) voxel edges on stack faces, (c) voxel faces on stack faces, (d)
+		 * voxel vertices on stack edges, (e) voxel edges on stack edges, and (f)
+		 * voxel vertices on stack vertices.
+		 * </p>
+		 */
+		public double getEdgeCorrection() {
+			return edgeCorrection;
+		}
+	}
+}
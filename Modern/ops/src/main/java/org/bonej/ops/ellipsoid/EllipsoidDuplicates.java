@@ -0,0 +1,159 @@
+/*-
+ * #%L
+ * Ops created for BoneJ2
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.ops.ellipsoid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Removes ellipsoids that are hidden by the ellipsoids before them.
+ * <p>
+ * Each foreground voxel is assigned the first n ellipsoids, in the order of
+ * the list, that contain the centre of the voxel. Neighbouring seeds often
+ * converge to similar maximal ellipsoids, and a smaller copy that lies within
+ * larger ones is never among the first n at any voxel. Removing such
+ * ellipsoids doesn't change which ellipsoids the voxels are assigned, so the
+ * ellipsoid factor and the other maps stay exactly the same.
+ * </p>
+ * <p>
+ * Like in the assignment, an ellipsoid only counts in the slices z, whose
+ * distance from the centre of the ellipsoid is less than its largest radius.
+ * </p>
+ */
+public final class EllipsoidDuplicates {
+
+	/** The largest number of ellipsoids assigned to each voxel, that the coverage counts can hold */
+	public static final int MAX_ASSIGNED = Byte.MAX_VALUE;
+
+	private EllipsoidDuplicates() {}
+
+	/**
+	 * Returns the ellipsoids without those that are hidden at every foreground
+	 * voxel.
+	 * <p>
+	 * An ellipsoid is removed, if each foreground voxel it contains is also
+	 * contained by at least n of the ellipsoids kept before it. Then the first n
+	 * ellipsoids of every voxel are kept, and they're in the same order. The
+	 * order of the list is preserved, so sort it by descending volume first,
+	 * like when the ellipsoids are assigned.
+	 * </p>
+	 *
+	 * @param ellipsoids ellipsoids in the order they're assigned to voxels.
+	 * @param pixels the slices of the binary image, where non-zero elements are
+	 *          foreground.
+	 * @param width width of the slices.
+	 * @param height height of the slices.
+	 * @param assigned number of ellipsoids assigned to each voxel.
+	 * @return a new list of the ellipsoids that are assigned to some voxel.
+	 * @throws IllegalArgumentException if assigned is not in [1,
+	 *           {@link #MAX_ASSIGNED}].
+	 */
+	public static List<QuickEllipsoid> collapse(
+		final List<QuickEllipsoid> ellipsoids, final byte[][] pixels,
+		final int width, final int height, final int assigned)
+	{
+		if (assigned < 1 || assigned > MAX_ASSIGNED) {
+			throw new IllegalArgumentException("Assigned ellipsoids must be in [1, " +
+				MAX_ASSIGNED + "]");
+		}
+		final byte[][] counts = new byte[pixels.length][width * height];
+		final List<QuickEllipsoid> kept = new ArrayList<>();
+		for (final QuickEllipsoid ellipsoid : ellipsoids) {
+			final Bounds bounds = new Bounds(ellipsoid, width, height, pixels.length);
+			if (isHidden(ellipsoid, bounds, pixels, counts, width, assigned)) {
+				continue;
+			}
+			cover(ellipsoid, bounds, pixels, counts, width, assigned);
+			kept.add(ellipsoid);
+		}
+		return kept;
+	}
+
+	private static boolean isHidden(final QuickEllipsoid ellipsoid,
+		final Bounds bounds, final byte[][] pixels, final byte[][] counts,
+		final int width, final int assigned)
+	{
+		for (int z = bounds.z0; z <= bounds.z1; z++) {
+			for (int y = bounds.y0; y <= bounds.y1; y++) {
+				for (int x = bounds.x0; x <= bounds.x1; x++) {
+					final int i = y * width + x;
+					if (pixels[z][i] != 0 && counts[z][i] < assigned && ellipsoid
+						.contains(x + 0.5, y + 0.5, z + 0.5))
+					{
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	private static void cover(final QuickEllipsoid ellipsoid,
+		final Bounds bounds, final byte[][] pixels, final byte[][] counts,
+		final int width, final int assigned)
+	{
+		for (int z = bounds.z0; z <= bounds.z1; z++) {
+			for (int y = bounds.y0; y <= bounds.y1; y++) {
+				for (int x = bounds.x0; x <= bounds.x1; x++) {
+					final int i = y * width + x;
+					if (pixels[z][i] != 0 && counts[z][i] < assigned && ellipsoid
+						.contains(x + 0.5, y + 0.5, z + 0.5))
+					{
+						counts[z][i]++;
+					}
+				}
+			}
+		}
+	}
+
+	/** The voxels of the image that an ellipsoid can contain */
+	private static final class Bounds {
+
+		private final int x0;
+		private final int x1;
+		private final int y0;
+		private final int y1;
+		private final int z0;
+		private final int z1;
+
+		private Bounds(final QuickEllipsoid ellipsoid, final int width,
+			final int height, final int depth)
+		{
+			final double[] centre = ellipsoid.getCentre();
+			final double radius = ellipsoid.getSortedRadii()[2];
+			x0 = Math.max(0, (int) Math.floor(centre[0] - radius));
+			x1 = Math.min(width - 1, (int) Math.ceil(centre[0] + radius));
+			y0 = Math.max(0, (int) Math.floor(centre[1] - radius));
+			y1 = Math.min(height - 1, (int) Math.ceil(centre[1] + radius));
+			// The slices assigned to the ellipsoid, |centre z - z| < radius
+			z0 = Math.max(0, (int) Math.floor(centre[2] - radius) + 1);
+			z1 = Math.min(depth - 1, (int) Math.ceil(centre[2] + radius) - 1);
+		}
+	}
+}
@@ -30,8 +30,9 @@ package org.bonej.ops.ellipsoid;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 import net.imagej.axis.Axes;
 import net.imagej.axis.DefaultLinearAxis;
@@ -43,17 +44,17 @@ import net.imagej.display.ColorTables;
 import net.imagej.ops.Op;
 import net.imagej.ops.special.function.AbstractBinaryFunctionOp;
 import net.imglib2.Cursor;
+import net.imglib2.FlatIterationOrder;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccess;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
-import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.img.basictypeaccess.array.IntArray;
 import net.imglib2.type.logic.BitType;
-import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 
 @Plugin(name = "Generate Ellipsoid Factor Output", type = Op.class)
 public class EllipsoidFactorOutputGenerator extends
@@ -76,141 +77,237 @@ public class EllipsoidFactorOutputGenerator extends
     @Override
     public List<ImgPlus> calculate(IterableInterval<IntType> idImage, List<QuickEllipsoid> ellipsoids) {
         eFOutputs = new ArrayList<>();
-        calculatePrimaryOutputs(idImage, ellipsoids);
-
-        //volume image must always be calculated
-        eFOutputs.add(createVolumeImage(ellipsoids, idImage));
-        if(showFlinnPlots || showSecondaryImages)
-        {
-            calculateSecondaryOutputs(idImage, ellipsoids);
+        final int[] ids = readIDs(idImage);
+        final long[] dimensions = {idImage.dimension(0), idImage.dimension(1), idImage.dimension(3)};
+        final EllipsoidValues values = new EllipsoidValues(ellipsoids);
+        final FusedOutputs outputs = new FusedOutputs(ids, (int) idImage.dimension(2), dimensions,
+                showSecondaryImages, showFlinnPlots);
+        outputs.map(values);
+
+        eFOutputs.add(createEFImage(outputs.ellipsoidFactors, dimensions));
+        //volume image is only kept if we want it
+        if (showSecondaryImages) {
+            eFOutputs.add(createVolumeImage(outputs.volumes, dimensions, ellipsoids));
         }
-
-        if(idImage.dimension(2)>1)
-        {
-            postProcessWeightedAveraging(idImage);
+        if (showFlinnPlots) {
+            eFOutputs.add(createFlinnPlotImage(values.aBRatios, values.bCRatios));
+            eFOutputs.add(createFlinnPeakPlot(values.aBRatios, values.bCRatios, outputs.peakCounts));
         }
+        if (showSecondaryImages) {
+            eFOutputs.add(createIDImage(ids, idImage, ellipsoids));
 
-        //divide EF-image by volume image (which now contains sum of volumes for each ID)
-        final Cursor<? extends RealType> eFCursor = eFOutputs.get(0).cursor();
-        final Cursor<? extends RealType> vCursor = eFOutputs.get(1).cursor();
-        while(eFCursor.hasNext())
-        {
-            eFCursor.fwd();
-            vCursor.fwd();
+            eFOutputs.add(createRadiusImage(outputs.as, dimensions, values.as, inputName+"_a"));
+            eFOutputs.add(createRadiusImage(outputs.bs, dimensions, values.bs, inputName+"_b"));
+            eFOutputs.add(createRadiusImage(outputs.cs, dimensions, values.cs, inputName+"_c"));
 
-            eFCursor.get().setReal(eFCursor.get().getRealDouble()/vCursor.get().getRealDouble());
+            eFOutputs.add(createAxisRatioImage(outputs.aBRatios, dimensions, inputName+"_a/b"));
+            eFOutputs.add(createAxisRatioImage(outputs.bCRatios, dimensions, inputName+"_b/c"));
         }
-
-        //remove volume image if we don't want it
-        if(!showSecondaryImages)
-        {
-            eFOutputs.remove(1);
-        }
-
         return eFOutputs;
     }
 
-    private void postProcessWeightedAveraging(IterableInterval<IntType> idImage) {
-        Img<IntType> validCounts = ArrayImgs.ints(idImage.dimension(0), idImage.dimension(1), idImage.dimension(3));
-        RandomAccess<IntType> validRandomAccess = validCounts.randomAccess();
-        final Cursor<IntType> cursor = idImage.localizingCursor();
-
-        while(cursor.hasNext())
-        {
-            cursor.fwd();
-            if(cursor.get().getInteger()>=0) {
-                long[] position = new long[4];
-                cursor.localize(position);
-                validRandomAccess.setPosition(new long[]{position[0],position[1],position[3]});
-                validRandomAccess.get().inc();
+    /**
+     * Copies the ID image into a flat array in (x, y, k, z) order.
+     * <p>
+     * The IDs are read exactly once: every output is then computed from this array.
+     * </p>
+     */
+    private static int[] readIDs(final IterableInterval<IntType> idImage) {
+        final int[] ids = new int[(int) idImage.size()];
+        final Cursor<IntType> cursor;
+        if (idImage.iterationOrder() instanceof FlatIterationOrder) {
+            cursor = idImage.cursor();
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = cursor.next().getInteger();
             }
+            return ids;
         }
-
-        eFOutputs.forEach(o -> {
-            if(o.numDimensions()==3) {
-                divideByValidCounts(o, validRandomAccess);
+        cursor = idImage.localizingCursor();
+        final long[] min = Intervals.minAsLongArray(idImage);
+        final long[] dims = Intervals.dimensionsAsLongArray(idImage);
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            long index = 0;
+            for (int d = dims.length - 1; d >= 0; d--) {
+                index = index * dims[d] + cursor.getLongPosition(d) - min[d];
             }
-        });
+            ids[(int) index] = cursor.get().getInteger();
+        }
+        return ids;
     }
 
-    private <T extends RealType<T>> void divideByValidCounts(ImgPlus o, RandomAccess<IntType> validRandomAccess) {
-        final Cursor<T> cursor = o.localizingCursor();
-        while(cursor.hasNext())
-        {
-            cursor.fwd();
-            long[] position = new long[3];
-            cursor.localize(position);
-
-            validRandomAccess.setPosition(position);
-            int denominator = validRandomAccess.get().getInteger();
-            if(denominator>0) cursor.get().setReal(cursor.get().getRealDouble()/denominator);
+    /** Per-ellipsoid values, indexed by ellipsoid ID. */
+    private static final class EllipsoidValues {
+        private final double[] weightedEFs;
+        private final double[] volumes;
+        private final double[] as;
+        private final double[] bs;
+        private final double[] cs;
+        private final double[] aBRatios;
+        private final double[] bCRatios;
+
+        private EllipsoidValues(final List<QuickEllipsoid> ellipsoids) {
+            final int n = ellipsoids.size();
+            weightedEFs = new double[n];
+            volumes = new double[n];
+            as = new double[n];
+            bs = new double[n];
+            cs = new double[n];
+            aBRatios = new double[n];
+            bCRatios = new double[n];
+            IntStream.range(0, n).parallel().forEach(i -> {
+                final QuickEllipsoid ellipsoid = ellipsoids.get(i);
+                final double[] sortedRadii = ellipsoid.getSortedRadii();
+                volumes[i] = ellipsoid.getVolume();
+                weightedEFs[i] = (sortedRadii[0] / sortedRadii[1] - sortedRadii[1] / sortedRadii[2]) * volumes[i];
+                as[i] = sortedRadii[0];
+                bs[i] = sortedRadii[1];
+                cs[i] = sortedRadii[2];
+                aBRatios[i] = sortedRadii[0] / sortedRadii[1];
+                bCRatios[i] = sortedRadii[1] / sortedRadii[2];
+            });
         }
-
-     }
-
-
-    private void calculatePrimaryOutputs(IterableInterval idImage, List<QuickEllipsoid> ellipsoids) {
-        eFOutputs.add(createEFImage(ellipsoids, idImage));
     }
 
+    /**
+     * Flat (x, y, z) output arrays filled in a single parallel pass over the IDs.
+     * <p>
+     * Every voxel averages the values of its valid IDs (ID &ge; 0) over the weighted-average dimension,
+     * and the ellipsoid factor is weighted by volume. Voxels without a valid ID are NaN.
+     * Slabs of z-slices are processed in parallel, and each slab counts its own Flinn peaks,
+     * so that the threads never write to the same element.
+     * </p>
+     */
+    private static final class FusedOutputs {
+        private final int[] ids;
+        private final int nWeighted;
+        private final int sliceSize;
+        private final int nSlices;
+        private final float[] ellipsoidFactors;
+        private final float[] volumes;
+        private final float[] as;
+        private final float[] bs;
+        private final float[] cs;
+        private final float[] aBRatios;
+        private final float[] bCRatios;
+        private final boolean countPeaks;
+        private int[] peakCounts;
+
+        private FusedOutputs(final int[] ids, final int nWeighted, final long[] dimensions,
+                             final boolean secondary, final boolean countPeaks) {
+            this.ids = ids;
+            this.nWeighted = nWeighted;
+            this.countPeaks = countPeaks;
+            sliceSize = (int) (dimensions[0] * dimensions[1]);
+            nSlices = (int) dimensions[2];
+            final int size = sliceSize * nSlices;
+            ellipsoidFactors = new float[size];
+            volumes = new float[size];
+            as = secondary ? new float[size] : null;
+            bs = secondary ? new float[size] : null;
+            cs = secondary ? new float[size] : null;
+            aBRatios = secondary ? new float[size] : null;
+            bCRatios = secondary ? new float[size] : null;
+        }
 
-    private void calculateSecondaryOutputs(IterableInterval idImage, List<QuickEllipsoid> ellipsoids) {
-
-        //radii
-        final double[] as = ellipsoids.parallelStream().mapToDouble(e -> e.getSortedRadii()[0]).toArray();
-        final double[] bs = ellipsoids.parallelStream().mapToDouble(e -> e.getSortedRadii()[1]).toArray();
-        final double[] cs = ellipsoids.parallelStream().mapToDouble(e -> e.getSortedRadii()[2]).toArray();
-
-        //radii ratios
-        final double[] aBRatios = ellipsoids.parallelStream()
-                .mapToDouble(e -> e.getSortedRadii()[0] / e.getSortedRadii()[1]).toArray();
-        final double[] bCRatios = ellipsoids.parallelStream()
-                .mapToDouble(e -> e.getSortedRadii()[1] / e.getSortedRadii()[2]).toArray();
-
-        if (showFlinnPlots) {
-            eFOutputs.add(createFlinnPlotImage(aBRatios, bCRatios));
-            eFOutputs.add(createFlinnPeakPlot(aBRatios, bCRatios, idImage));
+        private void map(final EllipsoidValues values) {
+            final int nSlabs = Math.max(1, Math.min(nSlices, ForkJoinPool.getCommonPoolParallelism() * 4));
+            if (!countPeaks) {
+                IntStream.range(0, nSlabs).parallel().forEach(slab -> mapSlab(slab, nSlabs, values, null));
+                return;
+            }
+            final int nEllipsoids = values.volumes.length;
+            peakCounts = IntStream.range(0, nSlabs).parallel().mapToObj(slab -> {
+                final int[] slabCounts = new int[nEllipsoids];
+                mapSlab(slab, nSlabs, values, slabCounts);
+                return slabCounts;
+            }).reduce(FusedOutputs::add).orElseGet(() -> new int[nEllipsoids]);
         }
 
-        if (showSecondaryImages) {
-            eFOutputs.add(createIDImage(idImage, ellipsoids));
+        private void mapSlab(final int slab, final int nSlabs, final EllipsoidValues values,
+                             final int[] peakCounts) {
+            final int zEnd = (int) ((long) nSlices * (slab + 1) / nSlabs);
+            for (int z = (int) ((long) nSlices * slab / nSlabs); z < zEnd; z++) {
+                mapSlice(z, values, peakCounts);
+            }
+        }
 
-            //add to output list
-            eFOutputs.add(createRadiusImage(as, idImage, inputName+"_a"));
-            eFOutputs.add(createRadiusImage(bs, idImage, inputName+"_b"));
-            eFOutputs.add(createRadiusImage(cs, idImage, inputName+"_c"));
+        private void mapSlice(final int z, final EllipsoidValues values, final int[] peakCounts) {
+            final int idOffset = z * nWeighted * sliceSize;
+            for (int i = 0; i < sliceSize; i++) {
+                final int index = z * sliceSize + i;
+                double ef = 0;
+                double volume = 0;
+                double a = 0;
+                double b = 0;
+                double c = 0;
+                double aB = 0;
+                double bC = 0;
+                int valid = 0;
+                for (int k = 0; k < nWeighted; k++) {
+                    final int id = ids[idOffset + k * sliceSize + i];
+                    if (id < 0) {
+                        continue;
+                    }
+                    valid++;
+                    ef += values.weightedEFs[id];
+                    volume += values.volumes[id];
+                    if (as != null) {
+                        a += values.as[id];
+                        b += values.bs[id];
+                        c += values.cs[id];
+                        aB += values.aBRatios[id];
+                        bC += values.bCRatios[id];
+                    }
+                    if (k == 0 && peakCounts != null) {
+                        peakCounts[id]++;
+                    }
+                }
+                if (valid == 0) {
+                    ellipsoidFactors[index] = Float.NaN;
+                    volumes[index] = Float.NaN;
+                    if (as != null) {
+                        as[index] = Float.NaN;
+                        bs[index] = Float.NaN;
+                        cs[index] = Float.NaN;
+                        aBRatios[index] = Float.NaN;
+                        bCRatios[index] = Float.NaN;
+                    }
+                    continue;
+                }
+                // the averaging denominators cancel out in the volume weighted EF
+                ellipsoidFactors[index] = (float) (ef / volume);
+                volumes[index] = (float) (volume / valid);
+                if (as != null) {
+                    as[index] = (float) (a / valid);
+                    bs[index] = (float) (b / valid);
+                    cs[index] = (float) (c / valid);
+                    aBRatios[index] = (float) (aB / valid);
+                    bCRatios[index] = (float) (bC / valid);
+                }
+            }
+        }
 
-            eFOutputs.add(createAxisRatioImage(aBRatios, idImage, inputName+"_a/b"));
-            eFOutputs.add(createAxisRatioImage(bCRatios, idImage, inputName+"_b/c"));
+        private static int[] add(final int[] a, final int[] b) {
+            for (int i = 0; i < a.length; i++) {
+                a[i] += b[i];
+            }
+            return a;
         }
     }
 
     //region: create outputs
-    private ImgPlus createIDImage(IterableInterval idImage, List<QuickEllipsoid> ellipsoids) {
-        final ArrayImg<IntType, IntArray> ints = ArrayImgs.ints(idImage.dimension(0), idImage.dimension(1), idImage.dimension(2),idImage.dimension(3));
-        final Cursor<IntType> cursor = idImage.localizingCursor();
-        final Cursor<IntType> cursor1 = ints.localizingCursor();
-        while(cursor.hasNext())
-        {
-            cursor.fwd();
-            cursor1.fwd();
-            final long[] position = new long[4];
-            cursor.localize(position);
-            final int integer = cursor.get().getInteger();
-            cursor1.get().set(integer);
-        }
+    private ImgPlus createIDImage(final int[] ids, IterableInterval idImage, List<QuickEllipsoid> ellipsoids) {
+        final ArrayImg<IntType, IntArray> ints = ArrayImgs.ints(ids, idImage.dimension(0), idImage.dimension(1),
+                idImage.dimension(2), idImage.dimension(3));
         ImgPlus eIdImage = new ImgPlus<>(ints,inputName+"_ID");
         eIdImage.setChannelMaximum(0, ellipsoids.size() / 10.0f);
         eIdImage.setChannelMinimum(0, -1.0f);
         return eIdImage;
     }
 
-    private ImgPlus<FloatType> createEFImage(final Collection<QuickEllipsoid> ellipsoids,
-                                             final IterableInterval idImage) {
-        final Img<FloatType> ellipsoidFactorImage = createNaNImg(idImage);
-        final double[] ellipsoidFactors = ellipsoids.parallelStream()
-                .mapToDouble(EllipsoidFactorOutputGenerator::computeWeightedEllipsoidFactor).toArray();
-        mapValuesToImage(ellipsoidFactors, idImage, ellipsoidFactorImage);
+    private ImgPlus<FloatType> createEFImage(final float[] ellipsoidFactors, final long[] dimensions) {
+        final Img<FloatType> ellipsoidFactorImage = ArrayImgs.floats(ellipsoidFactors, dimensions);
         final ImgPlus<FloatType> efImage = new ImgPlus<>(ellipsoidFactorImage, inputName+"_EF");
         efImage.setChannelMaximum(0,1);
         efImage.setChannelMinimum(0, -1);
@@ -219,30 +316,26 @@ public class EllipsoidFactorOutputGenerator extends
         return efImage;
     }
 
-    private ImgPlus createRadiusImage(double[] radii, IterableInterval idImage, String name) {
-        final Img<FloatType> aImg = createNaNImg(idImage);
-        mapValuesToImage(radii, idImage, aImg);
-        Arrays.sort(radii);
+    private ImgPlus createRadiusImage(final float[] pixels, final long[] dimensions, final double[] radii,
+                                      String name) {
+        final Img<FloatType> aImg = ArrayImgs.floats(pixels, dimensions);
         ImgPlus radiusImage = new ImgPlus(aImg,name);
-        radiusImage.setChannelMaximum(0, radii[radii.length-1]);
+        radiusImage.setChannelMaximum(0, Arrays.stream(radii).max().orElse(0.0));
         radiusImage.setChannelMinimum(0, 0.0f);
         return radiusImage;
     }
 
-    private ImgPlus createAxisRatioImage(final double[] ratios, final IterableInterval idImage, String name) {
-        final Img<FloatType> axisRatioImage = createNaNImg(idImage);
-        mapValuesToImage(ratios, idImage, axisRatioImage);
+    private ImgPlus createAxisRatioImage(final float[] ratios, final long[] dimensions, String name) {
+        final Img<FloatType> axisRatioImage = ArrayImgs.floats(ratios, dimensions);
         ImgPlus aToBAxisRatioImage = new ImgPlus(axisRatioImage,name);
         aToBAxisRatioImage.setChannelMaximum(0, 1.0f);
         aToBAxisRatioImage.setChannelMinimum(0, 0.0f);
         return aToBAxisRatioImage;
     }
 
-    private ImgPlus createVolumeImage(final List<QuickEllipsoid> ellipsoids,
-                                   final IterableInterval idImage) {
-        final Img<FloatType> volumeImage = createNaNImg(idImage);
-        final double[] volumes = ellipsoids.parallelStream().mapToDouble(QuickEllipsoid::getVolume).toArray();
-        mapValuesToImage(volumes, idImage, volumeImage);
+    private ImgPlus createVolumeImage(final float[] volumes, final long[] dimensions,
+                                      final List<QuickEllipsoid> ellipsoids) {
+        final Img<FloatType> volumeImage = ArrayImgs.floats(volumes, dimensions);
         ImgPlus vImage = new ImgPlus(volumeImage,inputName+"_volume");
         vImage.setChannelMaximum(0, ellipsoids.get(0).getVolume());
         vImage.setChannelMinimum(0, -1.0f);
@@ -250,30 +343,21 @@ public class EllipsoidFactorOutputGenerator extends
     }
 
     private ImgPlus createFlinnPeakPlot(final double[] aBRatios, final double[] bCRatios,
-                                        final IterableInterval ellipsoidIDs) {
-        Img<FloatType> flinnPeakPlot = ArrayImgs.floats(FLINN_PLOT_DIMENSION, FLINN_PLOT_DIMENSION);
-        final RandomAccess<FloatType> flinnPeakPlotRA = flinnPeakPlot.randomAccess();
-        final Cursor<IntType> idCursor = ellipsoidIDs.localizingCursor();
-        final long[] position = new long[4];
+                                        final int[] peakCounts) {
+        final float[] pixels = new float[(int) (FLINN_PLOT_DIMENSION * FLINN_PLOT_DIMENSION)];
         float maxPixelCount = 0;
-        while (idCursor.hasNext()) {
-            idCursor.fwd();
-            if (idCursor.get().getInteger() < 0) {
+        for (int id = 0; id < peakCounts.length; id++) {
+            if (peakCounts[id] == 0) {
                 continue;
             }
-            idCursor.localize(position);
-            if(position[2]>0) break;
-
-            final int localMaxEllipsoidID = idCursor.get().getInteger();
-            final long x = Math.round(bCRatios[localMaxEllipsoidID] * (FLINN_PLOT_DIMENSION - 1));
-            final long y = Math.round(aBRatios[localMaxEllipsoidID] * (FLINN_PLOT_DIMENSION - 1));
-            flinnPeakPlotRA.setPosition(new long[]{x, FLINN_PLOT_DIMENSION - y - 1});
-            final float currentValue = flinnPeakPlotRA.get().getRealFloat();
-            final float newValue = currentValue + 1.0f;
-            flinnPeakPlotRA.get().set(newValue);
-            if (newValue > maxPixelCount)
-            	maxPixelCount = newValue;
+            final long x = Math.round(bCRatios[id] * (FLINN_PLOT_DIMENSION - 1));
+            final long y = Math.round(aBRatios[id] * (FLINN_PLOT_DIMENSION - 1));
+            final int index = (int) ((FLINN_PLOT_DIMENSION - y - 1) * FLINN_PLOT_DIMENSION + x);
+            pixels[index] += peakCounts[id];
+            if (pixels[index] > maxPixelCount)
+                maxPixelCount = pixels[index];
         }
+        Img<FloatType> flinnPeakPlot = ArrayImgs.floats(pixels, FLINN_PLOT_DIMENSION, FLINN_PLOT_DIMENSION);
 
         ImgPlus flinnPeakPlotImage = new ImgPlus<>(flinnPeakPlot, inputName+"_Flinn_peak_plot");
 
@@ -320,40 +404,4 @@ public class EllipsoidFactorOutputGenerator extends
     }
 
     //endregion
-
-    //region: helper methods
-    private static double computeWeightedEllipsoidFactor(final QuickEllipsoid ellipsoid) {
-        final double[] sortedRadii = ellipsoid.getSortedRadii();
-        return (sortedRadii[0] / sortedRadii[1] - sortedRadii[1] / sortedRadii[2])*ellipsoid.getVolume();
-    }
-
-    //TODO avoid use of RandomAccess if cursor iterates in same order
-    private void mapValuesToImage(final double[] values, final IterableInterval<IntType> idImage,
-                                  final Img<FloatType> image) {
-        final RandomAccess<FloatType> randomAccess = image.randomAccess();
-        idImage.localizingCursor();
-        final Cursor<IntType> id = idImage.localizingCursor();
-        final long[] position = new long[4];
-        while (id.hasNext()) {
-            id.fwd();
-            if (id.get().getInteger() < 0) {
-                continue;
-            }
-            id.localize(position);
-            double value = values[id.get().getInteger()];
-            randomAccess.setPosition(new long[]{position[0],position[1],position[3]});
-            if(!Double.isNaN(randomAccess.get().getRealDouble())) {
-                value += randomAccess.get().getRealDouble();
-            }
-            randomAccess.get().setReal(value);
-        }
-    }
-
-    private Img<FloatType> createNaNImg(IterableInterval idImage) {
-        final ArrayImg<FloatType, FloatArray> img = ArrayImgs.floats(idImage.dimension(0),
-                idImage.dimension(1), idImage.dimension(3));
-        img.forEach(e -> e.setReal(Float.NaN));
-        return img;
-    }
-    //endregion
 }
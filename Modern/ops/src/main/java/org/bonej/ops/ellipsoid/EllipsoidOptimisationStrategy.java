@@ -29,6 +29,7 @@
 package org.bonej.ops.ellipsoid;
 
 import java.util.*;
+import java.util.stream.IntStream;
 
 import org.bonej.ops.ellipsoid.constrain.EllipsoidConstrainStrategy;
 import org.joml.Vector3d;
@@ -67,6 +68,9 @@ public class EllipsoidOptimisationStrategy extends AbstractBinaryFunctionOp<byte
 	@Parameter(required = false)
 	private OptimisationParameters algorithmParameters = new OptimisationParameters(0.435,100,1,100,1.73);
 	double stackVolume;
+	/** Maximum iterations without improvement when refining a coarse ellipsoid at full resolution. */
+	private static final int REFINEMENT_ITERATIONS = 10;
+	private volatile CoarseLevel coarseLevel;
 
 
 	private static double[] threeWayShuffle() {
@@ -394,6 +398,26 @@ public class EllipsoidOptimisationStrategy extends AbstractBinaryFunctionOp<byte
 
 	@Override
 	public QuickEllipsoid calculate(byte[][] pixels, Vector3d seedPoint) {
+		if (algorithmParameters.downsampling > 1) {
+			final int f = algorithmParameters.downsampling;
+			final CoarseLevel level = getCoarseLevel(pixels);
+			final Vector3d coarseSeed = new Vector3d(seedPoint).div(f);
+			final QuickEllipsoid coarse = level.strategy.calculate(level.pixels, coarseSeed);
+			if (coarse != null) {
+				final QuickEllipsoid refined = refine(coarse, pixels, seedPoint);
+				if (refined != null) {
+					return refined;
+				}
+			}
+			// thin structures can vanish from the coarse image, optimise them at full resolution
+		}
+		return optimise(pixels, seedPoint);
+	}
+
+	/**
+	 * Optimises an ellipsoid at full resolution, starting from a small sphere at the seed point.
+	 */
+	private QuickEllipsoid optimise(final byte[][] pixels, final Vector3d seedPoint) {
 
 		final long start = System.currentTimeMillis();
 
@@ -445,6 +469,55 @@ public class EllipsoidOptimisationStrategy extends AbstractBinaryFunctionOp<byte
 
 		volumeHistory.add(ellipsoid.getVolume());
 
+		return iterate(ellipsoid, seedPoint, centre, contactPoints, volumeHistory, pixels, w, h, d,
+				algorithmParameters.maxIterations, start);
+	}
+
+	/**
+	 * Refines an ellipsoid optimised on the downsampled image at full resolution.
+	 * <p>
+	 * The coarse ellipsoid is scaled up, shrunk until it has no contacts, and then goes through a few
+	 * optimisation iterations.
+	 * </p>
+	 *
+	 * @return the refined ellipsoid, or null if it is invalid at full resolution.
+	 */
+	private QuickEllipsoid refine(final QuickEllipsoid coarse, final byte[][] pixels, final Vector3d seedPoint) {
+		final long start = System.currentTimeMillis();
+
+		final int w = (int) imageDimensions[0];
+		final int h = (int) imageDimensions[1];
+		final int d = (int) imageDimensions[2];
+		stackVolume = w * h * d;
+
+		final int f = algorithmParameters.downsampling;
+		final double[] radii = coarse.getRadii();
+		final double[] coarseCentre = coarse.getCentre();
+		final QuickEllipsoid ellipsoid = new QuickEllipsoid(new double[]{radii[0] * f, radii[1] * f, radii[2] * f},
+				new double[]{coarseCentre[0] * f, coarseCentre[1] * f, coarseCentre[2] * f}, coarse.getRotation());
+		final double[] centre = {seedPoint.get(0), seedPoint.get(1), seedPoint.get(2)};
+
+		final ArrayList<double[]> contactPoints = new ArrayList<>();
+		shrinkToFit(ellipsoid, contactPoints, pixels, w, h, d);
+		if (isInvalid(ellipsoid, w, h, d)) {
+			return null;
+		}
+
+		final List<Double> volumeHistory = new ArrayList<>();
+		volumeHistory.add(ellipsoid.getVolume());
+		return iterate(ellipsoid, seedPoint, centre, contactPoints, volumeHistory, pixels, w, h, d,
+				Math.min(REFINEMENT_ITERATIONS, algorithmParameters.maxIterations), start);
+	}
+
+	/**
+	 * Goes through cycles of contraction, wiggling and dilation until the ellipsoid hasn't grown in
+	 * maxIterations.
+	 *
+	 * @return the locally maximal ellipsoid, or null if it became invalid.
+	 */
+	private QuickEllipsoid iterate(QuickEllipsoid ellipsoid, final Vector3d seedPoint, final double[] centre,
+			final ArrayList<double[]> contactPoints, final List<Double> volumeHistory, final byte[][] pixels,
+			final int w, final int h, final int d, final int maxIterations, final long start) {
 		// until ellipsoid is totally jammed within the structure, go through
 		// cycles of contraction, wiggling, dilation
 		// goal is maximal inscribed ellipsoid, maximal being defined by volume
@@ -455,8 +528,8 @@ public class EllipsoidOptimisationStrategy extends AbstractBinaryFunctionOp<byte
 		// alternately try each axis
 		int totalIterations = 0;
 		int noImprovementCount = 0;
-		final int absoluteMaxIterations = algorithmParameters.maxIterations * 10;
-		while (totalIterations < absoluteMaxIterations && noImprovementCount < algorithmParameters.maxIterations) {
+		final int absoluteMaxIterations = maxIterations * 10;
+		while (totalIterations < absoluteMaxIterations && noImprovementCount < maxIterations) {
 
 			// rotate a little bit
 			constrainStrategy.preConstrain(ellipsoid, seedPoint);
@@ -572,6 +645,70 @@ public class EllipsoidOptimisationStrategy extends AbstractBinaryFunctionOp<byte
 		return ellipsoid;
 	}
 
+	private CoarseLevel getCoarseLevel(final byte[][] pixels) {
+		CoarseLevel level = coarseLevel;
+		if (level == null || level.source != pixels) {
+			synchronized (this) {
+				level = coarseLevel;
+				if (level == null || level.source != pixels) {
+					level = new CoarseLevel(pixels);
+					coarseLevel = level;
+				}
+			}
+		}
+		return level;
+	}
+
+	/**
+	 * The downsampled image, and a strategy that optimises ellipsoids in it.
+	 * <p>
+	 * A coarse pixel is foreground only if all the pixels it covers are, so that coarse ellipsoids stay
+	 * inside the full resolution foreground. Distances in the parameters are scaled to coarse pixels.
+	 * </p>
+	 */
+	private final class CoarseLevel {
+		private final byte[][] source;
+		private final byte[][] pixels;
+		private final EllipsoidOptimisationStrategy strategy;
+
+		private CoarseLevel(final byte[][] source) {
+			final int f = algorithmParameters.downsampling;
+			final int w = (int) imageDimensions[0];
+			final int h = (int) imageDimensions[1];
+			final int d = (int) imageDimensions[2];
+			final int cw = (w + f - 1) / f;
+			final int ch = (h + f - 1) / f;
+			final int cd = (d + f - 1) / f;
+			this.source = source;
+			pixels = new byte[cd][];
+			IntStream.range(0, cd).parallel().forEach(cz -> pixels[cz] = downsample(source, w, h, d, f, cw, ch, cz));
+			strategy = new EllipsoidOptimisationStrategy();
+			strategy.imageDimensions = new long[]{cw, ch, cd};
+			strategy.logService = logService;
+			strategy.algorithmParameters = new OptimisationParameters(algorithmParameters.vectorIncrement,
+					algorithmParameters.nVectors, algorithmParameters.contactSensitivity,
+					algorithmParameters.maxIterations, algorithmParameters.maxDrift / f);
+		}
+	}
+
+	private static byte[] downsample(final byte[][] pixels, final int w, final int h, final int d, final int f,
+			final int cw, final int ch, final int cz) {
+		final byte[] slice = new byte[cw * ch];
+		Arrays.fill(slice, (byte) -1);
+		for (int z = cz * f; z < Math.min(d, (cz + 1) * f); z++) {
+			final byte[] plane = pixels[z];
+			for (int y = 0; y < h; y++) {
+				final int row = (y / f) * cw;
+				for (int x = 0; x < w; x++) {
+					if (plane[y * w + x] != -1) {
+						slice[row + x / f] = 0;
+					}
+				}
+			}
+		}
+		return slice;
+	}
+
 	private void orientAxes(QuickEllipsoid ellipsoid, ArrayList<double[]> contactPoints) {
 		// find the mean unit vector pointing to the points of contact from the
 		// centre
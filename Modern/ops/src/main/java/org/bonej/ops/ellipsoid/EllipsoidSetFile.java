@@ -0,0 +1,301 @@
+/*-
+ * #%L
+ * Ops created for BoneJ2
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.ops.ellipsoid;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.joml.Vector3d;
+import org.joml.Vector3dc;
+
+/**
+ * Saves and loads sets of optimised ellipsoids in a compact binary format.
+ * <p>
+ * A file starts with a header, and is followed by any number of sets. Each
+ * set is appended as one length-prefixed block: the seed points, then the
+ * centre, radii and rotation of each ellipsoid as doubles. A block left
+ * incomplete by an interrupted write is ignored when the file is read.
+ * </p>
+ * <p>
+ * The sets are meant to be cached by a {@link #key} of the input image and
+ * the parameters that affect optimisation, so that re-running with different
+ * output options can skip optimisation.
+ * </p>
+ */
+public final class EllipsoidSetFile {
+
+	private static final int MAGIC = 0x424A4546;
+	private static final int VERSION = 1;
+
+	private EllipsoidSetFile() {}
+
+	/**
+	 * Optimised ellipsoids, and the seed points they were optimised from.
+	 */
+	public static final class EllipsoidSet {
+		public final List<Vector3dc> seeds;
+		public final List<QuickEllipsoid> ellipsoids;
+
+		public EllipsoidSet(final List<? extends Vector3dc> seeds,
+			final List<QuickEllipsoid> ellipsoids)
+		{
+			this.seeds = Collections.unmodifiableList(new ArrayList<>(seeds));
+			this.ellipsoids = Collections.unmodifiableList(new ArrayList<>(
+				ellipsoids));
+		}
+	}
+
+	/**
+	 * Appends a set to the end of the file, and creates the file if needed.
+	 * <p>
+	 * An incomplete block at the end of the file is overwritten.
+	 * </p>
+	 *
+	 * @param file path of the file.
+	 * @param set the seeds and ellipsoids to save.
+	 * @throws IOException if the file cannot be written, or it is not an
+	 *           ellipsoid set file.
+	 */
+	public static void append(final Path file, final EllipsoidSet set)
+		throws IOException
+	{
+		final Path parent = file.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		final byte[] block = toBytes(set);
+		try (final FileChannel channel = FileChannel.open(file,
+			StandardOpenOption.CREATE, StandardOpenOption.READ,
+			StandardOpenOption.WRITE))
+		{
+			final long end = endOfCompleteBlocks(channel, file);
+			channel.truncate(end);
+			channel.position(end);
+			final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES +
+				block.length);
+			buffer.putInt(block.length).put(block).flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Reads all the complete sets in the file.
+	 *
+	 * @param file path of the file.
+	 * @return the sets in the order they were appended, or an empty list if the
+	 *         file doesn't exist.
+	 * @throws IOException if the file cannot be read, or it is not an ellipsoid
+	 *           set file.
+	 */
+	public static List<EllipsoidSet> read(final Path file) throws IOException {
+		final List<EllipsoidSet> sets = new ArrayList<>();
+		if (!Files.exists(file)) {
+			return sets;
+		}
+		try (final DataInputStream input = new DataInputStream(
+			new BufferedInputStream(Files.newInputStream(file))))
+		{
+			if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+				throw new IOException("Not an ellipsoid set file: " + file);
+			}
+			while (true) {
+				final byte[] block;
+				try {
+					final int blockLength = input.readInt();
+					if (blockLength < 0) {
+						break;
+					}
+					block = new byte[blockLength];
+					input.readFully(block);
+				}
+				catch (final EOFException e) {
+					// end of file, or an incomplete block
+					break;
+				}
+				sets.add(readSet(block));
+			}
+		}
+		return sets;
+	}
+
+	/**
+	 * Creates a key that identifies ellipsoids optimised in the given image with
+	 * the given settings.
+	 *
+	 * @param pixels the binary image as planes of bytes.
+	 * @param dimensions dimensions of the image.
+	 * @param parameters the optimisation parameters.
+	 * @param seedingOptions any other settings that affect the seeds.
+	 * @return a hexadecimal SHA-256 hash.
+	 */
+	public static String key(final byte[][] pixels, final long[] dimensions,
+		final OptimisationParameters parameters, final double... seedingOptions)
+	{
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (final NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+		final StringBuilder settings = new StringBuilder();
+		for (final long dimension : dimensions) {
+			settings.append(dimension).append(',');
+		}
+		settings.append(parameters.vectorIncrement).append(',').append(
+			parameters.nVectors).append(',').append(parameters.contactSensitivity)
+			.append(',').append(parameters.maxIterations).append(',').append(
+				parameters.maxDrift).append(',').append(parameters.downsampling);
+		for (final double option : seedingOptions) {
+			settings.append(',').append(option);
+		}
+		digest.update(settings.toString().getBytes(StandardCharsets.UTF_8));
+		for (final byte[] plane : pixels) {
+			digest.update(plane);
+		}
+		final StringBuilder hex = new StringBuilder();
+		for (final byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Returns the position after the last complete block, and writes the header
+	 * if the file is empty.
+	 */
+	private static long endOfCompleteBlocks(final FileChannel channel,
+		final Path file) throws IOException
+	{
+		final ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+		if (channel.size() < header.capacity()) {
+			header.putInt(MAGIC).putInt(VERSION).flip();
+			channel.truncate(0);
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			return header.capacity();
+		}
+		channel.read(header, 0);
+		header.flip();
+		if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+			throw new IOException("Not an ellipsoid set file: " + file);
+		}
+		final ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+		long position = header.capacity();
+		while (position + Integer.BYTES <= channel.size()) {
+			length.clear();
+			channel.read(length, position);
+			length.flip();
+			final int blockLength = length.getInt();
+			final long next = position + Integer.BYTES + blockLength;
+			if (blockLength < 0 || next > channel.size()) {
+				break;
+			}
+			position = next;
+		}
+		return position;
+	}
+
+	private static byte[] toBytes(final EllipsoidSet set) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (final DataOutputStream output = new DataOutputStream(bytes)) {
+			output.writeInt(set.seeds.size());
+			for (final Vector3dc seed : set.seeds) {
+				output.writeDouble(seed.x());
+				output.writeDouble(seed.y());
+				output.writeDouble(seed.z());
+			}
+			output.writeInt(set.ellipsoids.size());
+			for (final QuickEllipsoid ellipsoid : set.ellipsoids) {
+				writeDoubles(output, ellipsoid.getCentre());
+				writeDoubles(output, ellipsoid.getRadii());
+				for (final double[] row : ellipsoid.getRotation()) {
+					writeDoubles(output, row);
+				}
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	private static EllipsoidSet readSet(final byte[] block) throws IOException {
+		final DataInputStream input = new DataInputStream(
+			new ByteArrayInputStream(block));
+		final int nSeeds = input.readInt();
+		final List<Vector3d> seeds = new ArrayList<>(nSeeds);
+		for (int i = 0; i < nSeeds; i++) {
+			seeds.add(new Vector3d(input.readDouble(), input.readDouble(), input
+				.readDouble()));
+		}
+		final int nEllipsoids = input.readInt();
+		final List<QuickEllipsoid> ellipsoids = new ArrayList<>(nEllipsoids);
+		for (int i = 0; i < nEllipsoids; i++) {
+			final double[] centre = readDoubles(input);
+			final double[] radii = readDoubles(input);
+			final double[][] rotation = { readDoubles(input), readDoubles(input),
+				readDoubles(input) };
+			ellipsoids.add(new QuickEllipsoid(radii, centre, rotation));
+		}
+		return new EllipsoidSet(seeds, ellipsoids);
+	}
+
+	private static double[] readDoubles(final DataInputStream input)
+		throws IOException
+	{
+		return new double[] { input.readDouble(), input.readDouble(), input
+			.readDouble() };
+	}
+
+	private static void writeDoubles(final DataOutputStream output,
+		final double[] values) throws IOException
+	{
+		for (final double value : values) {
+			output.writeDouble(value);
+		}
+	}
+}
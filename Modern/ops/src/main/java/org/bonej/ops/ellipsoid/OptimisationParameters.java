@@ -39,12 +39,25 @@ public class OptimisationParameters {
     public final int contactSensitivity;
     public final int maxIterations;
     public final double maxDrift;
+    /**
+     * Factor by which the image is downsampled for a coarse first optimisation.
+     * 1 means that ellipsoids are optimised at full resolution only.
+     */
+    public final int downsampling;
 
     public OptimisationParameters(double inc, int n, int cs, int maxIt, double maxDr){
+        this(inc, n, cs, maxIt, maxDr, 1);
+    }
+
+    public OptimisationParameters(double inc, int n, int cs, int maxIt, double maxDr, int downsampling){
+        if (downsampling < 1) {
+            throw new IllegalArgumentException("Downsampling must be at least 1");
+        }
         vectorIncrement = inc;
         nVectors = n;
         contactSensitivity = cs;
         maxIterations = maxIt;
         maxDrift = maxDr;
+        this.downsampling = downsampling;
     }
 }
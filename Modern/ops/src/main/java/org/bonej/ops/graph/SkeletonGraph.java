@@ -0,0 +1,916 @@
+/*-
+ * #%L
+ * Ops created for BoneJ2
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.ops.graph;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * A compact graph of a skeleton, stored in primitive arrays.
+ * <p>
+ * The vertices and edges are classified like in AnalyzeSkeleton: skeleton
+ * voxels with fewer than two 26-neighbours are end points, voxels with more
+ * than two are junctions, and the rest are slabs. Each end point, and each
+ * 26-connected cluster of junction voxels is a vertex, and each chain of slab
+ * voxels between vertices is an edge. Like in AnalyzeSkeleton, the first
+ * voxel of a ring of slab voxels without vertices becomes a vertex, and the
+ * rest of the ring a loop edge.
+ * </p>
+ * <p>
+ * Instead of objects for each point, the voxels are packed into longs, and
+ * stored in compressed sparse row (CSR) arrays: the points of vertex v are at
+ * [pointOffsets[v], pointOffsets[v + 1]), the slabs of edge e at
+ * [slabOffsets[e], slabOffsets[e + 1]), and the edges incident to v at
+ * [branchOffsets[v], branchOffsets[v + 1]). A loop edge is incident twice to
+ * its vertex, so the number of branches is the valence of the vertex.
+ * </p>
+ */
+public final class SkeletonGraph {
+
+	private static final int BITS = 21;
+	private static final long MASK = (1L << BITS) - 1;
+	private static final byte END_POINT = 1;
+	private static final byte SLAB = 2;
+	private static final byte JUNCTION = 3;
+	private static final byte TRACED_SLAB = 4;
+
+	private final int[] pointOffsets;
+	private final long[] points;
+	private final int[] v1;
+	private final int[] v2;
+	private final double[] lengths;
+	private final int[] slabOffsets;
+	private final long[] slabs;
+	private final int[] branchOffsets;
+	private final int[] branches;
+	private final double[] centroids;
+
+	SkeletonGraph(final int[] pointOffsets, final long[] points, final int[] v1,
+		final int[] v2, final double[] lengths, final int[] slabOffsets,
+		final long[] slabs)
+	{
+		this.pointOffsets = pointOffsets;
+		this.points = points;
+		this.v1 = v1;
+		this.v2 = v2;
+		this.lengths = lengths;
+		this.slabOffsets = slabOffsets;
+		this.slabs = slabs;
+		final int vertices = pointOffsets.length - 1;
+		branchOffsets = new int[vertices + 1];
+		for (int e = 0; e < v1.length; e++) {
+			branchOffsets[v1[e] + 1]++;
+			branchOffsets[v2[e] + 1]++;
+		}
+		for (int v = 0; v < vertices; v++) {
+			branchOffsets[v + 1] += branchOffsets[v];
+		}
+		branches = new int[2 * v1.length];
+		final int[] next = Arrays.copyOf(branchOffsets, vertices);
+		for (int e = 0; e < v1.length; e++) {
+			branches[next[v1[e]]++] = e;
+			branches[next[v2[e]]++] = e;
+		}
+		centroids = new double[3 * vertices];
+		for (int v = 0; v < vertices; v++) {
+			final int n = pointOffsets[v + 1] - pointOffsets[v];
+			for (int i = pointOffsets[v]; i < pointOffsets[v + 1]; i++) {
+				centroids[3 * v] += x(points[i]);
+				centroids[3 * v + 1] += y(points[i]);
+				centroids[3 * v + 2] += z(points[i]);
+			}
+			for (int d = 0; d < 3; d++) {
+				centroids[3 * v + d] /= n;
+			}
+		}
+	}
+
+	/**
+	 * Builds the graph of a skeleton image.
+	 *
+	 * @param pixels the slices of a binary 8-bit skeleton. Non-zero pixels are
+	 *          foreground.
+	 * @param width width of the slices.
+	 * @param height height of the slices.
+	 * @param spacing the calibrated (x, y, z) size of a voxel, for the edge
+	 *          lengths.
+	 * @return graph of all the skeletons in the image.
+	 * @throws IllegalArgumentException if the slices don't match the
+	 *           dimensions, or the image is too large to pack the coordinates.
+	 */
+	public static SkeletonGraph build(final byte[][] pixels, final int width,
+		final int height, final double[] spacing)
+	{
+		if (Math.max(width, Math.max(height, pixels.length)) > MASK) {
+			throw new IllegalArgumentException("Image is too large");
+		}
+		for (final byte[] plane : pixels) {
+			if (plane.length != width * height) {
+				throw new IllegalArgumentException(
+					"Slices don't match the dimensions");
+			}
+		}
+		return new Builder(pixels, width, height, spacing).build();
+	}
+
+	public int getVertexCount() {
+		return pointOffsets.length - 1;
+	}
+
+	public int getEdgeCount() {
+		return v1.length;
+	}
+
+	public int getV1(final int edge) {
+		return v1[edge];
+	}
+
+	public int getV2(final int edge) {
+		return v2[edge];
+	}
+
+	/**
+	 * Returns the vertex at the other end of an edge.
+	 *
+	 * @param edge index of an edge.
+	 * @param vertex index of one of the vertices of the edge.
+	 * @return the other vertex, or the same vertex if the edge is a loop.
+	 */
+	public int getOpposite(final int edge, final int vertex) {
+		return v1[edge] == vertex ? v2[edge] : v1[edge];
+	}
+
+	/** Returns the calibrated length of the path from vertex to vertex */
+	public double getLength(final int edge) {
+		return lengths[edge];
+	}
+
+	public int getSlabCount(final int edge) {
+		return slabOffsets[edge + 1] - slabOffsets[edge];
+	}
+
+	/**
+	 * Returns the coordinates of a slab voxel of an edge.
+	 *
+	 * @param edge index of an edge.
+	 * @param i index of the slab voxel, in order from the first vertex.
+	 * @return (x, y, z) coordinates of the voxel.
+	 */
+	public int[] getSlab(final int edge, final int i) {
+		return unpack(slabs[slabOffsets[edge] + i]);
+	}
+
+	public int getPointCount(final int vertex) {
+		return pointOffsets[vertex + 1] - pointOffsets[vertex];
+	}
+
+	/** Returns the (x, y, z) coordinates of a voxel of a vertex */
+	public int[] getPoint(final int vertex, final int i) {
+		return unpack(points[pointOffsets[vertex] + i]);
+	}
+
+	/** Returns the (x, y, z) centroid of the voxels of a vertex, in pixels */
+	public double[] getCentroid(final int vertex) {
+		return Arrays.copyOfRange(centroids, 3 * vertex, 3 * vertex + 3);
+	}
+
+	/** Returns the number of edge ends at a vertex */
+	public int getValence(final int vertex) {
+		return branchOffsets[vertex + 1] - branchOffsets[vertex];
+	}
+
+	/**
+	 * Returns an edge incident to a vertex.
+	 *
+	 * @param vertex index of a vertex.
+	 * @param i index of the branch, less than the valence of the vertex.
+	 * @return index of the edge.
+	 */
+	public int getBranch(final int vertex, final int i) {
+		return branches[branchOffsets[vertex] + i];
+	}
+
+	/**
+	 * Labels the connected components of the graph.
+	 *
+	 * @return component label of each vertex, from 0 on, in the order of the
+	 *         vertices.
+	 */
+	public int[] labelComponents() {
+		final int[] parents = IntStream.range(0, getVertexCount()).toArray();
+		for (int e = 0; e < v1.length; e++) {
+			union(parents, v1[e], v2[e]);
+		}
+		final int[] labels = new int[parents.length];
+		final int[] rootLabels = new int[parents.length];
+		Arrays.fill(rootLabels, -1);
+		int n = 0;
+		for (int v = 0; v < parents.length; v++) {
+			final int root = find(parents, v);
+			if (rootLabels[root] < 0) {
+				rootLabels[root] = n++;
+			}
+			labels[v] = rootLabels[root];
+		}
+		return labels;
+	}
+
+	/**
+	 * Returns the subgraph of the connected component with the most vertices.
+	 * <p>
+	 * Ties go to the component found first.
+	 * </p>
+	 *
+	 * @return the largest component, or this graph if it has no vertices.
+	 */
+	public SkeletonGraph getLargestComponent() {
+		final int[] labels = labelComponents();
+		if (labels.length == 0) {
+			return this;
+		}
+		final int[] sizes = new int[Arrays.stream(labels).max().getAsInt() + 1];
+		for (final int label : labels) {
+			sizes[label]++;
+		}
+		int largest = 0;
+		for (int c = 1; c < sizes.length; c++) {
+			if (sizes[c] > sizes[largest]) {
+				largest = c;
+			}
+		}
+		final int component = largest;
+		final boolean[] keep = new boolean[labels.length];
+		for (int v = 0; v < labels.length; v++) {
+			keep[v] = labels[v] == component;
+		}
+		return subgraph(keep, IntStream.range(0, labels.length).toArray());
+	}
+
+	/**
+	 * Groups the vertices by their valence.
+	 *
+	 * @param minimum smallest valence included.
+	 * @param maximum largest valence included.
+	 * @return vertex indices of each valence in ascending order of valence.
+	 *         Valences without vertices are not included.
+	 */
+	public Map<Integer, int[]> groupByValence(final int minimum,
+		final int maximum)
+	{
+		final int n = getVertexCount();
+		final int[] valences = new int[n];
+		int lowest = Integer.MAX_VALUE;
+		int highest = Integer.MIN_VALUE;
+		for (int v = 0; v < n; v++) {
+			valences[v] = getValence(v);
+			if (valences[v] >= minimum && valences[v] <= maximum) {
+				lowest = Math.min(lowest, valences[v]);
+				highest = Math.max(highest, valences[v]);
+			}
+		}
+		final Map<Integer, int[]> groups = new TreeMap<>();
+		if (lowest > highest) {
+			return groups;
+		}
+		final int[] sizes = new int[highest - lowest + 1];
+		for (final int valence : valences) {
+			if (valence >= lowest && valence <= highest) {
+				sizes[valence - lowest]++;
+			}
+		}
+		final int[][] members = new int[sizes.length][];
+		for (int i = 0; i < sizes.length; i++) {
+			members[i] = new int[sizes[i]];
+		}
+		final int[] filled = new int[sizes.length];
+		for (int v = 0; v < n; v++) {
+			final int i = valences[v] - lowest;
+			if (i >= 0 && i < sizes.length) {
+				members[i][filled[i]++] = v;
+			}
+		}
+		for (int i = 0; i < sizes.length; i++) {
+			if (sizes[i] > 0) {
+				groups.put(lowest + i, members[i]);
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * Calculates the angles between each pair of branches of a vertex.
+	 * <p>
+	 * A branch points from the centroid of the vertex to the centroid of the
+	 * opposite vertex.
+	 * </p>
+	 *
+	 * @param vertex index of a vertex.
+	 * @return the angles in radians, for the pairs (0, 1), (0, 2), ..., (1, 2),
+	 *         ... of branches.
+	 */
+	public double[] getJunctionAngles(final int vertex) {
+		final int valence = getValence(vertex);
+		final double[] vectors = new double[3 * valence];
+		for (int i = 0; i < valence; i++) {
+			final int opposite = getOpposite(getBranch(vertex, i), vertex);
+			for (int d = 0; d < 3; d++) {
+				vectors[3 * i + d] = centroids[3 * opposite + d] - centroids[3 *
+					vertex + d];
+			}
+		}
+		final double[] angles = new double[valence * (valence - 1) / 2];
+		int n = 0;
+		for (int i = 0; i < valence - 1; i++) {
+			for (int j = i + 1; j < valence; j++) {
+				angles[n++] = angle(vectors, i, j);
+			}
+		}
+		return angles;
+	}
+
+	// region -- Helper methods --
+
+	/**
+	 * Creates a graph of the kept vertices, merged into groups.
+	 *
+	 * @param keep true for the vertices that are kept.
+	 * @param groups the group of each vertex, i.e. the index of the vertex it's
+	 *          merged into. A group is kept if its own vertex is.
+	 * @param edges which edges to keep, or null to keep all edges between kept
+	 *          vertices.
+	 */
+	SkeletonGraph subgraph(final boolean[] keep, final int[] groups,
+		final boolean[] edges)
+	{
+		final int vertices = getVertexCount();
+		final int[] ids = new int[vertices];
+		Arrays.fill(ids, -1);
+		int n = 0;
+		for (int v = 0; v < vertices; v++) {
+			if (keep[v] && groups[v] == v) {
+				ids[v] = n++;
+			}
+		}
+		final int[] newPointOffsets = new int[n + 1];
+		for (int v = 0; v < vertices; v++) {
+			final int id = ids[groups[v]];
+			if (keep[groups[v]] && id >= 0) {
+				newPointOffsets[id + 1] += getPointCount(v);
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			newPointOffsets[i + 1] += newPointOffsets[i];
+		}
+		final long[] newPoints = new long[newPointOffsets[n]];
+		final int[] next = Arrays.copyOf(newPointOffsets, n);
+		for (int v = 0; v < vertices; v++) {
+			final int id = ids[groups[v]];
+			if (keep[groups[v]] && id >= 0) {
+				final int count = getPointCount(v);
+				System.arraycopy(points, pointOffsets[v], newPoints, next[id], count);
+				next[id] += count;
+			}
+		}
+		int m = 0;
+		for (int e = 0; e < v1.length; e++) {
+			if (isKept(e, ids, groups, edges)) {
+				m++;
+			}
+		}
+		final int[] newV1 = new int[m];
+		final int[] newV2 = new int[m];
+		final double[] newLengths = new double[m];
+		final int[] newSlabOffsets = new int[m + 1];
+		m = 0;
+		for (int e = 0; e < v1.length; e++) {
+			if (isKept(e, ids, groups, edges)) {
+				newV1[m] = ids[groups[v1[e]]];
+				newV2[m] = ids[groups[v2[e]]];
+				newLengths[m] = lengths[e];
+				newSlabOffsets[m + 1] = newSlabOffsets[m] + getSlabCount(e);
+				m++;
+			}
+		}
+		final long[] newSlabs = new long[newSlabOffsets[m]];
+		m = 0;
+		for (int e = 0; e < v1.length; e++) {
+			if (isKept(e, ids, groups, edges)) {
+				System.arraycopy(slabs, slabOffsets[e], newSlabs, newSlabOffsets[m],
+					getSlabCount(e));
+				m++;
+			}
+		}
+		return new SkeletonGraph(newPointOffsets, newPoints, newV1, newV2,
+			newLengths, newSlabOffsets, newSlabs);
+	}
+
+	private SkeletonGraph subgraph(final boolean[] keep, final int[] groups) {
+		return subgraph(keep, groups, null);
+	}
+
+	private boolean isKept(final int edge, final int[] ids, final int[] groups,
+		final boolean[] edges)
+	{
+		return (edges == null || edges[edge]) && ids[groups[v1[edge]]] >= 0 &&
+			ids[groups[v2[edge]]] >= 0;
+	}
+
+	private static double angle(final double[] vectors, final int i,
+		final int j)
+	{
+		double dot = 0.0;
+		double normI = 0.0;
+		double normJ = 0.0;
+		for (int d = 0; d < 3; d++) {
+			dot += vectors[3 * i + d] * vectors[3 * j + d];
+			normI += vectors[3 * i + d] * vectors[3 * i + d];
+			normJ += vectors[3 * j + d] * vectors[3 * j + d];
+		}
+		final double cos = dot / Math.sqrt(normI * normJ);
+		return Math.acos(Math.max(-1.0, Math.min(1.0, cos)));
+	}
+
+	static int find(final int[] parents, final int v) {
+		int root = v;
+		while (parents[root] != root) {
+			root = parents[root];
+		}
+		int i = v;
+		while (parents[i] != root) {
+			final int next = parents[i];
+			parents[i] = root;
+			i = next;
+		}
+		return root;
+	}
+
+	/** Joins the sets of a and b, and returns the root of the union */
+	static int union(final int[] parents, final int a, final int b) {
+		final int rootA = find(parents, a);
+		final int rootB = find(parents, b);
+		// The smaller index is the root, so that merging keeps the order
+		if (rootA < rootB) {
+			parents[rootB] = rootA;
+			return rootA;
+		}
+		parents[rootA] = rootB;
+		return rootB;
+	}
+
+	private static long pack(final int x, final int y, final int z) {
+		return (long) z << (2 * BITS) | (long) y << BITS | x;
+	}
+
+	private static int x(final long packed) {
+		return (int) (packed & MASK);
+	}
+
+	private static int y(final long packed) {
+		return (int) (packed >>> BITS & MASK);
+	}
+
+	private static int z(final long packed) {
+		return (int) (packed >>> (2 * BITS));
+	}
+
+	private static int[] unpack(final long packed) {
+		return new int[] { x(packed), y(packed), z(packed) };
+	}
+
+	/**
+	 * Classifies the skeleton voxels, and traces the edges from each vertex.
+	 */
+	private static final class Builder {
+
+		private final byte[][] pixels;
+		private final int width;
+		private final int height;
+		private final int depth;
+		private final double[] spacing;
+		private final byte[][] types;
+		private final LongIntMap vertexIds = new LongIntMap();
+		private final IntList pointOffsets = new IntList();
+		private final LongList points = new LongList();
+		private final IntList v1 = new IntList();
+		private final IntList v2 = new IntList();
+		private final DoubleList lengths = new DoubleList();
+		private final IntList slabOffsets = new IntList();
+		private final LongList slabs = new LongList();
+
+		private Builder(final byte[][] pixels, final int width, final int height,
+			final double[] spacing)
+		{
+			this.pixels = pixels;
+			this.width = width;
+			this.height = height;
+			depth = pixels.length;
+			this.spacing = spacing.clone();
+			types = new byte[depth][];
+		}
+
+		private SkeletonGraph build() {
+			IntStream.range(0, depth).parallel().forEach(this::classify);
+			pointOffsets.add(0);
+			findVertices();
+			slabOffsets.add(0);
+			traceEdges();
+			addRings();
+			return new SkeletonGraph(pointOffsets.toArray(), points.toArray(), v1
+				.toArray(), v2.toArray(), lengths.toArray(), slabOffsets.toArray(),
+				slabs.toArray());
+		}
+
+		private void classify(final int z) {
+			final byte[] plane = new byte[width * height];
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					if (pixels[z][x + y * width] == 0) {
+						continue;
+					}
+					final int neighbours = countNeighbours(x, y, z);
+					plane[x + y * width] = neighbours < 2 ? END_POINT : neighbours == 2
+						? SLAB : JUNCTION;
+				}
+			}
+			types[z] = plane;
+		}
+
+		private int countNeighbours(final int x, final int y, final int z) {
+			int count = 0;
+			for (int dz = -1; dz <= 1; dz++) {
+				for (int dy = -1; dy <= 1; dy++) {
+					for (int dx = -1; dx <= 1; dx++) {
+						if ((dx != 0 || dy != 0 || dz != 0) && isForeground(x + dx, y +
+							dy, z + dz))
+						{
+							count++;
+						}
+					}
+				}
+			}
+			return count;
+		}
+
+		private boolean isForeground(final int x, final int y, final int z) {
+			return x >= 0 && x < width && y >= 0 && y < height && z >= 0 &&
+				z < depth && pixels[z][x + y * width] != 0;
+		}
+
+		private byte type(final long p) {
+			return types[z(p)][x(p) + y(p) * width];
+		}
+
+		private void setType(final long p, final byte type) {
+			types[z(p)][x(p) + y(p) * width] = type;
+		}
+
+		/**
+		 * Adds each end point, and each 26-connected cluster of junction voxels,
+		 * as a vertex.
+		 */
+		private void findVertices() {
+			final LongList queue = new LongList();
+			for (int z = 0; z < depth; z++) {
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						final long p = pack(x, y, z);
+						final byte type = type(p);
+						if (type != END_POINT && type != JUNCTION || vertexIds.get(
+							p) >= 0)
+						{
+							continue;
+						}
+						final int id = pointOffsets.size() - 1;
+						vertexIds.put(p, id);
+						points.add(p);
+						if (type == JUNCTION) {
+							queue.clear();
+							queue.add(p);
+							for (int i = 0; i < queue.size(); i++) {
+								addJunctionNeighbours(queue.get(i), id, queue);
+							}
+						}
+						pointOffsets.add(points.size());
+					}
+				}
+			}
+		}
+
+		private void addJunctionNeighbours(final long p, final int id,
+			final LongList queue)
+		{
+			final int x = x(p);
+			final int y = y(p);
+			final int z = z(p);
+			for (int dz = -1; dz <= 1; dz++) {
+				for (int dy = -1; dy <= 1; dy++) {
+					for (int dx = -1; dx <= 1; dx++) {
+						if (!isForeground(x + dx, y + dy, z + dz)) {
+							continue;
+						}
+						final long q = pack(x + dx, y + dy, z + dz);
+						if (type(q) == JUNCTION && vertexIds.get(q) < 0) {
+							vertexIds.put(q, id);
+							points.add(q);
+							queue.add(q);
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Traces the slab chains from the voxels of each vertex, and adds an edge
+		 * between vertices whose voxels touch.
+		 */
+		private void traceEdges() {
+			final LongIntMap touching = new LongIntMap();
+			final int vertices = pointOffsets.size() - 1;
+			for (int v = 0; v < vertices; v++) {
+				for (int i = pointOffsets.get(v); i < pointOffsets.get(v + 1); i++) {
+					final long p = points.get(i);
+					final int x = x(p);
+					final int y = y(p);
+					final int z = z(p);
+					for (int dz = -1; dz <= 1; dz++) {
+						for (int dy = -1; dy <= 1; dy++) {
+							for (int dx = -1; dx <= 1; dx++) {
+								if (!isForeground(x + dx, y + dy, z + dz)) {
+									continue;
+								}
+								final long q = pack(x + dx, y + dy, z + dz);
+								final byte type = type(q);
+								if (type == SLAB) {
+									trace(v, p, q);
+									continue;
+								}
+								final int other = vertexIds.get(q);
+								final long pair = (long) v * vertices + other;
+								if (other > v && touching.get(pair) < 0) {
+									touching.put(pair, 0);
+									addEdge(v, other, distance(p, q));
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+
+		private void trace(final int start, final long vertexPoint,
+			final long first)
+		{
+			final int slabStart = slabs.size();
+			long previous = vertexPoint;
+			long current = first;
+			double length = distance(vertexPoint, first);
+			while (true) {
+				setType(current, TRACED_SLAB);
+				slabs.add(current);
+				final long next = otherNeighbour(current, previous);
+				final byte type = type(next);
+				if (type == SLAB) {
+					length += distance(current, next);
+					previous = current;
+					current = next;
+					continue;
+				}
+				if (type == TRACED_SLAB) {
+					// The chain ran into itself, so it doesn't end at a vertex
+					slabs.truncate(slabStart);
+					return;
+				}
+				length += distance(current, next);
+				slabOffsets.add(slabs.size());
+				v1.add(start);
+				v2.add(vertexIds.get(next));
+				lengths.add(length);
+				return;
+			}
+		}
+
+		/**
+		 * Adds a vertex at the first voxel of each untraced ring of slabs, and
+		 * traces the rest of the ring as a loop edge.
+		 */
+		private void addRings() {
+			for (int z = 0; z < depth; z++) {
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						final long p = pack(x, y, z);
+						if (type(p) != SLAB) {
+							continue;
+						}
+						final int id = pointOffsets.size() - 1;
+						setType(p, JUNCTION);
+						vertexIds.put(p, id);
+						points.add(p);
+						pointOffsets.add(points.size());
+						trace(id, p, otherNeighbour(p, -1L));
+					}
+				}
+			}
+		}
+
+		/** Returns the neighbour of a slab voxel that is not the given one */
+		private long otherNeighbour(final long slab, final long neighbour) {
+			final int x = x(slab);
+			final int y = y(slab);
+			final int z = z(slab);
+			for (int dz = -1; dz <= 1; dz++) {
+				for (int dy = -1; dy <= 1; dy++) {
+					for (int dx = -1; dx <= 1; dx++) {
+						if ((dx != 0 || dy != 0 || dz != 0) && isForeground(x + dx, y +
+							dy, z + dz))
+						{
+							final long q = pack(x + dx, y + dy, z + dz);
+							if (q != neighbour) {
+								return q;
+							}
+						}
+					}
+				}
+			}
+			throw new IllegalStateException("Slab voxel has fewer than two neighbours");
+		}
+
+		private void addEdge(final int a, final int b, final double length) {
+			v1.add(a);
+			v2.add(b);
+			lengths.add(length);
+			slabOffsets.add(slabs.size());
+		}
+
+		private double distance(final long p, final long q) {
+			final double dx = (x(p) - x(q)) * spacing[0];
+			final double dy = (y(p) - y(q)) * spacing[1];
+			final double dz = (z(p) - z(q)) * spacing[2];
+			return Math.sqrt(dx * dx + dy * dy + dz * dz);
+		}
+	}
+
+	/** An open addressing hash map from longs to non-negative ints */
+	private static final class LongIntMap {
+
+		private long[] keys = new long[16];
+		private int[] values = new int[16];
+		private int size;
+
+		private LongIntMap() {
+			Arrays.fill(values, -1);
+		}
+
+		/** Returns the value of the key, or -1 if there's none */
+		private int get(final long key) {
+			final int mask = keys.length - 1;
+			for (int i = slot(key, mask);; i = (i + 1) & mask) {
+				if (values[i] < 0) {
+					return -1;
+				}
+				if (keys[i] == key) {
+					return values[i];
+				}
+			}
+		}
+
+		private void put(final long key, final int value) {
+			if (2 * (size + 1) > keys.length) {
+				grow();
+			}
+			final int mask = keys.length - 1;
+			int i = slot(key, mask);
+			while (values[i] >= 0 && keys[i] != key) {
+				i = (i + 1) & mask;
+			}
+			if (values[i] < 0) {
+				size++;
+			}
+			keys[i] = key;
+			values[i] = value;
+		}
+
+		private void grow() {
+			final long[] oldKeys = keys;
+			final int[] oldValues = values;
+			keys = new long[2 * oldKeys.length];
+			values = new int[2 * oldKeys.length];
+			Arrays.fill(values, -1);
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldValues[i] >= 0) {
+					put(oldKeys[i], oldValues[i]);
+				}
+			}
+		}
+
+		private static int slot(final long key, final int mask) {
+			final long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ h >>> 32) & mask;
+		}
+	}
+
+	private static final class IntList {
+
+		private int[] values = new int[16];
+		private int size;
+
+		private void add(final int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, 2 * size);
+			}
+			values[size++] = value;
+		}
+
+		private int get(final int i) {
+			return values[i];
+		}
+
+		private int size() {
+			return size;
+		}
+
+		private int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	private static final class LongList {
+
+		private long[] values = new long[16];
+		private int size;
+
+		private void add(final long value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, 2 * size);
+			}
+			values[size++] = value;
+		}
+
+		private long get(final int i) {
+			return values[i];
+		}
+
+		private int size() {
+			return size;
+		}
+
+		private void clear() {
+			size = 0;
+		}
+
+		private void truncate(final int newSize) {
+			size = newSize;
+		}
+
+		private long[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	private static final class DoubleList {
+
+		private double[] values = new double[16];
+		private int size;
+
+		private void add(final double value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, 2 * size);
+			}
+			values[size++] = value;
+		}
+
+		private double[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	// endregion
+}
@@ -0,0 +1,278 @@
+/*-
+ * #%L
+ * Ops created for BoneJ2
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.ops.graph;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import net.imglib2.util.ValuePair;
+
+/**
+ * Removes loops, repeated edges and short edges from a {@link SkeletonGraph}.
+ * <p>
+ * The short edges are measured by the calibrated distance between the
+ * centroids of their vertices. A short edge that ends at a dead end, i.e. a
+ * vertex with one branch, is culled with the dead end. Other short edges are
+ * collapsed by merging their vertices.
+ * </p>
+ */
+public final class SkeletonGraphPruning {
+
+	private SkeletonGraphPruning() {}
+
+	/**
+	 * Prunes the short edges of a graph.
+	 *
+	 * @param graph a skeleton graph.
+	 * @param tolerance edges shorter than this are pruned.
+	 * @param iterate if true, prune until there are no more short edges.
+	 *          Otherwise prune once.
+	 * @param useClusters if true, merge all the vertices connected by short
+	 *          edges into one. Otherwise collapse the short edges one at a time,
+	 *          and skip those that touch a vertex already merged in the same
+	 *          round. Then the result depends on the order of the edges.
+	 * @param pixelSpacing the calibrated (x, y, z) size of a voxel.
+	 * @return the pruned graph, and the percentages of loop, dead end, repeated
+	 *         and short edges culled, followed by the number of edges in the
+	 *         original graph.
+	 */
+	public static ValuePair<SkeletonGraph, double[]> pruneShortEdges(
+		final SkeletonGraph graph, final double tolerance, final boolean iterate,
+		final boolean useClusters, final double[] pixelSpacing)
+	{
+		final State state = new State(graph, pixelSpacing);
+		state.removeLoops();
+		boolean changed;
+		do {
+			state.removeRepeated();
+			final double[] lengths = state.centroidDistances();
+			changed = state.cullDeadEnds(lengths, tolerance);
+			if (useClusters) {
+				changed |= state.mergeClusters(lengths, tolerance);
+			}
+			else {
+				changed |= state.collapseEdges(lengths, tolerance);
+			}
+			state.removeLoops();
+		}
+		while (iterate && changed);
+		state.removeRepeated();
+		return new ValuePair<>(state.prunedGraph(), state.statistics());
+	}
+
+	private static final class State {
+
+		private final SkeletonGraph graph;
+		private final double[] spacing;
+		private final int[] parents;
+		private final double[] sums;
+		private final int[] counts;
+		private final boolean[] alive;
+		private final boolean[] culled;
+		private int loops;
+		private int deadEnds;
+		private int repeated;
+		private int shorts;
+
+		private State(final SkeletonGraph graph, final double[] spacing) {
+			this.graph = graph;
+			this.spacing = spacing.clone();
+			final int vertices = graph.getVertexCount();
+			parents = IntStream.range(0, vertices).toArray();
+			sums = new double[3 * vertices];
+			counts = new int[vertices];
+			for (int v = 0; v < vertices; v++) {
+				counts[v] = graph.getPointCount(v);
+				final double[] centroid = graph.getCentroid(v);
+				for (int d = 0; d < 3; d++) {
+					sums[3 * v + d] = centroid[d] * counts[v];
+				}
+			}
+			alive = new boolean[graph.getEdgeCount()];
+			Arrays.fill(alive, true);
+			culled = new boolean[vertices];
+		}
+
+		private int root(final int vertex) {
+			return SkeletonGraph.find(parents, vertex);
+		}
+
+		private void removeLoops() {
+			for (int e = 0; e < alive.length; e++) {
+				if (alive[e] && root(graph.getV1(e)) == root(graph.getV2(e))) {
+					alive[e] = false;
+					loops++;
+				}
+			}
+		}
+
+		/** Removes all but the first edge between each pair of vertices */
+		private void removeRepeated() {
+			final Set<Long> pairs = new HashSet<>();
+			final long vertices = parents.length;
+			for (int e = 0; e < alive.length; e++) {
+				if (!alive[e]) {
+					continue;
+				}
+				final int a = root(graph.getV1(e));
+				final int b = root(graph.getV2(e));
+				if (!pairs.add(Math.min(a, b) * vertices + Math.max(a, b))) {
+					alive[e] = false;
+					repeated++;
+				}
+			}
+		}
+
+		private double[] centroidDistances() {
+			final double[] lengths = new double[alive.length];
+			for (int e = 0; e < alive.length; e++) {
+				if (!alive[e]) {
+					continue;
+				}
+				final int a = root(graph.getV1(e));
+				final int b = root(graph.getV2(e));
+				double sum = 0.0;
+				for (int d = 0; d < 3; d++) {
+					final double delta = (sums[3 * a + d] / counts[a] - sums[3 * b +
+						d] / counts[b]) * spacing[d];
+					sum += delta * delta;
+				}
+				lengths[e] = Math.sqrt(sum);
+			}
+			return lengths;
+		}
+
+		private int[] valences() {
+			final int[] valences = new int[parents.length];
+			for (int e = 0; e < alive.length; e++) {
+				if (alive[e]) {
+					valences[root(graph.getV1(e))]++;
+					valences[root(graph.getV2(e))]++;
+				}
+			}
+			return valences;
+		}
+
+		private boolean cullDeadEnds(final double[] lengths,
+			final double tolerance)
+		{
+			final int[] valences = valences();
+			boolean changed = false;
+			for (int e = 0; e < alive.length; e++) {
+				if (!alive[e] || lengths[e] >= tolerance) {
+					continue;
+				}
+				final int a = root(graph.getV1(e));
+				final int b = root(graph.getV2(e));
+				if ((valences[a] == 1) == (valences[b] == 1)) {
+					continue;
+				}
+				alive[e] = false;
+				culled[valences[a] == 1 ? a : b] = true;
+				deadEnds++;
+				changed = true;
+			}
+			return changed;
+		}
+
+		private boolean mergeClusters(final double[] lengths,
+			final double tolerance)
+		{
+			boolean changed = false;
+			for (int e = 0; e < alive.length; e++) {
+				if (alive[e] && lengths[e] < tolerance) {
+					merge(graph.getV1(e), graph.getV2(e));
+					alive[e] = false;
+					shorts++;
+					changed = true;
+				}
+			}
+			return changed;
+		}
+
+		private boolean collapseEdges(final double[] lengths,
+			final double tolerance)
+		{
+			final boolean[] merged = new boolean[parents.length];
+			boolean changed = false;
+			for (int e = 0; e < alive.length; e++) {
+				if (!alive[e] || lengths[e] >= tolerance) {
+					continue;
+				}
+				final int a = root(graph.getV1(e));
+				final int b = root(graph.getV2(e));
+				if (merged[a] || merged[b]) {
+					continue;
+				}
+				merged[merge(a, b)] = true;
+				alive[e] = false;
+				shorts++;
+				changed = true;
+			}
+			return changed;
+		}
+
+		/** Merges the vertices, and returns the root of the merged vertex */
+		private int merge(final int a, final int b) {
+			final int rootA = root(a);
+			final int rootB = root(b);
+			if (rootA == rootB) {
+				return rootA;
+			}
+			final int root = SkeletonGraph.union(parents, rootA, rootB);
+			final int other = root == rootA ? rootB : rootA;
+			for (int d = 0; d < 3; d++) {
+				sums[3 * root + d] += sums[3 * other + d];
+			}
+			counts[root] += counts[other];
+			return root;
+		}
+
+		private SkeletonGraph prunedGraph() {
+			final int[] groups = new int[parents.length];
+			final boolean[] keep = new boolean[parents.length];
+			for (int v = 0; v < parents.length; v++) {
+				groups[v] = root(v);
+				keep[v] = !culled[v];
+			}
+			return graph.subgraph(keep, groups, alive);
+		}
+
+		private double[] statistics() {
+			final double total = alive.length;
+			if (total == 0) {
+				return new double[5];
+			}
+			return new double[] { 100.0 * loops / total, 100.0 * deadEnds / total,
+				100.0 * repeated / total, 100.0 * shorts / total, total };
+		}
+	}
+}
@@ -30,15 +30,12 @@ package org.bonej.ops.skeletonize;
 
 import net.imagej.ops.Op;
 import net.imagej.ops.special.function.AbstractUnaryFunctionOp;
-import net.imagej.ops.stats.IterableMax;
 import net.imglib2.*;
-import net.imglib2.algorithm.neighborhood.HyperSphereShape;
-import net.imglib2.algorithm.neighborhood.Shape;
-import net.imglib2.img.Img;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 import org.joml.Vector3d;
@@ -46,43 +43,63 @@ import org.joml.Vector3dc;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.List;
+import java.util.stream.IntStream;
 
+/**
+ * Finds the points on the ridges of the distance map of a binary image.
+ * <p>
+ * The ridge strength of a voxel is the difference between the morphological close and open of the distance map,
+ * using a sphere of radius {@link #RIDGE_RADIUS}. A voxel is a ridge point if its ridge strength is larger than
+ * the given fraction of the maximum ridge strength. Voxels where the opened distance is at most 1 are on the edge
+ * of the foreground, and are never ridge points.
+ * </p>
+ * <p>
+ * The erosions and dilations are computed in parallel sweeps over z-slices of a flat copy of the distance map,
+ * and the points are stored in a flat coordinate buffer. The returned list creates the {@link Vector3d} objects
+ * on demand.
+ * </p>
+ */
 @Plugin(name = "Find ridge points of a binary image", type = Op.class)
 public class FindRidgePoints<R extends RealType<R> & NativeType<R>> extends AbstractUnaryFunctionOp<RandomAccessibleInterval<BitType>,List<Vector3dc>> {
 
+    /** Radius of the spherical structuring element of the close and open. */
+    static final int RIDGE_RADIUS = 2;
+
     @Parameter(persist = false, required = false)
     private DoubleType thresholdForBeingARidgePoint = new DoubleType(0.6);
 
     @Override
     public List<Vector3dc> calculate(RandomAccessibleInterval<BitType> bitImage) {
-        final Img<R> ridge = (Img<R>) createRidge(bitImage);
-
-        IterableMax<R> iterableMax = new IterableMax<>();
-        final double threshold = thresholdForBeingARidgePoint.getRealFloat() *
-                iterableMax.calculate(ridge).getRealFloat();
-
-        final List<Vector3dc> seeds = new ArrayList<>();
-        final Cursor<R> ridgeCursor = ridge.cursor();
-        final long[] position = new long[3];
-        while (ridgeCursor.hasNext()) {
-            ridgeCursor.fwd();
-            final double localValue = ridgeCursor.get().getRealFloat();
-            if (localValue <= threshold) {
-                continue;
-            }
-            ridgeCursor.localize(position);
-            final Vector3d seed = new Vector3d(position[0], position[1], position[2]);
-            // add 0.5 to centre of pixel, and subtract 1.0 because of ridge calculated on 1-expanded image!
-            // equivalently, subtract 0.5:
-            seed.sub(0.5, 0.5, 0.5);
-            seeds.add(seed);
+        final RandomAccessibleInterval<R> distanceMap = createDistanceMap(bitImage);
+        final int width = (int) distanceMap.dimension(0);
+        final int height = (int) distanceMap.dimension(1);
+        final int depth = (int) distanceMap.dimension(2);
+        final float[] distances = new float[width * height * depth];
+        final Cursor<R> cursor = Views.flatIterable(distanceMap).cursor();
+        for (int i = 0; i < distances.length; i++) {
+            distances[i] = cursor.next().getRealFloat();
+        }
+        final float[] ridge = ridgeStrength(distances, width, height, depth);
+        float max = 0.0f;
+        for (final float r : ridge) {
+            max = Math.max(max, r);
         }
-        return seeds;
+        final double threshold = thresholdForBeingARidgePoint.getRealFloat() * max;
+        final int[][] sliceCoordinates = IntStream.range(0, depth).parallel()
+                .mapToObj(z -> findSliceRidge(ridge, width, height, z, threshold))
+                .toArray(int[][]::new);
+        final int[] coordinates = new int[IntStream.range(0, depth).map(z -> sliceCoordinates[z].length).sum()];
+        int n = 0;
+        for (final int[] slice : sliceCoordinates) {
+            System.arraycopy(slice, 0, coordinates, n, slice.length);
+            n += slice.length;
+        }
+        return new SeedPoints(coordinates, Intervals.minAsLongArray(distanceMap));
     }
 
-    private IterableInterval<R> createRidge(
+    private RandomAccessibleInterval<R> createDistanceMap(
             final RandomAccessibleInterval<BitType> image)
     {
         final long[] borderExpansion = new long[]{1,1,1};
@@ -90,28 +107,132 @@ public class FindRidgePoints<R extends RealType<R> & NativeType<R>> extends Abst
         final IntervalView<BitType> offsetImage = Views.translateInverse(image, offset);
         final IntervalView<BitType> expandedImage = Views.expandZero(offsetImage, borderExpansion);
 
-        final RandomAccessibleInterval<R> distanceMap = ops().image().distancetransform(expandedImage);
-
-        final List<Shape> shapes = new ArrayList<>();
-        shapes.add(new HyperSphereShape(2));
-
-        final IterableInterval<R> open =  ops().morphology().open(distanceMap, shapes);
-        final IterableInterval<R> close =  ops().morphology().close(distanceMap, shapes);
-        final IterableInterval<R> ridge = ops().math().subtract(close, open);
-
-        final Cursor<R> ridgeCursor = ridge.localizingCursor();
-        final Img<R> openImg = (Img<R>) open;
-        final RandomAccess<R> openedRA = openImg.randomAccess();
-        final long[] position = new long[3];
-        while (ridgeCursor.hasNext()) {
-            ridgeCursor.fwd();
-            ridgeCursor.localize(position);
-            openedRA.setPosition(position);
-            if (openedRA.get().getRealDouble()<1.0+1e-12)//avoids false ridge points on edge of FG
-            {
-                ridgeCursor.get().setReal(0.0f);
+        return ops().image().distancetransform(expandedImage);
+    }
+
+    /**
+     * Calculates the ridge strength, close &minus; open of the distance map, with edge voxels set to zero.
+     *
+     * @param distances distance map in x, y, z order.
+     * @param width width of the map.
+     * @param height height of the map.
+     * @param depth depth of the map.
+     * @return ridge strength of each voxel.
+     */
+    static float[] ridgeStrength(final float[] distances, final int width, final int height,
+                                 final int depth) {
+        final int[] offsets = neighbourhood(width, height);
+        final float[] buffer = new float[distances.length];
+        final float[] open = new float[distances.length];
+        final float[] ridge = new float[distances.length];
+        filter(distances, buffer, width, height, depth, offsets, false);
+        filter(buffer, open, width, height, depth, offsets, true);
+        filter(distances, buffer, width, height, depth, offsets, true);
+        filter(buffer, ridge, width, height, depth, offsets, false);
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            final int end = (z + 1) * width * height;
+            for (int i = z * width * height; i < end; i++) {
+                //avoids false ridge points on edge of FG
+                ridge[i] = open[i] < 1.0 + 1e-12 ? 0.0f : ridge[i] - open[i];
             }
-        }
+        });
         return ridge;
     }
+
+    /**
+     * Returns the flat index offsets of the sphere of radius {@link #RIDGE_RADIUS}, in (dx, dy, dz, index) quadruples.
+     */
+    private static int[] neighbourhood(final int width, final int height) {
+        final IntStream.Builder builder = IntStream.builder();
+        for (int dz = -RIDGE_RADIUS; dz <= RIDGE_RADIUS; dz++) {
+            for (int dy = -RIDGE_RADIUS; dy <= RIDGE_RADIUS; dy++) {
+                for (int dx = -RIDGE_RADIUS; dx <= RIDGE_RADIUS; dx++) {
+                    if (dx * dx + dy * dy + dz * dz > RIDGE_RADIUS * RIDGE_RADIUS) {
+                        continue;
+                    }
+                    builder.add(dx).add(dy).add(dz).add((dz * height + dy) * width + dx);
+                }
+            }
+        }
+        return builder.build().toArray();
+    }
+
+    /**
+     * Writes the grey scale dilation or erosion of the source into the target.
+     * <p>
+     * Neighbours outside the image are ignored, which matches padding with the minimum value for a dilation,
+     * and with the maximum value for an erosion.
+     * </p>
+     */
+    private static void filter(final float[] source, final float[] target, final int width,
+                               final int height, final int depth, final int[] offsets,
+                               final boolean dilate) {
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    final int index = (z * height + y) * width + x;
+                    final boolean inside = x >= RIDGE_RADIUS && x < width - RIDGE_RADIUS &&
+                            y >= RIDGE_RADIUS && y < height - RIDGE_RADIUS && z >= RIDGE_RADIUS &&
+                            z < depth - RIDGE_RADIUS;
+                    float value = source[index];
+                    for (int i = 0; i < offsets.length; i += 4) {
+                        if (!inside) {
+                            final int nx = x + offsets[i];
+                            final int ny = y + offsets[i + 1];
+                            final int nz = z + offsets[i + 2];
+                            if (nx < 0 || nx >= width || ny < 0 || ny >= height || nz < 0 ||
+                                    nz >= depth) {
+                                continue;
+                            }
+                        }
+                        final float neighbour = source[index + offsets[i + 3]];
+                        value = dilate ? Math.max(value, neighbour) : Math.min(value, neighbour);
+                    }
+                    target[index] = value;
+                }
+            }
+        });
+    }
+
+    private static int[] findSliceRidge(final float[] ridge, final int width, final int height,
+                                        final int z, final double threshold) {
+        final IntStream.Builder builder = IntStream.builder();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (ridge[(z * height + y) * width + x] > threshold) {
+                    builder.add(x).add(y).add(z);
+                }
+            }
+        }
+        return builder.build().toArray();
+    }
+
+    /**
+     * A read-only list of ridge points backed by a flat (x, y, z) buffer of distance map coordinates.
+     */
+    private static final class SeedPoints extends AbstractList<Vector3dc> implements java.util.RandomAccess {
+        private final int[] coordinates;
+        private final long[] min;
+
+        private SeedPoints(final int[] coordinates, final long[] min) {
+            this.coordinates = coordinates;
+            this.min = min;
+        }
+
+        @Override
+        public Vector3dc get(final int index) {
+            final int i = index * 3;
+            final Vector3d seed = new Vector3d(coordinates[i] + min[0], coordinates[i + 1] + min[1],
+                    coordinates[i + 2] + min[2]);
+            // add 0.5 to centre of pixel, and subtract 1.0 because of ridge calculated on 1-expanded image!
+            // equivalently, subtract 0.5:
+            seed.sub(0.5, 0.5, 0.5);
+            return seed;
+        }
+
+        @Override
+        public int size() {
+            return coordinates.length / 3;
+        }
+    }
 }
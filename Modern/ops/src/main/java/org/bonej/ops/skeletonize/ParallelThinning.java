@@ -0,0 +1,367 @@
+/*-
+ * #%L
+ * Ops created for BoneJ2
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.ops.skeletonize;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Topology-preserving 3D thinning that runs on all cores.
+ * <p>
+ * The algorithm follows Lee, Kashyap &amp; Chu (1994) like Skeletonize3D: each
+ * iteration has six directional sub-iterations, which delete the simple
+ * border points that are not end points. The candidates of a sub-iteration
+ * are found in parallel over slices. Instead of re-checking them one by one,
+ * they're re-checked and deleted in eight subfields by the parity of their
+ * coordinates. Two points of the same subfield are never in the same
+ * 2&times;2&times;2 cube, and neither is in the 3&times;3&times;3
+ * neighbourhood of the other, so the points of a subfield can be deleted at
+ * the same time without changing the topology (Ma, 1994).
+ * </p>
+ * <p>
+ * The image is stored as one bit per voxel, padded with a background border.
+ * Non-zero pixels are foreground, and the skeleton is written with the value
+ * 255 like in Skeletonize3D, so that the result can be analysed with
+ * AnalyzeSkeleton.
+ * </p>
+ */
+public final class ParallelThinning {
+
+	/** Index of the centre in a 3&times;3&times;3 neighbourhood mask */
+	private static final int CENTRE = 13;
+	/**
+	 * Indices of the face neighbours checked in each direction: north (y - 1),
+	 * south (y + 1), east (x + 1), west (x - 1), up (z + 1) and bottom (z - 1)
+	 */
+	private static final int[] BORDERS = { 10, 16, 14, 12, 22, 4 };
+	/** The six face neighbours */
+	private static final int FACES = 1 << 4 | 1 << 10 | 1 << 12 | 1 << 14 |
+		1 << 16 | 1 << 22;
+	/** The 18-neighbourhood without the centre */
+	private static final int N18 = neighbourhood(2);
+	/** 26-adjacent positions of each position of the neighbourhood */
+	private static final int[] ADJACENT_26 = adjacency(3);
+	/** 6-adjacent positions of each position of the neighbourhood */
+	private static final int[] ADJACENT_6 = adjacency(1);
+
+	private ParallelThinning() {}
+
+	/**
+	 * Thins the foreground of a stack to a skeleton, in place.
+	 *
+	 * @param pixels the slices of an 8-bit stack.
+	 * @param width width of the slices.
+	 * @param height height of the slices.
+	 * @return the number of thinning iterations. One iteration means that the
+	 *         image was a skeleton already.
+	 * @throws IllegalArgumentException if the slices don't match the
+	 *           dimensions.
+	 */
+	public static int skeletonise(final byte[][] pixels, final int width,
+		final int height)
+	{
+		for (final byte[] plane : pixels) {
+			if (plane.length != width * height) {
+				throw new IllegalArgumentException(
+					"Slices don't match the dimensions");
+			}
+		}
+		final BitVolume volume = new BitVolume(pixels, width, height);
+		int iterations = 0;
+		boolean changed = true;
+		while (changed) {
+			iterations++;
+			changed = false;
+			for (final int border : BORDERS) {
+				changed |= thinBorder(volume, border);
+			}
+		}
+		volume.writeTo(pixels);
+		return iterations;
+	}
+
+	// region -- Helper methods --
+
+	/**
+	 * Runs one directional sub-iteration.
+	 *
+	 * @return true if any points were deleted.
+	 */
+	private static boolean thinBorder(final BitVolume volume, final int border) {
+		final int[][] candidates = IntStream.range(1, volume.depth - 1).parallel()
+			.mapToObj(z -> findCandidates(volume, border, z)).toArray(int[][]::new);
+		boolean changed = false;
+		for (int subfield = 0; subfield < 8; subfield++) {
+			final int parity = subfield;
+			// Each slice has its own words, so the slices can be written in
+			// parallel
+			final long deleted = IntStream.range(0, candidates.length).parallel()
+				.mapToLong(i -> deleteSimple(volume, candidates[i], i + 1, parity))
+				.sum();
+			changed |= deleted > 0;
+		}
+		return changed;
+	}
+
+	/**
+	 * Finds the simple points of a slice that are on the border in the given
+	 * direction, and are not end points.
+	 *
+	 * @return packed (x, y) coordinates of the candidates.
+	 */
+	private static int[] findCandidates(final BitVolume volume, final int border,
+		final int z)
+	{
+		int[] found = new int[16];
+		int n = 0;
+		for (int y = 1; y < volume.height - 1; y++) {
+			final int row = volume.row(y, z);
+			for (int x = volume.nextSet(row, 1); x >= 0; x = volume.nextSet(row,
+				x + 1))
+			{
+				final int neighbourhood = volume.neighbourhood(x, y, z);
+				if ((neighbourhood & (1 << border)) != 0 || isEndPoint(
+					neighbourhood) || !isSimple(neighbourhood))
+				{
+					continue;
+				}
+				if (n == found.length) {
+					found = Arrays.copyOf(found, 2 * n);
+				}
+				found[n++] = y * volume.width + x;
+			}
+		}
+		return Arrays.copyOf(found, n);
+	}
+
+	/**
+	 * Re-checks the candidates of a slice in a subfield, and deletes them if
+	 * they're still simple.
+	 *
+	 * @return the number of deleted points.
+	 */
+	private static long deleteSimple(final BitVolume volume,
+		final int[] candidates, final int z, final int parity)
+	{
+		long deleted = 0;
+		for (final int candidate : candidates) {
+			final int x = candidate % volume.width;
+			final int y = candidate / volume.width;
+			if (((x & 1) | (y & 1) << 1 | (z & 1) << 2) != parity) {
+				continue;
+			}
+			if (isSimple(volume.neighbourhood(x, y, z))) {
+				volume.clear(x, y, z);
+				deleted++;
+			}
+		}
+		return deleted;
+	}
+
+	private static boolean isEndPoint(final int neighbourhood) {
+		return Integer.bitCount(neighbourhood & ~(1 << CENTRE)) == 1;
+	}
+
+	/**
+	 * Checks if deleting the centre preserves the topology (Bertrand &amp;
+	 * Malandain, 1994): the foreground in the 26-neighbourhood is one
+	 * 26-connected component, and the background in the 18-neighbourhood has
+	 * one 6-connected component that touches the centre.
+	 */
+	private static boolean isSimple(final int neighbourhood) {
+		final int foreground = neighbourhood & ~(1 << CENTRE);
+		if (components(foreground, foreground, ADJACENT_26) != 1) {
+			return false;
+		}
+		final int background = ~neighbourhood & N18;
+		return components(background, FACES, ADJACENT_6) == 1;
+	}
+
+	/**
+	 * Counts the connected components of a mask that contain a seed, up to two.
+	 */
+	private static int components(final int mask, final int seeds,
+		final int[] adjacency)
+	{
+		int remaining = mask;
+		int count = 0;
+		while ((remaining & seeds) != 0 && count < 2) {
+			int component = Integer.lowestOneBit(remaining & seeds);
+			int frontier = component;
+			while (frontier != 0) {
+				final int bit = Integer.numberOfTrailingZeros(frontier);
+				frontier &= frontier - 1;
+				final int next = adjacency[bit] & remaining & ~component;
+				component |= next;
+				frontier |= next;
+			}
+			remaining &= ~component;
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Positions of the neighbourhood within the given city block distance of
+	 * the centre, without the centre.
+	 */
+	private static int neighbourhood(final int distance) {
+		int mask = 0;
+		for (int i = 0; i < 27; i++) {
+			final int d = Math.abs(i % 3 - 1) + Math.abs(i / 3 % 3 - 1) + Math.abs(
+				i / 9 - 1);
+			if (d > 0 && d <= distance) {
+				mask |= 1 << i;
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * For each position of the neighbourhood, the positions within the given
+	 * city block distance, i.e. 1 for 6-adjacency and 3 for 26-adjacency.
+	 */
+	private static int[] adjacency(final int distance) {
+		final int[] adjacency = new int[27];
+		for (int i = 0; i < 27; i++) {
+			for (int j = 0; j < 27; j++) {
+				final int dx = Math.abs(i % 3 - j % 3);
+				final int dy = Math.abs(i / 3 % 3 - j / 3 % 3);
+				final int dz = Math.abs(i / 9 - j / 9);
+				if (i != j && Math.max(dx, Math.max(dy, dz)) == 1 && dx + dy +
+					dz <= distance)
+				{
+					adjacency[i] |= 1 << j;
+				}
+			}
+		}
+		return adjacency;
+	}
+
+	/**
+	 * A binary stack with one bit per voxel, and a background border of one
+	 * voxel. Each row starts at a new word.
+	 */
+	private static final class BitVolume {
+
+		private final int width;
+		private final int height;
+		private final int depth;
+		private final int rowWords;
+		private final long[] words;
+
+		private BitVolume(final byte[][] pixels, final int width,
+			final int height)
+		{
+			this.width = width + 2;
+			this.height = height + 2;
+			depth = pixels.length + 2;
+			rowWords = (this.width + 63) >>> 6;
+			words = new long[rowWords * this.height * depth];
+			IntStream.range(0, pixels.length).parallel().forEach(z -> {
+				for (int y = 0; y < height; y++) {
+					final int row = row(y + 1, z + 1);
+					for (int x = 0; x < width; x++) {
+						if (pixels[z][x + y * width] != 0) {
+							final int bx = x + 1;
+							words[row + (bx >>> 6)] |= 1L << bx;
+						}
+					}
+				}
+			});
+		}
+
+		private void writeTo(final byte[][] pixels) {
+			final int w = width - 2;
+			IntStream.range(0, pixels.length).parallel().forEach(z -> {
+				for (int y = 0; y < height - 2; y++) {
+					final int row = row(y + 1, z + 1);
+					for (int x = 0; x < w; x++) {
+						final int bx = x + 1;
+						final boolean set = (words[row + (bx >>> 6)] & 1L << bx) != 0;
+						pixels[z][x + y * w] = set ? (byte) 0xFF : 0;
+					}
+				}
+			});
+		}
+
+		private int row(final int y, final int z) {
+			return (z * height + y) * rowWords;
+		}
+
+		/** Returns the x of the next set bit of a row from x on, or -1 */
+		private int nextSet(final int row, final int x) {
+			int w = x >>> 6;
+			if (w >= rowWords) {
+				return -1;
+			}
+			long word = words[row + w] & -1L << x;
+			while (word == 0) {
+				w++;
+				if (w == rowWords) {
+					return -1;
+				}
+				word = words[row + w];
+			}
+			return (w << 6) + Long.numberOfTrailingZeros(word);
+		}
+
+		/**
+		 * Returns the 3&times;3&times;3 neighbourhood of a voxel as a 27-bit mask,
+		 * in (x, y, z) order.
+		 */
+		private int neighbourhood(final int x, final int y, final int z) {
+			int mask = 0;
+			for (int dz = 0; dz < 3; dz++) {
+				for (int dy = 0; dy < 3; dy++) {
+					mask |= triple(row(y + dy - 1, z + dz - 1), x - 1) << (dz * 9 + dy *
+						3);
+				}
+			}
+			return mask;
+		}
+
+		/** Returns the bits x, x + 1 and x + 2 of a row */
+		private int triple(final int row, final int x) {
+			final int w = x >>> 6;
+			final int shift = x & 63;
+			long bits = words[row + w] >>> shift;
+			if (shift > 61 && w + 1 < rowWords) {
+				bits |= words[row + w + 1] << (64 - shift);
+			}
+			return (int) (bits & 7);
+		}
+
+		private void clear(final int x, final int y, final int z) {
+			words[row(y, z) + (x >>> 6)] &= ~(1L << x);
+		}
+	}
+
+	// endregion
+}
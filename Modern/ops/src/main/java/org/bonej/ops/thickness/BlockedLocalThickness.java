@@ -0,0 +1,273 @@
+/*-
+ * #%L
+ * Ops created for BoneJ2
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.ops.thickness;
+
+import static org.bonej.ops.thickness.LocalThickness.columnTransform;
+import static org.bonej.ops.thickness.LocalThickness.distanceRidge;
+import static org.bonej.ops.thickness.LocalThickness.filledPlane;
+import static org.bonej.ops.thickness.LocalThickness.floorSqrt;
+import static org.bonej.ops.thickness.LocalThickness.mapSlice;
+import static org.bonej.ops.thickness.LocalThickness.max;
+import static org.bonej.ops.thickness.LocalThickness.planeTransform;
+import static org.bonej.ops.thickness.LocalThickness.propagateSlice;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import org.bonej.ops.thickness.LocalThickness.LineTransform;
+import org.bonej.ops.thickness.LocalThickness.Moments;
+import org.bonej.ops.thickness.LocalThickness.ThicknessMap;
+
+/**
+ * Local thickness for stacks whose intermediate results don't fit in heap.
+ * <p>
+ * The squared distances are stored in memory-mapped scratch files. The
+ * transform along z runs in bands of rows, and the propagation in slabs of
+ * slices. Each slab reads the sphere centres within the largest radius
+ * around it. The per-slice steps are the same as in {@link LocalThickness},
+ * so the maps are bit-identical.
+ * </p>
+ * <p>
+ * The distance ridge is marked in the scratch file by storing the centres as
+ * the bitwise complement of their squared distance. The distances are never
+ * negative, so the marks don't need any more space.
+ * </p>
+ */
+final class BlockedLocalThickness {
+
+	private BlockedLocalThickness() {}
+
+	static List<ThicknessMap> calculate(final byte[][] pixels, final int width,
+		final int height, final boolean[] foregrounds, final boolean mask,
+		final double pixelSize, final int noResult, final Path directory,
+		final long memoryLimit) throws IOException
+	{
+		final int depth = pixels.length;
+		final MappedSlices[] squares = new MappedSlices[foregrounds.length];
+		try {
+			for (int i = 0; i < foregrounds.length; i++) {
+				squares[i] = MappedSlices.createTemp(directory, ".edt", depth, width *
+					height, true);
+			}
+			distanceTransform(pixels, width, height, foregrounds, noResult, squares,
+				memoryLimit);
+			final List<ThicknessMap> maps = new ArrayList<>(foregrounds.length);
+			for (int i = 0; i < foregrounds.length; i++) {
+				maps.add(createMap(pixels, squares[i], width, height, foregrounds[i],
+					mask, pixelSize, noResult, directory, memoryLimit));
+				squares[i].close();
+				squares[i] = null;
+			}
+			return maps;
+		}
+		finally {
+			for (final MappedSlices phase : squares) {
+				if (phase != null) {
+					phase.close();
+				}
+			}
+		}
+	}
+
+	// region -- Helper methods --
+
+	private static void distanceTransform(final byte[][] pixels,
+		final int width, final int height, final boolean[] foregrounds,
+		final int noResult, final MappedSlices[] squares, final long memoryLimit)
+	{
+		final int depth = pixels.length;
+		IntStream.range(0, depth).parallel().forEach(z -> {
+			final LineTransform line = new LineTransform(height, noResult);
+			for (int i = 0; i < foregrounds.length; i++) {
+				squares[i].write(z, 0, planeTransform(pixels[z], width, height,
+					foregrounds[i], line));
+			}
+		});
+		if (depth == 1) {
+			return;
+		}
+		final long rowBytes = (long) Integer.BYTES * width * depth;
+		final int threads = ForkJoinPool.getCommonPoolParallelism();
+		final int bandRows = (int) Math.max(1, Math.min(height, memoryLimit /
+			(rowBytes * threads)));
+		final int bands = (height + bandRows - 1) / bandRows;
+		IntStream.range(0, bands).parallel().forEach(b -> {
+			final int offset = b * bandRows * width;
+			final int length = Math.min(bandRows, height - b * bandRows) * width;
+			final int[][] band = new int[depth][length];
+			final LineTransform line = new LineTransform(depth, noResult);
+			for (final MappedSlices phase : squares) {
+				for (int z = 0; z < depth; z++) {
+					phase.read(z, offset, band[z]);
+				}
+				columnTransform(band, 0, length, line);
+				for (int z = 0; z < depth; z++) {
+					phase.write(z, offset, band[z]);
+				}
+			}
+		});
+	}
+
+	private static ThicknessMap createMap(final byte[][] pixels,
+		final MappedSlices squares, final int width, final int height,
+		final boolean foreground, final boolean mask, final double pixelSize,
+		final int noResult, final Path directory, final long memoryLimit)
+		throws IOException
+	{
+		final int depth = pixels.length;
+		final int sliceLength = width * height;
+		// The phase fills the stack
+		final boolean full = squares.get(0, 0) == noResult;
+		final int[] sliceMax = new int[depth];
+		if (!full) {
+			markRidge(squares, width, height, sliceMax);
+		}
+		final int radius = floorSqrt(max(sliceMax));
+		final long sliceBytes = (long) Integer.BYTES * sliceLength;
+		final int slab = (int) Math.max(1, Math.min(depth, memoryLimit /
+			sliceBytes - 4));
+		final int[][] centres = new int[depth][];
+		final int[][] centreSquares = new int[depth][];
+		final int[][] radii = new int[depth][];
+		final Moments[] moments = new Moments[depth];
+		final MappedSlices map = MappedSlices.createTemp(directory, ".raw", depth,
+			sliceLength, false);
+		for (int z0 = 0; z0 < depth; z0 += slab) {
+			final int z1 = Math.min(depth, z0 + slab);
+			// The clean-up reads the radii of the slices within two of z
+			final int r0 = Math.max(0, z0 - 2);
+			final int r1 = Math.min(depth, z1 + 2);
+			final int c0 = Math.max(0, r0 - radius);
+			final int c1 = Math.min(depth, r1 + radius);
+			release(radii, r0, r1);
+			release(centres, c0, c1);
+			release(centreSquares, c0, c1);
+			if (!full) {
+				IntStream.range(c0, c1).parallel().filter(zc -> centres[zc] == null)
+					.forEach(zc -> loadCentres(squares, sliceLength, zc, centres,
+						centreSquares));
+			}
+			IntStream.range(r0, r1).parallel().filter(z -> radii[z] == null).forEach(
+				z -> radii[z] = full ? filledPlane(sliceLength, noResult)
+					: propagateSlice(centres, centreSquares, sliceMax, width, height, z,
+						Math.max(0, z - radius), Math.min(depth, z + radius + 1)));
+			IntStream.range(z0, z1).parallel().forEach(z -> {
+				final float[] slice = new float[sliceLength];
+				moments[z] = mapSlice(pixels, radii, width, height, z, foreground,
+					mask, pixelSize, slice);
+				map.write(z, slice);
+			});
+		}
+		map.close();
+		return new ThicknessMap(foreground, null, map.file, sliceLength, Moments
+			.sum(moments));
+	}
+
+	/**
+	 * Marks the sphere centres of each slice in the file, and finds the largest
+	 * squared radius of each slice.
+	 */
+	private static void markRidge(final MappedSlices squares, final int width,
+		final int height, final int[] sliceMax)
+	{
+		final int depth = sliceMax.length;
+		final int sliceLength = width * height;
+		IntStream.range(0, depth).parallel().forEach(z -> {
+			// Other threads may mark the neighbouring slices meanwhile, but the
+			// decoded values stay the same
+			final int[][] planes = new int[depth][];
+			for (int n = Math.max(0, z - 1); n <= Math.min(depth - 1, z + 1); n++) {
+				planes[n] = decodedSlice(squares, sliceLength, n);
+			}
+			final int[] indices = distanceRidge(planes, width, height, z);
+			final int[] plane = planes[z];
+			for (final int i : indices) {
+				sliceMax[z] = Math.max(sliceMax[z], plane[i]);
+				plane[i] = ~plane[i];
+			}
+			squares.write(z, 0, plane);
+		});
+	}
+
+	private static int[] decodedSlice(final MappedSlices squares,
+		final int sliceLength, final int z)
+	{
+		final int[] plane = new int[sliceLength];
+		squares.read(z, 0, plane);
+		for (int i = 0; i < sliceLength; i++) {
+			if (plane[i] < 0) {
+				plane[i] = ~plane[i];
+			}
+		}
+		return plane;
+	}
+
+	private static void loadCentres(final MappedSlices squares,
+		final int sliceLength, final int z, final int[][] centres,
+		final int[][] centreSquares)
+	{
+		final int[] plane = new int[sliceLength];
+		squares.read(z, 0, plane);
+		int n = 0;
+		for (final int value : plane) {
+			if (value < 0) {
+				n++;
+			}
+		}
+		final int[] indices = new int[n];
+		final int[] values = new int[n];
+		n = 0;
+		for (int i = 0; i < sliceLength; i++) {
+			if (plane[i] < 0) {
+				indices[n] = i;
+				values[n] = ~plane[i];
+				n++;
+			}
+		}
+		centres[z] = indices;
+		centreSquares[z] = values;
+	}
+
+	/** Drops the slices outside [from, to) */
+	private static void release(final int[][] slices, final int from,
+		final int to)
+	{
+		for (int z = 0; z < slices.length; z++) {
+			if (z < from || z >= to) {
+				slices[z] = null;
+			}
+		}
+	}
+
+	// endregion
+}
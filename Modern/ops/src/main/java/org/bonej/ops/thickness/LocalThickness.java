@@ -0,0 +1,832 @@
+/*-
+ * #%L
+ * Ops created for BoneJ2
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.ops.thickness;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Calculates local thickness maps of binary 8-bit stacks.
+ * <p>
+ * The local thickness of a point is the diameter of the largest sphere that
+ * fits inside the phase and contains the point (Hildebrand &amp; R&uuml;egsegger,
+ * 1997). The steps follow the LocalThickness plugin of Dougherty &amp;
+ * Kunzelmann: a squared Euclidean distance transform, a distance ridge of
+ * sphere centres, sphere propagation and a clean-up of the surface pixels.
+ * Each step runs in parallel over slices or lines of the stack, and the
+ * foreground and background share the passes when both maps are requested.
+ * </p>
+ * <p>
+ * Pixels with a value of 128 or more are foreground. Like in LocalThickness,
+ * the edges of the stack don't count as background.
+ * </p>
+ */
+public final class LocalThickness {
+
+	private static final int FOREGROUND_THRESHOLD = 128;
+	/**
+	 * Offsets (dx, dy, dz) of the 26-neighbourhood, and their squared distances
+	 */
+	private static final int[][] NEIGHBOURS = neighbours();
+
+	private LocalThickness() {}
+
+	/**
+	 * Calculates thickness maps of the foreground and/or background.
+	 *
+	 * @param pixels the slices of a binary 8-bit stack.
+	 * @param width width of the slices.
+	 * @param height height of the slices.
+	 * @param phases for each map, true for the thickness of the foreground, and
+	 *          false for the thickness of the background.
+	 * @param mask if true, the maps only have values in their phase. Otherwise
+	 *          the spheres can spill over to the neighbouring pixels like in
+	 *          LocalThickness.
+	 * @param pixelSize size of a pixel, to calibrate the thickness values.
+	 * @return one map for each of the phases, in the same order.
+	 * @throws IllegalArgumentException if there are no slices, the slices don't
+	 *           match the dimensions, or the stack is too large for the
+	 *           distance transform.
+	 */
+	public static List<ThicknessMap> calculate(final byte[][] pixels,
+		final int width, final int height, final List<Boolean> phases,
+		final boolean mask, final double pixelSize)
+	{
+		validate(pixels, width, height);
+		final int noResult = noResult(width, height, pixels.length);
+		final boolean[] foregrounds = toArray(phases);
+		final int[][][] squares = distanceTransform(pixels, width, height,
+			foregrounds, noResult);
+		final List<ThicknessMap> maps = new ArrayList<>(foregrounds.length);
+		for (int i = 0; i < foregrounds.length; i++) {
+			final int[][] radii = propagate(squares[i], width, height, noResult);
+			squares[i] = null;
+			maps.add(createMap(pixels, radii, width, height, foregrounds[i], mask,
+				pixelSize));
+		}
+		return maps;
+	}
+
+	/**
+	 * Calculates thickness maps of the foreground and/or background in blocks
+	 * that fit the given memory limit.
+	 * <p>
+	 * The distance transform and the maps are stored in memory-mapped files in
+	 * the given directory, and the sphere propagation runs in slabs of slices
+	 * with halos as thick as the largest sphere radius. The maps are
+	 * bit-identical to those of
+	 * {@link #calculate(byte[][], int, int, List, boolean, double)}, but their
+	 * {@link ThicknessMap#pixels} are null, and the slices are in
+	 * {@link ThicknessMap#file}. The files of the maps are deleted when the VM
+	 * exits.
+	 * </p>
+	 *
+	 * @param pixels the slices of a binary 8-bit stack.
+	 * @param width width of the slices.
+	 * @param height height of the slices.
+	 * @param phases for each map, true for the thickness of the foreground, and
+	 *          false for the thickness of the background.
+	 * @param mask if true, the maps only have values in their phase.
+	 * @param pixelSize size of a pixel, to calibrate the thickness values.
+	 * @param directory directory for the scratch files and the maps.
+	 * @param memoryLimit how many bytes the intermediate blocks may take in
+	 *          heap, approximately.
+	 * @return one map for each of the phases, in the same order.
+	 * @throws IOException if the scratch files can't be created or written.
+	 * @throws IllegalArgumentException if there are no slices, the slices don't
+	 *           match the dimensions, or the stack is too large for the
+	 *           distance transform.
+	 * @see #inMemoryBytes(long, long, long, int)
+	 */
+	public static List<ThicknessMap> calculateBlocked(final byte[][] pixels,
+		final int width, final int height, final List<Boolean> phases,
+		final boolean mask, final double pixelSize, final Path directory,
+		final long memoryLimit) throws IOException
+	{
+		validate(pixels, width, height);
+		final int noResult = noResult(width, height, pixels.length);
+		return BlockedLocalThickness.calculate(pixels, width, height, toArray(
+			phases), mask, pixelSize, noResult, directory, memoryLimit);
+	}
+
+	/**
+	 * Estimates how much heap
+	 * {@link #calculate(byte[][], int, int, List, boolean, double)} needs in
+	 * addition to the input stack.
+	 *
+	 * @param width width of the stack.
+	 * @param height height of the stack.
+	 * @param depth number of slices in the stack.
+	 * @param phases number of maps calculated.
+	 * @return memory needed in bytes.
+	 */
+	public static long inMemoryBytes(final long width, final long height,
+		final long depth, final int phases)
+	{
+		// distance transforms and maps for each phase, and the propagated radii
+		return width * height * depth * (Integer.BYTES * (2L * phases + 1));
+	}
+
+	/**
+	 * A calibrated local thickness map, and its statistics.
+	 * <p>
+	 * The pixels without a thickness value are NaN, and they're not included in
+	 * the statistics. If there are no pixels with a value, the statistics are
+	 * NaN.
+	 * </p>
+	 */
+	public static final class ThicknessMap {
+
+		/** True if the map shows the thickness of the foreground */
+		public final boolean foreground;
+		/** The slices of the map, or null if the map is in a file */
+		public final float[][] pixels;
+		/**
+		 * A raw file of little-endian 32-bit floats with the slices of the map,
+		 * or null if the map is in memory
+		 */
+		public final Path file;
+		/** Number of pixels with a thickness value */
+		public final long count;
+		public final double mean;
+		/** Sample standard deviation of the thickness values */
+		public final double stdDev;
+		public final double max;
+		private final int sliceLength;
+
+		ThicknessMap(final boolean foreground, final float[][] pixels,
+			final Path file, final int sliceLength, final Moments moments)
+		{
+			this.foreground = foreground;
+			this.pixels = pixels;
+			this.file = file;
+			this.sliceLength = sliceLength;
+			count = moments.count;
+			if (count == 0) {
+				mean = Double.NaN;
+				stdDev = Double.NaN;
+				max = Double.NaN;
+				return;
+			}
+			mean = moments.mean;
+			stdDev = count > 1 ? Math.sqrt(moments.m2 / (count - 1)) : 0.0;
+			max = moments.max;
+		}
+
+		/**
+		 * Returns a slice of the map, from memory or from the file.
+		 *
+		 * @param z index of the slice.
+		 * @return the pixels of the slice.
+		 * @throws IOException if reading the file fails.
+		 */
+		public float[] getSlice(final int z) throws IOException {
+			if (pixels != null) {
+				return pixels[z];
+			}
+			final long bytes = (long) Float.BYTES * sliceLength;
+			try (final FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ))
+			{
+				final float[] slice = new float[sliceLength];
+				channel.map(FileChannel.MapMode.READ_ONLY, z * bytes, bytes).order(
+					ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(slice);
+				return slice;
+			}
+		}
+	}
+
+	// region -- Helper methods --
+
+	private static void validate(final byte[][] pixels, final int width,
+		final int height)
+	{
+		if (pixels.length == 0) {
+			throw new IllegalArgumentException("Stack has no slices");
+		}
+		for (final byte[] plane : pixels) {
+			if (plane == null || plane.length != width * height) {
+				throw new IllegalArgumentException(
+					"Slices don't match the dimensions");
+			}
+		}
+	}
+
+	private static boolean[] toArray(final List<Boolean> phases) {
+		final boolean[] foregrounds = new boolean[phases.size()];
+		for (int i = 0; i < foregrounds.length; i++) {
+			foregrounds[i] = phases.get(i);
+		}
+		return foregrounds;
+	}
+
+	/**
+	 * Returns the squared distance LocalThickness gives to pixels that have no
+	 * pixel of the other phase in the whole stack.
+	 */
+	private static int noResult(final int width, final int height,
+		final int depth)
+	{
+		final long n = Math.max(width, Math.max(height, depth)) + 1L;
+		final long noResult = 3 * n * n;
+		if (noResult > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(
+				"Stack is too large for the distance transform");
+		}
+		return (int) noResult;
+	}
+
+	/**
+	 * Squared Euclidean distances from each pixel of a phase to the nearest
+	 * pixel of the other phase.
+	 * <p>
+	 * The transform is separable (Saito &amp; Toriwaki, 1994): exact distances
+	 * along x, and then the lower envelope of parabolas along y and z
+	 * (Felzenszwalb &amp; Huttenlocher, 2012). All phases are transformed in the
+	 * same passes.
+	 * </p>
+	 *
+	 * @return squared distances for each phase, in [phase][z][x + y * width]
+	 *         order.
+	 */
+	private static int[][][] distanceTransform(final byte[][] pixels,
+		final int width, final int height, final boolean[] foregrounds,
+		final int noResult)
+	{
+		final int depth = pixels.length;
+		final int[][][] squares = new int[foregrounds.length][depth][];
+		IntStream.range(0, depth).parallel().forEach(z -> {
+			final LineTransform line = new LineTransform(height, noResult);
+			for (int i = 0; i < foregrounds.length; i++) {
+				squares[i][z] = planeTransform(pixels[z], width, height,
+					foregrounds[i], line);
+			}
+		});
+		if (depth == 1) {
+			return squares;
+		}
+		IntStream.range(0, height).parallel().forEach(y -> {
+			final LineTransform line = new LineTransform(depth, noResult);
+			for (final int[][] phase : squares) {
+				columnTransform(phase, y * width, (y + 1) * width, line);
+			}
+		});
+		return squares;
+	}
+
+	/**
+	 * Transforms a slice along x and y.
+	 *
+	 * @param line a transform at least as long as the height of the slice.
+	 * @return squared distances in the plane of the slice.
+	 */
+	static int[] planeTransform(final byte[] plane, final int width,
+		final int height, final boolean foreground, final LineTransform line)
+	{
+		final int[] squares = rowTransform(plane, width, foreground,
+			(int) line.noResult);
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				line.f[y] = squares[x + y * width];
+			}
+			if (line.transform(height)) {
+				for (int y = 0; y < height; y++) {
+					squares[x + y * width] = (int) line.g[y];
+				}
+			}
+		}
+		return squares;
+	}
+
+	/**
+	 * Transforms the pixels [from, to) of the slices along z, in place.
+	 *
+	 * @param line a transform at least as long as the number of slices.
+	 */
+	static void columnTransform(final int[][] slices, final int from,
+		final int to, final LineTransform line)
+	{
+		final int depth = slices.length;
+		for (int i = from; i < to; i++) {
+			for (int z = 0; z < depth; z++) {
+				line.f[z] = slices[z][i];
+			}
+			if (line.transform(depth)) {
+				for (int z = 0; z < depth; z++) {
+					slices[z][i] = (int) line.g[z];
+				}
+			}
+		}
+	}
+
+	private static int[] rowTransform(final byte[] plane, final int width,
+		final boolean foreground, final int noResult)
+	{
+		final int[] squares = new int[plane.length];
+		for (int offset = 0; offset < plane.length; offset += width) {
+			int nearest = -1;
+			for (int x = 0; x < width; x++) {
+				if (!inPhase(plane[offset + x], foreground)) {
+					nearest = x;
+				}
+				else {
+					squares[offset + x] = nearest < 0 ? noResult : square(x - nearest);
+				}
+			}
+			nearest = -1;
+			for (int x = width - 1; x >= 0; x--) {
+				if (!inPhase(plane[offset + x], foreground)) {
+					nearest = x;
+				}
+				else if (nearest >= 0) {
+					squares[offset + x] = Math.min(squares[offset + x], square(nearest -
+						x));
+				}
+			}
+		}
+		return squares;
+	}
+
+	/**
+	 * Finds the sphere centres, and fills each pixel with the largest squared
+	 * radius of the spheres that contain it.
+	 */
+	private static int[][] propagate(final int[][] squares, final int width,
+		final int height, final int noResult)
+	{
+		final int depth = squares.length;
+		final int[][] radii = new int[depth][];
+		if (squares[0][0] == noResult) {
+			// The phase fills the stack
+			IntStream.range(0, depth).parallel().forEach(z -> radii[z] = filledPlane(
+				width * height, noResult));
+			return radii;
+		}
+		final int[][] centres = new int[depth][];
+		final int[][] centreSquares = new int[depth][];
+		final int[] sliceMax = new int[depth];
+		IntStream.range(0, depth).parallel().forEach(z -> {
+			centres[z] = distanceRidge(squares, width, height, z);
+			centreSquares[z] = valuesAt(squares[z], centres[z]);
+			sliceMax[z] = max(centreSquares[z]);
+		});
+		IntStream.range(0, depth).parallel().forEach(z -> radii[z] =
+			propagateSlice(centres, centreSquares, sliceMax, width, height, z, 0,
+				depth));
+		return radii;
+	}
+
+	/**
+	 * Fills a slice with the largest squared radius of the spheres that contain
+	 * each pixel.
+	 *
+	 * @param centres indices of the sphere centres in each slice.
+	 * @param centreSquares squared radii of the spheres.
+	 * @param sliceMax largest squared radius in each slice.
+	 * @param z index of the slice filled.
+	 * @param from first slice of centres checked.
+	 * @param to end of the slices of centres checked (exclusive). The result
+	 *          is the same for any range that includes the slices within the
+	 *          largest radius from z.
+	 * @return the squared radii in the slice.
+	 */
+	static int[] propagateSlice(final int[][] centres,
+		final int[][] centreSquares, final int[] sliceMax, final int width,
+		final int height, final int z, final int from, final int to)
+	{
+		final int[] plane = new int[width * height];
+		for (int zc = from; zc < to; zc++) {
+			final long dz2 = square(zc - z);
+			if (dz2 > sliceMax[zc]) {
+				continue;
+			}
+			final int[] indices = centres[zc];
+			final int[] r2s = centreSquares[zc];
+			for (int k = 0; k < indices.length; k++) {
+				final int i = indices[k];
+				fillDisc(plane, width, height, i % width, i / width, r2s[k] - dz2,
+					r2s[k]);
+			}
+		}
+		return plane;
+	}
+
+	static int[] filledPlane(final int length, final int value) {
+		final int[] plane = new int[length];
+		Arrays.fill(plane, value);
+		return plane;
+	}
+
+	static int[] valuesAt(final int[] plane, final int[] indices) {
+		final int[] values = new int[indices.length];
+		for (int k = 0; k < indices.length; k++) {
+			values[k] = plane[indices[k]];
+		}
+		return values;
+	}
+
+	static int max(final int[] values) {
+		int max = 0;
+		for (final int value : values) {
+			max = Math.max(max, value);
+		}
+		return max;
+	}
+
+	/**
+	 * Writes value to the pixels of a disc, unless they already have a larger
+	 * one.
+	 */
+	private static void fillDisc(final int[] plane, final int width,
+		final int height, final int cx, final int cy, final long r2,
+		final int value)
+	{
+		if (r2 < 0) {
+			return;
+		}
+		final int ry = floorSqrt(r2);
+		final int y0 = Math.max(0, cy - ry);
+		final int y1 = Math.min(height - 1, cy + ry);
+		for (int y = y0; y <= y1; y++) {
+			final int rx = floorSqrt(r2 - square(y - cy));
+			final int x0 = Math.max(0, cx - rx);
+			final int x1 = Math.min(width - 1, cx + rx);
+			final int row = y * width;
+			for (int x = row + x0; x <= row + x1; x++) {
+				if (plane[x] < value) {
+					plane[x] = value;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the pixels of a slice whose spheres are not inside the sphere of a
+	 * neighbour.
+	 * <p>
+	 * The other spheres don't change the thickness map, because the pixels
+	 * inside them get the larger value of the neighbour anyway.
+	 * </p>
+	 *
+	 * @param squares squared distances. Only the slices next to z are read.
+	 * @return indices of the centres in the slice.
+	 */
+	static int[] distanceRidge(final int[][] squares, final int width,
+		final int height, final int z)
+	{
+		final int[] plane = squares[z];
+		int[] found = new int[64];
+		int n = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				final int r2 = plane[x + y * width];
+				if (r2 == 0 || isContained(squares, width, height, x, y, z, r2)) {
+					continue;
+				}
+				if (n == found.length) {
+					found = Arrays.copyOf(found, 2 * n);
+				}
+				found[n++] = x + y * width;
+			}
+		}
+		return Arrays.copyOf(found, n);
+	}
+
+	/**
+	 * Checks if the sphere of a pixel is inside the sphere of a neighbour.
+	 * <p>
+	 * With the squared radii r<sup>2</sup> and R<sup>2</sup>, and the squared
+	 * distance m to the neighbour, R &ge; r + &radic;m if and only if
+	 * R<sup>2</sup> - r<sup>2</sup> - m &ge; 0 and (R<sup>2</sup> - r<sup>2</sup>
+	 * - m)<sup>2</sup> &ge; 4 r<sup>2</sup> m. The test is exact in integers, so
+	 * spheres that touch the neighbour's sphere from inside are found too.
+	 * </p>
+	 */
+	private static boolean isContained(final int[][] squares, final int width,
+		final int height, final int x, final int y, final int z, final int r2)
+	{
+		for (final int[] offset : NEIGHBOURS) {
+			final int nx = x + offset[0];
+			final int ny = y + offset[1];
+			final int nz = z + offset[2];
+			if (nx < 0 || nx >= width || ny < 0 || ny >= height || nz < 0 ||
+				nz >= squares.length)
+			{
+				continue;
+			}
+			final long m = offset[3];
+			final long a = (long) squares[nz][nx + ny * width] - r2 - m;
+			if (a >= 0 && a * a >= 4L * r2 * m) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Converts the squared radii to calibrated diameters, cleans up the surface
+	 * pixels, and collects the statistics.
+	 */
+	private static ThicknessMap createMap(final byte[][] pixels,
+		final int[][] radii, final int width, final int height,
+		final boolean foreground, final boolean mask, final double pixelSize)
+	{
+		final int depth = pixels.length;
+		final float[][] map = new float[depth][];
+		final Moments[] moments = new Moments[depth];
+		IntStream.range(0, depth).parallel().forEach(z -> {
+			map[z] = new float[width * height];
+			moments[z] = mapSlice(pixels, radii, width, height, z, foreground, mask,
+				pixelSize, map[z]);
+		});
+		return new ThicknessMap(foreground, map, null, width * height, Moments.sum(
+			moments));
+	}
+
+	/**
+	 * Writes one slice of a thickness map.
+	 * <p>
+	 * Like in LocalThickness, the clean-up works on the propagated map, where
+	 * the spheres may have spilled into the other phase. The pixels of the map
+	 * with a 26-neighbour outside all spheres are on its surface, and they get
+	 * the mean thickness of their neighbours inside the surface, because the
+	 * spheres there are too small to represent the structure. Only then is the
+	 * map masked with the phase.
+	 * </p>
+	 *
+	 * @param radii squared radii. Only the slices within two of z are read.
+	 * @param map the slice of the map.
+	 * @return statistics of the slice.
+	 */
+	static Moments mapSlice(final byte[][] pixels, final int[][] radii,
+		final int width, final int height, final int z, final boolean foreground,
+		final boolean mask, final double pixelSize, final float[] map)
+	{
+		final Moments moments = new Moments();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				final int i = x + y * width;
+				final float value;
+				if (radii[z][i] == 0 || (mask && !inPhase(pixels[z][i], foreground))) {
+					value = Float.NaN;
+				}
+				else if (isSurface(radii, width, height, x, y, z)) {
+					value = surfaceValue(radii, width, height, x, y, z, pixelSize);
+				}
+				else {
+					value = diameter(radii[z][i], pixelSize);
+				}
+				map[i] = value;
+				if (!Float.isNaN(value)) {
+					moments.add(value);
+				}
+			}
+		}
+		return moments;
+	}
+
+	private static float surfaceValue(final int[][] radii, final int width,
+		final int height, final int x, final int y, final int z,
+		final double pixelSize)
+	{
+		double sum = 0.0;
+		int n = 0;
+		for (final int[] offset : NEIGHBOURS) {
+			final int nx = x + offset[0];
+			final int ny = y + offset[1];
+			final int nz = z + offset[2];
+			if (nx < 0 || nx >= width || ny < 0 || ny >= height || nz < 0 ||
+				nz >= radii.length)
+			{
+				continue;
+			}
+			final int r2 = radii[nz][nx + ny * width];
+			if (r2 != 0 && !isSurface(radii, width, height, nx, ny, nz)) {
+				sum += diameter(r2, pixelSize);
+				n++;
+			}
+		}
+		if (n == 0) {
+			return diameter(radii[z][x + y * width], pixelSize);
+		}
+		return (float) (sum / n);
+	}
+
+	/**
+	 * Checks if a pixel of the map has a 26-neighbour that no sphere covers.
+	 * The edges of the stack don't count.
+	 */
+	private static boolean isSurface(final int[][] radii, final int width,
+		final int height, final int x, final int y, final int z)
+	{
+		for (final int[] offset : NEIGHBOURS) {
+			final int nx = x + offset[0];
+			final int ny = y + offset[1];
+			final int nz = z + offset[2];
+			if (nx < 0 || nx >= width || ny < 0 || ny >= height || nz < 0 ||
+				nz >= radii.length)
+			{
+				continue;
+			}
+			if (radii[nz][nx + ny * width] == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static float diameter(final int r2, final double pixelSize) {
+		return (float) (2.0 * Math.sqrt(r2) * pixelSize);
+	}
+
+	private static boolean inPhase(final byte pixel, final boolean foreground) {
+		return ((pixel & 0xFF) >= FOREGROUND_THRESHOLD) == foreground;
+	}
+
+	private static int square(final int i) {
+		return i * i;
+	}
+
+	static int floorSqrt(final long v) {
+		int r = (int) Math.sqrt(v);
+		while ((long) r * r > v) {
+			r--;
+		}
+		while ((long) (r + 1) * (r + 1) <= v) {
+			r++;
+		}
+		return r;
+	}
+
+	private static int[][] neighbours() {
+		final int[][] offsets = new int[26][];
+		int n = 0;
+		for (int dz = -1; dz <= 1; dz++) {
+			for (int dy = -1; dy <= 1; dy++) {
+				for (int dx = -1; dx <= 1; dx++) {
+					if (dx != 0 || dy != 0 || dz != 0) {
+						offsets[n++] = new int[] { dx, dy, dz, dx * dx + dy * dy + dz *
+							dz };
+					}
+				}
+			}
+		}
+		return offsets;
+	}
+
+	/**
+	 * The lower envelope of parabolas for one line of the distance transform.
+	 * <p>
+	 * Squared distances are capped at the "no result" value of LocalThickness,
+	 * so that pixels without a pixel of the other phase in the stack get the
+	 * same value as there.
+	 * </p>
+	 */
+	static final class LineTransform {
+
+		private final long[] f;
+		private final long[] g;
+		private final int[] vertices;
+		private final double[] bounds;
+		private final long noResult;
+
+		LineTransform(final int length, final long noResult) {
+			f = new long[length];
+			g = new long[length];
+			vertices = new int[length];
+			bounds = new double[length + 1];
+			this.noResult = noResult;
+		}
+
+		/**
+		 * Transforms the first n values of f into g.
+		 *
+		 * @return false if the line has no pixels of the phase, and g was not
+		 *         written.
+		 */
+		private boolean transform(final int n) {
+			boolean empty = true;
+			for (int q = 0; q < n; q++) {
+				if (f[q] != 0) {
+					empty = false;
+					break;
+				}
+			}
+			if (empty) {
+				return false;
+			}
+			int k = 0;
+			vertices[0] = 0;
+			bounds[0] = Double.NEGATIVE_INFINITY;
+			bounds[1] = Double.POSITIVE_INFINITY;
+			for (int q = 1; q < n; q++) {
+				double s = intersection(vertices[k], q);
+				while (s <= bounds[k]) {
+					k--;
+					s = intersection(vertices[k], q);
+				}
+				k++;
+				vertices[k] = q;
+				bounds[k] = s;
+				bounds[k + 1] = Double.POSITIVE_INFINITY;
+			}
+			k = 0;
+			for (int q = 0; q < n; q++) {
+				while (bounds[k + 1] < q) {
+					k++;
+				}
+				final long dq = q - vertices[k];
+				g[q] = Math.min(noResult, f[vertices[k]] + dq * dq);
+			}
+			return true;
+		}
+
+		private double intersection(final int p, final int q) {
+			return ((f[q] + (long) q * q) - (f[p] + (long) p * p)) / (2.0 * (q -
+				p));
+		}
+	}
+
+	/**
+	 * Running mean, sum of squared deviations and maximum (Welford's method).
+	 */
+	static final class Moments {
+
+		private long count;
+		private double mean;
+		private double m2;
+		private double max = Double.NEGATIVE_INFINITY;
+
+		private void add(final double value) {
+			count++;
+			final double delta = value - mean;
+			mean += delta / count;
+			m2 += delta * (value - mean);
+			max = Math.max(max, value);
+		}
+
+		/**
+		 * Merges the moments of the slices in order, so that the result doesn't
+		 * depend on how the slices were split between threads.
+		 */
+		static Moments sum(final Moments[] slices) {
+			Moments sum = new Moments();
+			for (final Moments slice : slices) {
+				sum = sum.merge(slice);
+			}
+			return sum;
+		}
+
+		private Moments merge(final Moments other) {
+			if (other.count == 0) {
+				return this;
+			}
+			if (count == 0) {
+				return other;
+			}
+			final Moments merged = new Moments();
+			merged.count = count + other.count;
+			final double delta = other.mean - mean;
+			merged.mean = mean + delta * other.count / merged.count;
+			merged.m2 = m2 + other.m2 + delta * delta * count * other.count /
+				merged.count;
+			merged.max = Math.max(max, other.max);
+			return merged;
+		}
+	}
+
+	// endregion
+}
@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * Ops created for BoneJ2
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.ops.thickness;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A stack of 32-bit slices in a memory-mapped file.
+ * <p>
+ * Each slice is mapped separately, so that the operating system can page the
+ * stack in and out of memory as needed. The values are little-endian, and the
+ * slices are stored one after another without gaps. Separate slices, or
+ * separate parts of a slice, can be read and written from several threads.
+ * </p>
+ */
+final class MappedSlices implements Closeable {
+
+	final Path file;
+	private final ByteBuffer[] slices;
+	private final boolean deleteOnClose;
+
+	/**
+	 * Creates a new file for the stack.
+	 *
+	 * @param file path of the file.
+	 * @param depth number of slices.
+	 * @param sliceLength number of values in a slice.
+	 * @param deleteOnClose true if the file is scratch, and should be deleted by
+	 *          {@link #close()}.
+	 * @throws IOException if the file can't be created or mapped.
+	 */
+	MappedSlices(final Path file, final int depth, final int sliceLength,
+		final boolean deleteOnClose) throws IOException
+	{
+		this.file = file;
+		this.deleteOnClose = deleteOnClose;
+		slices = new ByteBuffer[depth];
+		final long bytes = (long) Integer.BYTES * sliceLength;
+		try (final FileChannel channel = FileChannel.open(file,
+			StandardOpenOption.CREATE, StandardOpenOption.READ,
+			StandardOpenOption.WRITE))
+		{
+			// The mappings stay valid after the channel is closed
+			for (int z = 0; z < depth; z++) {
+				slices[z] = channel.map(FileChannel.MapMode.READ_WRITE, z * bytes,
+					bytes).order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+	}
+
+	void read(final int z, final int offset, final int[] values) {
+		read(z, offset, values, 0, values.length);
+	}
+
+	void read(final int z, final int offset, final int[] values,
+		final int from, final int length)
+	{
+		final IntBuffer buffer = slices[z].asIntBuffer();
+		buffer.position(offset);
+		buffer.get(values, from, length);
+	}
+
+	void write(final int z, final int offset, final int[] values) {
+		write(z, offset, values, 0, values.length);
+	}
+
+	void write(final int z, final int offset, final int[] values,
+		final int from, final int length)
+	{
+		final IntBuffer buffer = slices[z].asIntBuffer();
+		buffer.position(offset);
+		buffer.put(values, from, length);
+	}
+
+	void write(final int z, final float[] values) {
+		slices[z].asFloatBuffer().put(values);
+	}
+
+	int get(final int z, final int index) {
+		return slices[z].getInt(Integer.BYTES * index);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (deleteOnClose) {
+			// Fails on some platforms while the file is still mapped
+			if (!file.toFile().delete()) {
+				file.toFile().deleteOnExit();
+			}
+		}
+	}
+
+	static MappedSlices createTemp(final Path directory, final String suffix,
+		final int depth, final int sliceLength, final boolean scratch)
+		throws IOException
+	{
+		Files.createDirectories(directory);
+		final Path file = Files.createTempFile(directory, "thickness", suffix);
+		if (!scratch) {
+			file.toFile().deleteOnExit();
+		}
+		return new MappedSlices(file, depth, sliceLength, scratch);
+	}
+}
@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * Ops created for BoneJ2
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.ops.connectivity;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.imagej.ops.AbstractOpTest;
+import net.imagej.ops.Ops.Topology.EulerCharacteristic26NFloating;
+import net.imagej.ops.Ops.Topology.EulerCorrection;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.DoubleType;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link EulerConnectivity}.
+ */
+public class EulerConnectivityTest extends AbstractOpTest {
+
+	@Test
+	public void testCubeInsideStack() {
+		final byte[][] pixels = new byte[7][7 * 7];
+		for (int z = 2; z < 5; z++) {
+			for (int y = 2; y < 5; y++) {
+				for (int x = 2; x < 5; x++) {
+					pixels[z][x + y * 7] = (byte) 0xFF;
+				}
+			}
+		}
+
+		final EulerConnectivity.Result result = EulerConnectivity.sweep(pixels, 7,
+			7);
+
+		assertEquals(1.0, result.getEulerCharacteristic(), 0.0);
+		assertEquals(0.0, result.getEdgeCorrection(), 0.0);
+	}
+
+	@Test
+	public void testRingHasNoEulerCharacteristic() {
+		final byte[][] pixels = new byte[3][8 * 8];
+		for (int y = 1; y < 7; y++) {
+			for (int x = 1; x < 7; x++) {
+				if (x == 1 || x == 6 || y == 1 || y == 6) {
+					pixels[1][x + y * 8] = (byte) 0xFF;
+				}
+			}
+		}
+
+		final EulerConnectivity.Result result = EulerConnectivity.sweep(pixels, 8,
+			8);
+
+		assertEquals(0.0, result.getEulerCharacteristic(), 0.0);
+	}
+
+	@Test
+	public void testFullStackIsCorrectedToZero() {
+		final byte[][] pixels = new byte[5][5 * 5];
+		for (final byte[] slice : pixels) {
+			Arrays.fill(slice, (byte) 0xFF);
+		}
+
+		final EulerConnectivity.Result result = EulerConnectivity.sweep(pixels, 5,
+			5);
+
+		assertEquals(1.0, result.getEulerCharacteristic(), 0.0);
+		assertEquals(0.0, result.getEulerCharacteristic() - result
+			.getEdgeCorrection(), 0.0);
+	}
+
+	@Test
+	public void testOpMatchesTopologyOps() {
+		final Random random = new Random(0xC0FFEE);
+		final PlanarImg<UnsignedByteType, ?> bytes = PlanarImgs.unsignedBytes(13,
+			11, 9);
+		final Img<BitType> bits = ArrayImgs.bits(13, 11, 9);
+		final Cursor<UnsignedByteType> byteCursor = bytes.cursor();
+		final Cursor<BitType> bitCursor = bits.cursor();
+		while (byteCursor.hasNext()) {
+			final boolean foreground = random.nextDouble() < 0.4;
+			byteCursor.next().set(foreground ? 255 : 0);
+			bitCursor.next().set(foreground);
+		}
+		final double expectedEuler = ((DoubleType) ops.run(
+			EulerCharacteristic26NFloating.class, bits)).get();
+		final double expectedCorrection = ((DoubleType) ops.run(
+			EulerCorrection.class, bits)).get();
+
+		final EulerConnectivity.Result fromBytes = (EulerConnectivity.Result) ops
+			.run(EulerConnectivity.class, bytes);
+		final EulerConnectivity.Result fromBits = (EulerConnectivity.Result) ops
+			.run(EulerConnectivity.class, bits);
+
+		assertEquals(expectedEuler, fromBytes.getEulerCharacteristic(), 1e-12);
+		assertEquals(expectedCorrection, fromBytes.getEdgeCorrection(), 1e-12);
+		assertEquals(expectedEuler, fromBits.getEulerCharacteristic(), 1e-12);
+		assertEquals(expectedCorrection, fromBits.getEdgeCorrection(), 1e-12);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSweepThrowsIfSliceSizeWrong() {
+		EulerConnectivity.sweep(new byte[2][10], 3, 3);
+	}
+}
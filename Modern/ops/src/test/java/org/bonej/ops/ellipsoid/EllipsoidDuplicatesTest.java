@@ -0,0 +1,274 @@
+/*-
+ * #%L
+ * Ops created for BoneJ2
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.ops.ellipsoid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import net.imagej.ops.AbstractOpTest;
+
+import org.bonej.ops.ellipsoid.constrain.NoEllipsoidConstrain;
+import org.joml.Vector3d;
+import org.junit.Test;
+
+public class EllipsoidDuplicatesTest extends AbstractOpTest {
+
+    private static final double[][] IDENTITY = {{1, 0, 0}, {0, 1, 0}, {0, 0, 1}};
+
+    @Test
+    public void testCollapseRemovesEllipsoidInsideLarger() {
+        final byte[][] pixels = box(30, 30, 30, 0);
+        final QuickEllipsoid large = new QuickEllipsoid(new double[]{8, 8, 8}, new double[]{15, 15, 15}, IDENTITY);
+        final QuickEllipsoid inside = new QuickEllipsoid(new double[]{3, 4, 5}, new double[]{14, 15, 16}, IDENTITY);
+        final QuickEllipsoid overlapping = new QuickEllipsoid(new double[]{3, 3, 3}, new double[]{21, 15, 15},
+                IDENTITY);
+
+        final List<QuickEllipsoid> collapsed = EllipsoidDuplicates.collapse(Arrays.asList(large, inside, overlapping),
+                pixels, 30, 30, 1);
+
+        assertEquals(Arrays.asList(large, overlapping), collapsed);
+    }
+
+    @Test
+    public void testCollapseKeepsEllipsoidsAveragedOver() {
+        final byte[][] pixels = box(30, 30, 30, 0);
+        final QuickEllipsoid first = new QuickEllipsoid(new double[]{8, 8, 8}, new double[]{14, 15, 15}, IDENTITY);
+        final QuickEllipsoid second = new QuickEllipsoid(new double[]{8, 8, 8}, new double[]{16, 15, 15}, IDENTITY);
+        final QuickEllipsoid insideFirst = new QuickEllipsoid(new double[]{2, 2, 2}, new double[]{9, 15, 15},
+                IDENTITY);
+        final QuickEllipsoid insideBoth = new QuickEllipsoid(new double[]{2, 2, 2}, new double[]{15, 15, 15},
+                IDENTITY);
+        final List<QuickEllipsoid> ellipsoids = Arrays.asList(first, second, insideFirst, insideBoth);
+
+        final List<QuickEllipsoid> collapsed = EllipsoidDuplicates.collapse(ellipsoids, pixels, 30, 30, 2);
+
+        assertEquals(Arrays.asList(first, second, insideFirst), collapsed);
+    }
+
+    @Test
+    public void testCollapseIgnoresBackground() {
+        // foreground is a 20 x 20 x 20 cube in the middle
+        final byte[][] pixels = box(30, 30, 30, 5);
+        final QuickEllipsoid large = new QuickEllipsoid(new double[]{18, 18, 18}, new double[]{15, 15, 15},
+                IDENTITY);
+        // reaches out of the large ellipsoid only outside the cube
+        final QuickEllipsoid corner = new QuickEllipsoid(new double[]{4, 4, 4}, new double[]{3, 3, 3}, IDENTITY);
+
+        final List<QuickEllipsoid> collapsed = EllipsoidDuplicates.collapse(Arrays.asList(large, corner), pixels, 30,
+                30, 1);
+
+        assertTrue("Sanity check failed: corner is inside the large ellipsoid", !large.contains(2.5, 2.5, 2.5) &&
+                corner.contains(2.5, 2.5, 2.5));
+        assertEquals(Collections.singletonList(large), collapsed);
+    }
+
+    /**
+     * Checks that an ellipsoid doesn't hide others in the slices it isn't assigned to, i.e. where the slice is
+     * its largest radius or further from its centre.
+     */
+    @Test
+    public void testCollapseOnlyHidesInAssignedSlices() {
+        final byte[][] pixels = box(20, 20, 20, 0);
+        final QuickEllipsoid large = new QuickEllipsoid(new double[]{5, 5, 5}, new double[]{10, 10, 10}, IDENTITY);
+        // only contains voxel (10, 10, 5), which the large ellipsoid contains but isn't assigned to
+        final QuickEllipsoid small = new QuickEllipsoid(new double[]{0.8, 0.8, 0.8}, new double[]{10.5, 10.5, 5.6},
+                IDENTITY);
+        final List<QuickEllipsoid> ellipsoids = Arrays.asList(large, small);
+
+        final List<QuickEllipsoid> collapsed = EllipsoidDuplicates.collapse(ellipsoids, pixels, 20, 20, 1);
+
+        assertTrue("Sanity check failed: voxel should be inside both", large.contains(10.5, 10.5, 5.5) && small
+                .contains(10.5, 10.5, 5.5));
+        assertEquals(ellipsoids, collapsed);
+        assertAssignmentsEqual(assign(ellipsoids, pixels, 20, 20, 1), assign(collapsed, pixels, 20, 20, 1));
+    }
+
+    /**
+     * Checks that removing the hidden ellipsoids doesn't change the first n ellipsoids of any voxel, when rotated
+     * and off-centre ellipsoids overlap each other and the edges of the stack.
+     */
+    @Test
+    public void testCollapseKeepsAssignmentsOfRandomEllipsoids() {
+        final Random random = new Random(0xBE11);
+        final int w = 31;
+        final int h = 27;
+        final int d = 23;
+        final byte[][] pixels = new byte[d][w * h];
+        for (final byte[] plane : pixels) {
+            for (int i = 0; i < plane.length; i++) {
+                plane[i] = random.nextDouble() < 0.8 ? (byte) 0xFF : 0;
+            }
+        }
+        final List<QuickEllipsoid> ellipsoids = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            final double[] centre = {random.nextDouble() * w, random.nextDouble() * h, random.nextDouble() * d};
+            final double[] radii = {1 + 7 * random.nextDouble(), 1 + 7 * random.nextDouble(),
+                    1 + 7 * random.nextDouble()};
+            final double[][] rotation = randomRotation(random);
+            ellipsoids.add(new QuickEllipsoid(radii, centre, rotation));
+            // a smaller copy, moved a little, like from a neighbouring seed
+            final double scale = 0.6 + 0.35 * random.nextDouble();
+            final double[] copyCentre = {centre[0] + random.nextDouble() - 0.5, centre[1] + random.nextDouble() - 0.5,
+                    centre[2] + random.nextDouble() - 0.5};
+            ellipsoids.add(new QuickEllipsoid(new double[]{radii[0] * scale, radii[1] * scale, radii[2] * scale},
+                    copyCentre, rotation));
+        }
+        ellipsoids.sort((a, b) -> Double.compare(b.getVolume(), a.getVolume()));
+
+        for (int n = 1; n <= 3; n++) {
+            final List<QuickEllipsoid> collapsed = EllipsoidDuplicates.collapse(ellipsoids, pixels, w, h, n);
+
+            assertTrue("Some copies should be hidden", collapsed.size() < ellipsoids.size());
+            assertAssignmentsEqual(assign(ellipsoids, pixels, w, h, n), assign(collapsed, pixels, w, h, n));
+        }
+    }
+
+    @Test
+    public void testCollapseEllipsoidsFromNearbySeeds() {
+        final int size = 41;
+        final byte[][] sphere = new byte[size][size * size];
+        for (int z = 0; z < size; z++) {
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    final Vector3d position = new Vector3d(x + 0.5, y + 0.5, z + 0.5).sub(20.5, 20.5, 20.5);
+                    if (position.lengthSquared() <= 100) {
+                        sphere[z][y * size + x] = (byte) 255;
+                    }
+                }
+            }
+        }
+        final OptimisationParameters parameters = new OptimisationParameters(0.435, 100, 1, 100, 1.73);
+        final List<QuickEllipsoid> ellipsoids = new ArrayList<>();
+        for (int dz = -1; dz <= 1; dz++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    final QuickEllipsoid ellipsoid = (QuickEllipsoid) ops.run(EllipsoidOptimisationStrategy.class,
+                            sphere, new Vector3d(20.5 + dx, 20.5 + dy, 20.5 + dz), new long[]{size, size, size},
+                            new NoEllipsoidConstrain(), parameters);
+                    if (ellipsoid != null) {
+                        ellipsoids.add(ellipsoid);
+                    }
+                }
+            }
+        }
+        ellipsoids.sort((a, b) -> Double.compare(b.getVolume(), a.getVolume()));
+
+        for (int n = 1; n <= 2; n++) {
+            final List<QuickEllipsoid> collapsed = EllipsoidDuplicates.collapse(ellipsoids, sphere, size, size, n);
+
+            assertSame("The largest ellipsoid should be kept", ellipsoids.get(0), collapsed.get(0));
+            assertAssignmentsEqual(assign(ellipsoids, sphere, size, size, n), assign(collapsed, sphere, size, size,
+                    n));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCollapseThrowsIfAssignedNotPositive() {
+        EllipsoidDuplicates.collapse(Collections.emptyList(), new byte[1][1], 1, 1, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCollapseThrowsIfAssignedTooLarge() {
+        EllipsoidDuplicates.collapse(Collections.emptyList(), new byte[1][1], 1, 1,
+                EllipsoidDuplicates.MAX_ASSIGNED + 1);
+    }
+
+    /**
+     * Assigns the first n ellipsoids that contain each foreground voxel, like the Ellipsoid Factor does.
+     *
+     * @return the ellipsoids of each voxel, padded with nulls if fewer than n contain it.
+     */
+    private static QuickEllipsoid[][] assign(final List<QuickEllipsoid> ellipsoids, final byte[][] pixels,
+                                             final int w, final int h, final int n) {
+        final QuickEllipsoid[][] assigned = new QuickEllipsoid[pixels.length * w * h][n];
+        for (int z = 0; z < pixels.length; z++) {
+            final int slice = z;
+            final List<QuickEllipsoid> local = new ArrayList<>();
+            ellipsoids.stream().filter(e -> Math.abs(e.getCentre()[2] - slice) < e.getSortedRadii()[2])
+                    .forEach(local::add);
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    if (pixels[z][y * w + x] == 0) {
+                        continue;
+                    }
+                    int k = 0;
+                    for (final QuickEllipsoid e : local) {
+                        if (k < n && e.contains(x + 0.5, y + 0.5, z + 0.5)) {
+                            assigned[(z * h + y) * w + x][k++] = e;
+                        }
+                    }
+                }
+            }
+        }
+        return assigned;
+    }
+
+    private static void assertAssignmentsEqual(final QuickEllipsoid[][] expected, final QuickEllipsoid[][] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            for (int k = 0; k < expected[i].length; k++) {
+                assertSame("Wrong ellipsoid " + k + " at voxel " + i, expected[i][k], actual[i][k]);
+            }
+        }
+    }
+
+    /** Creates an image where the voxels more than border from the edges are foreground */
+    private static byte[][] box(final int w, final int h, final int d, final int border) {
+        final byte[][] pixels = new byte[d][w * h];
+        for (int z = border; z < d - border; z++) {
+            for (int y = border; y < h - border; y++) {
+                for (int x = border; x < w - border; x++) {
+                    pixels[z][y * w + x] = (byte) 0xFF;
+                }
+            }
+        }
+        return pixels;
+    }
+
+    /** Returns a random rotation matrix from a random unit quaternion */
+    private static double[][] randomRotation(final Random random) {
+        final double[] q = {random.nextGaussian(), random.nextGaussian(), random.nextGaussian(),
+                random.nextGaussian()};
+        final double norm = Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+        final double a = q[0] / norm;
+        final double b = q[1] / norm;
+        final double c = q[2] / norm;
+        final double e = q[3] / norm;
+        return new double[][]{
+                {1 - 2 * (c * c + e * e), 2 * (b * c - a * e), 2 * (b * e + a * c)},
+                {2 * (b * c + a * e), 1 - 2 * (b * b + e * e), 2 * (c * e - a * b)},
+                {2 * (b * e - a * c), 2 * (c * e + a * b), 1 - 2 * (b * b + c * c)}};
+    }
+}
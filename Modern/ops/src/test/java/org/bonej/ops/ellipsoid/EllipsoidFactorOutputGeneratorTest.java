@@ -83,6 +83,33 @@ public class EllipsoidFactorOutputGeneratorTest extends AbstractOpTest {
         allEfOutputs.forEach(out -> assertNotNull("No null outputs expected.", out));
     }
 
+    @Test
+    public void testOutputWithoutFlinnPlots() {
+        final IterableInterval<IntType> idImage = getSimpleIDImg();
+        final List<QuickEllipsoid> ellipsoids = getEllipsoids();
+
+        final List<ImgPlus> withoutPlots = (List<ImgPlus>) ops.run(EllipsoidFactorOutputGenerator.class, idImage,
+                ellipsoids, false, true, "test_image");
+        final List<ImgPlus> withPlots = (List<ImgPlus>) ops.run(EllipsoidFactorOutputGenerator.class, idImage,
+                ellipsoids, true, true, "test_image");
+
+        assertEquals("Wrong number of outputs", 8, withoutPlots.size());
+        assertImagesEqual(withPlots.get(0), withoutPlots.get(0));
+        assertImagesEqual(withPlots.get(1), withoutPlots.get(1));
+        for (int i = 2; i < withoutPlots.size(); i++) {
+            assertImagesEqual(withPlots.get(i + 2), withoutPlots.get(i));
+        }
+    }
+
+    private static void assertImagesEqual(final ImgPlus<?> expected, final ImgPlus<?> actual) {
+        assertEquals(expected.getName(), actual.getName());
+        final Cursor<? extends RealType> expectedCursor = ((Img<? extends RealType>) expected.getImg()).cursor();
+        final Cursor<? extends RealType> actualCursor = ((Img<? extends RealType>) actual.getImg()).cursor();
+        while (expectedCursor.hasNext()) {
+            assertEquals(expectedCursor.next().getRealDouble(), actualCursor.next().getRealDouble(), 0.0);
+        }
+    }
+
     private Img<IntType> getSimpleIDImg() {
         Img<IntType> idImage = ArrayImgs.ints(5,5,2,5);
         final Cursor<IntType> cursor = idImage.localizingCursor();
@@ -55,6 +55,23 @@ public class EllipsoidOptimisationStrategyTest extends AbstractOpTest {
 		assertEquals(9.5,ellipsoid.getRadii()[2],1.5);
 	}
 
+	@Test
+	public void testCoarseToFineOptimisation() {
+		final byte[][] sphere = getSphere(10);
+		final OptimisationParameters parameters = new OptimisationParameters(0.435, 100, 1, 100, 1.73, 2);
+		final QuickEllipsoid ellipsoid = (QuickEllipsoid) ops.run(EllipsoidOptimisationStrategy.class, sphere,
+				new Vector3d(20.5, 20.5, 20.5), new long[]{40, 40, 40}, new NoEllipsoidConstrain(), parameters);
+		assertNotNull(ellipsoid);
+		assertEquals(9.5,ellipsoid.getRadii()[0],1.5);
+		assertEquals(9.5,ellipsoid.getRadii()[1],1.5);
+		assertEquals(9.5,ellipsoid.getRadii()[2],1.5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDownsamplingLessThanOneThrows() {
+		new OptimisationParameters(0.435, 100, 1, 100, 1.73, 0);
+	}
+
 	private byte[][] getSphere(int radius) {
 		double centrePointCoordinate = 10 + radius + 0.5;
 		Vector3d sphereCentre = new Vector3d(centrePointCoordinate, centrePointCoordinate, centrePointCoordinate);
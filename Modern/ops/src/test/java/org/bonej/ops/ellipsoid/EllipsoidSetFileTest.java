@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * Ops created for BoneJ2
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.ops.ellipsoid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.bonej.ops.ellipsoid.EllipsoidSetFile.EllipsoidSet;
+import org.joml.Vector3d;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EllipsoidSetFileTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAppendAndRead() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("sets").resolve("test.efs");
+        final double[][] rotation = {{0, 0, 1}, {0, 1, 0}, {-1, 0, 0}};
+        final QuickEllipsoid ellipsoid = new QuickEllipsoid(new double[]{1, 2, 3}, new double[]{4, 5, 6}, rotation);
+        EllipsoidSetFile.append(file, new EllipsoidSet(Collections.singletonList(new Vector3d(0.5, 1.5, 2.5)),
+                Arrays.asList(ellipsoid, ellipsoid)));
+        EllipsoidSetFile.append(file, new EllipsoidSet(Collections.emptyList(), Collections.singletonList(ellipsoid)));
+
+        final List<EllipsoidSet> sets = EllipsoidSetFile.read(file);
+
+        assertEquals(2, sets.size());
+        assertEquals(1, sets.get(0).seeds.size());
+        assertEquals(1.5, sets.get(0).seeds.get(0).y(), 0.0);
+        assertEquals(2, sets.get(0).ellipsoids.size());
+        assertEquals(1, sets.get(1).ellipsoids.size());
+        final QuickEllipsoid read = sets.get(1).ellipsoids.get(0);
+        assertArrayEquals(ellipsoid.getCentre(), read.getCentre(), 0.0);
+        assertArrayEquals(ellipsoid.getRadii(), read.getRadii(), 0.0);
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(rotation[i], read.getRotation()[i], 0.0);
+        }
+    }
+
+    @Test
+    public void testIncompleteBlockIsIgnoredAndOverwritten() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("test.efs");
+        final QuickEllipsoid ellipsoid = new QuickEllipsoid(new double[]{1, 2, 3}, new double[3],
+                new double[][]{{1, 0, 0}, {0, 1, 0}, {0, 0, 1}});
+        final EllipsoidSet set = new EllipsoidSet(Collections.emptyList(), Collections.singletonList(ellipsoid));
+        EllipsoidSetFile.append(file, set);
+        try (final OutputStream output = Files.newOutputStream(file, StandardOpenOption.APPEND)) {
+            output.write(new byte[]{0, 0, 1, 0, 42});
+        }
+        assertEquals(1, EllipsoidSetFile.read(file).size());
+
+        EllipsoidSetFile.append(file, set);
+
+        assertEquals(2, EllipsoidSetFile.read(file).size());
+    }
+
+    @Test
+    public void testReadMissingFileIsEmpty() throws IOException {
+        assertTrue(EllipsoidSetFile.read(folder.getRoot().toPath().resolve("missing.efs")).isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadOtherFileThrows() throws IOException {
+        final Path file = folder.newFile().toPath();
+        Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+
+        EllipsoidSetFile.read(file);
+    }
+
+    @Test
+    public void testKeyDependsOnImageAndParameters() {
+        final byte[][] pixels = {{0, (byte) 0xFF}, {(byte) 0xFF, 0}};
+        final long[] dimensions = {2, 1, 2};
+        final OptimisationParameters parameters = new OptimisationParameters(0.435, 100, 1, 100, 1.73);
+        final String key = EllipsoidSetFile.key(pixels, dimensions, parameters, 1.0);
+
+        assertEquals(key, EllipsoidSetFile.key(pixels, dimensions, parameters, 1.0));
+        assertNotEquals(key, EllipsoidSetFile.key(new byte[][]{{0, 0}, {(byte) 0xFF, 0}}, dimensions, parameters,
+                1.0));
+        assertNotEquals(key, EllipsoidSetFile.key(pixels, dimensions,
+                new OptimisationParameters(0.435, 101, 1, 100, 1.73), 1.0));
+        assertNotEquals(key, EllipsoidSetFile.key(pixels, dimensions, parameters, 0.0));
+    }
+}
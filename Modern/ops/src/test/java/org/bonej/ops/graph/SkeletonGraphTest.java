@@ -0,0 +1,225 @@
+/*-
+ * #%L
+ * Ops created for BoneJ2
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.ops.graph;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import net.imglib2.util.ValuePair;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link SkeletonGraph} and {@link SkeletonGraphPruning}.
+ */
+public class SkeletonGraphTest {
+
+	private static final double[] SPACING = { 1.0, 1.0, 1.0 };
+
+	@Test
+	public void testStar() {
+		final byte[][] pixels = new byte[31][31 * 31];
+		for (int i = 0; i <= 20; i++) {
+			set(pixels, 31, 10 + i, 10, 10);
+			set(pixels, 31, 10, 10 + i, 10);
+			set(pixels, 31, 10, 10, 10 + i);
+		}
+
+		final SkeletonGraph graph = SkeletonGraph.build(pixels, 31, 31, SPACING);
+
+		// The first voxels of the arms touch, and join the junction
+		assertEquals(4, graph.getVertexCount());
+		assertEquals(3, graph.getEdgeCount());
+		final int junction = graph.getValence(0) == 3 ? 0 : graph.getOpposite(
+			graph.getBranch(0, 0), 0);
+		assertEquals(3, graph.getValence(junction));
+		assertEquals(4, graph.getPointCount(junction));
+		for (int i = 0; i < 3; i++) {
+			final int edge = graph.getBranch(junction, i);
+			assertEquals(18, graph.getSlabCount(edge));
+			assertEquals(19.0, graph.getLength(edge), 1e-12);
+		}
+		for (final double angle : graph.getJunctionAngles(junction)) {
+			assertEquals(Math.PI / 2, angle, 0.05);
+		}
+	}
+
+	@Test
+	public void testRingHasLoopVertex() {
+		final byte[][] pixels = new byte[1][20 * 20];
+		for (int i = 0; i < 5; i++) {
+			set(pixels, 20, 10 + i, 5 + i, 0);
+			set(pixels, 20, 15 - i, 10 + i, 0);
+			set(pixels, 20, 10 - i, 15 - i, 0);
+			set(pixels, 20, 5 + i, 10 - i, 0);
+		}
+
+		final SkeletonGraph graph = SkeletonGraph.build(pixels, 20, 20, SPACING);
+
+		assertEquals(1, graph.getVertexCount());
+		assertEquals(1, graph.getEdgeCount());
+		assertEquals(2, graph.getValence(0));
+		assertEquals(0, graph.getOpposite(0, 0));
+		assertArrayEquals(new int[] { 10, 5, 0 }, graph.getPoint(0, 0));
+		assertEquals(19, graph.getSlabCount(0));
+		assertEquals(20 * Math.sqrt(2.0), graph.getLength(0), 1e-12);
+	}
+
+	@Test
+	public void testGroupByValence() {
+		final byte[][] pixels = new byte[31][31 * 31];
+		for (int i = 0; i <= 20; i++) {
+			set(pixels, 31, 10 + i, 10, 10);
+			set(pixels, 31, 10, 10 + i, 10);
+			set(pixels, 31, 10, 10, 10 + i);
+		}
+		final SkeletonGraph graph = SkeletonGraph.build(pixels, 31, 31, SPACING);
+
+		final Map<Integer, int[]> all = graph.groupByValence(0, 50);
+		final Map<Integer, int[]> junctions = graph.groupByValence(2, 50);
+
+		assertArrayEquals(new Integer[] { 1, 3 }, all.keySet().toArray());
+		assertEquals(3, all.get(1).length);
+		assertEquals(1, all.get(3).length);
+		for (int i = 1; i < all.get(1).length; i++) {
+			assertTrue(all.get(1)[i - 1] < all.get(1)[i]);
+		}
+		assertArrayEquals(new Integer[] { 3 }, junctions.keySet().toArray());
+		assertArrayEquals(all.get(3), junctions.get(3));
+		assertTrue(graph.groupByValence(4, 50).isEmpty());
+	}
+
+	@Test
+	public void testLargestComponent() {
+		final byte[][] pixels = new byte[1][30 * 30];
+		for (int i = 0; i < 5; i++) {
+			set(pixels, 30, 2 + i, 2, 0);
+		}
+		for (int i = 0; i <= 10; i++) {
+			set(pixels, 30, 15 + i, 15, 0);
+			set(pixels, 30, 15, 15 + i, 0);
+			set(pixels, 30, 15 - i, 15, 0);
+		}
+
+		final SkeletonGraph graph = SkeletonGraph.build(pixels, 30, 30, SPACING);
+		final SkeletonGraph largest = graph.getLargestComponent();
+
+		assertEquals(6, graph.getVertexCount());
+		assertEquals(2, graph.labelComponents()[5] + 1);
+		assertEquals(4, largest.getVertexCount());
+		assertEquals(3, largest.getEdgeCount());
+	}
+
+	@Test
+	public void testPruneDeadEnd() {
+		final byte[][] pixels = new byte[31][41 * 31];
+		for (int i = 0; i <= 20; i++) {
+			set(pixels, 41, 20 + i, 10, 10);
+			set(pixels, 41, 20 - i, 10, 10);
+			set(pixels, 41, 20, 10 + i, 10);
+		}
+		set(pixels, 41, 20, 10, 11);
+		set(pixels, 41, 20, 10, 12);
+		final SkeletonGraph graph = SkeletonGraph.build(pixels, 41, 31, SPACING);
+
+		final ValuePair<SkeletonGraph, double[]> result = SkeletonGraphPruning
+			.pruneShortEdges(graph, 3.0, false, true, SPACING);
+
+		final SkeletonGraph pruned = result.a;
+		assertEquals(4, pruned.getVertexCount());
+		assertEquals(3, pruned.getEdgeCount());
+		assertArrayEquals(new double[] { 0.0, 25.0, 0.0, 0.0, 4.0 }, result.b,
+			1e-12);
+	}
+
+	@Test
+	public void testPruneMergesShortEdges() {
+		for (final boolean useClusters : new boolean[] { true, false }) {
+			final byte[][] pixels = new byte[1][30 * 32];
+			for (int i = 0; i <= 10; i++) {
+				set(pixels, 30, 10 - i, 20, 0);
+				set(pixels, 30, 14 + i, 20, 0);
+				set(pixels, 30, 10, 20 - i, 0);
+				set(pixels, 30, 10, 20 + i, 0);
+				set(pixels, 30, 14, 20 - i, 0);
+				set(pixels, 30, 14, 20 + i, 0);
+			}
+			for (int x = 11; x < 14; x++) {
+				set(pixels, 30, x, 20, 0);
+			}
+			final SkeletonGraph graph = SkeletonGraph.build(pixels, 30, 32, SPACING);
+
+			final ValuePair<SkeletonGraph, double[]> result = SkeletonGraphPruning
+				.pruneShortEdges(graph, 5.0, true, useClusters, SPACING);
+
+			final SkeletonGraph pruned = result.a;
+			assertEquals(7, pruned.getVertexCount());
+			assertEquals(6, pruned.getEdgeCount());
+			final Map<Integer, int[]> valences = pruned.groupByValence(3, 50);
+			assertEquals(1, valences.size());
+			assertEquals(1, valences.get(6).length);
+			assertArrayEquals(new double[] { 12.0, 20.0, 0.0 }, pruned.getCentroid(
+				valences.get(6)[0]), 1e-12);
+			assertEquals(100.0 / 7.0, result.b[3], 1e-12);
+		}
+	}
+
+	@Test
+	public void testNoPruningWithZeroTolerance() {
+		final byte[][] pixels = new byte[1][30 * 32];
+		for (int i = 0; i <= 10; i++) {
+			set(pixels, 30, 10 - i, 20, 0);
+			set(pixels, 30, 10 + i, 20, 0);
+			set(pixels, 30, 10, 20 + i, 0);
+		}
+		final SkeletonGraph graph = SkeletonGraph.build(pixels, 30, 32, SPACING);
+
+		final ValuePair<SkeletonGraph, double[]> result = SkeletonGraphPruning
+			.pruneShortEdges(graph, 0.0, true, true, SPACING);
+
+		assertEquals(graph.getVertexCount(), result.a.getVertexCount());
+		assertEquals(graph.getEdgeCount(), result.a.getEdgeCount());
+		assertArrayEquals(new double[] { 0.0, 0.0, 0.0, 0.0, 3.0 }, result.b,
+			1e-12);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBuildThrowsIfSliceSizeWrong() {
+		SkeletonGraph.build(new byte[2][10], 3, 3, SPACING);
+	}
+
+	private static void set(final byte[][] pixels, final int width, final int x,
+		final int y, final int z)
+	{
+		pixels[z][x + y * width] = (byte) 0xFF;
+	}
+}
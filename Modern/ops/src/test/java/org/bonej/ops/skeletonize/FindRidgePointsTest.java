@@ -66,6 +66,37 @@ public class FindRidgePointsTest extends AbstractOpTest {
     }
 
 
+    @Test
+    public void testMixedThicknessRidges() {
+        //SET UP
+        final Img<BitType> image = ArrayImgs.bits(46, 31, 31);
+        addSphere(image, new Vector3d(15, 15, 15), 10);
+        addSphere(image, new Vector3d(35, 15, 15), 4);
+
+        //EXECUTE
+        final List<?> ridgePointList = (List<?>) ops.run(FindRidgePoints.class, image);
+
+        //VERIFY
+        assertEquals("The thinner sphere should have a ridge point too", 2, ridgePointList.size());
+        final Vector3dc thick = (Vector3dc) ridgePointList.get(0);
+        final Vector3dc thin = (Vector3dc) ridgePointList.get(1);
+        assertEquals(new Vector3d(15.5, 15.5, 15.5), thick);
+        assertEquals(new Vector3d(35.5, 15.5, 15.5), thin);
+    }
+
+    private static void addSphere(final Img<BitType> image, final Vector3dc centre, final int radius) {
+        final Cursor<BitType> cursor = image.localizingCursor();
+        final long[] coordinates = new long[3];
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            cursor.localize(coordinates);
+            if (centre.distanceSquared(coordinates[0], coordinates[1], coordinates[2]) <= radius * radius) {
+                cursor.get().setOne();
+            }
+        }
+    }
+
+
     //TODO move to somewhere where all tests can find this.
     private static Img<BitType> getSphereImage() {
         final long[] imageDimensions = { 101, 101, 101 };
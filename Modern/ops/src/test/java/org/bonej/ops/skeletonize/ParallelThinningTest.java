@@ -0,0 +1,447 @@
+/*-
+ * #%L
+ * Ops created for BoneJ2
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.ops.skeletonize;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+import sc.fiji.analyzeSkeleton.SkeletonResult;
+import sc.fiji.skeletonize3D.Skeletonize3D_;
+
+/**
+ * Tests for {@link ParallelThinning}.
+ */
+public class ParallelThinningTest {
+
+	@Test
+	public void testCubeThinsToPoint() {
+		final byte[][] pixels = new byte[20][20 * 20];
+		for (int z = 3; z < 17; z++) {
+			for (int y = 3; y < 17; y++) {
+				for (int x = 3; x < 17; x++) {
+					pixels[z][x + y * 20] = (byte) 0xFF;
+				}
+			}
+		}
+
+		ParallelThinning.skeletonise(pixels, 20, 20);
+
+		assertEquals(1, count(pixels));
+	}
+
+	@Test
+	public void testRodThinsToCentreLine() {
+		final byte[][] pixels = new byte[40][15 * 15];
+		for (int z = 5; z < 35; z++) {
+			for (int y = 0; y < 15; y++) {
+				for (int x = 0; x < 15; x++) {
+					if ((x - 7) * (x - 7) + (y - 7) * (y - 7) <= 16) {
+						pixels[z][x + y * 15] = (byte) 0xFF;
+					}
+				}
+			}
+		}
+
+		ParallelThinning.skeletonise(pixels, 15, 15);
+
+		for (int z = 0; z < 40; z++) {
+			for (int i = 0; i < pixels[z].length; i++) {
+				if (pixels[z][i] != 0) {
+					assertEquals("Skeleton should be on the axis", 7 + 7 * 15, i);
+				}
+			}
+		}
+		// The ends of the rod are shortened by up to its radius
+		final int length = count(pixels);
+		assertTrue(length >= 30 - 2 * 4 && length <= 30);
+	}
+
+	@Test
+	public void testRingKeepsLoop() {
+		final byte[][] pixels = new byte[5][25 * 25];
+		for (int z = 1; z < 4; z++) {
+			for (int y = 0; y < 25; y++) {
+				for (int x = 0; x < 25; x++) {
+					final int r2 = (x - 12) * (x - 12) + (y - 12) * (y - 12);
+					if (r2 >= 36 && r2 <= 100) {
+						pixels[z][x + y * 25] = (byte) 0xFF;
+					}
+				}
+			}
+		}
+
+		ParallelThinning.skeletonise(pixels, 25, 25);
+
+		// A closed curve has no end points
+		for (int z = 0; z < 5; z++) {
+			for (int y = 0; y < 25; y++) {
+				for (int x = 0; x < 25; x++) {
+					if (pixels[z][x + y * 25] != 0) {
+						assertEquals(2, neighbours(pixels, 25, 25, x, y, z), 1);
+					}
+				}
+			}
+		}
+		assertTrue(count(pixels) > 20);
+	}
+
+	@Test
+	public void testSkeletonIsUnchanged() {
+		final byte[][] pixels = new byte[3][10 * 10];
+		for (int x = 1; x < 9; x++) {
+			pixels[1][x + 5 * 10] = (byte) 0xFF;
+		}
+		final byte[] expected = pixels[1].clone();
+
+		final int iterations = ParallelThinning.skeletonise(pixels, 10, 10);
+
+		assertEquals(1, iterations);
+		assertArrayEquals(expected, pixels[1]);
+	}
+
+	@Test
+	public void testRandomNoiseKeepsTopology() {
+		final Random random = new Random(0xB0E);
+		for (int i = 0; i < 10; i++) {
+			final byte[][] pixels = noise(random, 17, 13, 11, 0.3 + 0.05 * i);
+			assertKeepsTopology("noise " + i, pixels, 17, 13);
+		}
+	}
+
+	@Test
+	public void testTrabecularKeepsTopology() {
+		final Random random = new Random(0x7AB);
+		for (int i = 0; i < 5; i++) {
+			final byte[][] pixels = trabeculae(random, 48, 40, 36, 40);
+			assertKeepsTopology("trabeculae " + i, pixels, 48, 40);
+		}
+	}
+
+	/**
+	 * The deletion order differs from Skeletonize3D, so the skeletons aren't
+	 * identical voxel by voxel, but they have the same trees, and about the same
+	 * size.
+	 */
+	@Test
+	public void testTrabecularMatchesSkeletonize3D() {
+		final Random random = new Random(0x5CE1);
+		for (int i = 0; i < 5; i++) {
+			final byte[][] pixels = trabeculae(random, 48, 40, 36, 40);
+			final ImagePlus reference = toImagePlus(pixels, 48, 40);
+			final Skeletonize3D_ skeletonize = new Skeletonize3D_();
+			skeletonize.setup("", reference);
+			skeletonize.run(null);
+
+			ParallelThinning.skeletonise(pixels, 48, 40);
+
+			final byte[][] expected = new byte[pixels.length][];
+			for (int z = 0; z < pixels.length; z++) {
+				expected[z] = (byte[]) reference.getStack().getPixels(z + 1);
+			}
+			final String name = "trabeculae " + i;
+			assertEquals(name, eulerCharacteristic(expected, 48, 40),
+				eulerCharacteristic(pixels, 48, 40));
+			final SkeletonResult expectedResult = analyse(reference);
+			final SkeletonResult result = analyse(toImagePlus(pixels, 48, 40));
+			assertEquals(name, expectedResult.getNumOfTrees(), result
+				.getNumOfTrees());
+			final int expectedCount = count(expected);
+			assertEquals(name, expectedCount, count(pixels), 0.1 * expectedCount);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWrongSliceSizeThrows() {
+		ParallelThinning.skeletonise(new byte[2][10], 4, 4);
+	}
+
+	private static SkeletonResult analyse(final ImagePlus skeleton) {
+		final AnalyzeSkeleton_ analyser = new AnalyzeSkeleton_();
+		analyser.setup("", skeleton);
+		return analyser.run(AnalyzeSkeleton_.NONE, false, false, null, true,
+			false);
+	}
+
+	/**
+	 * Checks that thinning keeps the number of foreground components, the
+	 * number of cavities and the Euler characteristic, i.e. the number of
+	 * tunnels too.
+	 */
+	private static void assertKeepsTopology(final String name,
+		final byte[][] pixels, final int width, final int height)
+	{
+		final int components = components(pixels, width, height);
+		final int cavities = cavities(pixels, width, height);
+		final int euler = eulerCharacteristic(pixels, width, height);
+
+		ParallelThinning.skeletonise(pixels, width, height);
+
+		assertEquals(name + " components", components, components(pixels, width,
+			height));
+		assertEquals(name + " cavities", cavities, cavities(pixels, width,
+			height));
+		assertEquals(name + " Euler characteristic", euler, eulerCharacteristic(
+			pixels, width, height));
+	}
+
+	/**
+	 * Counts the 26-connected components of the foreground.
+	 */
+	private static int components(final byte[][] pixels, final int width,
+		final int height)
+	{
+		final int depth = pixels.length;
+		final boolean[] in = new boolean[width * height * depth];
+		for (int z = 0; z < depth; z++) {
+			for (int i = 0; i < width * height; i++) {
+				in[z * width * height + i] = pixels[z][i] != 0;
+			}
+		}
+		return label(in, width, height, depth, true);
+	}
+
+	/**
+	 * Counts the 6-connected components of the background inside the stack,
+	 * i.e. the background components that don't touch the edges.
+	 */
+	private static int cavities(final byte[][] pixels, final int width,
+		final int height)
+	{
+		// Pad with one voxel of background, so that the outside is one component
+		final int w = width + 2;
+		final int h = height + 2;
+		final int d = pixels.length + 2;
+		final boolean[] in = new boolean[w * h * d];
+		for (int z = 0; z < d; z++) {
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					in[x + y * w + z * w * h] = x == 0 || y == 0 || z == 0 ||
+						x == w - 1 || y == h - 1 || z == d - 1 || pixels[z - 1][x - 1 +
+							(y - 1) * width] == 0;
+				}
+			}
+		}
+		return label(in, w, h, d, false) - 1;
+	}
+
+	/**
+	 * Counts the components of the true voxels by flood filling.
+	 *
+	 * @param full26 true for 26-connectivity, false for 6-connectivity.
+	 */
+	private static int label(final boolean[] in, final int width,
+		final int height, final int depth, final boolean full26)
+	{
+		final boolean[] seen = new boolean[in.length];
+		final int[] queue = new int[in.length];
+		int components = 0;
+		for (int start = 0; start < in.length; start++) {
+			if (!in[start] || seen[start]) {
+				continue;
+			}
+			components++;
+			seen[start] = true;
+			int head = 0;
+			int tail = 0;
+			queue[tail++] = start;
+			while (head < tail) {
+				final int i = queue[head++];
+				final int x = i % width;
+				final int y = i / width % height;
+				final int z = i / (width * height);
+				for (int dz = -1; dz <= 1; dz++) {
+					for (int dy = -1; dy <= 1; dy++) {
+						for (int dx = -1; dx <= 1; dx++) {
+							final int steps = Math.abs(dx) + Math.abs(dy) + Math.abs(dz);
+							if (steps == 0 || (!full26 && steps > 1)) {
+								continue;
+							}
+							final int nx = x + dx;
+							final int ny = y + dy;
+							final int nz = z + dz;
+							if (nx < 0 || nx >= width || ny < 0 || ny >= height || nz < 0 ||
+								nz >= depth)
+							{
+								continue;
+							}
+							final int n = nx + ny * width + nz * width * height;
+							if (in[n] && !seen[n]) {
+								seen[n] = true;
+								queue[tail++] = n;
+							}
+						}
+					}
+				}
+			}
+		}
+		return components;
+	}
+
+	/**
+	 * Calculates the Euler characteristic of the foreground with
+	 * 26-connectivity, from the vertices, edges, faces and cubes of the closed
+	 * voxels.
+	 */
+	private static int eulerCharacteristic(final byte[][] pixels,
+		final int width, final int height)
+	{
+		// Cells of the complex at doubled coordinates: the number of odd
+		// coordinates is the dimension of the cell
+		final int w = 2 * width + 1;
+		final int h = 2 * height + 1;
+		final int d = 2 * pixels.length + 1;
+		final boolean[] cells = new boolean[w * h * d];
+		for (int z = 0; z < pixels.length; z++) {
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					if (pixels[z][x + y * width] == 0) {
+						continue;
+					}
+					for (int c = 0; c < 3; c++) {
+						for (int b = 0; b < 3; b++) {
+							for (int a = 0; a < 3; a++) {
+								cells[2 * x + a + (2 * y + b) * w + (2 * z + c) * w * h] = true;
+							}
+						}
+					}
+				}
+			}
+		}
+		int euler = 0;
+		for (int i = 0; i < cells.length; i++) {
+			if (cells[i]) {
+				final int odd = i % w % 2 + i / w % h % 2 + i / (w * h) % 2;
+				euler += odd % 2 == 0 ? 1 : -1;
+			}
+		}
+		return euler;
+	}
+
+	private static byte[][] noise(final Random random, final int width,
+		final int height, final int depth, final double fraction)
+	{
+		final byte[][] pixels = new byte[depth][width * height];
+		for (final byte[] plane : pixels) {
+			for (int i = 0; i < plane.length; i++) {
+				if (random.nextDouble() < fraction) {
+					plane[i] = (byte) 0xFF;
+				}
+			}
+		}
+		return pixels;
+	}
+
+	/**
+	 * Creates a network of random rods, which may cross each other and the
+	 * edges of the stack, so that it has loops and several components.
+	 */
+	private static byte[][] trabeculae(final Random random, final int width,
+		final int height, final int depth, final int rods)
+	{
+		final byte[][] pixels = new byte[depth][width * height];
+		for (int r = 0; r < rods; r++) {
+			final double[] a = { random.nextDouble() * width, random.nextDouble() *
+				height, random.nextDouble() * depth };
+			final double[] b = { a[0] + (random.nextDouble() - 0.5) * 30, a[1] +
+				(random.nextDouble() - 0.5) * 30, a[2] + (random.nextDouble() - 0.5) *
+					30 };
+			final double radius = 1.0 + 2.0 * random.nextDouble();
+			final double[] ab = { b[0] - a[0], b[1] - a[1], b[2] - a[2] };
+			final double length2 = ab[0] * ab[0] + ab[1] * ab[1] + ab[2] * ab[2];
+			for (int z = 0; z < depth; z++) {
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						final double[] ap = { x - a[0], y - a[1], z - a[2] };
+						final double t = Math.max(0.0, Math.min(1.0, (ap[0] * ab[0] +
+							ap[1] * ab[1] + ap[2] * ab[2]) / length2));
+						final double dx = ap[0] - t * ab[0];
+						final double dy = ap[1] - t * ab[1];
+						final double dz = ap[2] - t * ab[2];
+						if (dx * dx + dy * dy + dz * dz <= radius * radius) {
+							pixels[z][x + y * width] = (byte) 0xFF;
+						}
+					}
+				}
+			}
+		}
+		return pixels;
+	}
+
+	private static ImagePlus toImagePlus(final byte[][] pixels, final int width,
+		final int height)
+	{
+		final ImageStack stack = new ImageStack(width, height);
+		for (final byte[] plane : pixels) {
+			stack.addSlice("", plane.clone());
+		}
+		return new ImagePlus("", stack);
+	}
+
+	private static int count(final byte[][] pixels) {
+		int count = 0;
+		for (final byte[] plane : pixels) {
+			for (final byte pixel : plane) {
+				if (pixel != 0) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	private static int neighbours(final byte[][] pixels, final int width,
+		final int height, final int x, final int y, final int z)
+	{
+		int count = 0;
+		for (int dz = -1; dz <= 1; dz++) {
+			for (int dy = -1; dy <= 1; dy++) {
+				for (int dx = -1; dx <= 1; dx++) {
+					final int nx = x + dx;
+					final int ny = y + dy;
+					final int nz = z + dz;
+					if ((dx != 0 || dy != 0 || dz != 0) && nx >= 0 && nx < width &&
+						ny >= 0 && ny < height && nz >= 0 && nz < pixels.length &&
+						pixels[nz][nx + ny * width] != 0)
+					{
+						count++;
+					}
+				}
+			}
+		}
+		return count;
+	}
+}
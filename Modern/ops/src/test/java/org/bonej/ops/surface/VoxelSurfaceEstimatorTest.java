@@ -0,0 +1,230 @@
+/*-
+ * #%L
+ * Ops created for BoneJ2
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.ops.surface;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import net.imagej.mesh.Mesh;
+import net.imagej.ops.AbstractOpTest;
+import net.imagej.ops.Ops.Geometric.BoundarySize;
+import net.imagej.ops.Ops.Geometric.MarchingCubes;
+import net.imagej.ops.Ops.Geometric.Size;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+import org.bonej.ops.surface.VoxelSurfaceEstimator.Estimate;
+import org.junit.Test;
+
+/**
+ * Tests for {@link VoxelSurfaceEstimator}.
+ *
+ * @author Richard Domander
+ */
+public class VoxelSurfaceEstimatorTest extends AbstractOpTest {
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEstimateThrowsIAEIf2D() {
+		VoxelSurfaceEstimator.estimate(ArrayImgs.bits(5, 5));
+	}
+
+	@Test
+	public void testEmptyImage() {
+		final Estimate estimate = VoxelSurfaceEstimator.estimate(ArrayImgs.bits(5,
+			5, 5));
+
+		assertEquals(0.0, estimate.area, 0.0);
+		assertEquals(0.0, estimate.volume, 0.0);
+	}
+
+	@Test
+	public void testSingleVoxel() {
+		final Img<BitType> img = ArrayImgs.bits(3, 3, 3);
+		final RandomAccess<BitType> access = img.randomAccess();
+		access.setPosition(new long[] { 1, 1, 1 });
+		access.get().setOne();
+
+		final Estimate estimate = VoxelSurfaceEstimator.estimate(img);
+
+		// Marching cubes collapses the triangles around a single voxel into a point
+		assertEquals(0.0, estimate.area, 0.0);
+		assertEquals(0.0, estimate.volume, 0.0);
+	}
+
+	/**
+	 * Tests that the estimate matches the mesh marching cubes creates of a
+	 * cuboid. The mesh is one voxel smaller in each dimension.
+	 */
+	@Test
+	public void testCuboid() {
+		final int width = 4;
+		final int height = 3;
+		final int depth = 5;
+		final Img<BitType> img = ArrayImgs.bits(width + 2, height + 2, depth + 2);
+		Views.interval(img, new long[] { 1, 1, 1 }, new long[] { width, height,
+			depth }).forEach(BitType::setOne);
+		final double expectedArea = 2 * ((width - 1) * (height - 1) + (width - 1) *
+			(depth - 1) + (height - 1) * (depth - 1));
+		final double expectedVolume = (width - 1) * (height - 1) * (depth - 1);
+
+		final Estimate estimate = VoxelSurfaceEstimator.estimate(img);
+
+		assertEquals(expectedArea, estimate.area, 1e-12);
+		assertEquals(expectedVolume, estimate.volume, 1e-12);
+	}
+
+	@Test
+	public void testForegroundTouchingEdges() {
+		final Img<BitType> img = ArrayImgs.bits(3, 3, 3);
+		img.forEach(BitType::setOne);
+
+		final Estimate estimate = VoxelSurfaceEstimator.estimate(img);
+
+		assertEquals(24.0, estimate.area, 1e-12);
+		assertEquals(8.0, estimate.volume, 1e-12);
+	}
+
+	@Test
+	public void testNonZeroMinimum() {
+		final Img<BitType> img = ArrayImgs.bits(3, 3, 3);
+		img.forEach(BitType::setOne);
+
+		final Estimate estimate = VoxelSurfaceEstimator.estimate(Views.translate(
+			img, 7, -3, 2));
+
+		assertEquals(24.0, estimate.area, 1e-12);
+		assertEquals(8.0, estimate.volume, 1e-12);
+	}
+
+	/**
+	 * Tests that the estimate matches the marching cubes mesh on irregular
+	 * shapes, where most of the cells are planar or cut one corner off.
+	 */
+	@Test
+	public void testMatchesMarchingCubesOnBalls() {
+		final Random random = new Random(0xBA11);
+		for (int i = 0; i < 3; i++) {
+			final Img<BitType> img = randomBalls(random, 40, 36, 32, 12);
+
+			assertMatchesMarchingCubes("balls " + i, img, 0.02);
+		}
+	}
+
+	/**
+	 * Tests that the estimate stays close to the marching cubes mesh on random
+	 * noise, where many cells are saddles. In a saddle cell marching cubes picks
+	 * one of several triangulations, so the two surfaces differ there.
+	 */
+	@Test
+	public void testMatchesMarchingCubesOnNoise() {
+		final Random random = new Random(0x5ADD1E);
+		for (final double fraction : new double[] { 0.2, 0.5, 0.8 }) {
+			final Img<BitType> img = ArrayImgs.bits(20, 18, 16);
+			// Leave a border of background, so that the edges don't matter
+			Views.interval(img, new long[] { 1, 1, 1 }, new long[] { 18, 16, 14 })
+				.forEach(e -> e.set(random.nextDouble() < fraction));
+
+			assertMatchesMarchingCubes("noise " + fraction, img, 0.1);
+		}
+	}
+
+	@Test
+	public void testWeights() {
+		// Full cell
+		assertEquals(0.0, VoxelSurfaceEstimator.areaWeight(0xFF), 0.0);
+		assertEquals(1.0, VoxelSurfaceEstimator.volumeWeight(0xFF), 0.0);
+		// One corner missing cuts a tetrahedron off the cell
+		assertEquals(Math.sqrt(3) / 2, VoxelSurfaceEstimator.areaWeight(0xFE),
+			1e-12);
+		assertEquals(5.0 / 6.0, VoxelSurfaceEstimator.volumeWeight(0xFE), 1e-12);
+		// A flat sheet on a face of the cell
+		assertEquals(1.0, VoxelSurfaceEstimator.areaWeight(0x0F), 1e-12);
+		assertEquals(0.0, VoxelSurfaceEstimator.volumeWeight(0x0F), 0.0);
+		// A flat sheet through the cell has two sides
+		assertEquals(2 * Math.sqrt(2), VoxelSurfaceEstimator.areaWeight(0x66),
+			1e-12);
+		assertEquals(0.0, VoxelSurfaceEstimator.volumeWeight(0x66), 0.0);
+		// A half of the cell cut diagonally
+		assertEquals(Math.sqrt(2), VoxelSurfaceEstimator.areaWeight(0x3F), 1e-12);
+		assertEquals(0.5, VoxelSurfaceEstimator.volumeWeight(0x3F), 1e-12);
+		// Three unconnected corners
+		assertEquals(0.0, VoxelSurfaceEstimator.areaWeight(0x16), 0.0);
+	}
+
+	private void assertMatchesMarchingCubes(final String name,
+		final Img<BitType> img, final double tolerance)
+	{
+		final Mesh mesh = (Mesh) ops.run(MarchingCubes.class, img);
+		final double area = ((DoubleType) ops.run(BoundarySize.class, mesh))
+			.get();
+		final double volume = ((DoubleType) ops.run(Size.class, mesh)).get();
+
+		final Estimate estimate = VoxelSurfaceEstimator.estimate(img);
+
+		assertEquals(name + " area", area, estimate.area, tolerance * area);
+		assertEquals(name + " volume", volume, estimate.volume, tolerance *
+			volume);
+	}
+
+	/**
+	 * Creates a union of random balls, which may overlap, inside a border of
+	 * background.
+	 */
+	private static Img<BitType> randomBalls(final Random random,
+		final int width, final int height, final int depth, final int balls)
+	{
+		final Img<BitType> img = ArrayImgs.bits(width, height, depth);
+		final RandomAccess<BitType> access = img.randomAccess();
+		for (int i = 0; i < balls; i++) {
+			final double r = 2 + 6 * random.nextDouble();
+			final double cx = r + 1 + random.nextDouble() * (width - 2 * r - 3);
+			final double cy = r + 1 + random.nextDouble() * (height - 2 * r - 3);
+			final double cz = r + 1 + random.nextDouble() * (depth - 2 * r - 3);
+			for (int z = 1; z < depth - 1; z++) {
+				for (int y = 1; y < height - 1; y++) {
+					for (int x = 1; x < width - 1; x++) {
+						final double dx = x - cx;
+						final double dy = y - cy;
+						final double dz = z - cz;
+						if (dx * dx + dy * dy + dz * dz <= r * r) {
+							access.setPosition(new long[] { x, y, z });
+							access.get().setOne();
+						}
+					}
+				}
+			}
+		}
+		return img;
+	}
+}
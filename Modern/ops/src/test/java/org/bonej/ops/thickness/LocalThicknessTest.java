@@ -0,0 +1,324 @@
+/*-
+ * #%L
+ * Ops created for BoneJ2
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.ops.thickness;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.bonej.ops.thickness.LocalThickness.ThicknessMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import sc.fiji.localThickness.LocalThicknessWrapper;
+
+/**
+ * Tests for {@link LocalThickness}.
+ */
+public class LocalThicknessTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testBrickThickness() {
+		for (int t = 1; t < 12; t++) {
+			final byte[][] brick = brick(64, 64, t);
+
+			final ThicknessMap map = LocalThickness.calculate(brick, 64, 64,
+				Collections.singletonList(true), true, 1.0).get(0);
+
+			// pixelation and *2 (radius to diameter conversion)
+			final int expected = t % 2 == 0 ? t : t + 1;
+			assertEquals(expected, map.mean, 1e-12);
+			assertEquals(0.0, map.stdDev, 1e-12);
+			assertEquals(64 * 64 * t, map.count);
+		}
+	}
+
+	@Test
+	public void testCalibration() {
+		final byte[][] brick = brick(32, 32, 4);
+
+		final ThicknessMap map = LocalThickness.calculate(brick, 32, 32,
+			Collections.singletonList(true), true, 0.5).get(0);
+
+		assertEquals(2.0, map.mean, 1e-12);
+		assertEquals(2.0, map.max, 1e-12);
+	}
+
+	@Test
+	public void testBothMatchesSeparateMaps() {
+		final byte[][] pixels = new byte[20][30 * 25];
+		for (int z = 0; z < 20; z++) {
+			for (int i = 0; i < pixels[z].length; i++) {
+				final int x = i % 30;
+				final int y = i / 30;
+				if ((x / 7 + y / 5 + z / 6) % 2 == 0) {
+					pixels[z][i] = (byte) 0xFF;
+				}
+			}
+		}
+
+		final List<ThicknessMap> both = LocalThickness.calculate(pixels, 30, 25,
+			Arrays.asList(true, false), false, 1.0);
+		final ThicknessMap thickness = LocalThickness.calculate(pixels, 30, 25,
+			Collections.singletonList(true), false, 1.0).get(0);
+		final ThicknessMap spacing = LocalThickness.calculate(pixels, 30, 25,
+			Collections.singletonList(false), false, 1.0).get(0);
+
+		assertTrue(both.get(0).foreground);
+		assertFalse(both.get(1).foreground);
+		for (int z = 0; z < 20; z++) {
+			assertArrayEquals(thickness.pixels[z], both.get(0).pixels[z], 0.0f);
+			assertArrayEquals(spacing.pixels[z], both.get(1).pixels[z], 0.0f);
+		}
+	}
+
+	@Test
+	public void testBlockedMatchesInMemory() throws IOException {
+		final Random random = new Random(0xC0FFEE);
+		final byte[][] pixels = new byte[24][40 * 30];
+		for (final byte[] plane : pixels) {
+			for (int i = 0; i < plane.length; i++) {
+				if (random.nextDouble() < 0.6) {
+					plane[i] = (byte) 0xFF;
+				}
+			}
+		}
+		final List<Boolean> phases = Arrays.asList(true, false);
+		final List<ThicknessMap> expected = LocalThickness.calculate(pixels, 40,
+			30, phases, false, 0.5);
+
+		// Limits small enough to force one slice per slab and one row per band
+		final List<ThicknessMap> blocked = LocalThickness.calculateBlocked(pixels,
+			40, 30, phases, false, 0.5, folder.getRoot().toPath(), 1);
+
+		for (int i = 0; i < 2; i++) {
+			final ThicknessMap map = blocked.get(i);
+			assertNull(map.pixels);
+			assertEquals(expected.get(i).count, map.count);
+			assertEquals(expected.get(i).mean, map.mean, 0.0);
+			assertEquals(expected.get(i).stdDev, map.stdDev, 0.0);
+			assertEquals(expected.get(i).max, map.max, 0.0);
+			for (int z = 0; z < pixels.length; z++) {
+				final float[] slice = map.getSlice(z);
+				for (int j = 0; j < slice.length; j++) {
+					assertEquals(Float.floatToIntBits(expected.get(i).pixels[z][j]), Float
+						.floatToIntBits(slice[j]));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testMaskLeavesOtherPhaseNaN() {
+		final byte[][] brick = brick(16, 16, 5);
+
+		final ThicknessMap map = LocalThickness.calculate(brick, 16, 16,
+			Collections.singletonList(true), true, 1.0).get(0);
+
+		for (int z = 0; z < brick.length; z++) {
+			for (int i = 0; i < brick[z].length; i++) {
+				assertEquals(brick[z][i] == 0, Float.isNaN(map.pixels[z][i]));
+			}
+		}
+	}
+
+	@Test
+	public void testNoOtherPhase() {
+		final byte[][] pixels = new byte[2][2 * 2];
+
+		final List<ThicknessMap> maps = LocalThickness.calculate(pixels, 2, 2,
+			Arrays.asList(true, false), false, 1.0);
+
+		final ThicknessMap thickness = maps.get(0);
+		assertEquals(0, thickness.count);
+		assertTrue(Double.isNaN(thickness.mean));
+		assertTrue(Double.isNaN(thickness.stdDev));
+		assertTrue(Double.isNaN(thickness.max));
+		// Like in LocalThickness, the squared distance is 3 * (n + 1)^2
+		final ThicknessMap spacing = maps.get(1);
+		assertEquals(8, spacing.count);
+		assertEquals((float) (2 * Math.sqrt(27)), spacing.mean, 0.0);
+		assertEquals(0.0, spacing.stdDev, 0.0);
+	}
+
+	@Test
+	public void testRodMatchesLocalThicknessPlugin() {
+		for (final int d : new int[] { 1, 2, 5, 8, 13, 20 }) {
+			final ImagePlus rod = rod(30, d);
+			assertMatchesPlugin(rod, true, true);
+			assertMatchesPlugin(rod, true, false);
+		}
+	}
+
+	@Test
+	public void testRodSpacingMatchesLocalThicknessPlugin() {
+		for (final int d : new int[] { 1, 2, 5, 8, 13, 20 }) {
+			final ImagePlus rod = rod(30, d);
+			assertMatchesPlugin(rod, false, true);
+			assertMatchesPlugin(rod, false, false);
+		}
+	}
+
+	@Test
+	public void testSphereMatchesLocalThicknessPlugin() {
+		for (final int r : new int[] { 2, 3, 6, 9, 14 }) {
+			final ImagePlus sphere = sphere(r);
+			assertMatchesPlugin(sphere, true, true);
+			assertMatchesPlugin(sphere, true, false);
+		}
+	}
+
+	/**
+	 * The background of the sphere touches every edge of the stack, so this also
+	 * checks that the edges don't count as foreground in the spacing map.
+	 */
+	@Test
+	public void testSphereSpacingMatchesLocalThicknessPlugin() {
+		for (final int r : new int[] { 2, 3, 6, 9, 14 }) {
+			final ImagePlus sphere = sphere(r);
+			assertMatchesPlugin(sphere, false, true);
+			assertMatchesPlugin(sphere, false, false);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWrongSliceSizeThrows() {
+		LocalThickness.calculate(new byte[2][10], 4, 4, Collections.singletonList(
+			true), true, 1.0);
+	}
+
+	/**
+	 * Checks that the map of the phase matches the map of the LocalThickness_
+	 * plugin pixel by pixel, and that the pixels outside the plugin's map are
+	 * NaN in ours. The spacing map is compared to the plugin in inverse mode.
+	 */
+	private static void assertMatchesPlugin(final ImagePlus image,
+		final boolean foreground, final boolean mask)
+	{
+		final int depth = image.getStackSize();
+		final byte[][] pixels = new byte[depth][];
+		for (int z = 0; z < depth; z++) {
+			pixels[z] = ((byte[]) image.getStack().getPixels(z + 1)).clone();
+		}
+		final LocalThicknessWrapper plugin = new LocalThicknessWrapper();
+		plugin.setSilence(true);
+		plugin.inverse = !foreground;
+		plugin.setShowOptions(false);
+		plugin.maskThicknessMap = mask;
+		plugin.setTitleSuffix("");
+		plugin.calibratePixels = true;
+		final ImageStack expected = plugin.processImage(image).getStack();
+
+		final ThicknessMap map = LocalThickness.calculate(pixels, image.getWidth(),
+			image.getHeight(), Collections.singletonList(foreground), mask, 1.0).get(
+				0);
+		final String name = image.getTitle() + (foreground ? " thickness" :
+			" spacing") + " mask " + mask;
+
+		for (int z = 0; z < depth; z++) {
+			final float[] slice = (float[]) expected.getPixels(z + 1);
+			for (int i = 0; i < slice.length; i++) {
+				final float value = map.pixels[z][i];
+				if (Float.isNaN(slice[i]) || slice[i] == 0.0f) {
+					assertTrue(name + " z " + z + " i " + i + " should be NaN", Float
+						.isNaN(value));
+				}
+				else {
+					assertEquals(name + " z " + z + " i " + i, slice[i], value,
+						slice[i] * 1e-5);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates a rod of circular cross-section along the z-axis, in a stack
+	 * 2 * diameter wide and high, like in ThicknessHelperTest.
+	 */
+	private static ImagePlus rod(final int length, final int diameter) {
+		final ImageStack stack = new ImageStack(2 * diameter, 2 * diameter);
+		for (int i = 0; i < length; i++) {
+			final ImageProcessor ip = new ByteProcessor(2 * diameter, 2 * diameter);
+			ip.setColor(255);
+			ip.fillOval((int) Math.floor(diameter / 2.0), (int) Math.floor(diameter /
+				2.0), diameter, diameter);
+			stack.addSlice("" + i, ip);
+		}
+		return new ImagePlus("rod " + diameter, stack);
+	}
+
+	/**
+	 * Creates a solid sphere padded with one slice of background above and
+	 * below, like in ThicknessHelperTest.
+	 */
+	private static ImagePlus sphere(final int radius) {
+		final int side = 2 * radius + 2;
+		final ImageStack stack = new ImageStack(side, side);
+		stack.addSlice("", new ByteProcessor(side, side));
+		for (int zd = -radius; zd <= radius; zd++) {
+			final int rc = (int) Math.round(Math.sqrt(radius * radius - zd * zd));
+			final ImageProcessor ip = new ByteProcessor(side, side);
+			ip.setColor(255);
+			ip.fillOval(radius + 1 - rc, radius + 1 - rc, 2 * rc, 2 * rc);
+			stack.addSlice("", ip);
+		}
+		stack.addSlice("", new ByteProcessor(side, side));
+		return new ImagePlus("sphere " + radius, stack);
+	}
+
+	/**
+	 * Creates a stack with a plate of foreground, and one slice of background
+	 * above and below it.
+	 */
+	private static byte[][] brick(final int width, final int height,
+		final int thickness)
+	{
+		final byte[][] pixels = new byte[thickness + 2][width * height];
+		for (int z = 1; z <= thickness; z++) {
+			Arrays.fill(pixels[z], (byte) 0xFF);
+		}
+		return pixels;
+	}
+}
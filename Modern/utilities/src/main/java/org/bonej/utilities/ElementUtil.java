@@ -54,10 +54,14 @@ package org.bonej.utilities;
 import static org.bonej.utilities.Streamers.axisStream;
 import static org.bonej.utilities.Streamers.spatialAxisStream;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import net.imagej.ImgPlus;
 import net.imagej.axis.CalibratedAxis;
 import net.imagej.axis.LinearAxis;
 import net.imagej.axis.TypedAxis;
@@ -65,9 +69,15 @@ import net.imagej.space.AnnotatedSpace;
 import net.imagej.units.UnitService;
 import net.imglib2.Cursor;
 import net.imglib2.IterableInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.planar.PlanarImg;
 import net.imglib2.type.BooleanType;
+import net.imglib2.type.logic.BitType;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.GenericByteType;
 
 /**
  * Various utility methods for inspecting image element properties
@@ -77,6 +87,13 @@ import net.imglib2.type.numeric.RealType;
  */
 public final class ElementUtil {
 
+	/** Number of elements each thread scans at a time in a byte image */
+	private static final int BINARY_CHUNK_SIZE = 1 << 16;
+	/** Marks that the second value of a byte image hasn't been found yet */
+	private static final int NO_VALUE = -1;
+	/** Number of 64-bit words each thread counts at a time in a bit image */
+	private static final int WORD_CHUNK_SIZE = 1 << 12;
+
 	private ElementUtil() {}
 
 	/**
@@ -123,6 +140,11 @@ public final class ElementUtil {
 
 	/**
 	 * Checks whether the interval contains only two distinct values.
+	 * <p>
+	 * Array and planar images of bytes are checked in parallel directly from
+	 * their storage arrays, and the check stops as soon as a third value is
+	 * found.
+	 * </p>
 	 *
 	 * @param interval an iterable interval.
 	 * @param <T> type of the elements in the interval.
@@ -143,6 +165,11 @@ public final class ElementUtil {
 			return true;
 		}
 
+		final List<byte[]> byteArrays = byteStorage(interval);
+		if (byteArrays != null) {
+			return isBinary(byteArrays);
+		}
+
 		//a and b have the first pixel value
 		double a = interval.firstElement().getRealDouble();
 		double b = a;
@@ -171,7 +198,225 @@ public final class ElementUtil {
 		return true;
 	}
 
+	/**
+	 * Counts the foreground elements in the interval, i.e. those that are not
+	 * zero.
+	 * <p>
+	 * Array and planar images of bits are counted in parallel directly from
+	 * their storage, 64 elements at a time with {@link Long#bitCount(long)}.
+	 * Images of bytes are counted in parallel chunks from their storage arrays.
+	 * Other intervals are counted element by element.
+	 * </p>
+	 *
+	 * @param interval an iterable interval.
+	 * @param <T> type of the elements in the interval.
+	 * @return number of non-zero elements.
+	 */
+	public static <T extends RealType<T>> long countForeground(
+		final IterableInterval<T> interval)
+	{
+		if (interval.size() == 0) {
+			return 0;
+		}
+		final List<long[]> wordArrays = bitStorage(interval);
+		if (wordArrays != null) {
+			return countBits(wordArrays, interval.size() / wordArrays.size());
+		}
+		final List<byte[]> byteArrays = byteStorage(interval);
+		if (byteArrays != null) {
+			return countNonZero(byteArrays);
+		}
+		long count = 0;
+		final Cursor<T> cursor = interval.cursor();
+		while (cursor.hasNext()) {
+			if (cursor.next().getRealDouble() != 0.0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
 	//@region -- Helper methods --
+	/**
+	 * Returns the storage arrays of an image of bits.
+	 *
+	 * @param interval an iterable interval.
+	 * @return the arrays of 64-bit words that store the elements, or null if
+	 *         the interval is not an array or planar image of bits.
+	 */
+	private static List<long[]> bitStorage(IterableInterval<?> interval) {
+		while (interval instanceof ImgPlus) {
+			interval = ((ImgPlus<?>) interval).getImg();
+		}
+		if (!(interval.firstElement() instanceof BitType)) {
+			return null;
+		}
+		final List<long[]> arrays = new ArrayList<>();
+		if (interval instanceof ArrayImg) {
+			final Object access = ((ArrayImg<?, ?>) interval).update(null);
+			if (!(access instanceof LongArray)) {
+				return null;
+			}
+			arrays.add(((LongArray) access).getCurrentStorageArray());
+		}
+		else if (interval instanceof PlanarImg) {
+			final PlanarImg<?, ?> planarImg = (PlanarImg<?, ?>) interval;
+			for (int i = 0; i < planarImg.numSlices(); i++) {
+				final Object plane = planarImg.getPlane(i);
+				if (!(plane instanceof LongArray)) {
+					return null;
+				}
+				arrays.add(((LongArray) plane).getCurrentStorageArray());
+			}
+		}
+		else {
+			return null;
+		}
+		return arrays;
+	}
+
+	/**
+	 * Counts the set bits in the arrays in parallel chunks of words.
+	 *
+	 * @param arrays arrays of 64-bit words, element i at bit i % 64 of word i /
+	 *          64.
+	 * @param bits number of elements stored in each array. Bits after them in
+	 *          the last word are ignored.
+	 * @return number of set bits.
+	 */
+	private static long countBits(final List<long[]> arrays, final long bits) {
+		final int words = (int) ((bits + 63) / 64);
+		final int tailBits = (int) (bits % 64);
+		final long tailMask = tailBits == 0 ? -1L : (1L << tailBits) - 1;
+		final List<int[]> chunks = new ArrayList<>();
+		for (int i = 0; i < arrays.size(); i++) {
+			for (int start = 0; start < words; start += WORD_CHUNK_SIZE) {
+				chunks.add(new int[] { i, start, Math.min(start + WORD_CHUNK_SIZE,
+					words) });
+			}
+		}
+		return IntStream.range(0, chunks.size()).parallel().mapToLong(c -> {
+			final int[] chunk = chunks.get(c);
+			final long[] array = arrays.get(chunk[0]);
+			long count = 0;
+			for (int i = chunk[1]; i < chunk[2]; i++) {
+				final long word = i == words - 1 ? array[i] & tailMask : array[i];
+				count += Long.bitCount(word);
+			}
+			return count;
+		}).sum();
+	}
+
+	/**
+	 * Counts the non-zero elements of the arrays in parallel chunks.
+	 *
+	 * @param arrays byte arrays.
+	 * @return number of non-zero elements.
+	 */
+	private static long countNonZero(final List<byte[]> arrays) {
+		final List<int[]> chunks = new ArrayList<>();
+		for (int i = 0; i < arrays.size(); i++) {
+			final int length = arrays.get(i).length;
+			for (int start = 0; start < length; start += BINARY_CHUNK_SIZE) {
+				chunks.add(new int[] { i, start, Math.min(start + BINARY_CHUNK_SIZE,
+					length) });
+			}
+		}
+		return IntStream.range(0, chunks.size()).parallel().mapToLong(c -> {
+			final int[] chunk = chunks.get(c);
+			final byte[] array = arrays.get(chunk[0]);
+			long count = 0;
+			for (int i = chunk[1]; i < chunk[2]; i++) {
+				if (array[i] != 0) {
+					count++;
+				}
+			}
+			return count;
+		}).sum();
+	}
+
+	/**
+	 * Returns the storage arrays of an image of bytes.
+	 *
+	 * @param interval an iterable interval.
+	 * @return the arrays that store the elements, or null if the interval is not
+	 *         an array or planar image of bytes.
+	 */
+	private static List<byte[]> byteStorage(IterableInterval<?> interval) {
+		while (interval instanceof ImgPlus) {
+			interval = ((ImgPlus<?>) interval).getImg();
+		}
+		if (!(interval.firstElement() instanceof GenericByteType)) {
+			return null;
+		}
+		final List<byte[]> arrays = new ArrayList<>();
+		if (interval instanceof ArrayImg) {
+			final Object access = ((ArrayImg<?, ?>) interval).update(null);
+			if (!(access instanceof ByteArray)) {
+				return null;
+			}
+			arrays.add(((ByteArray) access).getCurrentStorageArray());
+		}
+		else if (interval instanceof PlanarImg) {
+			final PlanarImg<?, ?> planarImg = (PlanarImg<?, ?>) interval;
+			for (int i = 0; i < planarImg.numSlices(); i++) {
+				final Object plane = planarImg.getPlane(i);
+				if (!(plane instanceof ByteArray)) {
+					return null;
+				}
+				arrays.add(((ByteArray) plane).getCurrentStorageArray());
+			}
+		}
+		else {
+			return null;
+		}
+		return arrays;
+	}
+
+	/**
+	 * Checks whether the arrays contain only two distinct values.
+	 * <p>
+	 * The arrays are split into chunks, which are checked in parallel. The
+	 * second value is shared between the threads, so that the first one to find
+	 * it decides it for all.
+	 * </p>
+	 *
+	 * @param arrays non-empty byte arrays.
+	 * @return true if the elements of the arrays have at most two values.
+	 */
+	private static boolean isBinary(final List<byte[]> arrays) {
+		final List<long[]> chunks = new ArrayList<>();
+		for (int i = 0; i < arrays.size(); i++) {
+			final int length = arrays.get(i).length;
+			for (int start = 0; start < length; start += BINARY_CHUNK_SIZE) {
+				chunks.add(new long[] { i, start, Math.min(start + BINARY_CHUNK_SIZE,
+					length) });
+			}
+		}
+		final byte first = arrays.get(0)[0];
+		final AtomicInteger second = new AtomicInteger(NO_VALUE);
+		return IntStream.range(0, chunks.size()).parallel().allMatch(c -> {
+			final long[] chunk = chunks.get(c);
+			final byte[] array = arrays.get((int) chunk[0]);
+			int b = second.get();
+			for (int i = (int) chunk[1]; i < chunk[2]; i++) {
+				final int v = array[i] & 0xFF;
+				if (array[i] == first || v == b) {
+					continue;
+				}
+				if (b == NO_VALUE) {
+					second.compareAndSet(NO_VALUE, v);
+					b = second.get();
+					if (v == b) {
+						continue;
+					}
+				}
+				return false;
+			}
+			return true;
+		});
+	}
+
 	/**
 	 * Checks if the given space has any non-linear spatial dimensions.
 	 *
@@ -0,0 +1,264 @@
+/*-
+ * #%L
+ * Utility methods for BoneJ2
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.utilities;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.DoublePredicate;
+import java.util.stream.IntStream;
+
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Order statistics of the non-NaN values of an image in bounded memory.
+ * <p>
+ * The values are counted into a fixed number of bins over a known range. The
+ * per-chunk histograms are built in parallel and merged. A percentile is
+ * located by its bin, and then refined exactly with further passes over the
+ * values in that bin only. Memory use is proportional to the number of bins,
+ * not to the number of values.
+ * </p>
+ * <p>
+ * Values outside the range are counted in the first or last bin, so the
+ * results are exact for any input.
+ * </p>
+ */
+public final class HistogramQuantiles {
+
+	/** Number of bins in each histogram. */
+	public static final int BINS = 4096;
+	/** A bin with at most this many values is sorted instead of re-binned. */
+	private static final int EXACT_LIMIT = 1 << 16;
+	private final IterableInterval<? extends RealType<?>> values;
+	private final Histogram histogram;
+
+	/**
+	 * Counts the non-NaN values of the interval.
+	 *
+	 * @param values an interval of real values.
+	 * @param lower lower end of the expected range of the values.
+	 * @param upper upper end of the expected range of the values.
+	 */
+	public HistogramQuantiles(final IterableInterval<? extends RealType<?>> values,
+		final double lower, final double upper)
+	{
+		this.values = values;
+		histogram = count(values, v -> true, lower, upper);
+	}
+
+	/**
+	 * Returns the number of non-NaN values.
+	 *
+	 * @return the count.
+	 */
+	public long getCount() {
+		return histogram.count;
+	}
+
+	/**
+	 * Returns the largest value.
+	 *
+	 * @return the maximum, or NaN if there are no values.
+	 */
+	public double getMax() {
+		return histogram.count == 0 ? Double.NaN : histogram.max;
+	}
+
+	/**
+	 * Returns the smallest value.
+	 *
+	 * @return the minimum, or NaN if there are no values.
+	 */
+	public double getMin() {
+		return histogram.count == 0 ? Double.NaN : histogram.min;
+	}
+
+	/**
+	 * Returns the percentile of the values.
+	 * <p>
+	 * Uses the same estimate as the default
+	 * {@code org.apache.commons.math3.stat.descriptive.rank.Percentile}, i.e.
+	 * interpolates between the two values nearest to position p * (n + 1) / 100.
+	 * </p>
+	 *
+	 * @param p the percentile in the range (0, 100].
+	 * @return the percentile, or NaN if there are no values.
+	 * @throws IllegalArgumentException if p is out of range.
+	 */
+	public double getPercentile(final double p) {
+		if (p <= 0 || p > 100) {
+			throw new IllegalArgumentException("Percentile must be in (0, 100]");
+		}
+		final long n = histogram.count;
+		if (n == 0) {
+			return Double.NaN;
+		}
+		if (n == 1) {
+			return histogram.min;
+		}
+		final double position = p * (n + 1) / 100.0;
+		if (position < 1) {
+			return getMin();
+		}
+		if (position >= n) {
+			return getMax();
+		}
+		final long floor = (long) Math.floor(position);
+		final double lower = select(floor - 1);
+		final double upper = select(floor);
+		return lower + (position - floor) * (upper - lower);
+	}
+
+	/**
+	 * Returns the value of the given rank, i.e. the kth element of the sorted
+	 * values.
+	 *
+	 * @param k a zero based rank.
+	 * @return the value.
+	 */
+	private double select(final long k) {
+		DoublePredicate filter = v -> true;
+		Histogram level = histogram;
+		long rank = k;
+		while (true) {
+			int bin = 0;
+			while (rank >= level.counts[bin]) {
+				rank -= level.counts[bin];
+				bin++;
+			}
+			if (level.mins[bin] == level.maxs[bin]) {
+				return level.mins[bin];
+			}
+			final Histogram parent = level;
+			final int target = bin;
+			final DoublePredicate inBin = filter.and(v -> parent.bin(v) == target);
+			if (level.counts[bin] <= EXACT_LIMIT) {
+				final double[] binValues = collect(values, inBin, (int) level.counts[bin]);
+				Arrays.sort(binValues);
+				return binValues[(int) rank];
+			}
+			filter = inBin;
+			level = count(values, filter, level.mins[bin], level.maxs[bin]);
+		}
+	}
+
+	private static Histogram count(
+		final IterableInterval<? extends RealType<?>> values,
+		final DoublePredicate filter, final double lower, final double upper)
+	{
+		final long size = values.size();
+		final int chunks = chunks(size);
+		return IntStream.range(0, chunks).parallel().mapToObj(c -> {
+			final Histogram histogram = new Histogram(lower, upper);
+			final Cursor<? extends RealType<?>> cursor = values.cursor();
+			final long start = size * c / chunks;
+			final long end = size * (c + 1) / chunks;
+			cursor.jumpFwd(start);
+			for (long i = start; i < end; i++) {
+				final double v = cursor.next().getRealDouble();
+				if (!Double.isNaN(v) && filter.test(v)) {
+					histogram.add(v);
+				}
+			}
+			return histogram;
+		}).reduce(Histogram::merge).orElseGet(() -> new Histogram(lower, upper));
+	}
+
+	private static double[] collect(
+		final IterableInterval<? extends RealType<?>> values,
+		final DoublePredicate filter, final int n)
+	{
+		final double[] collected = new double[n];
+		final Cursor<? extends RealType<?>> cursor = values.cursor();
+		int i = 0;
+		while (cursor.hasNext()) {
+			final double v = cursor.next().getRealDouble();
+			if (!Double.isNaN(v) && filter.test(v)) {
+				collected[i++] = v;
+			}
+		}
+		return collected;
+	}
+
+	private static int chunks(final long size) {
+		final long perThread = ForkJoinPool.getCommonPoolParallelism() * 4L;
+		return (int) Math.max(1, Math.min(perThread, size / BINS));
+	}
+
+	private static final class Histogram {
+
+		private final double lower;
+		private final double scale;
+		private final long[] counts = new long[BINS];
+		private final double[] mins = new double[BINS];
+		private final double[] maxs = new double[BINS];
+		private long count;
+		private double min = Double.POSITIVE_INFINITY;
+		private double max = Double.NEGATIVE_INFINITY;
+
+		private Histogram(final double lower, final double upper) {
+			this.lower = lower;
+			scale = upper > lower ? BINS / (upper - lower) : 0.0;
+			Arrays.fill(mins, Double.POSITIVE_INFINITY);
+			Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+		}
+
+		private int bin(final double v) {
+			final double bin = (v - lower) * scale;
+			if (bin < 1) {
+				return 0;
+			}
+			return bin >= BINS - 1 ? BINS - 1 : (int) bin;
+		}
+
+		private void add(final double v) {
+			final int bin = bin(v);
+			counts[bin]++;
+			if (v < mins[bin]) mins[bin] = v;
+			if (v > maxs[bin]) maxs[bin] = v;
+			count++;
+			if (v < min) min = v;
+			if (v > max) max = v;
+		}
+
+		private Histogram merge(final Histogram other) {
+			for (int i = 0; i < BINS; i++) {
+				counts[i] += other.counts[i];
+				mins[i] = Math.min(mins[i], other.mins[i]);
+				maxs[i] = Math.max(maxs[i], other.maxs[i]);
+			}
+			count += other.count;
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+			return this;
+		}
+	}
+}
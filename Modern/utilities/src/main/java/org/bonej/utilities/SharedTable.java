@@ -51,9 +51,12 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package org.bonej.utilities;
 
-import java.util.Collection;
-import java.util.Objects;
-import java.util.stream.IntStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.scijava.table.DefaultColumn;
 import org.scijava.table.DefaultGenericTable;
@@ -77,6 +80,11 @@ import org.scijava.table.Table;
  * <li>Labels and columns are kept in the order in which they were
  * produced.</li>
  * </ol>
+ * <p>
+ * The values are stored in primitive columns, and headers and labels are
+ * indexed by hash maps, so that adding a value takes constant time regardless
+ * of the size of the table. The class is thread safe.
+ * </p>
  *
  * @author Richard Domander
  * @author Michael Doube
@@ -85,10 +93,7 @@ public final class SharedTable {
 
 	public static final Double EMPTY_CELL = null;
 
-	/**
-	 * The table uses Double values. Empty cells are indicated by null
-	 */
-	private static Table<DefaultColumn<Double>, Double> table = createTable();
+	private static Results results = new Results();
 
 	private static Table<DefaultColumn<Double>, Double> publicCopy;
 
@@ -105,7 +110,7 @@ public final class SharedTable {
 	public static void add(final String label, final String header,
 		final long value)
 	{
-		add(label, header, new Double(value));
+		add(label, header, (double) value);
 	}
 
 	/**
@@ -116,10 +121,16 @@ public final class SharedTable {
 	 * @param header the column heading of the new data.
 	 * @param value the value of the new data.
 	 */
-	public static void add(final String label, final String header,
+	public static synchronized void add(final String label, final String header,
 		final double value)
 	{
-		add(label, header, new Double(value));
+		if (label.isEmpty()) {
+			throw new IllegalArgumentException("Label cannot be empty");
+		}
+		if (header.isEmpty()) {
+			throw new IllegalArgumentException("Header cannot be empty");
+		}
+		results.add(label, header, value);
 	}
 
 	/**
@@ -136,20 +147,32 @@ public final class SharedTable {
 		if (value == null) {
 			throw new NullPointerException();
 		}
+		add(label, header, value.doubleValue());
+	}
+
+	/**
+	 * Adds a column of values to the shared table.
+	 * <p>
+	 * The result is the same as adding the values one by one in order, but
+	 * the table is locked and the arguments are checked only once. An empty
+	 * array adds nothing.
+	 * </p>
+	 *
+	 * @see #add(String, String, double)
+	 * @param label the row label of the new data.
+	 * @param header the column heading of the new data.
+	 * @param values the values of the new data.
+	 */
+	public static synchronized void addColumn(final String label,
+		final String header, final double[] values)
+	{
 		if (label.isEmpty()) {
 			throw new IllegalArgumentException("Label cannot be empty");
 		}
 		if (header.isEmpty()) {
 			throw new IllegalArgumentException("Header cannot be empty");
 		}
-
-		final int columns = table.getColumnCount();
-		final int columnIndex = headerIndex(header);
-
-		if (columnIndex == columns) {
-			appendEmptyColumn(header);
-		}
-		insertIntoNextFreeRow(label, columnIndex, value);
+		results.addAll(label, header, values);
 	}
 
 	/**
@@ -163,7 +186,7 @@ public final class SharedTable {
 	 *
 	 * @return the persistent copy instance.
 	 */
-	public static Table<DefaultColumn<Double>, Double> getTable() {
+	public static synchronized Table<DefaultColumn<Double>, Double> getTable() {
 		if (publicCopy == null) {
 			publicCopy = createTable();
 		}
@@ -174,84 +197,212 @@ public final class SharedTable {
 			publicCopy.setRowCount(0);
 			publicCopy.setColumnCount(0);
 		}
-		publicCopy.addAll(table);
+		publicCopy.addAll(results.exportColumns());
 		// Just calling publicCopy::add is not enough to update size info
 		// (ThicknessWrapperTests fail)
-		publicCopy.setRowCount(table.getRowCount());
-		publicCopy.setColumnCount(table.getColumnCount());
-		for (int i = 0; i < table.getRowCount(); i++) {
-			publicCopy.setRowHeader(i, table.getRowHeader(i));
+		final int rows = results.labels.size();
+		publicCopy.setRowCount(rows);
+		publicCopy.setColumnCount(results.columns.size());
+		for (int i = 0; i < rows; i++) {
+			publicCopy.setRowHeader(i, results.labels.get(i));
 		}
 		return publicCopy;
 	}
 
-	public static boolean hasData() {
-		return table.stream().flatMap(Collection::stream).anyMatch(
-			Objects::nonNull);
+	public static synchronized boolean hasData() {
+		return results.filledCells > 0;
 	}
 
 	/** Initializes the table into a new empty table */
-	public static void reset() {
-		table = createTable();
+	public static synchronized void reset() {
+		results = new Results();
 	}
 
 	// region -- Helper methods --
 
-	private static void appendEmptyColumn(final String header) {
-		table.appendColumn(header);
-		final int lastColumn = table.getColumnCount() - 1;
-		fillEmptyColumn(lastColumn);
-	}
-
-	private static void appendEmptyRow(final String label) {
-		table.appendRow(label);
-		final int lastRow = table.getRowCount() - 1;
-		fillEmptyRow(label, lastRow);
-	}
-
 	@SuppressWarnings("unchecked")
 	private static Table<DefaultColumn<Double>, Double> createTable() {
 		return (Table) new DefaultGenericTable();
 	}
+	// endregion
+
+	// region -- Helper classes --
+
+	/** The contents of the table stored in primitive columns */
+	private static final class Results {
+
+		private final List<String> labels = new ArrayList<>();
+		private final List<Column> columns = new ArrayList<>();
+		private final Map<String, Integer> headerIndices = new HashMap<>();
+		private final Map<String, LabelRows> labelRows = new HashMap<>();
+		private long filledCells;
 
-	private static void fillEmptyColumn(final int columnIndex) {
-		final DefaultColumn<Double> column = table.get(columnIndex);
-		IntStream.range(0, column.size()).forEach(i -> column.set(i, EMPTY_CELL));
+		private void add(final String label, final String header,
+			final double value)
+		{
+			addAll(label, header, new double[] { value });
+		}
+
+		private void addAll(final String label, final String header,
+			final double[] values)
+		{
+			if (values.length == 0) {
+				return;
+			}
+			final int columnIndex = headerIndices.computeIfAbsent(header, h -> {
+				columns.add(new Column(h));
+				return columns.size() - 1;
+			});
+			final Column column = columns.get(columnIndex);
+			final LabelRows rows = labelRows.computeIfAbsent(label,
+				l -> new LabelRows());
+			column.ensureCapacity(labels.size() + values.length);
+			for (final double value : values) {
+				int row = rows.nextEmptyRow(columnIndex);
+				if (row < 0) {
+					row = labels.size();
+					labels.add(label);
+					rows.append(row, columnIndex);
+				}
+				column.set(row, value);
+			}
+			filledCells += values.length;
+		}
+
+		private List<DefaultColumn<Double>> exportColumns() {
+			final int rows = labels.size();
+			final List<DefaultColumn<Double>> exported = new ArrayList<>(columns
+				.size());
+			for (final Column column : columns) {
+				final DefaultColumn<Double> copy = new DefaultColumn<>(Double.class,
+					column.header);
+				copy.addAll(Arrays.asList(column.boxedValues(rows)));
+				exported.add(copy);
+			}
+			return exported;
+		}
 	}
 
-	private static void fillEmptyRow(final String label, final int row) {
-		table.setRowHeader(row, label);
-		final int columns = table.getColumnCount();
-		IntStream.range(0, columns).forEach(column -> table.set(column, row,
-			EMPTY_CELL));
+	/**
+	 * A column of primitive values.
+	 * <p>
+	 * The boxed values of the column are exported lazily: they're cached, and
+	 * only recreated after the column has changed.
+	 * </p>
+	 */
+	private static final class Column {
+
+		private final String header;
+		private final BitSet filled = new BitSet();
+		private double[] values = new double[16];
+		private Double[] boxed = new Double[0];
+		private boolean changed;
+
+		private Column(final String header) {
+			this.header = header;
+		}
+
+		private void ensureCapacity(final int rows) {
+			if (rows > values.length) {
+				values = Arrays.copyOf(values, Math.max(rows, values.length * 2));
+			}
+		}
+
+		private void set(final int row, final double value) {
+			ensureCapacity(row + 1);
+			values[row] = value;
+			filled.set(row);
+			changed = true;
+		}
+
+		private Double[] boxedValues(final int rows) {
+			if (!changed && boxed.length == rows) {
+				return boxed;
+			}
+			final int oldRows = changed ? 0 : boxed.length;
+			boxed = Arrays.copyOf(boxed, rows);
+			for (int i = oldRows; i < rows; i++) {
+				boxed[i] = filled.get(i) ? Double.valueOf(values[i]) : EMPTY_CELL;
+			}
+			changed = false;
+			return boxed;
+		}
 	}
 
-	private static int headerIndex(final String header) {
-		final int cols = table.getColumnCount();
-		return IntStream.range(0, cols).filter(i -> table.get(i).getHeader().equals(
-			header)).findFirst().orElse(cols);
+	/**
+	 * The rows of a label, and the empty cells in each column on them.
+	 * <p>
+	 * Rows are always appended to the end of the table, so the last empty cell
+	 * of a column is the most recent row pushed on its stack. Rows are pushed
+	 * lazily, when the column is next queried.
+	 * </p>
+	 */
+	private static final class LabelRows {
+
+		private int[] rows = new int[4];
+		private int size;
+		private final List<EmptyCells> emptyCells = new ArrayList<>();
+
+		/**
+		 * Finds the last row of the label with an empty cell in the column.
+		 *
+		 * @return index of the row, or -1 if there are no empty cells.
+		 */
+		private int nextEmptyRow(final int column) {
+			final EmptyCells cells = emptyCells(column);
+			for (; cells.pushed < size; cells.pushed++) {
+				cells.push(rows[cells.pushed]);
+			}
+			return cells.pop();
+		}
+
+		/** Appends a new row of the label, which is filled in the given column */
+		private void append(final int row, final int column) {
+			if (size == rows.length) {
+				rows = Arrays.copyOf(rows, size * 2);
+			}
+			rows[size] = row;
+			size++;
+			// The cell is filled immediately, so it's never pushed as empty
+			emptyCells(column).pushed = size;
+		}
+
+		private EmptyCells emptyCells(final int column) {
+			while (emptyCells.size() <= column) {
+				emptyCells.add(null);
+			}
+			EmptyCells cells = emptyCells.get(column);
+			if (cells == null) {
+				cells = new EmptyCells();
+				emptyCells.set(column, cells);
+			}
+			return cells;
+		}
 	}
 
-	private static void insertIntoNextFreeRow(final String label,
-		final int columnIndex, final Double value)
-	{
-		final int rows = table.getRowCount();
-		// iterate up the table from the bottom
-		for (int i = rows - 1; i >= 0; i--) {
-			// if we find a row with the same label
-			if (table.getRowHeader(i).equals(label)) {
-				//check whether there is not already a value in columnIndex
-				final Double cell = table.get(columnIndex, i); 
-				if (Objects.equals(cell, EMPTY_CELL)) {
-					//add the value to the row and column
-					table.set(columnIndex, i, value);
-					return;
-				}
+	/** A stack of rows with empty cells in a column */
+	private static final class EmptyCells {
+
+		private int[] stack = new int[4];
+		private int top;
+		/** Number of the label's rows pushed on the stack */
+		private int pushed;
+
+		private void push(final int row) {
+			if (top == stack.length) {
+				stack = Arrays.copyOf(stack, top * 2);
+			}
+			stack[top] = row;
+			top++;
+		}
+
+		private int pop() {
+			if (top == 0) {
+				return -1;
 			}
+			top--;
+			return stack[top];
 		}
-		// we didn't find the label in the table so make a new row
-		appendEmptyRow(label);
-		table.set(columnIndex, rows, value);
 	}
 	// endregion
 }
@@ -66,10 +66,14 @@ import net.imagej.axis.DefaultLinearAxis;
 import net.imagej.axis.PowerAxis;
 import net.imagej.units.UnitService;
 import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccess;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.DoubleType;
 
 import org.junit.AfterClass;
@@ -238,6 +242,81 @@ public class ElementUtilTest {
 		assertTrue("Monochrome image should be binary", result);
 	}
 
+	@Test
+	public void testIsBinaryPlanarBytes() {
+		final PlanarImg<UnsignedByteType, ?> img = PlanarImgs.unsignedBytes(300,
+			300, 3);
+		final RandomAccess<UnsignedByteType> access = img.randomAccess();
+		access.setPosition(new long[] { 299, 299, 2 });
+		access.get().set(255);
+
+		assertTrue("An image with two values should be binary", ElementUtil
+			.isBinary(img));
+	}
+
+	@Test
+	public void testIsBinaryPlanarBytesReturnsFalseForMultiValue() {
+		final PlanarImg<UnsignedByteType, ?> img = PlanarImgs.unsignedBytes(300,
+			300, 3);
+		final RandomAccess<UnsignedByteType> access = img.randomAccess();
+		access.setPosition(new long[] { 0, 0, 1 });
+		access.get().set(255);
+		access.setPosition(new long[] { 299, 299, 2 });
+		access.get().set(1);
+
+		assertFalse("An image with more than two values should not be binary",
+			ElementUtil.isBinary(img));
+	}
+
+	@Test
+	public void testIsBinaryArrayBytesReturnsFalseForMultiValue() {
+		final Img<ByteType> img = ArrayImgs.bytes(300, 300, 3);
+		final ImgPlus<ByteType> imgPlus = new ImgPlus<>(img);
+		final RandomAccess<ByteType> access = img.randomAccess();
+		access.setPosition(new long[] { 0, 0, 0 });
+		access.get().set((byte) -1);
+		access.setPosition(new long[] { 299, 299, 2 });
+		access.get().set((byte) 1);
+
+		assertFalse("An image with more than two values should not be binary",
+			ElementUtil.isBinary(imgPlus));
+	}
+
+	@Test
+	public void testCountForegroundArrayBits() {
+		// Not a multiple of 64, so the last word is partly used
+		final Img<BitType> img = ArrayImgs.bits(100, 100, 3);
+		final IterableInterval<BitType> interval = img;
+		final Iterator<Integer> intIterator = IntStream.iterate(0, i -> i + 1)
+			.iterator();
+		interval.cursor().forEachRemaining(e -> e.set(intIterator.next() % 3 == 0));
+
+		assertEquals(10_000, ElementUtil.countForeground(new ImgPlus<>(img)));
+	}
+
+	@Test
+	public void testCountForegroundPlanarBytes() {
+		final PlanarImg<UnsignedByteType, ?> img = PlanarImgs.unsignedBytes(300,
+			300, 3);
+		final RandomAccess<UnsignedByteType> access = img.randomAccess();
+		access.setPosition(new long[] { 0, 0, 0 });
+		access.get().set(255);
+		access.setPosition(new long[] { 299, 299, 2 });
+		access.get().set(1);
+
+		assertEquals(2, ElementUtil.countForeground(img));
+	}
+
+	@Test
+	public void testCountForegroundDoubles() {
+		final IterableInterval<DoubleType> interval = ArrayImgs.doubles(2, 2);
+		final Iterator<Integer> intIterator = IntStream.iterate(0, i -> i + 1)
+			.iterator();
+		interval.cursor().forEachRemaining(e -> e.setReal(intIterator.next()));
+
+		assertEquals(3, ElementUtil.countForeground(interval));
+	}
+
 	@AfterClass
 	public static void oneTimeTearDown() {
 		IMAGE_J.context().dispose();
@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * Utility methods for BoneJ2
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link HistogramQuantiles}.
+ */
+public class HistogramQuantilesTest {
+
+	@Test
+	public void testEmpty() {
+		final Img<FloatType> img = ArrayImgs.floats(new float[] { Float.NaN,
+			Float.NaN }, 2);
+
+		final HistogramQuantiles quantiles = new HistogramQuantiles(img, -1, 1);
+
+		assertEquals(0, quantiles.getCount());
+		assertTrue(Double.isNaN(quantiles.getPercentile(50)));
+		assertTrue(Double.isNaN(quantiles.getMin()));
+		assertTrue(Double.isNaN(quantiles.getMax()));
+	}
+
+	@Test
+	public void testMedianEvenCount() {
+		final Img<DoubleType> img = ArrayImgs.doubles(new double[] { 0.5, Double.NaN,
+			-0.25, 1.0, 0.0 }, 5);
+
+		final HistogramQuantiles quantiles = new HistogramQuantiles(img, -1, 1);
+
+		assertEquals(4, quantiles.getCount());
+		assertEquals(0.25, quantiles.getPercentile(50), 0.0);
+		assertEquals(-0.25, quantiles.getMin(), 0.0);
+		assertEquals(1.0, quantiles.getMax(), 0.0);
+	}
+
+	@Test
+	public void testMedianIsExact() {
+		final Random random = new Random(0xC0FFEE);
+		final double[] values = new double[300_000];
+		for (int i = 0; i < values.length; i++) {
+			// Cluster values so that refinement needs more than one pass
+			values[i] = random.nextGaussian() * 1e-6;
+		}
+		final double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		final int n = sorted.length;
+		final double expected = sorted[n / 2 - 1] + 0.5 * (sorted[n / 2] -
+			sorted[n / 2 - 1]);
+
+		final HistogramQuantiles quantiles = new HistogramQuantiles(ArrayImgs
+			.doubles(values, n), -1, 1);
+
+		assertEquals(expected, quantiles.getPercentile(50), 0.0);
+		assertEquals(sorted[0], quantiles.getMin(), 0.0);
+		assertEquals(sorted[n - 1], quantiles.getMax(), 0.0);
+	}
+
+	@Test
+	public void testValuesOutsideRange() {
+		final Img<DoubleType> img = ArrayImgs.doubles(new double[] { -3.0, 5.0,
+			7.0 }, 3);
+
+		final HistogramQuantiles quantiles = new HistogramQuantiles(img, -1, 1);
+
+		assertEquals(5.0, quantiles.getPercentile(50), 0.0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPercentileOutOfRangeThrows() {
+		final Img<DoubleType> img = ArrayImgs.doubles(new double[] { 0.0 }, 1);
+
+		new HistogramQuantiles(img, -1, 1).getPercentile(0);
+	}
+}
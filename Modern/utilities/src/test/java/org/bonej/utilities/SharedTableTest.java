@@ -58,6 +58,7 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Objects;
+import java.util.stream.IntStream;
 
 import org.junit.After;
 import org.junit.Rule;
@@ -119,6 +120,55 @@ public class SharedTableTest {
 		assertEquals("Label on the wrong row", 0, table.getRowIndex(labelB));
 	}
 
+	/**
+	 * Tests that adding a column fills the same cells as adding the values one
+	 * by one: the first value goes to the empty cell of the existing row, and
+	 * the rest to new rows.
+	 */
+	@Test
+	public void testAddColumn() {
+		SharedTable.add("Image A", "Angle", 1.0);
+		SharedTable.add("Image B", "Angle", 2.0);
+
+		SharedTable.addColumn("Image A", "Length", new double[] { 3.0, 4.0,
+			5.0 });
+
+		final Table<DefaultColumn<Double>, Double> table = SharedTable.getTable();
+		assertEquals(4, table.getRowCount());
+		assertEquals(2, table.getColumnCount());
+		assertEquals("Image A", table.getRowHeader(0));
+		assertEquals("Image B", table.getRowHeader(1));
+		assertEquals("Image A", table.getRowHeader(3));
+		final DefaultColumn<Double> lengths = table.get("Length");
+		assertEquals(3.0, lengths.get(0), 1e-12);
+		assertEquals(EMPTY_CELL, lengths.get(1));
+		assertEquals(4.0, lengths.get(2), 1e-12);
+		assertEquals(5.0, lengths.get(3), 1e-12);
+		assertEquals(EMPTY_CELL, table.get("Angle").get(2));
+	}
+
+	@Test
+	public void testAddColumnThrowsIAEIfEmptyHeader() {
+		expectedException.expect(IllegalArgumentException.class);
+		expectedException.expectMessage("Header cannot be empty");
+
+		SharedTable.addColumn("Label", "", new double[] { 1.0 });
+	}
+
+	@Test
+	public void testAddConcurrently() {
+		final int values = 10_000;
+
+		IntStream.range(0, values).parallel().forEach(i -> SharedTable.add(
+			"Image " + (i % 10), "Value", i));
+
+		final Table<DefaultColumn<Double>, Double> table = SharedTable.getTable();
+		assertEquals(values, table.getRowCount());
+		final double expectedSum = (values - 1) * values / 2.0;
+		assertEquals(expectedSum, table.get("Value").stream().mapToDouble(
+			Double::doubleValue).sum(), 1e-12);
+	}
+
 	@Test
 	public void testAddLabelRepeatedly() {
 		// SETUP
@@ -214,6 +264,24 @@ public class SharedTableTest {
 		assertEquals(0, copy2.getRowCount());
 	}
 
+	@Test
+	public void testGetTableCopyUpdated() {
+		SharedTable.add("Image", "Pixels", 1.0);
+		SharedTable.getTable();
+		SharedTable.add("Image", "Voxels", 2.0);
+		SharedTable.add("Image 2", "Pixels", 3.0);
+
+		final Table<DefaultColumn<Double>, Double> table = SharedTable.getTable();
+
+		assertEquals(2, table.getRowCount());
+		assertEquals(2, table.getColumnCount());
+		assertEquals(1.0, table.get("Pixels").get(0), 1e-12);
+		assertEquals(3.0, table.get("Pixels").get(1), 1e-12);
+		assertEquals(2.0, table.get("Voxels").get(0), 1e-12);
+		assertEquals(EMPTY_CELL, table.get("Voxels").get(1));
+		assertEquals("Image 2", table.getRowHeader(1));
+	}
+
 	@Test
 	public void testGetTableCopyPersists() {
 		final Table<?, ?> instance1 = SharedTable.getTable();
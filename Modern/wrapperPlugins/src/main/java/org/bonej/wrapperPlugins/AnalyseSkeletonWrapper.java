@@ -59,6 +59,7 @@ import org.apache.commons.math3.util.MathArrays;
 import org.bonej.utilities.AxisUtils;
 import org.bonej.utilities.ImagePlusUtil;
 import org.bonej.utilities.SharedTable;
+import org.bonej.wrapperPlugins.wrapperUtils.Common;
 import org.scijava.ItemIO;
 import org.scijava.ItemVisibility;
 import org.scijava.app.StatusService;
@@ -82,7 +83,6 @@ import sc.fiji.analyzeSkeleton.Edge;
 import sc.fiji.analyzeSkeleton.Graph;
 import sc.fiji.analyzeSkeleton.Point;
 import sc.fiji.analyzeSkeleton.SkeletonResult;
-import sc.fiji.skeletonize3D.Skeletonize3D_;
 
 /**
  * A wrapper plugin to bundle AnalyzeSkeleton into BoneJ2
@@ -372,10 +372,7 @@ public class AnalyseSkeletonWrapper extends BoneJCommand {
 		resultsTable = SharedTable.getTable();
 	}
 
-	private void showSkeleton(final Skeletonize3D_ skeletoniser,
-		final ImagePlus skeleton)
-	{
-		final int iterations = skeletoniser.getThinningIterations();
+	private void showSkeleton(final int iterations, final ImagePlus skeleton) {
 		if (iterations > 1) {
 			skeleton.setTitle("Skeleton of " + inputImage.getTitle());
 			uiService.show(skeleton);
@@ -383,7 +380,7 @@ public class AnalyseSkeletonWrapper extends BoneJCommand {
 	}
 
 	/**
-	 * Run {@link Skeletonize3D_} on the input image
+	 * Skeletonise the input image
 	 * <p>
 	 * I know of no way to check if the given image is already a skeleton, and
 	 * {@link AnalyzeSkeleton_} runs for a very long time if it's not. Thus we
@@ -392,10 +389,8 @@ public class AnalyseSkeletonWrapper extends BoneJCommand {
 	 */
 	private ImagePlus skeletonise(final ImagePlus inputImage) {
 		final ImagePlus skeleton = cleanDuplicate(inputImage);
-		final Skeletonize3D_ skeletoniser = new Skeletonize3D_();
-		skeletoniser.setup("", skeleton);
-		skeletoniser.run(null);
-		showSkeleton(skeletoniser, skeleton);
+		final int iterations = Common.skeletonise(skeleton);
+		showSkeleton(iterations, skeleton);
 		return skeleton;
 	}
 
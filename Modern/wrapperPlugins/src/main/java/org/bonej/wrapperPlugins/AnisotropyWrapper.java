@@ -76,7 +76,6 @@ import org.bonej.ops.mil.ParallelLineGenerator;
 import org.bonej.ops.mil.ParallelLineMIL;
 import org.bonej.ops.mil.PlaneParallelLineGenerator;
 import org.bonej.utilities.AxisUtils;
-import org.bonej.utilities.ElementUtil;
 import org.bonej.utilities.SharedTable;
 import org.bonej.utilities.Visualiser;
 import org.bonej.wrapperPlugins.wrapperUtils.HyperstackUtils.Subspace;
@@ -411,7 +410,7 @@ public class AnisotropyWrapper<T extends RealType<T> & NativeType<T>> extends Bo
 			cancelMacroSafe(this, NOT_3D_IMAGE);
 			return;
 		}
-		if (!ElementUtil.isBinary(inputImage)) {
+		if (!isBinary(inputImage)) {
 			cancelMacroSafe(this, NOT_BINARY);
 			return;
 		}
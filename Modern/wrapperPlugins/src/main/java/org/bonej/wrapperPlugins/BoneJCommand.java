@@ -32,9 +32,12 @@ import java.util.List;
 
 import net.imagej.ImgPlus;
 import net.imagej.ops.OpService;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.ComplexType;
+import net.imglib2.type.numeric.RealType;
 
+import org.bonej.utilities.ElementUtil;
 import org.bonej.wrapperPlugins.wrapperUtils.Common;
 import org.bonej.wrapperPlugins.wrapperUtils.HyperstackUtils;
 import org.bonej.wrapperPlugins.wrapperUtils.HyperstackUtils.Subspace;
@@ -54,6 +57,10 @@ import static java.util.stream.Collectors.toList;
 public abstract class BoneJCommand extends ContextCommand {
     private static UsageReporter reporter;
     protected List<Subspace<BitType>> subspaces;
+    private ImgPlus<?> bitTypeSource;
+    private ImgPlus<BitType> bitTypeImage;
+    private ImgPlus<?> binarySource;
+    private boolean binary;
 
 
     /**
@@ -67,11 +74,53 @@ public abstract class BoneJCommand extends ContextCommand {
 
     protected <C extends ComplexType<C>> List<Subspace<BitType>> find3DSubspaces(
             final ImgPlus<C> image) {
-        final OpService opService = context().getService(OpService.class);
-        final ImgPlus<BitType> bitImgPlus = Common.toBitTypeImgPlus(opService, image);
+        final ImgPlus<BitType> bitImgPlus = toBitTypeImgPlus(image);
         return HyperstackUtils.split3DSubspaces(bitImgPlus).collect(toList());
     }
 
+    /**
+     * Converts the image to {@link BitType}.
+     * <p>
+     * The result is cached, so that the conversion happens only once per command
+     * invocation, no matter how many times it's called with the same image.
+     * </p>
+     *
+     * @param image an image.
+     * @param <C> type of the elements in the image.
+     * @return the image converted to bit type.
+     * @see Common#toBitTypeImgPlus(net.imagej.ops.OpEnvironment, ImgPlus)
+     */
+    protected <C extends ComplexType<C>> ImgPlus<BitType> toBitTypeImgPlus(
+            final ImgPlus<C> image) {
+        if (bitTypeImage == null || bitTypeSource != image) {
+            final OpService opService = context().getService(OpService.class);
+            bitTypeImage = Common.toBitTypeImgPlus(opService, image);
+            bitTypeSource = image;
+        }
+        return bitTypeImage;
+    }
+
+    /**
+     * Checks whether the image is binary.
+     * <p>
+     * The result is cached, so that validators called more than once per
+     * command invocation check the image only once.
+     * </p>
+     *
+     * @param image an image.
+     * @param <T> type of the elements in the image.
+     * @return true if the image has only two distinct values.
+     * @see ElementUtil#isBinary(net.imglib2.IterableInterval)
+     */
+    protected <T extends RealType<T> & NativeType<T>> boolean isBinary(
+            final ImgPlus<T> image) {
+        if (binarySource != image) {
+            binary = ElementUtil.isBinary(image);
+            binarySource = image;
+        }
+        return binary;
+    }
+
     protected void reportUsage() {
         if (reporter == null) {
             initReporter();
@@ -30,29 +30,31 @@
 
 package org.bonej.wrapperPlugins;
 
+import static java.util.stream.Collectors.toList;
 import static org.bonej.wrapperPlugins.CommonMessages.NOT_3D_IMAGE;
 import static org.bonej.wrapperPlugins.CommonMessages.NOT_BINARY;
 import static org.bonej.wrapperPlugins.CommonMessages.NO_IMAGE_OPEN;
 import static org.bonej.wrapperPlugins.wrapperUtils.Common.cancelMacroSafe;
 import static org.scijava.ui.DialogPrompt.MessageType.INFORMATION_MESSAGE;
 
+import java.util.List;
+
 import net.imagej.ImgPlus;
 import net.imagej.ops.OpService;
-import net.imagej.ops.Ops.Topology.EulerCharacteristic26NFloating;
-import net.imagej.ops.Ops.Topology.EulerCorrection;
-import net.imagej.ops.special.hybrid.Hybrids;
-import net.imagej.ops.special.hybrid.UnaryHybridCF;
+import net.imagej.ops.special.function.Functions;
+import net.imagej.ops.special.function.UnaryFunctionOp;
 import net.imagej.units.UnitService;
 import net.imglib2.IterableRealInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.NativeType;
-import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.real.DoubleType;
 
+import org.bonej.ops.connectivity.EulerConnectivity;
 import org.bonej.utilities.AxisUtils;
 import org.bonej.utilities.ElementUtil;
 import org.bonej.utilities.SharedTable;
+import org.bonej.wrapperPlugins.wrapperUtils.HyperstackUtils;
+import org.bonej.wrapperPlugins.wrapperUtils.HyperstackUtils.Subspace;
 import org.bonej.wrapperPlugins.wrapperUtils.ResultUtils;
 import org.scijava.app.StatusService;
 import org.scijava.command.Command;
@@ -83,25 +85,26 @@ public class ConnectivityWrapper<T extends RealType<T> & NativeType<T>> extends
 	@Parameter
 	private StatusService statusService;
 
-	private UnaryHybridCF<RandomAccessibleInterval<BitType>, DoubleType> eulerCharacteristicOp;
-	private UnaryHybridCF<RandomAccessibleInterval<BitType>, DoubleType> eulerCorrectionOp;
+	private UnaryFunctionOp<RandomAccessibleInterval<T>, EulerConnectivity.Result> eulerConnectivityOp;
 
 	/** A flag to avoid showing the same warning repeatedly */
 	private boolean negativityWarned;
 	/** The unit displayed in the results */
 	private String unitHeader;
 	private int progress;
-	private static final int PROGRESS_STEPS = 3;
+	private static final int PROGRESS_STEPS = 2;
 
 	@Override
 	public void run() {
 		statusService.showStatus("Connectivity: initialising");
 		final String name = inputImage.getName();
-		subspaces = find3DSubspaces(inputImage);
+		// The input is swept directly, so that its storage arrays can be read
+		final List<Subspace<T>> inputSubspaces = HyperstackUtils.split3DSubspaces(
+			inputImage).collect(toList());
 
 		determineResultUnit();
-		matchOps(subspaces.get(0).interval);
-		subspaces.forEach(subspace -> {
+		matchOps(inputSubspaces.get(0).interval);
+		inputSubspaces.forEach(subspace -> {
 			progress = 0;
 			statusService.showProgress(progress, PROGRESS_STEPS);
 			progress++;
@@ -142,26 +145,23 @@ public class ConnectivityWrapper<T extends RealType<T> & NativeType<T>> extends
 	}
 
 	// region -- Helper methods --
-	private void matchOps(final RandomAccessibleInterval<BitType> interval) {
-		eulerCharacteristicOp = Hybrids.unaryCF(opService,
-			EulerCharacteristic26NFloating.class, DoubleType.class, interval);
-		eulerCorrectionOp = Hybrids.unaryCF(opService, EulerCorrection.class,
-			DoubleType.class, interval);
+	@SuppressWarnings("unchecked")
+	private void matchOps(final RandomAccessibleInterval<T> interval) {
+		eulerConnectivityOp = (UnaryFunctionOp) Functions.unary(opService,
+			EulerConnectivity.class, EulerConnectivity.Result.class, interval);
 	}
 
 	/** Process connectivity for one 3D subspace */
 	private void subspaceConnectivity(final String label,
-		final RandomAccessibleInterval<BitType> subspace)
+		final RandomAccessibleInterval<T> subspace)
 	{
 		statusService.showStatus("Connectivity: calculating connectivity");
 		statusService.showProgress(progress, PROGRESS_STEPS);
 		progress++;
-		final double eulerCharacteristic = eulerCharacteristicOp.calculate(subspace)
-			.get();
-		statusService.showStatus("Connectivity: calculating euler correction");
-		statusService.showProgress(progress, PROGRESS_STEPS);
-		progress++;
-		final double edgeCorrection = eulerCorrectionOp.calculate(subspace).get();
+		final EulerConnectivity.Result result = eulerConnectivityOp.calculate(
+			subspace);
+		final double eulerCharacteristic = result.getEulerCharacteristic();
+		final double edgeCorrection = result.getEdgeCorrection();
 		final double correctedEuler = eulerCharacteristic - edgeCorrection;
 		final double connectivity = 1 - correctedEuler;
 		final double connectivityDensity = calculateConnectivityDensity(subspace,
@@ -184,7 +184,7 @@ public class ConnectivityWrapper<T extends RealType<T> & NativeType<T>> extends
 			return;
 		}
 
-		if (!ElementUtil.isBinary(inputImage)) {
+		if (!isBinary(inputImage)) {
 			cancelMacroSafe(this, NOT_BINARY);
 		}
 	}
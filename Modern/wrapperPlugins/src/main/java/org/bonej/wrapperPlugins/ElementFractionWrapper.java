@@ -39,18 +39,15 @@ import static org.bonej.wrapperPlugins.wrapperUtils.Common.cancelMacroSafe;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
-import net.imagej.ops.OpService;
 import net.imagej.units.UnitService;
 import net.imglib2.IterableInterval;
 import net.imglib2.type.NativeType;
-import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
 
 import org.bonej.utilities.AxisUtils;
 import org.bonej.utilities.ElementUtil;
 import org.bonej.utilities.SharedTable;
-import org.bonej.wrapperPlugins.wrapperUtils.Common;
 import org.bonej.wrapperPlugins.wrapperUtils.HyperstackUtils;
 import org.bonej.wrapperPlugins.wrapperUtils.HyperstackUtils.Subspace;
 import org.bonej.wrapperPlugins.wrapperUtils.ResultUtils;
@@ -59,8 +56,8 @@ import org.scijava.command.Command;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
+import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Stream;
 
 /**
  * This command estimates the size of the given sample by counting its
@@ -79,8 +76,6 @@ public class ElementFractionWrapper<T extends RealType<T> & NativeType<T>> exten
 	@Parameter(validater = "validateImage")
 	private ImgPlus<T> inputImage;
 	@Parameter
-	private OpService opService;
-	@Parameter
 	private UnitService unitService;
 	@Parameter
 	private StatusService statusService;
@@ -97,20 +92,23 @@ public class ElementFractionWrapper<T extends RealType<T> & NativeType<T>> exten
 	@Override
 	public void run() {
 		statusService.showStatus("Element fraction: initializing");
-		findSubspaces(inputImage);
+		final List<Subspace<T>> inputSubspaces = findSubspaces(inputImage);
 		prepareResultDisplay();
 		final String name = inputImage.getName();
-		for (int i = 0; i < subspaces.size(); i++) {
-			final Subspace<BitType> subspace = subspaces.get(i);
+		for (int i = 0; i < inputSubspaces.size(); i++) {
+			final Subspace<T> subspace = inputSubspaces.get(i);
 			statusService.showStatus("Element fraction: calculating subspace #" + (i +
 				1));
-			statusService.showProgress(i, subspaces.size());
-			// The value of each foreground element in a bit type image is 1, so we
-			// can count their number just by summing
-			final IterableInterval<BitType> interval = Views.flatIterable(
-				subspace.interval);
-			final double foregroundSize = opService.stats().sum(interval)
-				.getRealDouble() * elementSize;
+			statusService.showProgress(i, inputSubspaces.size());
+			// Foreground elements are those that would be 1 after conversion to bit
+			// type, i.e. the non-zero ones. They're counted from the input image so
+			// that its storage arrays can be scanned directly.
+			final IterableInterval<T> interval =
+				subspace.interval instanceof IterableInterval
+					? (IterableInterval<T>) subspace.interval : Views.iterable(
+						subspace.interval);
+			final double foregroundSize = ElementUtil.countForeground(interval) *
+				elementSize;
 			final double totalSize = interval.size() * elementSize;
 			final double ratio = foregroundSize / totalSize;
 			final String suffix = subspace.toString();
@@ -121,18 +119,14 @@ public class ElementFractionWrapper<T extends RealType<T> & NativeType<T>> exten
 		reportUsage();
 	}
 
-	private void findSubspaces(final ImgPlus<T> inputImage) {
-		if (AxisUtils.countSpatialDimensions(inputImage) == 3) {
-			subspaces = find3DSubspaces(inputImage);
-		} else {
-			subspaces = find2DSubspaces(inputImage);
-		}
-	}
-
-	private List<Subspace<BitType>> find2DSubspaces(final ImgPlus<T> inputImage) {
-		final List<AxisType> axisTypes = Stream.of(Axes.X, Axes.Y).collect(toList());
-		final ImgPlus<BitType> bitImgPlus = Common.toBitTypeImgPlus(opService, inputImage);
-		return HyperstackUtils.splitSubspaces(bitImgPlus, axisTypes).collect(toList());
+	private static <T extends RealType<T> & NativeType<T>> List<Subspace<T>>
+		findSubspaces(final ImgPlus<T> inputImage)
+	{
+		final List<AxisType> axisTypes = AxisUtils.countSpatialDimensions(
+			inputImage) == 3 ? Arrays.asList(Axes.X, Axes.Y, Axes.Z) : Arrays.asList(
+				Axes.X, Axes.Y);
+		return HyperstackUtils.splitSubspaces(inputImage, axisTypes).collect(
+			toList());
 	}
 
 	private void addResults(final String label, final double foregroundSize,
@@ -165,7 +159,7 @@ public class ElementFractionWrapper<T extends RealType<T> & NativeType<T>> exten
 			return;
 		}
 
-		if (!ElementUtil.isBinary(inputImage)) {
+		if (!isBinary(inputImage)) {
 			cancelMacroSafe(this, NOT_BINARY);
 		}
 
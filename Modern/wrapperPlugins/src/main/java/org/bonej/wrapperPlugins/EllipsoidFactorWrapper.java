@@ -42,15 +42,23 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
 import java.util.stream.IntStream;
 import java.util.stream.LongStream;
 import java.util.stream.Stream;
@@ -61,7 +69,6 @@ import net.imagej.units.UnitService;
 import net.imglib2.type.numeric.integer.ByteType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.integer.LongType;
-import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedIntType;
 import net.imagej.ImgPlus;
 import net.imagej.ops.OpService;
@@ -73,22 +80,26 @@ import net.imglib2.RandomAccessible;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImg;
 import net.imglib2.img.basictypeaccess.array.ByteArray;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
 
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.bonej.ops.ellipsoid.EllipsoidDuplicates;
 import org.bonej.ops.ellipsoid.EllipsoidFactorErrorTracking;
 import org.bonej.ops.ellipsoid.EllipsoidFactorOutputGenerator;
 import org.bonej.ops.ellipsoid.EllipsoidOptimisationStrategy;
+import org.bonej.ops.ellipsoid.EllipsoidSetFile;
+import org.bonej.ops.ellipsoid.EllipsoidSetFile.EllipsoidSet;
 import org.bonej.ops.ellipsoid.OptimisationParameters;
 import org.bonej.ops.ellipsoid.QuickEllipsoid;
 import org.bonej.ops.ellipsoid.constrain.NoEllipsoidConstrain;
 import org.bonej.ops.skeletonize.FindRidgePoints;
 import org.bonej.utilities.AxisUtils;
 import org.bonej.utilities.ElementUtil;
+import org.bonej.utilities.HistogramQuantiles;
 import org.bonej.utilities.SharedTable;
 import org.bonej.wrapperPlugins.wrapperUtils.Common;
 import org.joml.Vector3d;
@@ -100,8 +111,8 @@ import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import org.scijava.ui.UIService;
+import org.scijava.widget.FileWidget;
 
-import sc.fiji.skeletonize3D.Skeletonize3D_;
 
 /**
  * ImageJ plugin to describe the local geometry of a binary image in an
@@ -128,6 +139,8 @@ import sc.fiji.skeletonize3D.Skeletonize3D_;
 public class EllipsoidFactorWrapper extends BoneJCommand {
 
 	static final String NO_ELLIPSOIDS_FOUND = "No ellipsoids were found - try modifying input parameters.";
+	/** Seed points per processor in each batch of adaptive seeding. */
+	private static final int ADAPTIVE_BATCH_SIZE = 16;
 
 	//ImageJ services
 	@SuppressWarnings("unused")
@@ -157,18 +170,26 @@ public class EllipsoidFactorWrapper extends BoneJCommand {
 	private double vectorIncrement = 1 / 2.3;
 	@Parameter(label = "Skeleton points per ellipsoid", description = "Number of skeleton points per ellipsoid. Sets the granularity of the ellipsoid fields.", min="1")
 	private int skipRatio = 50;
+	@Parameter(label = "Adaptive seeding", description = "Optimise seed points in batches, skip seed points that are already inside an ellipsoid, and stop when the target filling is reached. Ignores skeleton points per ellipsoid.")
+	private boolean adaptiveSeeding = false;
+	@Parameter(label = "Target filling percentage", description = "Percentage of the foreground that adaptive seeding fills with ellipsoids before it stops", min="0", max="100")
+	private double targetFilling = 90.0;
 	@Parameter(label = "Contact sensitivity", description = "Number of contacts with surface required to determine collision.", min = "1")
 	private int contactSensitivity = 1;
 	@Parameter(label = "Maximum iterations", description = "Maximum currentIteration to try improving ellipsoid fit before stopping.", min="10")
 	private int maxIterations = 100;
 	@Parameter(label = "Maximum drift", description = "Maximum distance ellipsoid may drift from seed point. Defaults to unit voxel diagonal length", min="0")
 	private double maxDrift = Math.sqrt(3);
+	@Parameter(label = "Coarse-to-fine downsampling", description = "Optimise ellipsoids on an image downsampled by this factor first (e.g. 2 or 4), and refine them at full resolution. 1 optimises at full resolution only.", min="1")
+	private int downsampling = 1;
 
 	//averaging / smoothing
 	@Parameter(label = "Repetitions", description = "Number of currentIteration over which to average EF value", min="1")
 	private int runs = 1;
 	@Parameter(label = "Average over largest n ellipsoids", min="1")
 	private int weightedAverageN = 1;
+	@Parameter(label = "Remove hidden ellipsoids", description = "Remove ellipsoids that are not among the largest n of any foreground voxel, e.g. smaller copies inside larger ellipsoids. The EF and other maps stay the same, but the IDs, Flinn plots and number of ellipsoids found change.")
+	private boolean removeHiddenEllipsoids = false;
 	
 	
 	//what seed points should I use?
@@ -188,16 +209,23 @@ public class EllipsoidFactorWrapper extends BoneJCommand {
 	@Parameter(label = "Show verbose output images")
 	private boolean showSecondaryImages = false;
 
+	@Parameter(label = "Reuse optimised ellipsoids", description = "Save the optimised ellipsoids and seed points in the cache directory, and reload them in later runs on the same image with the same optimisation and seed point settings. The saved files are not deleted automatically.")
+	private boolean reuseEllipsoids = false;
+	@Parameter(label = "Ellipsoid cache directory", description = "Directory for the ellipsoids saved and reloaded when reusing optimised ellipsoids", style = FileWidget.DIRECTORY_STYLE, required = false)
+	private File ellipsoidCacheDirectory;
+
 	@Parameter (label = "EF Output Images", type = ItemIO.OUTPUT)
 	private List<ImgPlus> ellipsoidFactorOutputImages;
 	@Parameter(label = "Seed Points", type = ItemIO.OUTPUT)
 	private ImgPlus<ByteType> seedPointImage;// 0=not a seed, 1=medial seed
 
 	private ImgPlus<BitType> inputAsBitType;
+	private byte[][] pixels;
 
 	@Override
 	public void run() {
-		inputAsBitType = Common.toBitTypeImgPlus(opService, inputImage);
+		inputAsBitType = toBitTypeImgPlus(inputImage);
+		pixels = imgPlusToByteArray(inputImage);
 
 		int totalEllipsoids = 0;
 		List<ImgPlus> outputList = null;
@@ -208,9 +236,27 @@ public class EllipsoidFactorWrapper extends BoneJCommand {
 		double[] medianErrors = new double[runs];
 		double[] maxErrors = new double[runs];
 
+		final Path ellipsoidSetPath = getEllipsoidSetPath();
+		final List<EllipsoidSet> savedSets = readEllipsoidSets(ellipsoidSetPath);
+		int reloaded = 0;
 		for(int i = 0; i<runs; i++) {
-			//optimise ellipsoids
-			final List<QuickEllipsoid> ellipsoids = runEllipsoidOptimisation(inputImage);
+			//optimise ellipsoids, or reload them from an earlier run
+			final List<QuickEllipsoid> ellipsoids;
+			if (i < savedSets.size()) {
+				final EllipsoidSet set = savedSets.get(i);
+				ellipsoids = new ArrayList<>(set.ellipsoids);
+				showSeedPoints(set.seeds);
+				logService.info("Reloaded " + ellipsoids.size() + " ellipsoids from " + ellipsoidSetPath);
+				reloaded++;
+			}
+			else {
+				final List<Vector3dc> seeds = new ArrayList<>();
+				ellipsoids = runEllipsoidOptimisation(inputImage, seeds);
+				showSeedPoints(seeds);
+				if (ellipsoidSetPath != null && !ellipsoids.isEmpty()) {
+					saveEllipsoidSet(ellipsoidSetPath, new EllipsoidSet(seeds, ellipsoids));
+				}
+			}
 			if (ellipsoids.isEmpty()) {
 				cancelMacroSafe(this, NO_ELLIPSOIDS_FOUND);
 				return;
@@ -292,21 +338,16 @@ public class EllipsoidFactorWrapper extends BoneJCommand {
 		final double fillingPercentage = 100.0 * (numberOfAssignedVoxels / numberOfForegroundVoxels);
 
 
-		DescriptiveStatistics stats = new DescriptiveStatistics();
-		final Cursor<FloatType> cursor = EF.cursor();
-		while(cursor.hasNext()){
-			cursor.fwd();
-			final double value = cursor.get().getRealDouble();
-			if(!Double.isNaN(value)){
-				stats.addValue(value);
-			}
-		}
+		final HistogramQuantiles stats = new HistogramQuantiles(EF, -1.0, 1.0);
 		final double median = stats.getPercentile(50);
 		SharedTable.add(inputImage.getName(), "Median EF", median);
 		final double max = stats.getMax();
 		SharedTable.add(inputImage.getName(), "Max EF", max);
 		final double min = stats.getMin();
 		SharedTable.add(inputImage.getName(), "Min EF", min);
+		if (ellipsoidSetPath != null) {
+			SharedTable.add(inputImage.getName(), "Reloaded repetitions", reloaded);
+		}
 		if(showConvergence)
 		{
 			for(int i=1; i<runs; i++)
@@ -392,58 +433,246 @@ public class EllipsoidFactorWrapper extends BoneJCommand {
 	 *            input image
 	 * @return array of fitted ellipsoids
 	 */
-	private List<QuickEllipsoid> runEllipsoidOptimisation(final ImgPlus imp) {
+	private List<QuickEllipsoid> runEllipsoidOptimisation(final ImgPlus imp, final List<Vector3dc> seeds) {
 		long start = System.currentTimeMillis();
 
 		final int w = (int) imp.dimension(0);
 		final int h = (int) imp.dimension(1);
 		final int d = (int) imp.dimension(2);
 
-		final byte[][] pixels = imgPlusToByteArray(imp);
-		final ArrayImg<ByteType, ByteArray> seedImage = ArrayImgs.bytes(w, h, d);
 		final List<QuickEllipsoid> quickEllipsoids = new ArrayList<>();
-		final OptimisationParameters parameters = new OptimisationParameters(vectorIncrement, nVectors, contactSensitivity, maxIterations, maxDrift);
+		final OptimisationParameters parameters = getOptimisationParameters();
+		final BinaryFunctionOp<byte[][], Vector3d, QuickEllipsoid> medialOptimisation = Functions.binary(opService,
+				EllipsoidOptimisationStrategy.class, QuickEllipsoid.class, pixels, new Vector3d(),
+				new long[]{w, h, d}, new NoEllipsoidConstrain(),parameters);
+		final FillTracker fillTracker = adaptiveSeeding ? new FillTracker(pixels, w, h, d) : null;
 		if (seedOnDistanceRidge) {
-			final ImgPlus<BitType> inputAsBitType = Common.toBitTypeImgPlus(opService, inputImage);
-			List<Vector3d> ridgePoints = getDistanceRidgePoints(inputAsBitType);
-			ridgePoints = applySkipRatio(ridgePoints);
-			addPointsToDisplay(ridgePoints, seedImage, (byte) 1);
-
-			statusService.showStatus("Optimising distance-ridge-seeded ellipsoids from "+ridgePoints.size()+" seed points...");
-			final BinaryFunctionOp<byte[][], Vector3d, QuickEllipsoid> medialOptimisation = Functions.binary(opService,
-					EllipsoidOptimisationStrategy.class, QuickEllipsoid.class, pixels, new Vector3d(),
-					new long[]{w, h, d}, new NoEllipsoidConstrain(),parameters);
-			final AtomicInteger progress = new AtomicInteger();
-			final int points = ridgePoints.size();
-			final List<QuickEllipsoid> ridgePointEllipsoids = ridgePoints.parallelStream()
-					.peek(p -> statusService.showProgress(progress.getAndIncrement(), points))
-					.map(sp -> medialOptimisation.calculate(pixels, sp)).filter(Objects::nonNull)
-					.collect(toList());
+			final List<Vector3d> ridgePoints = getDistanceRidgePoints(inputAsBitType);
+			statusService.showStatus("Optimising distance-ridge-seeded ellipsoids...");
+			final List<QuickEllipsoid> ridgePointEllipsoids = optimiseSeeds(ridgePoints, medialOptimisation, seeds,
+					fillTracker);
 			logService.info("Found " + ridgePointEllipsoids.size() + " distance-ridge-seeded ellipsoids.");
 			quickEllipsoids.addAll(ridgePointEllipsoids);
 		}
 
 		if (seedOnTopologyPreserving) {
-			List<Vector3d> skeletonPoints = getSkeletonPoints();
-			skeletonPoints = applySkipRatio(skeletonPoints);
-			addPointsToDisplay(skeletonPoints, seedImage, (byte) 1);
-
-			statusService.showStatus("Optimising skeleton-seeded ellipsoids from "+skeletonPoints.size()+" seed points...");
-			final BinaryFunctionOp<byte[][], Vector3d, QuickEllipsoid> medialOptimisation = Functions.binary(opService,
-					EllipsoidOptimisationStrategy.class, QuickEllipsoid.class, pixels, new Vector3d(),
-					new long[]{w, h, d}, new NoEllipsoidConstrain(),parameters);
+			final List<Vector3d> skeletonPoints = getSkeletonPoints();
+			statusService.showStatus("Optimising skeleton-seeded ellipsoids...");
+			final List <QuickEllipsoid> skeletonSeededEllipsoids = optimiseSeeds(skeletonPoints, medialOptimisation,
+					seeds, fillTracker);
+			logService.info("Found " + skeletonSeededEllipsoids.size() + " skeleton-seeded ellipsoids.");
+			quickEllipsoids.addAll(skeletonSeededEllipsoids);
+		}
+
+		quickEllipsoids.sort((a, b) -> Double.compare(b.getVolume(), a.getVolume()));
+		final List<QuickEllipsoid> distinctEllipsoids = removeHiddenEllipsoids(quickEllipsoids, w, h);
+		final long stop = System.currentTimeMillis();
+		logService.info("Found " + distinctEllipsoids.size() + " ellipsoids in " + (stop - start) + " ms");
+		return distinctEllipsoids;
+	}
+
+	private List<QuickEllipsoid> removeHiddenEllipsoids(final List<QuickEllipsoid> ellipsoids, final int w,
+			final int h) {
+		if (!removeHiddenEllipsoids) {
+			return ellipsoids;
+		}
+		if (weightedAverageN > EllipsoidDuplicates.MAX_ASSIGNED) {
+			logService.warn("Hidden ellipsoids are not removed when averaging over more than " +
+					EllipsoidDuplicates.MAX_ASSIGNED + " ellipsoids");
+			return ellipsoids;
+		}
+		final List<QuickEllipsoid> visible = EllipsoidDuplicates.collapse(ellipsoids, pixels, w, h, weightedAverageN);
+		logService.info("Removed " + (ellipsoids.size() - visible.size()) + " hidden ellipsoids");
+		return visible;
+	}
+
+	/**
+	 * Optimises an ellipsoid from each seed point.
+	 * <p>
+	 * Without adaptive seeding, every skipRatio-th seed point is used. With adaptive seeding, the seed
+	 * points are shuffled and optimised in parallel batches. Seeds already inside a found ellipsoid are
+	 * skipped, and optimisation stops once the ellipsoids fill the target percentage of the foreground.
+	 * </p>
+	 *
+	 * @param seedPoints candidate seed points.
+	 * @param optimisation op that optimises an ellipsoid from a seed.
+	 * @param seeds the seeds used are added here.
+	 * @param fillTracker foreground filled so far, or null without adaptive seeding.
+	 * @return the valid ellipsoids found.
+	 */
+	private List<QuickEllipsoid> optimiseSeeds(final List<Vector3d> seedPoints,
+			final BinaryFunctionOp<byte[][], Vector3d, QuickEllipsoid> optimisation, final List<Vector3dc> seeds,
+			final FillTracker fillTracker) {
+		if (fillTracker == null) {
+			final List<Vector3d> skipped = applySkipRatio(seedPoints);
+			seeds.addAll(skipped);
 			final AtomicInteger progress = new AtomicInteger();
-			final int points = skeletonPoints.size();
-			final List <QuickEllipsoid> skeletonSeededEllipsoids = skeletonPoints.parallelStream()
+			final int points = skipped.size();
+			return skipped.parallelStream()
 					.peek(p -> statusService.showProgress(progress.getAndIncrement(), points))
-					.map(sp -> medialOptimisation.calculate(pixels, sp)).filter(Objects::nonNull)
+					.map(sp -> optimisation.calculate(pixels, sp)).filter(Objects::nonNull)
 					.collect(toList());
-			logService.info("Found " + skeletonSeededEllipsoids.size() + " skeleton-seeded ellipsoids.");
-			quickEllipsoids.addAll(skeletonSeededEllipsoids);
 		}
+		final List<Vector3d> shuffled = new ArrayList<>(seedPoints);
+		Collections.shuffle(shuffled);
+		final int batchSize = ADAPTIVE_BATCH_SIZE * Runtime.getRuntime().availableProcessors();
+		final int seedsBefore = seeds.size();
+		final List<QuickEllipsoid> ellipsoids = seedAdaptively(shuffled, sp -> optimisation.calculate(pixels, sp),
+				seeds, fillTracker, targetFilling, batchSize, start -> statusService.showProgress(start,
+						shuffled.size()));
+		logService.info("Adaptive seeding optimised " + (seeds.size() - seedsBefore) + " of " + seedPoints.size() +
+				" seed points, filling " + fillTracker.getFillingPercentage() + "% of the foreground");
+		return ellipsoids;
+	}
+
+	/**
+	 * Optimises ellipsoids from seed points in parallel batches until they fill the target percentage of the
+	 * foreground.
+	 * <p>
+	 * Seed points already inside an ellipsoid when their batch starts are skipped.
+	 * </p>
+	 *
+	 * @param seedPoints seed points in the order they're tried.
+	 * @param optimisation finds the ellipsoid of a seed point, or null if there's no valid ellipsoid.
+	 * @param seeds the seeds used are added here.
+	 * @param fillTracker foreground filled so far, updated with the ellipsoids found.
+	 * @param targetFilling percentage of the foreground to fill before stopping.
+	 * @param batchSize number of seed points in each batch.
+	 * @param progress called with the index of the first seed point of each batch.
+	 * @return the valid ellipsoids found.
+	 */
+	static List<QuickEllipsoid> seedAdaptively(final List<Vector3d> seedPoints,
+			final Function<Vector3d, QuickEllipsoid> optimisation, final List<Vector3dc> seeds,
+			final FillTracker fillTracker, final double targetFilling, final int batchSize,
+			final IntConsumer progress) {
+		final List<QuickEllipsoid> ellipsoids = new ArrayList<>();
+		for (int start = 0; start < seedPoints.size() && fillTracker.getFillingPercentage() < targetFilling;
+			 start += batchSize) {
+			progress.accept(start);
+			final List<Vector3d> batch = seedPoints.subList(start, Math.min(start + batchSize, seedPoints.size()))
+					.stream().filter(p -> !fillTracker.isFilled(p)).collect(toList());
+			seeds.addAll(batch);
+			final List<QuickEllipsoid> batchEllipsoids = batch.parallelStream().map(optimisation)
+					.filter(Objects::nonNull).collect(toList());
+			batchEllipsoids.parallelStream().forEach(fillTracker::fill);
+			ellipsoids.addAll(batchEllipsoids);
+		}
+		return ellipsoids;
+	}
+
+	/**
+	 * Tracks which foreground voxels are inside at least one ellipsoid.
+	 * <p>
+	 * Voxels are marked in a bit set with atomic updates, so ellipsoids can be added in parallel and the
+	 * filled count stays exact.
+	 * </p>
+	 */
+	static final class FillTracker {
+		private final byte[][] pixels;
+		private final int w;
+		private final int h;
+		private final int d;
+		private final AtomicIntegerArray filledBits;
+		private final LongAdder filled = new LongAdder();
+		private final long foreground;
+
+		FillTracker(final byte[][] pixels, final int w, final int h, final int d) {
+			this.pixels = pixels;
+			this.w = w;
+			this.h = h;
+			this.d = d;
+			filledBits = new AtomicIntegerArray((int) (((long) w * h * d + 31) / 32));
+			foreground = Arrays.stream(pixels).parallel().mapToLong(plane -> {
+				long count = 0;
+				for (final byte p : plane) {
+					if (p == -1) count++;
+				}
+				return count;
+			}).sum();
+		}
+
+		/**
+		 * Checks if the voxel of a point is inside an ellipsoid.
+		 *
+		 * @param point a point in voxel coordinates.
+		 * @return true if the point is in a filled foreground voxel, false if not or if it's outside the image.
+		 */
+		boolean isFilled(final Vector3dc point) {
+			final int x = (int) Math.floor(point.x());
+			final int y = (int) Math.floor(point.y());
+			final int z = (int) Math.floor(point.z());
+			if (x < 0 || x >= w || y < 0 || y >= h || z < 0 || z >= d) {
+				return false;
+			}
+			final long index = ((long) z * h + y) * w + x;
+			return (filledBits.get((int) (index >>> 5)) & (1 << (index & 31))) != 0;
+		}
+
+		/**
+		 * Marks the foreground voxels whose centres are inside the ellipsoid as filled.
+		 *
+		 * @param ellipsoid an ellipsoid in voxel coordinates.
+		 */
+		void fill(final QuickEllipsoid ellipsoid) {
+			final double[] centre = ellipsoid.getCentre();
+			final double maxRadius = ellipsoid.getSortedRadii()[2];
+			final int x0 = Math.max(0, (int) Math.floor(centre[0] - maxRadius));
+			final int x1 = Math.min(w - 1, (int) Math.ceil(centre[0] + maxRadius));
+			final int y0 = Math.max(0, (int) Math.floor(centre[1] - maxRadius));
+			final int y1 = Math.min(h - 1, (int) Math.ceil(centre[1] + maxRadius));
+			final int z0 = Math.max(0, (int) Math.floor(centre[2] - maxRadius));
+			final int z1 = Math.min(d - 1, (int) Math.ceil(centre[2] + maxRadius));
+			for (int z = z0; z <= z1; z++) {
+				final byte[] plane = pixels[z];
+				for (int y = y0; y <= y1; y++) {
+					for (int x = x0; x <= x1; x++) {
+						if (plane[y * w + x] != -1 || !ellipsoid.contains(x + 0.5, y + 0.5, z + 0.5)) {
+							continue;
+						}
+						final long index = ((long) z * h + y) * w + x;
+						final int bit = 1 << (index & 31);
+						final int word = (int) (index >>> 5);
+						int bits;
+						do {
+							bits = filledBits.get(word);
+							if ((bits & bit) != 0) {
+								break;
+							}
+						} while (!filledBits.compareAndSet(word, bits, bits | bit));
+						if ((bits & bit) == 0) {
+							filled.increment();
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return number of foreground voxels inside at least one ellipsoid.
+		 */
+		long getFilled() {
+			return filled.sum();
+		}
+
+		/**
+		 * @return percentage of the foreground inside at least one ellipsoid, 100 if there's no foreground.
+		 */
+		double getFillingPercentage() {
+			return foreground == 0 ? 100.0 : 100.0 * getFilled() / foreground;
+		}
+	}
 
+	private OptimisationParameters getOptimisationParameters() {
+		return new OptimisationParameters(vectorIncrement, nVectors, contactSensitivity, maxIterations, maxDrift,
+				downsampling);
+	}
+
+	private void showSeedPoints(final List<? extends Vector3dc> seeds) {
 		if(showSecondaryImages)
 		{
+			final ArrayImg<ByteType, ByteArray> seedImage = ArrayImgs.bytes(inputImage.dimension(0),
+					inputImage.dimension(1), inputImage.dimension(2));
+			addPointsToDisplay(seeds, seedImage, (byte) 1);
 			final DefaultLinearAxis xAxis = (DefaultLinearAxis) inputImage.axis(0);
 			final DefaultLinearAxis yAxis = (DefaultLinearAxis) inputImage.axis(1);
 			final DefaultLinearAxis zAxis = (DefaultLinearAxis) inputImage.axis(2);
@@ -454,19 +683,61 @@ public class EllipsoidFactorWrapper extends BoneJCommand {
 			seedPointImage.setChannelMaximum(0, 1);
 			seedPointImage.setChannelMinimum(0, 0);
 		}
-		quickEllipsoids.sort((a, b) -> Double.compare(b.getVolume(), a.getVolume()));
-		final long stop = System.currentTimeMillis();
-		logService.info("Found " + quickEllipsoids.size() + " ellipsoids in " + (stop - start) + " ms");
-		return quickEllipsoids;
+	}
+
+	/**
+	 * Returns the path of the file for the ellipsoids of the input image.
+	 * <p>
+	 * The name of the file is a hash of the image and every setting that affects the optimisation,
+	 * so changing only output options reuses the same file.
+	 * </p>
+	 *
+	 * @return path of the file in the cache directory, or null if ellipsoids are not reused.
+	 */
+	private Path getEllipsoidSetPath() {
+		if (!reuseEllipsoids) {
+			return null;
+		}
+		if (ellipsoidCacheDirectory == null) {
+			logService.warn("No ellipsoid cache directory chosen - ellipsoids are not reused");
+			return null;
+		}
+		final long[] dimensions = {inputImage.dimension(0), inputImage.dimension(1), inputImage.dimension(2)};
+		final String key = EllipsoidSetFile.key(pixels, dimensions, getOptimisationParameters(),
+				seedOnDistanceRidge ? 1 : 0, distanceThreshold, seedOnTopologyPreserving ? 1 : 0, skipRatio,
+				adaptiveSeeding ? 1 : 0, targetFilling, removeHiddenEllipsoids ? weightedAverageN : 0);
+		return ellipsoidCacheDirectory.toPath().resolve(key + ".efs");
+	}
+
+	private List<EllipsoidSet> readEllipsoidSets(final Path path) {
+		if (path == null) {
+			return Collections.emptyList();
+		}
+		try {
+			return EllipsoidSetFile.read(path);
+		}
+		catch (final IOException e) {
+			logService.warn("Could not reload ellipsoids: " + e.getMessage());
+			logService.trace(e);
+			return Collections.emptyList();
+		}
+	}
+
+	private void saveEllipsoidSet(final Path path, final EllipsoidSet set) {
+		try {
+			EllipsoidSetFile.append(path, set);
+		}
+		catch (final IOException e) {
+			logService.warn("Could not save ellipsoids: " + e.getMessage());
+			logService.trace(e);
+		}
 	}
 
 	// region --seed point finding--
 
 	private List<Vector3d> getSkeletonPoints() {
 		final ImagePlus skeleton = copyAsBinaryImagePlus(inputAsBitType);
-		final Skeletonize3D_ skeletoniser = new Skeletonize3D_();
-		skeletoniser.setup("", skeleton);
-		skeletoniser.run(null);
+		Common.skeletonise(skeleton);
 		final List<Vector3d> skeletonPoints = new ArrayList<>();
 		final ImageStack skeletonStack = skeleton.getImageStack();
 		for (int z = 0; z < skeleton.getStackSize(); z++) {
@@ -517,11 +788,11 @@ public class EllipsoidFactorWrapper extends BoneJCommand {
 		return seedPoints;
 	}
 
-	private void addPointsToDisplay(final List<Vector3d> seedPoints, final Img<ByteType> seedImage,
+	private void addPointsToDisplay(final List<? extends Vector3dc> seedPoints, final Img<ByteType> seedImage,
 									final byte i) {
 		final RandomAccess<ByteType> access = seedImage.randomAccess();
-		for (final Vector3d p : seedPoints) {
-			access.setPosition(new int[]{(int) p.x, (int) p.y, (int) p.z});
+		for (final Vector3dc p : seedPoints) {
+			access.setPosition(new int[]{(int) p.x(), (int) p.y(), (int) p.z()});
 			access.get().set(i);
 		}
 	}
@@ -608,19 +879,33 @@ public class EllipsoidFactorWrapper extends BoneJCommand {
 			return;
 		}
 
-		if (!ElementUtil.isBinary(inputImage)) {
+		if (!isBinary(inputImage)) {
 			cancelMacroSafe(this, NOT_BINARY);
 		}
 	}
 
 	// endregion
-	static byte[][] imgPlusToByteArray(final ImgPlus<UnsignedByteType> imgPlus) {
+	/**
+	 * Converts the image into the binary planes the optimisation strategy reads.
+	 * <p>
+	 * If the image is planar, and its planes already contain only 0 and 0xFF,
+	 * they're returned as they are without copying.
+	 * </p>
+	 *
+	 * @param imgPlus a 3D image.
+	 * @return one array per slice, where foreground elements are 0xFF.
+	 */
+	static byte[][] imgPlusToByteArray(final ImgPlus<? extends RealType<?>> imgPlus) {
+		final byte[][] planes = binaryPlanes(imgPlus.getImg());
+		if (planes != null) {
+			return planes;
+		}
 		final int w = (int) imgPlus.dimension(0);
 		final int h = (int) imgPlus.dimension(1);
 		final int d = (int) imgPlus.dimension(2);
 
 		final byte[][] pixels = new byte[d][w * h];
-		final Cursor<UnsignedByteType> cursor = imgPlus.localizingCursor();
+		final Cursor<? extends RealType<?>> cursor = imgPlus.localizingCursor();
 		final int[] position = new int[imgPlus.numDimensions()];
 		while (cursor.hasNext()) {
 			cursor.fwd();
@@ -632,4 +917,26 @@ public class EllipsoidFactorWrapper extends BoneJCommand {
 
 		return pixels;
 	}
+
+	private static byte[][] binaryPlanes(final Img<?> img) {
+		if (!(img instanceof PlanarImg) || img.numDimensions() != 3) {
+			return null;
+		}
+		final PlanarImg<?, ?> planarImg = (PlanarImg<?, ?>) img;
+		final byte[][] planes = new byte[planarImg.numSlices()][];
+		for (int z = 0; z < planes.length; z++) {
+			final Object plane = planarImg.getPlane(z);
+			if (!(plane instanceof ByteArray)) {
+				return null;
+			}
+			final byte[] data = ((ByteArray) plane).getCurrentStorageArray();
+			for (final byte b : data) {
+				if (b != 0 && b != (byte) 0xFF) {
+					return null;
+				}
+			}
+			planes[z] = data;
+		}
+		return planes;
+	}
 }
@@ -58,7 +58,6 @@ import net.imglib2.util.ValuePair;
 import org.apache.commons.math3.fitting.PolynomialCurveFitter;
 import org.apache.commons.math3.fitting.WeightedObservedPoints;
 import org.apache.commons.math3.stat.regression.SimpleRegression;
-import org.bonej.utilities.ElementUtil;
 import org.bonej.utilities.SharedTable;
 import org.bonej.wrapperPlugins.wrapperUtils.HyperstackUtils.Subspace;
 import org.scijava.ItemIO;
@@ -288,7 +287,7 @@ public class FractalDimensionWrapper<T extends RealType<T> & NativeType<T>> exte
 			cancelMacroSafe(this, NO_IMAGE_OPEN);
 			return;
 		}
-		if (!ElementUtil.isBinary(inputImage)) {
+		if (!isBinary(inputImage)) {
 			cancelMacroSafe(this, NOT_BINARY);
 		}
 	}
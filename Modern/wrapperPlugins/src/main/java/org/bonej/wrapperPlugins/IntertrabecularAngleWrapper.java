@@ -75,7 +75,6 @@ import sc.fiji.analyzeSkeleton.Vertex;
 import sc.fiji.analyzeSkeleton.ita.GraphPruning;
 import sc.fiji.analyzeSkeleton.ita.PointUtils;
 import sc.fiji.analyzeSkeleton.ita.VertexUtils;
-import sc.fiji.skeletonize3D.Skeletonize3D_;
 
 /**
  * <p>
@@ -214,7 +213,7 @@ public class IntertrabecularAngleWrapper extends BoneJCommand {
 		final String label = inputImage.getTitle();
 		anglesMap.forEach((valence, angles) -> {
 			final String heading = valence.toString();
-			angles.forEach(angle -> SharedTable.add(label, heading, angle));
+			SharedTable.addColumn(label, heading, angles.toArray());
 		});
 		resultsTable = SharedTable.getTable();
 	}
@@ -339,20 +338,19 @@ public class IntertrabecularAngleWrapper extends BoneJCommand {
 			new DoubleColumn("V1y"), new DoubleColumn("V1z"), new DoubleColumn("V2x"),
 			new DoubleColumn("V2y"), new DoubleColumn("V2z"));
 
-		final List<Vector3d> v1Centroids = edges.stream().map(e -> e.getV1()
-			.getPoints()).map(PointUtils::centroid).collect(toList());
-		final List<Vector3d> v2Centroids = edges.stream().map(e -> e.getV2()
-			.getPoints()).map(PointUtils::centroid).collect(toList());
-
-		for (int i = 0; i < v1Centroids.size(); i++) {
-			final Vector3d v1centroid = v1Centroids.get(i);
-			columns.get(0).add(v1centroid.x);
-			columns.get(1).add(v1centroid.y);
-			columns.get(2).add(v1centroid.z);
-			final Vector3d v2centroid = v2Centroids.get(i);
-			columns.get(3).add(v2centroid.x);
-			columns.get(4).add(v2centroid.y);
-			columns.get(5).add(v2centroid.z);
+		final double[][] coordinates = new double[columns.size()][edges.size()];
+		int e = 0;
+		for (final Edge edge : edges) {
+			final Vector3d v1centroid = PointUtils.centroid(edge.getV1().getPoints());
+			final Vector3d v2centroid = PointUtils.centroid(edge.getV2().getPoints());
+			for (int d = 0; d < 3; d++) {
+				coordinates[d][e] = v1centroid.get(d);
+				coordinates[3 + d][e] = v2centroid.get(d);
+			}
+			e++;
+		}
+		for (int i = 0; i < columns.size(); i++) {
+			columns.get(i).fill(coordinates[i]);
 		}
 		centroidTable = new DefaultResultsTable();
 		centroidTable.addAll(columns);
@@ -361,12 +359,8 @@ public class IntertrabecularAngleWrapper extends BoneJCommand {
 	private ImagePlus skeletonise() {
 		// Skeletonise input image
 		final ImagePlus skeleton = ImagePlusUtil.cleanDuplicate(inputImage);
-		final Skeletonize3D_ skeletoniser = new Skeletonize3D_();
-		skeletoniser.setup("", skeleton);
-		skeletoniser.run(null);
-
 		// check whether input image was skeletonised already
-		final int iterations = skeletoniser.getThinningIterations();
+		final int iterations = Common.skeletonise(skeleton);
 		if (iterations > 1) {
 			skeleton.setTitle("Skeleton of " + inputImage.getTitle());
 		}
@@ -40,6 +40,7 @@ import static org.bonej.wrapperPlugins.wrapperUtils.Common.cancelMacroSafe;
 import net.imagej.patcher.LegacyInjector;
 
 import org.bonej.utilities.ImagePlusUtil;
+import org.bonej.wrapperPlugins.wrapperUtils.Common;
 import org.scijava.ItemIO;
 import org.scijava.app.StatusService;
 import org.scijava.command.Command;
@@ -47,11 +48,10 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import ij.ImagePlus;
-import ij.plugin.filter.PlugInFilter;
-import sc.fiji.skeletonize3D.Skeletonize3D_;
 
 /**
- * A wrapper plugin to bundle Skeletonize3D into BoneJ2
+ * A plugin that skeletonises binary images with a parallel version of the
+ * Skeletonize3D thinning
  *
  * @author Richard Domander
  */
@@ -82,10 +82,8 @@ public class SkeletoniseWrapper extends BoneJCommand {
 	public void run() {
 		skeleton = cleanDuplicate(inputImage);
 		skeleton.setTitle("Skeleton of " + inputImage.getTitle());
-		final PlugInFilter skeletoniser = new Skeletonize3D_();
 		statusService.showStatus("Skeletonise: skeletonising");
-		skeletoniser.setup("", skeleton);
-		skeletoniser.run(null);
+		Common.skeletonise(skeleton);
 		reportUsage();
 	}
 
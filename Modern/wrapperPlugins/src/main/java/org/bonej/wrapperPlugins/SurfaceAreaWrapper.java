@@ -39,12 +39,13 @@ import static org.scijava.ui.DialogPrompt.MessageType.ERROR_MESSAGE;
 import static org.scijava.ui.DialogPrompt.MessageType.WARNING_MESSAGE;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -52,9 +53,7 @@ import net.imagej.ImgPlus;
 import net.imagej.axis.CalibratedAxis;
 import net.imagej.mesh.Mesh;
 import net.imagej.mesh.Triangle;
-import net.imagej.mesh.naive.NaiveFloatMesh;
 import net.imagej.ops.OpService;
-import net.imagej.ops.Ops.Geometric.BoundarySize;
 import net.imagej.ops.Ops.Geometric.MarchingCubes;
 import net.imagej.ops.special.function.Functions;
 import net.imagej.ops.special.function.UnaryFunctionOp;
@@ -64,10 +63,9 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.real.DoubleType;
 
+import org.bonej.ops.surface.VoxelSurfaceEstimator;
 import org.bonej.utilities.AxisUtils;
-import org.bonej.utilities.ElementUtil;
 import org.bonej.utilities.SharedTable;
 import org.bonej.wrapperPlugins.wrapperUtils.HyperstackUtils.Subspace;
 import org.bonej.wrapperPlugins.wrapperUtils.ResultUtils;
@@ -82,6 +80,11 @@ import org.scijava.widget.FileWidget;
 
 /**
  * A wrapper command to calculate mesh surface area
+ * <p>
+ * The area is estimated from the local configurations of the foreground with
+ * {@link VoxelSurfaceEstimator}. A surface mesh is only created when it's
+ * exported into an STL file.
+ * </p>
  *
  * @author Richard Domander
  */
@@ -95,6 +98,10 @@ public class SurfaceAreaWrapper<T extends RealType<T> & NativeType<T>> extends B
 		"Binary STL created by BoneJ", 80, '.');
 	static final String BAD_SCALING =
 		"Cannot scale result because axis calibrations don't match";
+	/** Size of a facet in a binary STL file: normal, 3 vertices and attributes */
+	private static final int STL_FACET_BYTES = 50;
+	/** Number of facets buffered before they're written into the file */
+	private static final int STL_BUFFER_FACETS = 1 << 16;
 
 	@Parameter(validater = "validateImage")
 	private ImgPlus<T> inputImage;
@@ -116,7 +123,6 @@ public class SurfaceAreaWrapper<T extends RealType<T> & NativeType<T>> extends B
 	private String path = "";
 	private String extension = "";
 	private UnaryFunctionOp<RandomAccessibleInterval<?>, Mesh> marchingCubesOp;
-	private UnaryFunctionOp<Mesh, DoubleType> areaOp;
 	private double areaScale;
 	private String unitHeader = "";
 
@@ -124,16 +130,15 @@ public class SurfaceAreaWrapper<T extends RealType<T> & NativeType<T>> extends B
 	public void run() {
 		statusService.showStatus("Surface area: initialising");
 		subspaces = find3DSubspaces(inputImage);
-		matchOps(subspaces.get(0).interval);
 		prepareResults();
-		final Map<String, Mesh> meshes = createMeshes(subspaces);
 		if (exportSTL) {
 			if (!getFileName()) {
 				return;
 			}
-			saveMeshes(meshes);
+			matchOps(subspaces.get(0).interval);
+			saveMeshes(subspaces);
 		}
-		calculateAreas(meshes);
+		calculateAreas(subspaces);
 		resultsTable = SharedTable.getTable();
 		reportUsage();
 	}
@@ -168,6 +173,11 @@ public class SurfaceAreaWrapper<T extends RealType<T> & NativeType<T>> extends B
 	/**
 	 * Writes the surface mesh as a binary, little endian STL file
 	 * <p>
+	 * The facets are written in large blocks through a {@link FileChannel} to
+	 * keep the number of system calls low, even for meshes with tens of millions
+	 * of triangles.
+	 * </p>
+	 * <p>
 	 * NB: Public and static for testing purposes
 	 * </p>
 	 *
@@ -190,22 +200,22 @@ public class SurfaceAreaWrapper<T extends RealType<T> & NativeType<T>> extends B
 			throw new IllegalArgumentException("Filename cannot be null or empty");
 		}
 
-		final Iterator<Triangle> triangles = mesh.triangles().iterator();
 		final int numTriangles = (int) mesh.triangles().size();
-		try (final FileOutputStream writer = new FileOutputStream(path)) {
-			final byte[] header = STL_HEADER.getBytes();
-			writer.write(header);
-			final byte[] facetBytes = ByteBuffer.allocate(4).order(
-				ByteOrder.LITTLE_ENDIAN).putInt(numTriangles).array();
-			writer.write(facetBytes);
-			final ByteBuffer buffer = ByteBuffer.allocate(50);
-			buffer.order(ByteOrder.LITTLE_ENDIAN);
-			while (triangles.hasNext()) {
-				final Triangle triangle = triangles.next();
+		try (final FileChannel channel = FileChannel.open(Paths.get(path),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			final ByteBuffer buffer = ByteBuffer.allocateDirect(STL_FACET_BYTES *
+				STL_BUFFER_FACETS).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.put(STL_HEADER.getBytes());
+			buffer.putInt(numTriangles);
+			for (final Triangle triangle : mesh.triangles()) {
+				if (buffer.remaining() < STL_FACET_BYTES) {
+					writeBuffer(channel, buffer);
+				}
 				writeSTLFacet(buffer, triangle);
-				writer.write(buffer.array());
-				buffer.clear();
 			}
+			writeBuffer(channel, buffer);
 		}
 	}
 
@@ -213,14 +223,20 @@ public class SurfaceAreaWrapper<T extends RealType<T> & NativeType<T>> extends B
 		SharedTable.add(label, "Surface area " + unitHeader, area * areaScale);
 	}
 
-	private void calculateAreas(final Map<String, Mesh> meshes) {
-		statusService.showStatus("Surface area: calculating areas");
+	private void calculateAreas(final List<Subspace<BitType>> subspaces) {
 		final String name = inputImage.getName();
-		meshes.forEach((suffix, mesh) -> {
-			final double area = areaOp.calculate(mesh).get();
+		for (int i = 0; i < subspaces.size(); i++) {
+			statusService.showStatus(
+				"Surface area: calculating area for subspace " + (i + 1));
+			final Subspace<BitType> subspace = subspaces.get(i);
+			final double area = VoxelSurfaceEstimator.estimate(
+				subspace.interval).area;
+			final String suffix = subspace.toString();
 			final String label = suffix.isEmpty() ? name : name + " " + suffix;
 			addResult(label, area);
-		});
+			statusService.showProgress(i, subspaces.size());
+		}
+		statusService.showProgress(subspaces.size(), subspaces.size());
 	}
 
 	private String choosePath() {
@@ -237,21 +253,6 @@ public class SurfaceAreaWrapper<T extends RealType<T> & NativeType<T>> extends B
 		return file.getAbsolutePath();
 	}
 
-	private Map<String, Mesh> createMeshes(
-		final List<Subspace<BitType>> subspaces)
-	{
-		final Map<String, Mesh> meshes = new HashMap<>();
-		for (int i = 0; i < subspaces.size(); i++) {
-			statusService.showStatus("Surface area: creating mesh for subspace " + (i + 1));
-			final Subspace<BitType> subspace = subspaces.get(i);
-			final Mesh mesh = marchingCubesOp.calculate(subspace.interval);
-			meshes.put(subspace.toString(), mesh);
-			statusService.showProgress(i, subspaces.size());
-		}
-		statusService.showProgress(subspaces.size(), subspaces.size());
-		return meshes;
-	}
-
 	private boolean getFileName() {
 		path = choosePath();
 		if (path == null) {
@@ -276,8 +277,6 @@ public class SurfaceAreaWrapper<T extends RealType<T> & NativeType<T>> extends B
 	private void matchOps(final RandomAccessibleInterval<BitType> interval) {
 		marchingCubesOp = Functions.unary(opService, MarchingCubes.class, Mesh.class,
 			interval);
-		areaOp = Functions.unary(opService, BoundarySize.class, DoubleType.class,
-			new NaiveFloatMesh());
 	}
 
 	private void prepareResults() {
@@ -293,20 +292,32 @@ public class SurfaceAreaWrapper<T extends RealType<T> & NativeType<T>> extends B
 		}
 	}
 
-	private void saveMeshes(final Map<String, Mesh> meshes) {
-		statusService.showStatus("Surface area: saving files");
+	/**
+	 * Creates a mesh of each subspace, and saves it into a file.
+	 * <p>
+	 * Each mesh is written before the next one is created, so that only one of
+	 * them is in memory at a time.
+	 * </p>
+	 */
+	private void saveMeshes(final List<Subspace<BitType>> subspaces) {
 		final Map<String, String> savingErrors = new HashMap<>();
-		meshes.forEach((key, subspaceMesh) -> {
-			final String subspaceId = key.replace(' ', '_').replaceAll("[,:]", "");
+		for (int i = 0; i < subspaces.size(); i++) {
+			statusService.showStatus("Surface area: saving mesh for subspace " + (i + 1));
+			final Subspace<BitType> subspace = subspaces.get(i);
+			final Mesh mesh = marchingCubesOp.calculate(subspace.interval);
+			final String subspaceId = subspace.toString().replace(' ', '_')
+				.replaceAll("[,:]", "");
 			final String filePath = path + "_" + subspaceId + extension;
 			try {
-				writeBinarySTLFile(filePath, subspaceMesh);
+				writeBinarySTLFile(filePath, mesh);
 			}
 			catch (final IOException e) {
 				savingErrors.put(filePath, e.getMessage());
 				logService.trace(e);
 			}
-		});
+			statusService.showProgress(i, subspaces.size());
+		}
+		statusService.showProgress(subspaces.size(), subspaces.size());
 		if (!savingErrors.isEmpty()) {
 			showSavingErrorsDialog(savingErrors);
 		}
@@ -336,12 +347,22 @@ public class SurfaceAreaWrapper<T extends RealType<T> & NativeType<T>> extends B
 			cancelMacroSafe(this, NOT_3D_IMAGE);
 		}
 
-		if (!ElementUtil.isBinary(inputImage)) {
+		if (!isBinary(inputImage)) {
 			cancelMacroSafe(this, NOT_BINARY);
 		}
 	}
 
 	// -- Helper methods --
+	private static void writeBuffer(final FileChannel channel,
+		final ByteBuffer buffer) throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
 	private static void writeSTLFacet(final ByteBuffer buffer,
 		final Triangle triangle)
 	{
@@ -36,23 +36,13 @@ import static org.bonej.wrapperPlugins.CommonMessages.NO_IMAGE_OPEN;
 import static org.bonej.wrapperPlugins.wrapperUtils.Common.cancelMacroSafe;
 
 import net.imagej.ImgPlus;
-import net.imagej.mesh.Mesh;
-import net.imagej.mesh.naive.NaiveFloatMesh;
-import net.imagej.ops.OpService;
-import net.imagej.ops.Ops.Copy.RAI;
-import net.imagej.ops.Ops.Geometric.MarchingCubes;
-import net.imagej.ops.Ops.Geometric.Size;
-import net.imagej.ops.special.function.Functions;
-import net.imagej.ops.special.function.UnaryFunctionOp;
 import net.imagej.units.UnitService;
-import net.imglib2.IterableInterval;
-import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.Interval;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.real.DoubleType;
-import net.imglib2.view.Views;
 
+import org.bonej.ops.surface.VoxelSurfaceEstimator;
 import org.bonej.utilities.AxisUtils;
 import org.bonej.utilities.ElementUtil;
 import org.bonej.utilities.SharedTable;
@@ -64,10 +54,14 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 /**
- * First this command creates a surface mesh from both all foreground voxels
- * (bone) and the whole image stack. Then it calculates the surfaces' volumes,
- * their ratio, and shows the results. Results are shown in calibrated units, if
- * possible.
+ * This command calculates the volume enclosed by the surface of all foreground
+ * voxels (bone), and by the surface of the whole image stack. Then it calculates
+ * the volumes' ratio, and shows the results. Results are shown in calibrated
+ * units, if possible.
+ * <p>
+ * The surfaces are those marching cubes would create, but the volumes are
+ * estimated without creating meshes, see {@link VoxelSurfaceEstimator}.
+ * </p>
  *
  * @author Richard Domander
  */
@@ -78,15 +72,10 @@ public class SurfaceFractionWrapper<T extends RealType<T> & NativeType<T>> exten
 
 	/** Header of ratio column in the results table */
 	private static final String ratioHeader = "BV/TV";
-	private static UnaryFunctionOp<RandomAccessibleInterval<?>, Mesh> marchingCubes;
-	private static UnaryFunctionOp<Mesh, DoubleType> meshVolume;
-	private static UnaryFunctionOp<RandomAccessibleInterval<?>, RandomAccessibleInterval> raiCopy;
 
 	@Parameter(validater = "validateImage")
 	private ImgPlus<T> inputImage;
 	@Parameter
-	private OpService opService;
-	@Parameter
 	private UnitService unitService;
 	@Parameter
 	private StatusService statusService;
@@ -101,7 +90,6 @@ public class SurfaceFractionWrapper<T extends RealType<T> & NativeType<T>> exten
 	public void run() {
 		statusService.showStatus("Surface fraction: initializing");
 		subspaces = find3DSubspaces(inputImage);
-		matchOps(subspaces.get(0).interval);
 		prepareResultDisplay();
 		for (int i = 0; i < subspaces.size(); i++) {
 			calculateSubspaceVolumes(subspaces.get(i), i + 1);
@@ -119,13 +107,10 @@ public class SurfaceFractionWrapper<T extends RealType<T> & NativeType<T>> exten
 		SharedTable.add(label, ratioHeader, results[2]);
 	}
 
-	private double[] calculateMeshVolumes(final Mesh foregroundMesh,
-		final Mesh totalMesh)
-	{
-		final double foregroundVolume = meshVolume.calculate(foregroundMesh).get() *
-			elementSize;
-		final double totalVolume = meshVolume.calculate(totalMesh).get() *
-			elementSize;
+	private double[] calculateVolumes(final Subspace<BitType> subspace) {
+		final double foregroundVolume = VoxelSurfaceEstimator.estimate(
+			subspace.interval).volume * elementSize;
+		final double totalVolume = totalVolume(subspace.interval) * elementSize;
 		final double ratio = foregroundVolume / totalVolume;
 		return new double[] { foregroundVolume, totalVolume, ratio };
 	}
@@ -133,40 +118,28 @@ public class SurfaceFractionWrapper<T extends RealType<T> & NativeType<T>> exten
 	private void calculateSubspaceVolumes(final Subspace<BitType> subspace,
 		final int subspaceNumber)
 	{
-		statusService.showStatus(
-			"Surface fraction: creating surfaces for subspace #" + subspaceNumber);
-		final Mesh foregroundMesh = marchingCubes.calculate(subspace.interval);
-		final Mesh totalMesh = createTotalMesh(subspace.interval);
 		statusService.showStatus(
 			"Surface fraction: calculating volumes for subspace #" + subspaceNumber);
-		final double[] results = calculateMeshVolumes(foregroundMesh, totalMesh);
+		final double[] results = calculateVolumes(subspace);
 		final String suffix = subspace.toString();
 		final String name = inputImage.getName();
 		final String label = suffix.isEmpty() ? name : name + " " + suffix;
 		addResults(label, results);
 	}
 
-	private Mesh createTotalMesh(
-		final RandomAccessibleInterval<BitType> subspace)
-	{
-		@SuppressWarnings("unchecked")
-		final RandomAccessibleInterval<BitType> totalMask = raiCopy.calculate(
-			subspace);
-		// Because we want to create a surface from the whole image, set everything
-		// in the mask to foreground
-		final IterableInterval<BitType> iterable = Views.flatIterable(totalMask);
-		iterable.forEach(BitType::setOne);
-		return marchingCubes.calculate(totalMask);
-	}
-
-	private void matchOps(final RandomAccessibleInterval<BitType> subspace) {
-		raiCopy = Functions.unary(opService, RAI.class,
-			RandomAccessibleInterval.class, subspace);
-		marchingCubes = Functions.unary(opService, MarchingCubes.class, Mesh.class,
-			subspace);
-		// Create a dummy object to make op matching happy
-		meshVolume = Functions.unary(opService, Size.class, DoubleType.class,
-			new NaiveFloatMesh());
+	/**
+	 * Returns the volume enclosed by the surface of a completely filled interval.
+	 * <p>
+	 * The surface passes through the centres of the outermost elements, and thus
+	 * it's one element smaller than the interval in each dimension.
+	 * </p>
+	 */
+	private static double totalVolume(final Interval interval) {
+		double volume = 1.0;
+		for (int d = 0; d < 3; d++) {
+			volume *= interval.dimension(d) - 1;
+		}
+		return volume;
 	}
 
 	private void prepareResultDisplay() {
@@ -191,7 +164,7 @@ public class SurfaceFractionWrapper<T extends RealType<T> & NativeType<T>> exten
             return;
 		}
 
-		if (!ElementUtil.isBinary(inputImage)) {
+		if (!isBinary(inputImage)) {
 			cancelMacroSafe(this, NOT_BINARY);
 		}
 	}
@@ -30,7 +30,6 @@
 
 package org.bonej.wrapperPlugins;
 
-import static org.bonej.utilities.ImagePlusUtil.cleanDuplicate;
 import static org.bonej.wrapperPlugins.CommonMessages.HAS_CHANNEL_DIMENSIONS;
 import static org.bonej.wrapperPlugins.CommonMessages.HAS_TIME_DIMENSIONS;
 import static org.bonej.wrapperPlugins.CommonMessages.NOT_3D_IMAGE;
@@ -39,16 +38,24 @@ import static org.bonej.wrapperPlugins.CommonMessages.NO_IMAGE_OPEN;
 import static org.bonej.wrapperPlugins.wrapperUtils.Common.cancelMacroSafe;
 
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+import ij.plugin.FileInfoVirtualStack;
+import ij.process.FloatProcessor;
 import ij.process.LUT;
-import ij.process.StackStatistics;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import net.imagej.patcher.LegacyInjector;
 
+import org.bonej.ops.thickness.LocalThickness;
+import org.bonej.ops.thickness.LocalThickness.ThicknessMap;
 import org.bonej.utilities.ImagePlusUtil;
 import org.bonej.utilities.SharedTable;
 import org.bonej.wrapperPlugins.wrapperUtils.Common;
@@ -62,16 +69,23 @@ import org.scijava.plugin.Plugin;
 import org.scijava.ui.UIService;
 import org.scijava.widget.ChoiceWidget;
 
-import sc.fiji.localThickness.LocalThicknessWrapper;
-
 /**
- * An ImageJ2 command that wraps the sc.fiji.localThickness plugin
+ * An ImageJ2 command that calculates the local thickness maps of trabeculae
+ * and the spaces between them
+ *
+ * @see LocalThickness
  *
  * @author Richard Domander
  */
 @Plugin(type = Command.class, menuPath = "Plugins>BoneJ>Thickness")
 public class ThicknessWrapper extends BoneJCommand {
 
+	/**
+	 * Maps are calculated in blocks if they need more than this fraction of the
+	 * free heap
+	 */
+	private static final double MEMORY_THRESHOLD = 0.5;
+
 	static {
 		LegacyInjector.preinit();
 	}
@@ -108,80 +122,133 @@ public class ThicknessWrapper extends BoneJCommand {
 	@Parameter
 	private StatusService statusService;
 
-	private boolean foreground;
-	private LocalThicknessWrapper localThickness;
 	private boolean anisotropyWarned;
 
 	@Override
 	public void run() {
 		final List<Boolean> mapOptions = getMapOptions();
-		createLocalThickness();
-		final Map<Boolean, ImagePlus> thicknessMaps = new HashMap<>();
-		mapOptions.forEach(foreground -> {
-			prepareRun(foreground);
-			statusService.showStatus("Thickness: creating thickness map");
-			final ImagePlus map = createMap();
-			statusService.showStatus("Thickness: calculating results");
-			addMapResults(map);
-			thicknessMaps.put(foreground, map);
-		});
-		resultsTable = SharedTable.getTable();
-		if (showMaps) {
-			final LUT fire = Common.makeFire();
-			trabecularMap = thicknessMaps.get(true);
-			if (trabecularMap != null) {
-				final StackStatistics trabecularStats = new StackStatistics(trabecularMap);
-				trabecularMap.setDisplayRange(0.0, trabecularStats.max);
-				trabecularMap.setLut(fire);	
+		statusService.showStatus("Thickness: creating thickness maps");
+		final List<ThicknessMap> maps;
+		try {
+			maps = createMaps(mapOptions);
+		}
+		catch (final IOException e) {
+			cancelMacroSafe(this, "An error occurred while writing scratch files");
+			logService.trace(e);
+			return;
+		}
+		statusService.showStatus("Thickness: calculating results");
+		final LUT fire = Common.makeFire();
+		for (final ThicknessMap map : maps) {
+			final ImagePlus image = createImage(map);
+			addMapResults(image, map);
+			if (showMaps) {
+				image.setDisplayRange(0.0, map.count == 0 ? 0.0 : map.max);
+				image.setLut(fire);
+				if (map.foreground) {
+					trabecularMap = image;
+				}
+				else {
+					spacingMap = image;
+				}
 			}
-			spacingMap = thicknessMaps.get(false);
-			if (spacingMap != null) {
-				final StackStatistics spacingStats = new StackStatistics(spacingMap);
-				spacingMap.setDisplayRange(0.0, spacingStats.max);
-				spacingMap.setLut(fire);
+			else if (map.file != null) {
+				deleteMapFile(map.file);
 			}
 		}
+		resultsTable = SharedTable.getTable();
 		reportUsage();
 	}
 
-	private void addMapResults(final ImagePlus map) {
-		if (map == null) {
-			return;
-		}
+	private void addMapResults(final ImagePlus image, final ThicknessMap map) {
 		final String label = inputImage.getTitle();
-		final String unitHeader = ResultUtils.getUnitHeader(map);
-		final String prefix = foreground ? "Tb.Th" : "Tb.Sp";
-		final StackStatistics resultStats = new StackStatistics(map);
-		double mean = resultStats.mean;
-		double stdDev = resultStats.stdDev;
-		double max = resultStats.max;
-
-		if (resultStats.pixelCount == 0) {
-			// All pixels are background (NaN), stats not applicable
-			mean = Double.NaN;
-			stdDev = Double.NaN;
-			max = Double.NaN;
-		}
-
-		SharedTable.add(label, prefix + " Mean " + unitHeader, mean);
-		SharedTable.add(label, prefix + " Std Dev " + unitHeader, stdDev);
-		SharedTable.add(label, prefix + " Max " + unitHeader, max);
+		final String unitHeader = ResultUtils.getUnitHeader(image);
+		final String prefix = map.foreground ? "Tb.Th" : "Tb.Sp";
+		// All statistics are NaN if all pixels are background (NaN)
+		SharedTable.add(label, prefix + " Mean " + unitHeader, map.mean);
+		SharedTable.add(label, prefix + " Std Dev " + unitHeader, map.stdDev);
+		SharedTable.add(label, prefix + " Max " + unitHeader, map.max);
 	}
 
-	private void createLocalThickness() {
-		localThickness = new LocalThicknessWrapper();
-		localThickness.setSilence(true);
-		localThickness.setShowOptions(false);
-		localThickness.maskThicknessMap = maskArtefacts;
-		localThickness.calibratePixels = true;
+	private ImagePlus createImage(final ThicknessMap map) {
+		final int width = inputImage.getWidth();
+		final int height = inputImage.getHeight();
+		final ImageStack stack;
+		if (map.pixels == null) {
+			stack = openMapFile(map.file);
+		}
+		else {
+			stack = new ImageStack(width, height);
+			for (final float[] pixels : map.pixels) {
+				stack.addSlice(new FloatProcessor(width, height, pixels));
+			}
+		}
+		final String suffix = map.foreground ? "_Tb.Th" : "_Tb.Sp";
+		final ImagePlus image = new ImagePlus(inputImage.getTitle() + suffix,
+			stack);
+		image.setCalibration(inputImage.getCalibration().copy());
+		return image;
+	}
+
+	/**
+	 * Calculates the maps in memory, or in blocks backed by scratch files if the
+	 * stack is too large for the heap.
+	 */
+	private List<ThicknessMap> createMaps(final List<Boolean> phases)
+		throws IOException
+	{
+		final byte[][] pixels = getPixels();
+		final int width = inputImage.getWidth();
+		final int height = inputImage.getHeight();
+		final double pixelSize = inputImage.getCalibration().pixelWidth;
+		final Runtime runtime = Runtime.getRuntime();
+		final long freeMemory = runtime.maxMemory() - (runtime.totalMemory() -
+			runtime.freeMemory());
+		final long limit = (long) (freeMemory * MEMORY_THRESHOLD);
+		if (LocalThickness.inMemoryBytes(width, height, pixels.length, phases
+			.size()) <= limit)
+		{
+			return LocalThickness.calculate(pixels, width, height, phases,
+				maskArtefacts, pixelSize);
+		}
+		final Path directory = Paths.get(System.getProperty("java.io.tmpdir"),
+			"BoneJ", "thickness");
+		logService.info("Thickness: the maps don't fit in memory, calculating " +
+			"them in blocks in " + directory);
+		return LocalThickness.calculateBlocked(pixels, width, height, phases,
+			maskArtefacts, pixelSize, directory, limit);
 	}
 
-	private ImagePlus createMap() {
-		final ImagePlus image;
+	private void deleteMapFile(final Path file) {
+		try {
+			Files.deleteIfExists(file);
+		}
+		catch (final IOException e) {
+			logService.warn("Could not delete " + file + ": " + e.getMessage());
+			logService.trace(e);
+		}
+	}
 
-		image = cleanDuplicate(inputImage);
+	private ImageStack openMapFile(final Path file) {
+		final FileInfo info = new FileInfo();
+		info.fileFormat = FileInfo.RAW;
+		info.fileType = FileInfo.GRAY32_FLOAT;
+		info.intelByteOrder = true;
+		info.width = inputImage.getWidth();
+		info.height = inputImage.getHeight();
+		info.nImages = inputImage.getNSlices();
+		info.directory = file.getParent().toString() + File.separator;
+		info.fileName = file.getFileName().toString();
+		return new FileInfoVirtualStack(info, false);
+	}
 
-		return localThickness.processImage(image);
+	private byte[][] getPixels() {
+		final ImageStack stack = inputImage.getStack();
+		final byte[][] pixels = new byte[stack.getSize()][];
+		for (int z = 0; z < pixels.length; z++) {
+			pixels[z] = (byte[]) stack.getPixels(z + 1);
+		}
+		return pixels;
 	}
 
 	// region -- Helper methods --
@@ -203,13 +270,6 @@ public class ThicknessWrapper extends BoneJCommand {
 		return mapOptions;
 	}
 
-	private void prepareRun(final boolean foreground) {
-		this.foreground = foreground;
-		final String suffix = foreground ? "_Tb.Th" : "_Tb.Sp";
-		localThickness.setTitleSuffix(suffix);
-		localThickness.inverse = !foreground;
-	}
-
 	@SuppressWarnings("unused")
 	private void validateImage() {
 		if (inputImage == null) {
@@ -40,10 +40,16 @@ import net.imagej.display.ColorTables;
 import net.imagej.legacy.LegacyService;
 import net.imagej.ops.OpEnvironment;
 import net.imagej.ops.OpService;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
 import net.imglib2.img.Img;
+import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.ComplexType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
 
+import org.bonej.ops.skeletonize.ParallelThinning;
 import org.bonej.utilities.ImagePlusUtil;
 import org.scijava.Context;
 import org.scijava.command.ContextCommand;
@@ -51,6 +57,7 @@ import org.scijava.log.LogService;
 import org.scijava.ui.UIService;
 
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.process.LUT;
 
 /**
@@ -79,6 +86,11 @@ public final class Common {
 	 * <p>
 	 * Also copies ImgPlus metadata.
 	 * </p>
+	 * <p>
+	 * To save memory, the data is not copied if the image is already
+	 * {@link BitType}, or if it's 8-bit. In the latter case the result is a
+	 * read-only view over the original data. Images of other types are copied.
+	 * </p>
 	 *
 	 * @param ops an {@link OpService} to find the necessary ops for conversion.
 	 * @param imgPlus an image.
@@ -88,7 +100,7 @@ public final class Common {
 	public static <C extends ComplexType<C>> ImgPlus<BitType> toBitTypeImgPlus(
 		final OpEnvironment ops, final ImgPlus<C> imgPlus)
 	{
-		final Img<BitType> convertedImg = ops.convert().bit(imgPlus.getImg());
+		final Img<BitType> convertedImg = toBitTypeImg(ops, imgPlus.getImg());
 		final ImgPlus<BitType> convertedImgPlus = new ImgPlus<>(convertedImg);
 		copyMetadata(imgPlus, convertedImgPlus);
 
@@ -147,6 +159,44 @@ public final class Common {
 		logService.error("Plugin cancelled: " + reason);
 	}
 
+	/**
+	 * Thins the foreground of an 8-bit image to a skeleton, in place.
+	 * <p>
+	 * Replaces the Skeletonize3D plugin, and uses all cores.
+	 * </p>
+	 *
+	 * @param image a binary 8-bit image.
+	 * @return number of thinning iterations. One means the image was a skeleton
+	 *         already.
+	 * @see ParallelThinning
+	 */
+	public static int skeletonise(final ImagePlus image) {
+		final ImageStack stack = image.getStack();
+		final byte[][] pixels = new byte[stack.getSize()][];
+		for (int z = 0; z < pixels.length; z++) {
+			pixels[z] = (byte[]) stack.getPixels(z + 1);
+		}
+		return ParallelThinning.skeletonise(pixels, image.getWidth(), image
+			.getHeight());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <C extends ComplexType<C>> Img<BitType> toBitTypeImg(
+		final OpEnvironment ops, final Img<C> img)
+	{
+		final C element = img.firstElement();
+		if (element instanceof BitType) {
+			return (Img<BitType>) img;
+		}
+		if (element instanceof UnsignedByteType) {
+			final RandomAccessibleInterval<BitType> view = Converters.convert(
+				(RandomAccessibleInterval<UnsignedByteType>) img, (i, o) -> o.set(i
+					.get() != 0), new BitType());
+			return ImgView.wrap(view, new ArrayImgFactory<>(new BitType()));
+		}
+		return ops.convert().bit(img);
+	}
+
 	/**
 	 * Copies image metadata such as name, axis types and calibrations from source
 	 * to target.
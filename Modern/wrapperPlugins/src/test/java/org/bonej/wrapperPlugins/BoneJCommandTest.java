@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * High-level BoneJ2 commands.
+ * %%
+ * Copyright (C) 2015 - 2022 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.wrapperPlugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import net.imagej.ImgPlus;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the caches of {@link BoneJCommand}.
+ */
+public class BoneJCommandTest extends AbstractWrapperTest {
+
+	private CacheCommand command;
+
+	@Before
+	public void setupCommand() {
+		command = new CacheCommand();
+		command.setContext(imageJ().context());
+	}
+
+	@Test
+	public void testToBitTypeImgPlusConvertsOncePerImage() {
+		final ImgPlus<UnsignedByteType> image = new ImgPlus<>(ArrayImgs
+			.unsignedBytes(3, 3, 3));
+
+		final ImgPlus<BitType> first = command.toBitTypeImgPlus(image);
+		final ImgPlus<BitType> second = command.toBitTypeImgPlus(image);
+
+		assertSame("The conversion should be cached", first, second);
+	}
+
+	@Test
+	public void testToBitTypeImgPlusConvertsNewImage() {
+		final ImgPlus<UnsignedByteType> image = new ImgPlus<>(ArrayImgs
+			.unsignedBytes(3, 3, 3));
+		final Img<UnsignedByteType> img = ArrayImgs.unsignedBytes(4, 4, 4);
+		img.firstElement().set(0xFF);
+		final ImgPlus<UnsignedByteType> other = new ImgPlus<>(img);
+		final ImgPlus<BitType> first = command.toBitTypeImgPlus(image);
+
+		final ImgPlus<BitType> second = command.toBitTypeImgPlus(other);
+
+		assertNotSame("A different image should not hit the cache", first,
+			second);
+		assertEquals(4, second.dimension(0));
+		assertTrue(second.firstElement().get());
+	}
+
+	@Test
+	public void testIsBinaryIsCachedPerImage() {
+		final Img<UnsignedByteType> img = ArrayImgs.unsignedBytes(3, 3, 3);
+		img.firstElement().set(0xFF);
+		final ImgPlus<UnsignedByteType> image = new ImgPlus<>(img);
+		assertTrue(command.isBinary(image));
+		// A third value makes the data non-binary
+		final RandomAccess<UnsignedByteType> access = img.randomAccess();
+		access.setPosition(new long[] { 1, 1, 1 });
+		access.get().set(7);
+
+		assertTrue("Result should be cached for the same image", command.isBinary(
+			image));
+		assertFalse("A different image should be checked again", command.isBinary(
+			new ImgPlus<>(img)));
+	}
+
+	private static final class CacheCommand extends BoneJCommand {
+
+		@Override
+		public void run() {}
+	}
+}
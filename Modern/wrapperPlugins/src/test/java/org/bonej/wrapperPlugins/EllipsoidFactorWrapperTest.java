@@ -30,6 +30,9 @@ package org.bonej.wrapperPlugins;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
@@ -38,23 +41,40 @@ import net.imagej.axis.Axes;
 import net.imagej.axis.DefaultLinearAxis;
 import net.imglib2.RandomAccess;
 import net.imglib2.img.Img;
+import org.bonej.ops.ellipsoid.QuickEllipsoid;
+import org.bonej.wrapperPlugins.EllipsoidFactorWrapper.FillTracker;
 import org.joml.Vector3d;
+import org.joml.Vector3dc;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import net.imagej.ImgPlus;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.array.ArrayRandomAccess;
 import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import org.junit.experimental.categories.Category;
+import org.bonej.utilities.SharedTable;
 import org.scijava.command.CommandModule;
+import org.scijava.table.DefaultColumn;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.stream.IntStream;
 
 public class EllipsoidFactorWrapperTest extends AbstractWrapperTest {
 
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
     @Category(org.bonej.wrapperPlugins.SlowWrapperTest.class)
     @Test
     public void test2DImageCancelsConnectivity() {
@@ -96,7 +116,7 @@ public class EllipsoidFactorWrapperTest extends AbstractWrapperTest {
                 "vectorIncrement", 0.435, "skipRatio", 1, "contactSensitivity", 10, "maxIterations",
                 100, "maxDrift", 1.73, "runs", 1, "weightedAverageN", 1,
                 "seedOnDistanceRidge", true, "distanceThreshold", 0.6, "seedOnTopologyPreserving",
-                false).get();
+                false, "reuseEllipsoids", false).get();
 
         // VERIFY
         final String reason = module.getCancelReason();
@@ -121,12 +141,50 @@ public class EllipsoidFactorWrapperTest extends AbstractWrapperTest {
                 "vectorIncrement", 0.435, "skipRatio", 1, "contactSensitivity", 10, "maxIterations",
                 100, "maxDrift", 1.73, "runs", 1, "weightedAverageN", 1,
                 "seedOnDistanceRidge", true, "distanceThreshold", 0.6, "seedOnTopologyPreserving",
-                false).get();
+                false, "reuseEllipsoids", false).get();
 
         assertFalse("Sanity check failed: method cancelled", module.isCanceled());
         verify(MOCK_REPORTER, timeout(1000)).reportEvent(anyString());
     }
 
+    @Category(org.bonej.wrapperPlugins.SlowWrapperTest.class)
+    @Test
+    public void testReusedEllipsoidsAreReported() throws Exception {
+        final DefaultLinearAxis xAxis = new DefaultLinearAxis(Axes.X, "", 1.0);
+        final DefaultLinearAxis yAxis = new DefaultLinearAxis(Axes.Y, "", 1.0);
+        final DefaultLinearAxis zAxis = new DefaultLinearAxis(Axes.Z, "", 1.0);
+        final Img<UnsignedByteType> img = createSphereImg();
+        final ImgPlus<UnsignedByteType> imgPlus = new ImgPlus<>(img, "Sphere", xAxis, yAxis, zAxis);
+        final File cache = folder.newFolder("ellipsoids");
+
+        final double firstRun = runWithCache(imgPlus, cache);
+        final File[] files = cache.listFiles();
+        SharedTable.reset();
+        final double secondRun = runWithCache(imgPlus, cache);
+
+        assertEquals("Ellipsoids should be saved in the cache directory", 1, files.length);
+        assertEquals("First run should optimise all repetitions", 0.0, firstRun, 0.0);
+        assertEquals("Second run should reload all repetitions", 2.0, secondRun, 0.0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private double runWithCache(final ImgPlus<UnsignedByteType> imgPlus, final File cache)
+            throws ExecutionException, InterruptedException {
+        final CommandModule module = command().run(
+                EllipsoidFactorWrapper.class, true, "inputImage", imgPlus, "nVectors", 100,
+                "vectorIncrement", 0.435, "skipRatio", 1, "contactSensitivity", 10, "maxIterations",
+                100, "maxDrift", 1.73, "runs", 2, "weightedAverageN", 1,
+                "seedOnDistanceRidge", true, "distanceThreshold", 0.6, "seedOnTopologyPreserving",
+                false, "reuseEllipsoids", true, "ellipsoidCacheDirectory", cache).get();
+        assertFalse("Sanity check failed: method cancelled", module.isCanceled());
+        final List<DefaultColumn<Double>> table =
+                (List<DefaultColumn<Double>>) module.getOutput("resultsTable");
+        final DefaultColumn<Double> reloaded = table.stream()
+                .filter(c -> "Reloaded repetitions".equals(c.getHeader())).findFirst()
+                .orElseThrow(AssertionError::new);
+        return reloaded.get(0);
+    }
+
     @Test
     public void testImgToByteArray(){
         final int fg = 0xFF;
@@ -140,6 +198,174 @@ public class EllipsoidFactorWrapperTest extends AbstractWrapperTest {
         assertEquals("Pixel at (0,0,0) should be BG", 0, bytes[0][0]);
     }
 
+    @Test
+    public void testImgToByteArraySharesBinaryPlanes() {
+        final PlanarImg<UnsignedByteType, ByteArray> img = PlanarImgs.unsignedBytes(4, 3, 2);
+        img.getPlane(1).getCurrentStorageArray()[5] = (byte) 0xFF;
+
+        final byte[][] bytes = EllipsoidFactorWrapper.imgPlusToByteArray(new ImgPlus<>(img));
+
+        for (int z = 0; z < 2; z++) {
+            assertSame("Planes of 0 and 0xFF should not be copied",
+                    img.getPlane(z).getCurrentStorageArray(), bytes[z]);
+        }
+    }
+
+    @Test
+    public void testImgToByteArrayCopiesOtherPlanes() {
+        final PlanarImg<UnsignedByteType, ByteArray> img = PlanarImgs.unsignedBytes(4, 3, 2);
+        img.getPlane(0).getCurrentStorageArray()[2] = (byte) 0xFF;
+        img.getPlane(1).getCurrentStorageArray()[5] = 1;
+        img.getPlane(1).getCurrentStorageArray()[7] = (byte) 0x80;
+
+        final byte[][] bytes = EllipsoidFactorWrapper.imgPlusToByteArray(new ImgPlus<>(img));
+
+        for (int z = 0; z < 2; z++) {
+            final byte[] plane = img.getPlane(z).getCurrentStorageArray();
+            assertNotSame("Planes should be copied if any value isn't 0 or 0xFF", plane, bytes[z]);
+            for (int i = 0; i < plane.length; i++) {
+                assertEquals("Non-zero values should be foreground", plane[i] == 0 ? 0 : (byte) 0xFF,
+                        bytes[z][i]);
+            }
+        }
+        assertEquals("Input should not change", 1, img.getPlane(1).getCurrentStorageArray()[5]);
+    }
+
+    /**
+     * Checks that adding overlapping ellipsoids in parallel counts each filled voxel exactly once.
+     */
+    @Test
+    public void testFillTrackerParallelFillIsExact() {
+        final int size = 24;
+        final byte[][] pixels = cube(size, 2);
+        final List<QuickEllipsoid> ellipsoids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            ellipsoids.add(sphere(4 + i % 3, 5 + 0.7 * i, 12 - 0.3 * i, 6 + 0.6 * i));
+        }
+        // every ellipsoid is added many times to make threads race for the same voxels
+        final List<QuickEllipsoid> repeated = new ArrayList<>();
+        IntStream.range(0, 16).forEach(i -> repeated.addAll(ellipsoids));
+        Collections.shuffle(repeated);
+        long expected = 0;
+        for (int z = 0; z < size; z++) {
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    if (pixels[z][y * size + x] != -1) {
+                        continue;
+                    }
+                    final double cx = x + 0.5;
+                    final double cy = y + 0.5;
+                    final double cz = z + 0.5;
+                    if (ellipsoids.stream().anyMatch(e -> e.contains(cx, cy, cz))) {
+                        expected++;
+                    }
+                }
+            }
+        }
+        final long foreground = (long) (size - 4) * (size - 4) * (size - 4);
+
+        final FillTracker fillTracker = new FillTracker(pixels, size, size, size);
+        repeated.parallelStream().forEach(fillTracker::fill);
+
+        assertTrue("Sanity check failed: nothing to fill", expected > 0);
+        assertEquals(expected, fillTracker.getFilled());
+        assertEquals(100.0 * expected / foreground, fillTracker.getFillingPercentage(), 1e-12);
+    }
+
+    @Test
+    public void testFillTrackerIsFilledAtImageEdges() {
+        final int size = 10;
+        final byte[][] pixels = cube(size, 0);
+        final FillTracker fillTracker = new FillTracker(pixels, size, size, size);
+        fillTracker.fill(sphere(3, 0, 0, 0));
+        fillTracker.fill(sphere(3, size, size, size));
+
+        assertTrue(fillTracker.isFilled(new Vector3d(0, 0, 0)));
+        assertTrue(fillTracker.isFilled(new Vector3d(0.5, 0.5, 0.5)));
+        assertTrue(fillTracker.isFilled(new Vector3d(9.5, 9.5, 9.5)));
+        assertTrue(fillTracker.isFilled(new Vector3d(9.99, 9.99, 9.99)));
+        assertFalse(fillTracker.isFilled(new Vector3d(0.5, 9.5, 0.5)));
+        assertFalse(fillTracker.isFilled(new Vector3d(5.5, 5.5, 5.5)));
+        assertFalse("Point outside the image should not be filled", fillTracker.isFilled(new Vector3d(-0.5, 0.5, 0.5)));
+        assertFalse("Point outside the image should not be filled", fillTracker.isFilled(new Vector3d(0.5, -0.5, 0.5)));
+        assertFalse("Point outside the image should not be filled", fillTracker.isFilled(new Vector3d(0.5, 0.5, -0.5)));
+        assertFalse("Point outside the image should not be filled", fillTracker.isFilled(new Vector3d(10, 9.5, 9.5)));
+        assertFalse("Point outside the image should not be filled", fillTracker.isFilled(new Vector3d(9.5, 10, 9.5)));
+        assertFalse("Point outside the image should not be filled", fillTracker.isFilled(new Vector3d(9.5, 9.5, 10)));
+    }
+
+    @Test
+    public void testFillTrackerIsFilledIgnoresBackground() {
+        final int size = 10;
+        final byte[][] pixels = cube(size, 3);
+        final FillTracker fillTracker = new FillTracker(pixels, size, size, size);
+        fillTracker.fill(sphere(20, 5, 5, 5));
+
+        assertEquals(100.0, fillTracker.getFillingPercentage(), 0.0);
+        assertTrue(fillTracker.isFilled(new Vector3d(3.5, 3.5, 3.5)));
+        assertFalse("Background voxel should not be filled", fillTracker.isFilled(new Vector3d(2.5, 2.5, 2.5)));
+    }
+
+    @Test
+    public void testFillTrackerWithoutForegroundIsFull() {
+        final FillTracker fillTracker = new FillTracker(new byte[3][9], 3, 3, 3);
+
+        assertEquals(100.0, fillTracker.getFillingPercentage(), 0.0);
+    }
+
+    /**
+     * Checks that adaptive seeding stops at the first batch which reaches the target filling.
+     */
+    @Test
+    public void testSeedAdaptivelyStopsAtTargetFilling() {
+        final int size = 30;
+        final byte[][] pixels = cube(size, 0);
+        final List<Vector3d> seedPoints = new ArrayList<>();
+        for (int z = 0; z < 3; z++) {
+            for (int y = 0; y < 3; y++) {
+                for (int x = 0; x < 3; x++) {
+                    seedPoints.add(new Vector3d(5 + 10 * x, 5 + 10 * y, 5 + 10 * z));
+                }
+            }
+        }
+        final double targetFilling = 40.0;
+        final FillTracker fillTracker = new FillTracker(pixels, size, size, size);
+        final List<Vector3dc> seeds = new ArrayList<>();
+
+        final List<QuickEllipsoid> ellipsoids = EllipsoidFactorWrapper.seedAdaptively(seedPoints,
+                p -> sphere(5, p.x, p.y, p.z), seeds, fillTracker, targetFilling, 2, i -> {});
+
+        assertTrue(fillTracker.getFillingPercentage() >= targetFilling);
+        assertTrue("Seeding should stop before all seeds are used", seeds.size() < seedPoints.size());
+        assertEquals(seeds.size(), ellipsoids.size());
+        assertEquals(0, seeds.size() % 2);
+        final FillTracker withoutLastBatch = new FillTracker(pixels, size, size, size);
+        ellipsoids.subList(0, ellipsoids.size() - 2).forEach(withoutLastBatch::fill);
+        assertTrue("Seeding should stop as soon as the target is reached",
+                withoutLastBatch.getFillingPercentage() < targetFilling);
+    }
+
+    @Test
+    public void testSeedAdaptivelySkipsFilledSeeds() {
+        final int size = 20;
+        final byte[][] pixels = cube(size, 0);
+        final List<Vector3d> seedPoints = new ArrayList<>();
+        seedPoints.add(new Vector3d(5.5, 5.5, 5.5));
+        seedPoints.add(new Vector3d(6.5, 5.5, 5.5));
+        seedPoints.add(new Vector3d(15.5, 15.5, 15.5));
+        seedPoints.add(new Vector3d(5.5, 6.5, 5.5));
+        final FillTracker fillTracker = new FillTracker(pixels, size, size, size);
+        final List<Vector3dc> seeds = new ArrayList<>();
+
+        final List<QuickEllipsoid> ellipsoids = EllipsoidFactorWrapper.seedAdaptively(seedPoints,
+                p -> p.x > 10 ? null : sphere(3, p.x, p.y, p.z), seeds, fillTracker, 100.0, 1, i -> {});
+
+        assertEquals(2, seeds.size());
+        assertEquals(seedPoints.get(0), seeds.get(0));
+        assertEquals(seedPoints.get(2), seeds.get(1));
+        assertEquals("Seed without an ellipsoid should not add one", 1, ellipsoids.size());
+    }
+
     @BeforeClass
     public static void oneTimeSetup() {
         EllipsoidFactorWrapper.setReporter(MOCK_REPORTER);
@@ -171,4 +397,28 @@ public class EllipsoidFactorWrapperTest extends AbstractWrapperTest {
 
         return img;
     }
+
+    /**
+     * Creates a cubic foreground surrounded by a background border.
+     *
+     * @param size width, height and depth of the image.
+     * @param border thickness of the background border.
+     * @return the image as a byte array, where foreground is -1.
+     */
+    private static byte[][] cube(final int size, final int border) {
+        final byte[][] pixels = new byte[size][size * size];
+        for (int z = border; z < size - border; z++) {
+            for (int y = border; y < size - border; y++) {
+                for (int x = border; x < size - border; x++) {
+                    pixels[z][y * size + x] = -1;
+                }
+            }
+        }
+        return pixels;
+    }
+
+    private static QuickEllipsoid sphere(final double radius, final double x, final double y, final double z) {
+        return new QuickEllipsoid(new double[] { radius, radius, radius }, new double[] { x, y, z },
+                new double[][] { { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } });
+    }
 }
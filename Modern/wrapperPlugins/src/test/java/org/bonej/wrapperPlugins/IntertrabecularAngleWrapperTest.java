@@ -32,6 +32,7 @@ package org.bonej.wrapperPlugins;
 import static ij.gui.NewImage.FILL_BLACK;
 import static org.bonej.wrapperPlugins.CommonMessages.NO_SKELETONS;
 import static org.bonej.wrapperPlugins.IntertrabecularAngleWrapper.NO_RESULTS_MSG;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
@@ -49,20 +50,33 @@ import ij.gui.NewImage;
 import ij.measure.Calibration;
 
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 import net.imagej.table.DefaultResultsTable;
+import net.imglib2.util.ValuePair;
 
+import org.bonej.ops.graph.SkeletonGraph;
+import org.bonej.ops.graph.SkeletonGraphPruning;
+import org.bonej.wrapperPlugins.wrapperUtils.Common;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 import org.scijava.command.CommandModule;
 import org.scijava.table.DefaultColumn;
 
+import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+import sc.fiji.analyzeSkeleton.Graph;
+import sc.fiji.analyzeSkeleton.Vertex;
+import sc.fiji.analyzeSkeleton.ita.GraphPruning;
+import sc.fiji.analyzeSkeleton.ita.VertexUtils;
+
 /**
  * Tests for {@link IntertrabecularAngleWrapper}
  * 
@@ -246,6 +260,22 @@ public class IntertrabecularAngleWrapperTest extends AbstractWrapperTest {
 		assertEquals(10, fiveColumn.stream().filter(Objects::nonNull).count());
 	}
 	
+	@Test
+	public void testPruningMatchesAnalyzeSkeleton() {
+		final URL resource = getClass().getClassLoader().getResource(
+			"test-skelly.zip");
+		assert resource != null;
+		final ImagePlus skeleton = IJ.openImage(resource.getFile());
+		Common.skeletonise(skeleton);
+		final double[] spacing = { 1.0, 1.0, 1.0 };
+
+		for (final boolean useClusters : new boolean[] { true, false }) {
+			for (final boolean iterate : new boolean[] { false, true }) {
+				assertPruningMatches(skeleton, 2.0, iterate, useClusters, spacing);
+			}
+		}
+	}
+
 	/**
 	 * Check that the skeleton image is returned as output when requested
 	 * @throws ExecutionException
@@ -405,4 +435,58 @@ public class IntertrabecularAngleWrapperTest extends AbstractWrapperTest {
 		verify(MOCK_UI, timeout(1000)).dialogPrompt(anyString(), anyString(), any(),
 			any());
 	}
+
+	/**
+	 * Checks that {@link SkeletonGraph} and {@link SkeletonGraphPruning} give the
+	 * same valence groups, angles and culled edge percentages as AnalyzeSkeleton_
+	 * and its {@link GraphPruning}.
+	 */
+	private static void assertPruningMatches(final ImagePlus skeleton,
+		final double tolerance, final boolean iterate, final boolean useClusters,
+		final double[] spacing)
+	{
+		final String message = "useClusters " + useClusters + ", iterate " +
+			iterate + ": ";
+		final AnalyzeSkeleton_ analyser = new AnalyzeSkeleton_();
+		analyser.setup("", skeleton.duplicate());
+		analyser.run();
+		final Graph largest = Arrays.stream(analyser.getGraphs()).max(Comparator
+			.comparingInt(g -> g.getVertices().size())).orElse(new Graph());
+		final ValuePair<Graph, double[]> expected = GraphPruning.pruneShortEdges(
+			largest, tolerance, iterate, useClusters, spacing);
+		final Map<Integer, List<Vertex>> expectedValences = VertexUtils
+			.groupByValence(expected.a.getVertices(), 3, 50);
+
+		final byte[][] pixels = new byte[skeleton.getStackSize()][];
+		for (int z = 0; z < pixels.length; z++) {
+			pixels[z] = (byte[]) skeleton.getStack().getPixels(z + 1);
+		}
+		final SkeletonGraph graph = SkeletonGraph.build(pixels, skeleton
+			.getWidth(), skeleton.getHeight(), spacing).getLargestComponent();
+		final ValuePair<SkeletonGraph, double[]> actual = SkeletonGraphPruning
+			.pruneShortEdges(graph, tolerance, iterate, useClusters, spacing);
+		final Map<Integer, int[]> actualValences = actual.a.groupByValence(3, 50);
+
+		assertEquals(message + "wrong vertex count", expected.a.getVertices()
+			.size(), actual.a.getVertexCount());
+		assertEquals(message + "wrong edge count", expected.a.getEdges().size(),
+			actual.a.getEdgeCount());
+		assertEquals(message + "wrong valences", expectedValences.keySet(),
+			actualValences.keySet());
+		expectedValences.forEach((valence, vertices) -> {
+			final int[] group = actualValences.get(valence);
+			assertEquals(message + "wrong count of valence " + valence, vertices
+				.size(), group.length);
+			final double[] expectedAngles = VertexUtils.getNJunctionAngles(vertices)
+				.stream().flatMap(List::stream).mapToDouble(a -> a).sorted()
+				.toArray();
+			final double[] actualAngles = Arrays.stream(group).mapToObj(
+				actual.a::getJunctionAngles).flatMapToDouble(Arrays::stream).sorted()
+				.toArray();
+			assertArrayEquals(message + "wrong angles of valence " + valence,
+				expectedAngles, actualAngles, 1e-10);
+		});
+		assertArrayEquals(message + "wrong culled edge percentages", expected.b,
+			actual.b, 1e-10);
+	}
 }
@@ -32,6 +32,7 @@ package org.bonej.wrapperPlugins.wrapperUtils;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
@@ -43,6 +44,7 @@ import static org.scijava.ui.DialogPrompt.Result.CANCEL_OPTION;
 import static org.scijava.ui.DialogPrompt.Result.CLOSED_OPTION;
 import static org.scijava.ui.DialogPrompt.Result.OK_OPTION;
 
+import java.util.Random;
 import java.util.stream.IntStream;
 
 import ij.process.LUT;
@@ -52,9 +54,12 @@ import net.imagej.axis.Axes;
 import net.imagej.axis.DefaultLinearAxis;
 import net.imagej.legacy.IJ1Helper;
 import net.imagej.legacy.LegacyService;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.DoubleType;
 
 import org.junit.AfterClass;
@@ -110,6 +115,41 @@ public class CommonTest {
 			.averageScale(0, 1), 1e-12);
 	}
 
+	@Test
+	public void testToBitTypeImgPlusDoesNotCopyBitTypeImage() {
+		final Img<BitType> img = ArrayImgs.bits(4, 4, 4);
+		final ImgPlus<BitType> source = new ImgPlus<>(img, "Bits");
+
+		final ImgPlus<BitType> result = Common.toBitTypeImgPlus(IMAGE_J.op(),
+			source);
+
+		assertSame("Bit type data should not be copied", img, result.getImg());
+		assertEquals("Bits", result.getName());
+	}
+
+	@Test
+	public void testToBitTypeImgPlus8BitViewMatchesCopy() {
+		final Random random = new Random(0xB17);
+		final Img<UnsignedByteType> img = ArrayImgs.unsignedBytes(9, 7, 5);
+		// Zeros are common, so that there's background, and the rest of the values
+		// are any non-zero value, not just 0xFF
+		img.forEach(e -> e.set(random.nextInt(3) == 0 ? 0 : random.nextInt(
+			256)));
+		final Img<BitType> copy = IMAGE_J.op().convert().bit(img);
+
+		final ImgPlus<BitType> view = Common.toBitTypeImgPlus(IMAGE_J.op(),
+			new ImgPlus<>(img));
+
+		assertBitsEqual(copy, view.getImg());
+		// The view follows changes in the 8-bit image
+		final RandomAccess<UnsignedByteType> access = img.randomAccess();
+		access.setPosition(new long[] { 4, 3, 2 });
+		access.get().set(access.get().get() == 0 ? 1 : 0);
+		final RandomAccess<BitType> viewAccess = view.randomAccess();
+		viewAccess.setPosition(new long[] { 4, 3, 2 });
+		assertEquals(access.get().get() != 0, viewAccess.get().get());
+	}
+
 	@Test(expected = NullPointerException.class)
 	public void testToBitTypeImgPlusThrowsNPEIfOpEnvironmentNull() {
 		final Img<DoubleType> img = ArrayImgs.doubles(3, 3);
@@ -257,6 +297,20 @@ public class CommonTest {
 		verify(command).cancel(null);
 	}
 
+	private static void assertBitsEqual(final Img<BitType> expected,
+		final Img<BitType> actual)
+	{
+		final Cursor<BitType> cursor = expected.localizingCursor();
+		final RandomAccess<BitType> access = actual.randomAccess();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			access.setPosition(cursor);
+			assertEquals("Foreground differs at " + cursor.getLongPosition(0) + ", " +
+				cursor.getLongPosition(1) + ", " + cursor.getLongPosition(2), cursor
+					.get().get(), access.get().get());
+		}
+	}
+
 	@AfterClass
 	public static void oneTimeTearDown() {
 		IMAGE_J.context().dispose();